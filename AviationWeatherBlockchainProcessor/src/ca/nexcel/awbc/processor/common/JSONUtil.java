@@ -1,90 +1,147 @@
-package ca.nexcel.awbc.processor.common;
-
-//https://gist.githubusercontent.com/jjfiv/2ac5c081e088779f49aa/raw/8bda15d27c73047621a94359492a5a9433f497b2/JSONUtil.java
-
-public class JSONUtil {
-	  public static String escape(String input) {
-	    StringBuilder output = new StringBuilder();
-
-	    for(int i=0; i<input.length(); i++) {
-	      char ch = input.charAt(i);
-	      int chx = (int) ch;
-
-	      // let's not put any nulls in our strings
-	      assert(chx != 0);
-
-	      if(ch == '\n') {
-	        output.append("\\n");
-	      } else if(ch == '\t') {
-	        output.append("\\t");
-	      } else if(ch == '\r') {
-	        output.append("\\r");
-	      } else if(ch == '\\') {
-	        output.append("\\\\");
-	      } else if(ch == '"') {
-	        output.append("\\\"");
-	      } else if(ch == '\b') {
-	        output.append("\\b");
-	      } else if(ch == '\f') {
-	        output.append("\\f");
-	      } else if(chx >= 0x10000) {
-	        assert false : "Java stores as u16, so it should never give us a character that's bigger than 2 bytes. It literally can't.";
-	      } else if(chx > 127) {
-	        output.append(String.format("\\u%04x", chx));
-	      } else {
-	        output.append(ch);
-	      }
-	    }
-
-	    return output.toString();
-	  }
-
-	  public static String unescape(String input) {
-	    StringBuilder builder = new StringBuilder();
-
-	    int i = 0;
-	    while (i < input.length()) {
-	      char delimiter = input.charAt(i); i++; // consume letter or backslash
-
-	      if(delimiter == '\\' && i < input.length()) {
-
-	        // consume first after backslash
-	        char ch = input.charAt(i); i++;
-
-	        if(ch == '\\' || ch == '/' || ch == '"' || ch == '\'') {
-	          builder.append(ch);
-	        }
-	        else if(ch == 'n') builder.append('\n');
-	        else if(ch == 'r') builder.append('\r');
-	        else if(ch == 't') builder.append('\t');
-	        else if(ch == 'b') builder.append('\b');
-	        else if(ch == 'f') builder.append('\f');
-	        else if(ch == 'u') {
-
-	          StringBuilder hex = new StringBuilder();
-
-	          // expect 4 digits
-	          if (i+4 > input.length()) {
-	            throw new RuntimeException("Not enough unicode digits! ");
-	          }
-	          for (char x : input.substring(i, i + 4).toCharArray()) {
-	            if(!Character.isLetterOrDigit(x)) {
-	              throw new RuntimeException("Bad character in unicode escape.");
-	            }
-	            hex.append(Character.toLowerCase(x));
-	          }
-	          i+=4; // consume those four digits.
-
-	          int code = Integer.parseInt(hex.toString(), 16);
-	          builder.append((char) code);
-	        } else {
-	          throw new RuntimeException("Illegal escape sequence: \\"+ch);
-	        }
-	      } else { // it's not a backslash, or it's the last character.
-	        builder.append(delimiter);
-	      }
-	    }
-
-	    return builder.toString();
-	  }
-	}
\ No newline at end of file
+package ca.nexcel.awbc.processor.common;
+
+//https://gist.githubusercontent.com/jjfiv/2ac5c081e088779f49aa/raw/8bda15d27c73047621a94359492a5a9433f497b2/JSONUtil.java
+
+/**
+ * Escapes and unescapes JSON string content.
+ * <p/>
+ * Both use lookup tables rather than a chain of comparisons, and return the
+ * input itself when there is nothing to escape or unescape, which is the
+ * case for most METARs. The output is the same as the original gist's:
+ * characters above 127 are escaped as \\u followed by four lower case
+ * hex digits, and other control characters are left as they are.
+ */
+public class JSONUtil {
+
+	  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	  /**
+	   * The escape sequence of every ASCII character, or null when it is written as is
+	   */
+	  private static final String[] ESCAPES = new String[128];
+	  static {
+	    ESCAPES['\n'] = "\\n";
+	    ESCAPES['\t'] = "\\t";
+	    ESCAPES['\r'] = "\\r";
+	    ESCAPES['\\'] = "\\\\";
+	    ESCAPES['"'] = "\\\"";
+	    ESCAPES['\b'] = "\\b";
+	    ESCAPES['\f'] = "\\f";
+	  }
+
+	  /**
+	   * The character every ASCII character stands for after a backslash, or 0 when it is not a short escape
+	   */
+	  private static final char[] UNESCAPES = new char[128];
+	  static {
+	    UNESCAPES['\\'] = '\\';
+	    UNESCAPES['/'] = '/';
+	    UNESCAPES['"'] = '"';
+	    UNESCAPES['\''] = '\'';
+	    UNESCAPES['n'] = '\n';
+	    UNESCAPES['r'] = '\r';
+	    UNESCAPES['t'] = '\t';
+	    UNESCAPES['b'] = '\b';
+	    UNESCAPES['f'] = '\f';
+	  }
+
+	  public static String escape(String input) {
+	    int length = input.length();
+	    int start = 0;
+	    while ((start < length) && ! isEscaped(input.charAt(start))) {
+	      start++;
+	    }
+	    if (start == length) {
+	      return input;
+	    }
+
+	    StringBuilder output = new StringBuilder(length + 16);
+	    output.append(input, 0, start);
+
+	    for(int i=start; i<length; i++) {
+	      char ch = input.charAt(i);
+
+	      if(ch > 127) {
+	        output.append('\\').append('u')
+	          .append(HEX_DIGITS[ch >> 12]).append(HEX_DIGITS[(ch >> 8) & 0xF])
+	          .append(HEX_DIGITS[(ch >> 4) & 0xF]).append(HEX_DIGITS[ch & 0xF]);
+	      } else if(null != ESCAPES[ch]) {
+	        output.append(ESCAPES[ch]);
+	      } else {
+	        output.append(ch);
+	      }
+	    }
+
+	    return output.toString();
+	  }
+
+	  private static boolean isEscaped(char ch) {
+	    return (ch > 127) || (null != ESCAPES[ch]);
+	  }
+
+	  public static String unescape(String input) {
+	    int length = input.length();
+	    int start = input.indexOf('\\');
+	    if ((start < 0) || (start == length - 1)) {
+	      return input;
+	    }
+
+	    StringBuilder builder = new StringBuilder(length);
+	    builder.append(input, 0, start);
+
+	    int i = start;
+	    while (i < length) {
+	      char delimiter = input.charAt(i); i++; // consume letter or backslash
+
+	      if(delimiter != '\\' || i == length) { // it's not a backslash, or it's the last character.
+	        builder.append(delimiter);
+	        continue;
+	      }
+
+	      // consume first after backslash
+	      char ch = input.charAt(i); i++;
+
+	      if(ch < 128 && UNESCAPES[ch] != 0) {
+	        builder.append(UNESCAPES[ch]);
+	      } else if(ch == 'u') {
+	        // expect 4 digits
+	        if (i+4 > length) {
+	          throw new RuntimeException("Not enough unicode digits! ");
+	        }
+	        builder.append((char) parseHex(input, i));
+	        i+=4; // consume those four digits.
+	      } else {
+	        throw new RuntimeException("Illegal escape sequence: \\"+ch);
+	      }
+	    }
+
+	    return builder.toString();
+	  }
+
+	  /**
+	   * Parses the four hex digits of a unicode escape
+	   */
+	  private static int parseHex(String input, int start) {
+	    int code = 0;
+	    boolean isHex = true;
+	    for (int i = start; i < start + 4; i++) {
+	      char x = input.charAt(i);
+	      if(!Character.isLetterOrDigit(x)) {
+	        throw new RuntimeException("Bad character in unicode escape.");
+	      }
+	      int digit = Character.digit(x, 16);
+	      isHex &= digit >= 0;
+	      code = (code << 4) | digit;
+	    }
+
+	    if (! isHex) {
+	      // letters that are not hex digits fail the way Integer.parseInt fails
+	      StringBuilder hex = new StringBuilder(4);
+	      for (int i = start; i < start + 4; i++) {
+	        hex.append(Character.toLowerCase(input.charAt(i)));
+	      }
+	      return Integer.parseInt(hex.toString(), 16);
+	    }
+	    return code;
+	  }
+	}
@@ -0,0 +1,259 @@
+package ca.nexcel.awbc.processor.common;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import ca.nexcel.awbc.processor.metrics.MetricsRegistry;
+
+/**
+ * Sends the calls made at the same time by several threads together, in a
+ * single JSON RPC batch request, saving the HTTP round trip of every call
+ * but the first.
+ * <p/>
+ * No thread of its own is used. The first thread calling when no batch is
+ * being gathered leads the next batch: it waits up to the linger time for
+ * calls from other threads, or until the batch is full, then sends the batch
+ * and hands every caller its own result. Calls made while a batch is being
+ * sent are gathered into the next batch, led by the first of them, so several
+ * batches may be in flight at once.
+ * <p/>
+ * A batch is full when it holds the maximum number of calls, or when the
+ * next call would take it over the maximum number of bytes. A call larger than
+ * the maximum number of bytes is sent in a batch of its own.
+ * <p/>
+ * Calls are only gathered from threads calling at the same time, so batching
+ * is useful when several threads call, such as the sender threads of the publisher.
+ *
+ * @author George Franciscus
+ *
+ */
+public class JsonRpcBatcher {
+
+	private static final Logger LOGGER = Logger.getLogger(JsonRpcBatcher.class.getName());
+	private static final MetricsRegistry METRICS = MetricsRegistry.getDefault();
+
+	private static final int DEFAULT_MAX_CALLS = 16;
+	private static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+	private static final int DEFAULT_LINGER_MILLIS = 5;
+
+	private JsonRpcClient jsonRpcClient;
+
+	private int maxCalls = DEFAULT_MAX_CALLS;
+	private int maxBytes = DEFAULT_MAX_BYTES;
+	private int lingerMillis = DEFAULT_LINGER_MILLIS;
+
+	/**
+	 * Calls waiting to be sent, in the order they were made. Guarded by this.
+	 */
+	private List<Pending> queue = new ArrayList<Pending>();
+	private int queueBytes = 0;
+
+	/**
+	 * Set while a caller leads the gathering of the next batch. Guarded by this.
+	 */
+	private boolean isGathering = false;
+
+	public void setJsonRpcClient(JsonRpcClient jsonRpcClient) {
+		this.jsonRpcClient = jsonRpcClient;
+	}
+
+	/**
+	 * @param count the maximum number of calls in a batch
+	 */
+	public void setMaxCalls(String count) {
+		if ((null == count) || count.trim().equals("")) {
+			maxCalls = DEFAULT_MAX_CALLS;
+			return;
+		}
+
+		maxCalls = Math.max(1, Utils.stringToIntegerConverter(count, DEFAULT_MAX_CALLS
+				, "invalid rpc-batch.max-calls property defined. Defaulted to " + DEFAULT_MAX_CALLS));
+	}
+
+	/**
+	 * @param bytes the maximum number of bytes of a batch request
+	 */
+	public void setMaxBytes(String bytes) {
+		if ((null == bytes) || bytes.trim().equals("")) {
+			maxBytes = DEFAULT_MAX_BYTES;
+			return;
+		}
+
+		maxBytes = Math.max(1, Utils.stringToIntegerConverter(bytes, DEFAULT_MAX_BYTES
+				, "invalid rpc-batch.max-bytes property defined. Defaulted to " + DEFAULT_MAX_BYTES));
+	}
+
+	/**
+	 * @param millis the longest time the leader of a batch waits for more calls
+	 */
+	public void setLingerMillis(String millis) {
+		if ((null == millis) || millis.trim().equals("")) {
+			lingerMillis = DEFAULT_LINGER_MILLIS;
+			return;
+		}
+
+		lingerMillis = Math.max(0, Utils.stringToIntegerConverter(millis, DEFAULT_LINGER_MILLIS
+				, "invalid rpc-batch.linger-ms property defined. Defaulted to " + DEFAULT_LINGER_MILLIS));
+	}
+
+	/**
+	 * Call to JSON RPC Server, sent in a batch with the calls made at the same time
+	 *
+	 * @param method JSON RPC method name
+	 * @param params JSON RPC call parameters, written as an array. Must not be changed until the call returns
+	 * @return the result of the call
+	 * @throws com.googlecode.jsonrpc4j.JsonRpcClientException when the server returns an error for this call
+	 * @throws JsonRpcClient.UnansweredException when the batch was sent but this call was not answered
+	 * @throws IOException when the batch could not be sent
+	 */
+	public JsonNode call(String method, JsonWriter params) throws IOException {
+		Pending pending = new Pending(new JsonRpcClient.Call(method, params));
+		List<Pending> batch = null;
+
+		synchronized (this) {
+			queue.add(pending);
+			queueBytes += pending.call.getSize();
+			if (! isGathering) {
+				isGathering = true;
+				pending.isLeader = true;
+			}
+			//a leader waiting for calls checks whether the batch is full
+			notifyAll();
+
+			try {
+				while (! pending.isDone && ! pending.isLeader) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (! pending.isLeader && queue.remove(pending)) {
+					queueBytes -= pending.call.getSize();
+					throw new InterruptedIOException("Interrupted waiting for a JSON RPC batch");
+				}
+			}
+
+			if (pending.isLeader) {
+				batch = gather();
+			}
+		}
+
+		if (null != batch) {
+			send(batch);
+		}
+
+		synchronized (this) {
+			boolean isInterrupted = false;
+			while (! pending.isDone) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					//the call is already in a batch being sent, so its outcome is awaited
+					isInterrupted = true;
+				}
+			}
+			if (isInterrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return pending.call.getResult();
+	}
+
+	/**
+	 * Waits up to the linger time for the batch to fill, then takes the calls of
+	 * the batch from the queue. When calls remain, the first of them leads the next batch.
+	 * Called by the leader, holding the lock.
+	 *
+	 * @return the calls of the batch
+	 */
+	private List<Pending> gather() {
+		long deadline = System.currentTimeMillis() + lingerMillis;
+		boolean isInterrupted = false;
+		while ((queue.size() < maxCalls) && (queueBytes < maxBytes)) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				break;
+			}
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				//the calls gathered so far are sent right away
+				isInterrupted = true;
+				break;
+			}
+		}
+		if (isInterrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		List<Pending> batch = new ArrayList<Pending>();
+		int bytes = 0;
+		while (! queue.isEmpty() && (batch.size() < maxCalls)) {
+			Pending next = queue.get(0);
+			if (! batch.isEmpty() && (bytes + next.call.getSize() > maxBytes)) {
+				break;
+			}
+			queue.remove(0);
+			queueBytes -= next.call.getSize();
+			bytes += next.call.getSize();
+			batch.add(next);
+		}
+
+		if (queue.isEmpty()) {
+			isGathering = false;
+		} else {
+			queue.get(0).isLeader = true;
+			notifyAll();
+		}
+		return batch;
+	}
+
+	/**
+	 * Sends a batch and wakes its callers
+	 */
+	private void send(List<Pending> batch) {
+		List<JsonRpcClient.Call> calls = new ArrayList<JsonRpcClient.Call>(batch.size());
+		for (Pending pending : batch) {
+			calls.add(pending.call);
+		}
+
+		METRICS.counter(MetricsRegistry.RPC_BATCHES).increment();
+		try {
+			jsonRpcClient.callBatch(calls);
+		} catch (IOException e) {
+			LOGGER.fine("JSON RPC batch not sent. calls=" + calls.size() + " " + e.getMessage());
+			for (JsonRpcClient.Call call : calls) {
+				call.fail(e);
+			}
+		} catch (RuntimeException e) {
+			//not an IO error, so the callers do not take it for the node being unavailable
+			for (JsonRpcClient.Call call : calls) {
+				call.fail(e);
+			}
+		}
+
+		synchronized (this) {
+			for (Pending pending : batch) {
+				pending.isDone = true;
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * A call waiting to be sent. Guarded by the lock of the batcher.
+	 */
+	private static class Pending {
+		private final JsonRpcClient.Call call;
+		private boolean isLeader = false;
+		private boolean isDone = false;
+
+		private Pending(JsonRpcClient.Call call) {
+			this.call = call;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package ca.nexcel.awbc.processor.common;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.googlecode.jsonrpc4j.JsonRpcHttpClient;
+
+import ca.nexcel.awbc.processor.metrics.MetricsRegistry;
+
+/**
+ * A node of the chain the JSON RPC client sends calls to. The node
+ * counts the calls it is sending, so that the client can choose the node
+ * with the fewest, and whether it is healthy.
+ * <p/>
+ * A node is unhealthy from the moment a call to it fails, until it answers
+ * again. When several nodes are used, the latency of the calls to every
+ * node is kept in the histogram rpc.nodeN, and its calls and errors in the
+ * counters rpc.nodeN.calls and rpc.nodeN.errors, N being the number of the
+ * node in the order the nodes are configured.
+ *
+ * @author George Franciscus
+ *
+ */
+class JsonRpcNode {
+
+	private static final Logger LOGGER = Logger.getLogger(JsonRpcNode.class.getName());
+	private static final MetricsRegistry METRICS = MetricsRegistry.getDefault();
+
+	/**
+	 * The number of the node, from 1
+	 */
+	private final int number;
+
+	/**
+	 * The jsonrpc4j client of the node, holding its URL, timeouts and headers
+	 */
+	private final JsonRpcHttpClient client;
+
+	/**
+	 * The name of the node's metrics. A null value means the node is not measured.
+	 */
+	private final String metricName;
+
+	/**
+	 * The number of calls being sent to the node
+	 */
+	private final AtomicInteger outstanding = new AtomicInteger();
+
+	private volatile boolean isHealthy = true;
+
+	/**
+	 * @param number the number of the node, from 1
+	 * @param url the URL of the node
+	 * @param isMeasured true to keep the latency, calls and errors of the node
+	 */
+	JsonRpcNode(int number, URL url, boolean isMeasured) {
+		this.number = number;
+		this.client = new JsonRpcHttpClient(url, new HashMap<String, String>(1));
+		this.metricName = isMeasured ? "rpc.node" + number : null;
+	}
+
+	JsonRpcHttpClient getClient() {
+		return client;
+	}
+
+	boolean isHealthy() {
+		return isHealthy;
+	}
+
+	int getOutstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * Opens and connects a connection to post a request, the way jsonrpc4j does.
+	 * As nothing is sent yet, a request that cannot connect can be sent to another node.
+	 *
+	 * @return the connection
+	 * @throws IOException when the node cannot be reached
+	 */
+	HttpURLConnection connect() throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) client.getServiceUrl().openConnection();
+		connection.setConnectTimeout(client.getConnectionTimeoutMillis());
+		connection.setReadTimeout(client.getReadTimeoutMillis());
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setUseCaches(false);
+		connection.setRequestProperty("Content-Type", "application/json-rpc");
+		for (Map.Entry<String, String> header : client.getHeaders().entrySet()) {
+			connection.setRequestProperty(header.getKey(), header.getValue());
+		}
+		connection.connect();
+		return connection;
+	}
+
+	/**
+	 * Counts a call being sent to the node
+	 *
+	 * @return the time the call started, in nanoseconds
+	 */
+	long begin() {
+		outstanding.incrementAndGet();
+		if (null != metricName) {
+			METRICS.counter(metricName + ".calls").increment();
+		}
+		return System.nanoTime();
+	}
+
+	/**
+	 * Counts a call answered by the node, which is therefore healthy
+	 *
+	 * @param startNanos the time the call started
+	 */
+	void answered(long startNanos) {
+		outstanding.decrementAndGet();
+		if (null != metricName) {
+			METRICS.histogram(metricName).recordSince(startNanos);
+		}
+		markHealthy();
+	}
+
+	/**
+	 * Counts a call the node did not answer, which is therefore unhealthy
+	 *
+	 * @param reason why the call failed
+	 */
+	void failed(String reason) {
+		outstanding.decrementAndGet();
+		if (null != metricName) {
+			METRICS.counter(metricName + ".errors").increment();
+		}
+		markUnhealthy(reason);
+	}
+
+	void markHealthy() {
+		if (! isHealthy) {
+			isHealthy = true;
+			LOGGER.info("JSON RPC node " + number + " is healthy again. url=" + client.getServiceUrl());
+		}
+	}
+
+	void markUnhealthy(String reason) {
+		if (isHealthy) {
+			isHealthy = false;
+			LOGGER.warning("JSON RPC node " + number + " is unhealthy, calls are sent to other nodes. url=" + client.getServiceUrl()
+					+ " reason=" + reason);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "node " + number + " " + client.getServiceUrl();
+	}
+}
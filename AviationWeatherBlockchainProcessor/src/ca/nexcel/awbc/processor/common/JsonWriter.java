@@ -0,0 +1,310 @@
+package ca.nexcel.awbc.processor.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes JSON in UTF-8 straight into a byte buffer, without building
+ * maps or intermediate strings. The buffer is kept by reset, so a writer
+ * used for one batch after another stops allocating once it has grown
+ * to the size of the largest batch.
+ * <p/>
+ * Strings are escaped with a lookup table, the same way Jackson escapes
+ * them for jsonrpc4j: quotes, backslashes, control characters and each half
+ * of a surrogate pair are escaped, and every other character is written in 
+ * UTF-8. The JSON written is therefore byte for byte the JSON jsonrpc4j 
+ * sends for the same values.
+ * <p/>
+ * Commas are placed by the writer. A writer is not thread safe.
+ *
+ * @author George Franciscus
+ *
+ */
+public class JsonWriter {
+
+	private static final int DEFAULT_CAPACITY = 8192;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+	private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+	private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+	private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+
+	/**
+	 * Written as a \\u escape
+	 */
+	private static final int UNICODE_ESCAPE = -1;
+
+	/**
+	 * How every ASCII character is written in a string: 0 as is,
+	 * UNICODE_ESCAPE as a \\u escape, any other value as a backslash
+	 * followed by that character
+	 */
+	private static final int[] ASCII_ESCAPES = new int[128];
+	static {
+		for (int ch = 0; ch < 0x20; ch++) {
+			ASCII_ESCAPES[ch] = UNICODE_ESCAPE;
+		}
+		ASCII_ESCAPES['"'] = '"';
+		ASCII_ESCAPES['\\'] = '\\';
+		ASCII_ESCAPES['\b'] = 'b';
+		ASCII_ESCAPES['\t'] = 't';
+		ASCII_ESCAPES['\n'] = 'n';
+		ASCII_ESCAPES['\f'] = 'f';
+		ASCII_ESCAPES['\r'] = 'r';
+	}
+
+	private byte[] buffer;
+	private int size = 0;
+
+	/**
+	 * Whether the next value, name or container is preceded by a comma
+	 */
+	private boolean needsComma = false;
+
+	public JsonWriter() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity the initial size of the buffer in bytes
+	 */
+	public JsonWriter(int capacity) {
+		buffer = new byte[Math.max(16, capacity)];
+	}
+
+	/**
+	 * Discards everything written, keeping the buffer
+	 */
+	public void reset() {
+		size = 0;
+		needsComma = false;
+	}
+
+	public JsonWriter beginObject() {
+		separate();
+		write('{');
+		needsComma = false;
+		return this;
+	}
+
+	public JsonWriter endObject() {
+		write('}');
+		needsComma = true;
+		return this;
+	}
+
+	public JsonWriter beginArray() {
+		separate();
+		write('[');
+		needsComma = false;
+		return this;
+	}
+
+	public JsonWriter endArray() {
+		write(']');
+		needsComma = true;
+		return this;
+	}
+
+	/**
+	 * Writes the name of the next member of an object
+	 *
+	 * @param name the member name
+	 */
+	public JsonWriter name(String name) {
+		separate();
+		writeString(name);
+		write(':');
+		needsComma = false;
+		return this;
+	}
+
+	/**
+	 * @param value a string, or null
+	 */
+	public JsonWriter value(String value) {
+		separate();
+		if (null == value) {
+			write(NULL);
+		} else {
+			writeString(value);
+		}
+		needsComma = true;
+		return this;
+	}
+
+	public JsonWriter value(long value) {
+		separate();
+		if (value == Long.MIN_VALUE) {
+			write(Long.toString(value));
+		} else {
+			if (value < 0) {
+				write('-');
+				value = -value;
+			}
+			writeDigits(value);
+		}
+		needsComma = true;
+		return this;
+	}
+
+	public JsonWriter value(boolean value) {
+		separate();
+		write(value ? TRUE : FALSE);
+		needsComma = true;
+		return this;
+	}
+
+	public JsonWriter nullValue() {
+		separate();
+		write(NULL);
+		needsComma = true;
+		return this;
+	}
+
+	/**
+	 * Writes an array of strings
+	 *
+	 * @param values the strings
+	 */
+	public JsonWriter value(List<String> values) {
+		beginArray();
+		for (int i = 0; i < values.size(); i++) {
+			value(values.get(i));
+		}
+		return endArray();
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Copies the bytes written to a stream
+	 *
+	 * @param outputStream the stream
+	 * @throws IOException when the stream cannot be written
+	 */
+	public void writeTo(OutputStream outputStream) throws IOException {
+		outputStream.write(buffer, 0, size);
+	}
+
+	/**
+	 * @return a copy of the bytes written
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, size);
+	}
+
+	/**
+	 * @return the JSON written
+	 */
+	@Override
+	public String toString() {
+		return new String(buffer, 0, size, UTF8);
+	}
+
+	private void separate() {
+		if (needsComma) {
+			write(',');
+		}
+	}
+
+	/**
+	 * Writes a string in quotes, escaping the characters JSON requires.
+	 * Room for the longest encoding is made once, so every character is 
+	 * written without checking the size of the buffer.
+	 */
+	private void writeString(String value) {
+		int length = value.length();
+		//at most 6 bytes a character, plus the quotes
+		ensureCapacity(2 + 6 * length);
+
+		byte[] bytes = buffer;
+		int position = size;
+		bytes[position++] = '"';
+		for (int i = 0; i < length; i++) {
+			char ch = value.charAt(i);
+			if (ch < 0x80) {
+				int escape = ASCII_ESCAPES[ch];
+				if (escape == 0) {
+					bytes[position++] = (byte) ch;
+				} else if (escape == UNICODE_ESCAPE) {
+					bytes[position++] = '\\';
+					bytes[position++] = 'u';
+					bytes[position++] = '0';
+					bytes[position++] = '0';
+					bytes[position++] = HEX_DIGITS[ch >> 4];
+					bytes[position++] = HEX_DIGITS[ch & 0xF];
+				} else {
+					bytes[position++] = '\\';
+					bytes[position++] = (byte) escape;
+				}
+			} else if (ch < 0x800) {
+				bytes[position++] = (byte) (0xC0 | (ch >> 6));
+				bytes[position++] = (byte) (0x80 | (ch & 0x3F));
+			} else if (Character.isSurrogate(ch)) {
+				//Jackson escapes each half of a surrogate pair
+				bytes[position++] = '\\';
+				bytes[position++] = 'u';
+				bytes[position++] = HEX_DIGITS[ch >> 12];
+				bytes[position++] = HEX_DIGITS[(ch >> 8) & 0xF];
+				bytes[position++] = HEX_DIGITS[(ch >> 4) & 0xF];
+				bytes[position++] = HEX_DIGITS[ch & 0xF];
+			} else {
+				bytes[position++] = (byte) (0xE0 | (ch >> 12));
+				bytes[position++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+				bytes[position++] = (byte) (0x80 | (ch & 0x3F));
+			}
+		}
+		bytes[position++] = '"';
+		size = position;
+	}
+
+	private void writeDigits(long value) {
+		ensureCapacity(20);
+		int digits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+		int position = size + digits;
+		size = position;
+		do {
+			buffer[--position] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while (value > 0);
+	}
+
+	private void write(int ch) {
+		ensureCapacity(1);
+		buffer[size++] = (byte) ch;
+	}
+
+	private void write(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, size, bytes.length);
+		size += bytes.length;
+	}
+
+	private void write(String ascii) {
+		ensureCapacity(ascii.length());
+		for (int i = 0; i < ascii.length(); i++) {
+			buffer[size++] = (byte) ascii.charAt(i);
+		}
+	}
+
+	private void ensureCapacity(int extra) {
+		if (size + extra > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package ca.nexcel.awbc.processor.common;
+
+/**
+ * A small, fixed size cache of strings used to share a single instance
+ * of frequently repeated values such as station identifiers.
+ * <p/>
+ * Unlike String.intern, a lookup is performed on a range of characters,
+ * so no String is created when the value is already cached. When two values
+ * share a slot, the most recent one replaces the other, which bounds the
+ * memory used no matter how many distinct values are seen.
+ * <p/>
+ * This class is not thread safe. Each parser owns its own instance.
+ *
+ * @author George Franciscus
+ *
+ */
+public class StringInterner {
+
+	/**
+	 * The default number of slots. Comfortably holds every station in the world.
+	 */
+	private static final int DEFAULT_SIZE = 16384;
+
+	/**
+	 * The cached strings, indexed by hash
+	 */
+	private String[] slots;
+
+	/**
+	 * Mask used to map a hash to a slot
+	 */
+	private int mask;
+
+	public StringInterner() {
+		this(DEFAULT_SIZE);
+	}
+
+	/**
+	 * @param size the number of slots, rounded up to a power of two
+	 */
+	public StringInterner(int size) {
+		int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+		slots = new String[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Obtains the cached string equal to a range of characters, creating
+	 * and caching it when it is not already cached.
+	 *
+	 * @param text the characters
+	 * @param start the index of the first character
+	 * @param end the index after the last character
+	 * @return the cached string
+	 */
+	public String intern(CharSequence text, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + text.charAt(i);
+		}
+
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		String cached = slots[slot];
+		if ((null != cached) && contentEquals(cached, text, start, end)) {
+			return cached;
+		}
+
+		cached = text.subSequence(start, end).toString();
+		slots[slot] = cached;
+		return cached;
+	}
+
+	private static boolean contentEquals(String cached, CharSequence text, int start, int end) {
+		if (cached.length() != (end - start)) {
+			return false;
+		}
+		for (int i = start; i < end; i++) {
+			if (cached.charAt(i - start) != text.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -1,194 +1,319 @@
-package ca.nexcel.awbc.processor.common;
-
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.Properties;
-import java.util.StringTokenizer;
-import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import ca.nexcel.awbc.processor.model.Metric;
-
-/**
- * A collection of utility methods.
- * 
- * @author George Franciscus
- *
- */
-public class Utils {
-	private static final Logger LOGGER = Logger.getLogger(Utils.class.getName());
-	
-	/**
-	 * Create a list of tokens from a comma delimited String.
-	 * @param text comma delimited String
-	 * @return list of tokens
-	 */
-	static public List buildListFromString(String text) {
-		StringTokenizer st = new StringTokenizer(text, ",");
-		List tokenList = new ArrayList();
-		while (st.hasMoreTokens()) tokenList.add(st.nextToken());
-		return tokenList;
-	}
-	
-	
-	/**
-	 * Obtain a properties file. This method attempts to find the properties file
-	 * in a physical location. If not found, it attempts to find the properties
-	 * file on the classpath.
-	 * 
-	 * @param physicalFilenameAndPath physical file name and path to properties file
-	 * @return Properties file. A null value means its not found. 
-	 */
-	static public Properties getConfigProperfiesFile(String physicalFilenameAndPath) {
-		 return loadPropertiesFileFromAbsolutePath(physicalFilenameAndPath);
-	}
-	
-	static public Properties loadPropertiesFileFromClasspath(String propertiesFileName) {
-		Properties properties = null;
-		InputStream input = null;
-
-		try {
-			input = Utils.class.getClassLoader().getResourceAsStream(propertiesFileName);
-			if (input == null) {
-				return null;
-			}
-
-			properties = new Properties();
-			properties.load(input);
-
-		} catch (IOException ex) {
-			properties = null;
-		} finally {
-			if (input != null) {
-				try {
-					input.close();
-				} catch (IOException e) {
-					System.out.println("Warning: cannot close input stream after trying to "
-							+ "load Properties File from classpath");
-				}
-			}
-		}
-		return properties;
-	}
-	
-	/**
-	 * Load the properties file usign the absolute path to the file system
-	 * 
-	 * @param physicalFilenameAndPath the file name and path the the properties file
-	 * @return the loaded properties file. A null value means its not found.
-	 */
-	static public Properties loadPropertiesFileFromAbsolutePath(String physicalFilenameAndPath) {
-        Properties properties = null;
-        try {
-               properties = new Properties();
-               properties.load(new FileInputStream(physicalFilenameAndPath));
-        } catch (FileNotFoundException e) {
-               properties = null;
-        } catch (IOException e) {
-               properties = null;
-        }
-
-        return properties;
-	}
-	
-
-	/**
-	 * Extracts a value for a property in JSON.
-	 * @param property the JSON property to be extracted.
-	 * @param json Valid JSON
-	 * @return property value
-	 */
-	static public String getValueFromJSON(String property, String json) {
-		int startPosition = json.indexOf(property + "\":");
-		if (-1 == startPosition) {
-			return null;
-		}
-		startPosition = json.indexOf(":\"", startPosition);
-
-		int endPosition = json.indexOf("\",", startPosition + 2);
-		if (endPosition == -1) {
-			endPosition = json.indexOf("\"}", startPosition + 2);
-		}
-		if (-1 == endPosition) {
-			return null;
-		}
-		return json.substring(startPosition + 2, endPosition);
-
-	}
-	
-	
-	/**
-	 * Adds metrics to a map of metrics. 
-	 * Values are added to an existing metric if one is already associated with the key.
-	 * Otherwise, a new metric is created and added to the map.  
-	 * 
-	 * @param metrics the existing map of metrics. Must not be null.
-	 * @param key the key associated with the metrics
-	 * @param successCount the number of successes
-	 * @param failureCount the number of failures
-	 * @param attemptCount the number of attempts. Should equal the failures + successes
-	 */
-	static public void addToMap(Map<String, Metric> metrics, String key, int successCount, int failureCount, int attemptCount) {
-        Metric metric = metrics.get(key);
-      if (null == metric) {
-    	  metrics.put(key, new Metric(successCount, failureCount, attemptCount));
-        } else {
-          metric.addToSuccessCount(successCount);
-          metric.addToFailureCount(failureCount); 
-          metric.addToAttemptCount(attemptCount); 
-        }
-  }
-	
-	
-    /**
-     * Converts an integer in String form to an int.
-     * Malformed input will return the defaultResult, and log
-     * the default message.
-     * 
-     * @param input the string to convert to an int
-     * @param defaultResult the value to return when unable to convert to int
-     * @param defaultMessage the message to logn wehn unable to convert to int
-     * @return the convered int
-     */
-    static public int stringToIntegerConverter(String input, int defaultResult, String defaultMessage) {
-        int result = 0;
-        try {
-               result = Integer.parseInt(input.trim());
-        } catch (NumberFormatException e) {
-               result = defaultResult;
-               LOGGER.warning(defaultMessage);
-        }     
-
-        return result;
-  }
-    
-    
-    /**
-     * Extract the value from a JSON string as presented
-     * by the JSON RPC server.
-     * 
-     * @param text the text containing JSON key and value
-     * @param jsonKey the key associated with the value to be extracted
-     * @return the value associated with the key
-     */
-    public static List<String> extractTextFromJSon(String text, String jsonKey) {
-      	List<String> list = new ArrayList<String>();
-     	String regex =  jsonKey +  "=(.*?)(\\, | \\} | \\])";
-     	text = text.replaceAll("\\{", "");
-     	text = text.replaceAll("\\}", "");
-     	Pattern pattern = Pattern.compile(regex);
-     	Matcher matcher = pattern.matcher(text);
-     	while(matcher.find()) {
-     	  list.add(matcher.group(1));
-    	}
-    	
-    	return list;
-    }
-
-}
+package ca.nexcel.awbc.processor.common;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.BufferedInputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import ca.nexcel.awbc.processor.metrics.CountingInputStream;
+import ca.nexcel.awbc.processor.metrics.MetricsRegistry;
+import ca.nexcel.awbc.processor.model.Metric;
+
+/**
+ * A collection of utility methods.
+ * 
+ * @author George Franciscus
+ *
+ */
+public class Utils {
+	private static final Logger LOGGER = Logger.getLogger(Utils.class.getName());
+	private static final MetricsRegistry METRICS = MetricsRegistry.getDefault();
+	
+	/**
+	 * Create a list of tokens from a comma delimited String.
+	 * @param text comma delimited String
+	 * @return list of tokens
+	 */
+	static public List<String> buildListFromString(String text) {
+		StringTokenizer st = new StringTokenizer(text, ",");
+		List<String> tokenList = new ArrayList<String>();
+		while (st.hasMoreTokens()) tokenList.add(st.nextToken());
+		return tokenList;
+	}
+	
+	
+	/**
+	 * Obtain a properties file. This method attempts to find the properties file
+	 * in a physical location. If not found, it attempts to find the properties
+	 * file on the classpath.
+	 * 
+	 * @param physicalFilenameAndPath physical file name and path to properties file
+	 * @return Properties file. A null value means its not found. 
+	 */
+	static public Properties getConfigProperfiesFile(String physicalFilenameAndPath) {
+		 return loadPropertiesFileFromAbsolutePath(physicalFilenameAndPath);
+	}
+	
+	static public Properties loadPropertiesFileFromClasspath(String propertiesFileName) {
+		Properties properties = null;
+		InputStream input = null;
+
+		try {
+			input = Utils.class.getClassLoader().getResourceAsStream(propertiesFileName);
+			if (input == null) {
+				return null;
+			}
+
+			properties = new Properties();
+			properties.load(input);
+
+		} catch (IOException ex) {
+			properties = null;
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+					System.out.println("Warning: cannot close input stream after trying to "
+							+ "load Properties File from classpath");
+				}
+			}
+		}
+		return properties;
+	}
+	
+	/**
+	 * Load the properties file usign the absolute path to the file system
+	 * 
+	 * @param physicalFilenameAndPath the file name and path the the properties file
+	 * @return the loaded properties file. A null value means its not found.
+	 */
+	static public Properties loadPropertiesFileFromAbsolutePath(String physicalFilenameAndPath) {
+        Properties properties = null;
+        try {
+               properties = new Properties();
+               properties.load(new FileInputStream(physicalFilenameAndPath));
+        } catch (FileNotFoundException e) {
+               properties = null;
+        } catch (IOException e) {
+               properties = null;
+        }
+
+        return properties;
+	}
+	
+	/**
+	 * Load a properties file kept by the processor
+	 * 
+	 * @param file the properties file
+	 * @return the loaded properties
+	 * @throws IOException when the file cannot be read
+	 */
+	static public Properties loadPropertiesFile(File file) throws IOException {
+		Properties properties = new Properties();
+		InputStream inputStream = new FileInputStream(file);
+		try {
+			properties.load(inputStream);
+		} finally {
+			closeQuietly(inputStream);
+		}
+		return properties;
+	}
+	
+	/**
+	 * Store a properties file kept by the processor. The properties are written 
+	 * to a temporary file first, which then replaces the file, so that a crash 
+	 * does not leave a partial file.
+	 * 
+	 * @param properties the properties
+	 * @param file the properties file
+	 * @param comments the comments written at the top of the file
+	 * @throws IOException when the file cannot be written
+	 */
+	static public void storePropertiesFile(Properties properties, File file, String comments) throws IOException {
+		File temporaryFile = new File(file.getPath() + ".tmp");
+		OutputStream outputStream = null;
+		try {
+			outputStream = new FileOutputStream(temporaryFile);
+			properties.store(outputStream, comments);
+			//closed before the move, so that a failure to write the end of the file is reported
+			outputStream.close();
+			outputStream = null;
+		} finally {
+			closeQuietly(outputStream);
+		}
+		Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	/**
+	 * Close a stream, ignoring a failure to close it
+	 * 
+	 * @param closeable the stream. A null value means nothing to close.
+	 */
+	static public void closeQuietly(Closeable closeable) {
+		if (null != closeable) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				//nothing more to read or write
+			}
+		}
+	}
+
+	/**
+	 * Extracts a value for a property in JSON.
+	 * @param property the JSON property to be extracted.
+	 * @param json Valid JSON
+	 * @return property value
+	 */
+	static public String getValueFromJSON(String property, String json) {
+		int startPosition = json.indexOf(property + "\":");
+		if (-1 == startPosition) {
+			return null;
+		}
+		startPosition = json.indexOf(":\"", startPosition);
+
+		int endPosition = json.indexOf("\",", startPosition + 2);
+		if (endPosition == -1) {
+			endPosition = json.indexOf("\"}", startPosition + 2);
+		}
+		if (-1 == endPosition) {
+			return null;
+		}
+		return json.substring(startPosition + 2, endPosition);
+
+	}
+	
+	
+	/**
+	 * Adds metrics to a map of metrics. 
+	 * Values are added to an existing metric if one is already associated with the key.
+	 * Otherwise, a new metric is created and added to the map. Metrics may be 
+	 * added from several threads at the same time when the map is a ConcurrentMap.
+	 * 
+	 * @param metrics the existing map of metrics. Must not be null.
+	 * @param key the key associated with the metrics
+	 * @param successCount the number of successes
+	 * @param failureCount the number of failures
+	 * @param attemptCount the number of attempts. Should equal the failures + successes
+	 */
+	static public void addToMap(Map<String, Metric> metrics, String key, int successCount, int failureCount, int attemptCount) {
+        Metric metric = metrics.get(key);
+      if (null == metric) {
+    	  if (metrics instanceof ConcurrentMap) {
+    		  //another thread may add a metric for the same key first
+    		  metric = ((ConcurrentMap<String, Metric>) metrics).putIfAbsent(key, new Metric(0, 0, 0));
+    		  if (null == metric) {
+    			  metric = metrics.get(key);
+    		  }
+    	  } else {
+    		  metric = new Metric(0, 0, 0);
+    		  metrics.put(key, metric);
+    	  }
+      }
+      metric.addToSuccessCount(successCount);
+      metric.addToFailureCount(failureCount); 
+      metric.addToAttemptCount(attemptCount); 
+  }
+	
+	
+    /**
+     * Converts an integer in String form to an int.
+     * Malformed input will return the defaultResult, and log
+     * the default message.
+     * 
+     * @param input the string to convert to an int
+     * @param defaultResult the value to return when unable to convert to int
+     * @param defaultMessage the message to logn wehn unable to convert to int
+     * @return the convered int
+     */
+    static public int stringToIntegerConverter(String input, int defaultResult, String defaultMessage) {
+        int result = 0;
+        try {
+               result = Integer.parseInt(input.trim());
+        } catch (NumberFormatException e) {
+               result = defaultResult;
+               LOGGER.warning(defaultMessage);
+        }     
+
+        return result;
+  }
+    
+    
+    /**
+     * Extract the value from a JSON string as presented
+     * by the JSON RPC server.
+     * 
+     * @param text the text containing JSON key and value
+     * @param jsonKey the key associated with the value to be extracted
+     * @return the value associated with the key
+     */
+    public static List<String> extractTextFromJSon(String text, String jsonKey) {
+      	List<String> list = new ArrayList<String>();
+     	String regex =  jsonKey +  "=(.*?)(\\, | \\} | \\])";
+     	text = text.replaceAll("\\{", "");
+     	text = text.replaceAll("\\}", "");
+     	Pattern pattern = Pattern.compile(regex);
+     	Matcher matcher = pattern.matcher(text);
+     	while(matcher.find()) {
+     	  list.add(matcher.group(1));
+    	}
+    	
+    	return list;
+    }
+
+    
+    /**
+     * Opens a stream to read the content of a URL. Content compressed
+     * with gzip, such as the aviationweather.gov cache files, is 
+     * decompressed while it is read. The time to the first byte and the
+     * number of bytes read are recorded in the metrics registry.
+     * 
+     * @param url the URL of the content
+     * @return a stream of the uncompressed content
+     * @throws IOException when the content cannot be read
+     */
+    public static InputStream openStream(String url) throws IOException {
+    	long startNanos = System.nanoTime();
+    	return decompressStream(new CountingInputStream(new URL(url).openStream()
+    			, METRICS.counter(MetricsRegistry.BYTES_FETCHED)), startNanos);
+    }
+    
+    /**
+     * Buffers a stream of fetched content. Content compressed with gzip
+     * is decompressed while it is read, whether or not the server declared 
+     * the compression. The time until the first bytes arrive is recorded as 
+     * the fetch time in the metrics registry.
+     * 
+     * @param fetchedStream the content as fetched
+     * @param startNanos the System.nanoTime() the fetch was started at
+     * @return a stream of the uncompressed content
+     * @throws IOException when the content cannot be read
+     */
+    public static InputStream decompressStream(InputStream fetchedStream, long startNanos) throws IOException {
+    	InputStream inputStream = new BufferedInputStream(fetchedStream);
+    	
+    	//The first two bytes of gzip content are always 0x1f 0x8b
+    	inputStream.mark(2);
+    	int first = inputStream.read();
+    	int second = inputStream.read();
+    	inputStream.reset();
+    	
+    	//the fetch is timed until the first bytes arrive, the rest is read while parsing
+    	METRICS.histogram(MetricsRegistry.STAGE_FETCH).recordSince(startNanos);
+    	
+    	if ((first == 0x1f) && (second == 0x8b)) {
+    		return new GZIPInputStream(inputStream);
+    	}
+    	return inputStream;
+    }
+
+}
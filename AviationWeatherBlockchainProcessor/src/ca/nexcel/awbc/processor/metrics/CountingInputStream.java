@@ -0,0 +1,64 @@
+package ca.nexcel.awbc.processor.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream adding the number of bytes read to a counter. 
+ * The bytes read from this stream alone are also counted.
+ * 
+ * @author George Franciscus
+ *
+ */
+public class CountingInputStream extends FilterInputStream {
+	
+	private StripedCounter counter;
+	private long count = 0;
+	
+	public CountingInputStream(InputStream inputStream, StripedCounter counter) {
+		super(inputStream);
+		this.counter = counter;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		int value = super.read();
+		if (value >= 0) {
+			counter.increment();
+			count++;
+		}
+		return value;
+	}
+	
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		int read = super.read(buffer, offset, length);
+		if (read > 0) {
+			counter.add(read);
+			count += read;
+		}
+		return read;
+	}
+	
+	@Override
+	public long skip(long length) throws IOException {
+		long skipped = super.skip(length);
+		counter.add(skipped);
+		count += skipped;
+		return skipped;
+	}
+	
+	/**
+	 * @return the number of bytes read from this stream
+	 */
+	public long getCount() {
+		return count;
+	}
+	
+	@Override
+	public boolean markSupported() {
+		//bytes read again after a reset would be counted twice
+		return false;
+	}
+}
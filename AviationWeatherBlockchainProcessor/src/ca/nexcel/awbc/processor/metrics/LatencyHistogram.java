@@ -0,0 +1,133 @@
+package ca.nexcel.awbc.processor.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in microseconds, recorded without locking.
+ * <p/>
+ * Durations below 16 microseconds each have their own bucket. Above that,
+ * every power of two is divided into 8 buckets, so a percentile is reported
+ * within 12.5% of the recorded duration, from microseconds up to days, using
+ * a few hundred buckets.
+ * 
+ * @author George Franciscus
+ *
+ */
+public class LatencyHistogram {
+	
+	/**
+	 * The number of bits used to divide a power of two into buckets
+	 */
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	
+	/**
+	 * Durations below this value each have their own bucket
+	 */
+	private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+	
+	/**
+	 * The largest power of two of a duration, about 12 days in microseconds
+	 */
+	private static final int MAX_EXPONENT = 40;
+	
+	private static final int BUCKETS = LINEAR_LIMIT + ((MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS);
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final StripedCounter count = new StripedCounter();
+	private final StripedCounter sum = new StripedCounter();
+	private final AtomicLong max = new AtomicLong();
+	
+	/**
+	 * Records a duration
+	 * 
+	 * @param micros the duration in microseconds
+	 */
+	public void record(long micros) {
+		if (micros < 0) {
+			micros = 0;
+		}
+		counts.getAndIncrement(bucketOf(micros));
+		count.increment();
+		sum.add(micros);
+		
+		long currentMax = max.get();
+		while ((micros > currentMax) && ! max.compareAndSet(currentMax, micros)) {
+			currentMax = max.get();
+		}
+	}
+	
+	/**
+	 * Records the time elapsed since a start time
+	 * 
+	 * @param startNanos the start time, from System.nanoTime()
+	 */
+	public void recordSince(long startNanos) {
+		record((System.nanoTime() - startNanos) / 1000);
+	}
+	
+	public long getCount() {
+		return count.sum();
+	}
+	
+	/**
+	 * @return the sum of the recorded durations in microseconds
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+	
+	/**
+	 * @return the longest recorded duration in microseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * Obtains the duration that a percentage of the recorded durations do not exceed
+	 * 
+	 * @param percent the percentage, from 0 to 100
+	 * @return the upper bound of the bucket holding the percentile, in microseconds. 0 when nothing is recorded.
+	 */
+	public long getPercentile(double percent) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (0 == total) {
+			return 0;
+		}
+		
+		long rank = Math.max(1, (long) Math.ceil(percent / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(i), getMax());
+			}
+		}
+		return getMax();
+	}
+	
+	static int bucketOf(long micros) {
+		if (micros < LINEAR_LIMIT) {
+			return (int) micros;
+		}
+		int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+		int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return Math.min(BUCKETS - 1, LINEAR_LIMIT + ((exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS) + subBucket);
+	}
+	
+	static long upperBoundOf(int bucket) {
+		if (bucket < LINEAR_LIMIT) {
+			return bucket;
+		}
+		int exponent = ((bucket - LINEAR_LIMIT) / SUB_BUCKETS) + SUB_BUCKET_BITS + 1;
+		int subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}
@@ -0,0 +1,142 @@
+package ca.nexcel.awbc.processor.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the metrics registry over HTTP at /metrics, in the Prometheus text 
+ * format, so that a run can be scraped without a JMX client.
+ * <p/>
+ * Names are prefixed with awbc_ and periods and hyphens are replaced with 
+ * underscores, so records.written becomes awbc_records_written. Counters of 
+ * a country carry a country label. Histograms are served as summaries in 
+ * seconds with the 0.5, 0.9 and 0.99 quantiles.
+ * <p/>
+ * The endpoint is served by a single daemon thread and binds to the loopback
+ * interface unless another host is configured.
+ * 
+ * @author George Franciscus
+ *
+ */
+public class MetricsHttpEndpoint {
+	
+	private static final Logger LOGGER = Logger.getLogger(MetricsHttpEndpoint.class.getName());
+	
+	private static final String CONTEXT = "/metrics";
+	private static final String PREFIX = "awbc_";
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+	
+	private MetricsRegistry registry;
+	private HttpServer server;
+	private ExecutorService executor;
+	
+	public MetricsHttpEndpoint(MetricsRegistry registry) {
+		this.registry = registry;
+	}
+	
+	/**
+	 * Starts serving the metrics
+	 * 
+	 * @param host the host name or address bound to
+	 * @param port the port bound to
+	 * @throws IOException when the port cannot be bound
+	 */
+	public void start(String host, int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(host, port), 0);
+		server.createContext(CONTEXT, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = scrape().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream output = exchange.getResponseBody();
+				output.write(body);
+				output.close();
+			}
+		});
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "awbc-metrics-http");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+		LOGGER.info("metrics served at http://" + host + ":" + server.getAddress().getPort() + CONTEXT);
+	}
+	
+	/**
+	 * Stops serving the metrics
+	 */
+	public void stop() {
+		if (null != server) {
+			server.stop(0);
+			executor.shutdownNow();
+			server = null;
+		}
+	}
+	
+	/**
+	 * @return the port served, useful when started on port 0
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+	
+	/**
+	 * @return the metrics in the Prometheus text format
+	 */
+	String scrape() {
+		StringBuilder text = new StringBuilder(4096);
+		
+		for (Map.Entry<String, Long> counter : registry.getCounters().entrySet()) {
+			String name = name(counter.getKey());
+			text.append("# TYPE ").append(name).append(" counter\n");
+			text.append(name).append(' ').append(counter.getValue()).append('\n');
+		}
+		
+		for (Map.Entry<String, Map<String, Long>> countries : registry.getLabelledCounters().entrySet()) {
+			String name = name(countries.getKey());
+			text.append("# TYPE ").append(name).append(" counter\n");
+			for (Map.Entry<String, Long> counter : countries.getValue().entrySet()) {
+				text.append(name).append('{').append(MetricsRegistry.COUNTRY_LABEL).append("=\"")
+					.append(escape(counter.getKey())).append("\"} ").append(counter.getValue()).append('\n');
+			}
+		}
+		
+		for (Map.Entry<String, LatencyHistogram> histogram : registry.getHistograms().entrySet()) {
+			String name = name(histogram.getKey()) + "_seconds";
+			LatencyHistogram latencies = histogram.getValue();
+			text.append("# TYPE ").append(name).append(" summary\n");
+			for (double quantile : QUANTILES) {
+				text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+					.append(seconds(latencies.getPercentile(quantile * 100))).append('\n');
+			}
+			text.append(name).append("_sum ").append(seconds(latencies.getSum())).append('\n');
+			text.append(name).append("_count ").append(latencies.getCount()).append('\n');
+		}
+		return text.toString();
+	}
+	
+	private static String name(String metric) {
+		return PREFIX + metric.replace('.', '_').replace('-', '_');
+	}
+	
+	private static String seconds(long micros) {
+		return Double.toString(micros / 1000000.0);
+	}
+	
+	private static String escape(String label) {
+		return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
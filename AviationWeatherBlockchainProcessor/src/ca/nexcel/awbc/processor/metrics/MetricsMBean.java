@@ -0,0 +1,131 @@
+package ca.nexcel.awbc.processor.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes the metrics registry over JMX, so that a run can be watched 
+ * with jconsole or any other JMX client.
+ * <p/>
+ * Every counter is an attribute named after it. Counters labelled with a 
+ * country are named name.country, such as records.written.CA. Every histogram 
+ * provides its count, mean, 50th, 99th percentile and maximum in milliseconds, 
+ * such as stage.rpc.p99. Attributes are read only and are added as the 
+ * registry grows.
+ * 
+ * @author George Franciscus
+ *
+ */
+public class MetricsMBean implements DynamicMBean {
+	
+	private static final Logger LOGGER = Logger.getLogger(MetricsMBean.class.getName());
+	
+	/**
+	 * The name the registry is registered under
+	 */
+	public static final String OBJECT_NAME = "ca.nexcel.awbc:type=Metrics";
+	
+	private MetricsRegistry registry;
+	
+	public MetricsMBean(MetricsRegistry registry) {
+		this.registry = registry;
+	}
+	
+	/**
+	 * Registers the registry with the platform MBean server, once per process.
+	 * 
+	 * @param registry the registry to be exposed
+	 */
+	public static void register(MetricsRegistry registry) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (! server.isRegistered(name)) {
+				server.registerMBean(new MetricsMBean(registry), name);
+				LOGGER.info("metrics registered with JMX as " + OBJECT_NAME);
+			}
+		} catch (Exception e) {
+			LOGGER.warning("unable to register metrics with JMX. " + e.getMessage());
+		}
+	}
+	
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Map<String, Object> values = values();
+		if (! values.containsKey(attribute)) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return values.get(attribute);
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Object> values = values();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			if (values.containsKey(attribute)) {
+				list.add(new Attribute(attribute, values.get(attribute)));
+			}
+		}
+		return list;
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Map.Entry<String, Object> value : values().entrySet()) {
+			attributes.add(new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName()
+					, value.getKey(), true, false, false));
+		}
+		return new MBeanInfo(getClass().getName(), "Aviation weather blockchain processor metrics"
+				, attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("metrics are read only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName), "metrics have no operations");
+	}
+	
+	/**
+	 * @return the value of every attribute, by attribute name, in registry order
+	 */
+	private Map<String, Object> values() {
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, Long> counter : registry.getCounters().entrySet()) {
+			values.put(counter.getKey(), counter.getValue());
+		}
+		for (Map.Entry<String, Map<String, Long>> countries : registry.getLabelledCounters().entrySet()) {
+			for (Map.Entry<String, Long> counter : countries.getValue().entrySet()) {
+				values.put(countries.getKey() + "." + counter.getKey(), counter.getValue());
+			}
+		}
+		for (Map.Entry<String, LatencyHistogram> histogram : registry.getHistograms().entrySet()) {
+			LatencyHistogram latencies = histogram.getValue();
+			long count = latencies.getCount();
+			values.put(histogram.getKey() + ".count", count);
+			values.put(histogram.getKey() + ".mean", (0 == count) ? 0.0 : latencies.getSum() / (count * 1000.0));
+			values.put(histogram.getKey() + ".p50", latencies.getPercentile(50) / 1000.0);
+			values.put(histogram.getKey() + ".p99", latencies.getPercentile(99) / 1000.0);
+			values.put(histogram.getKey() + ".max", latencies.getMax() / 1000.0);
+		}
+		return values;
+	}
+}
@@ -0,0 +1,183 @@
+package ca.nexcel.awbc.processor.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The counters and latency histograms of the processor, updated while it runs.
+ * <p/>
+ * Counters and histograms are created on first use and are never removed, so 
+ * a class may look one up once and keep it. A counter or histogram may be 
+ * labelled with a country, to count each country separately. Looking up a 
+ * labelled counter does not allocate once it exists.
+ * <p/>
+ * Like a Logger, the registry is shared by the whole process, obtained from 
+ * getDefault(). Counts only ever grow. Rates are obtained by reading the
+ * counts twice, as a scraper of the HTTP endpoint does.
+ * 
+ * @author George Franciscus
+ *
+ */
+public class MetricsRegistry {
+	
+	/**
+	 * The name of the label distinguishing countries
+	 */
+	public static final String COUNTRY_LABEL = "country";
+	
+	//Counter names
+	public static final String BYTES_FETCHED = "bytes.fetched";
+	public static final String BYTES_SENT = "bytes.sent";
+	public static final String BYTES_SAVED = "bytes.saved";
+	public static final String COUNTRIES_PROCESSED = "countries.processed";
+	public static final String COUNTRIES_FAILED = "countries.failed";
+	public static final String RECORDS_QUEUED = "records.queued";
+	public static final String RECORDS_WRITTEN = "records.written";
+	public static final String RECORDS_FAILED = "records.failed";
+	public static final String RECORDS_DUPLICATE = "records.duplicate";
+	public static final String SOURCE_REQUESTS = "source.requests";
+	public static final String SOURCE_NOT_MODIFIED = "source.not-modified";
+	public static final String RPC_CALLS = "rpc.calls";
+	public static final String RPC_ERRORS = "rpc.errors";
+	public static final String RPC_BATCHES = "rpc.batches";
+	public static final String RPC_FAILOVERS = "rpc.failovers";
+	public static final String STREAMS_CREATED = "streams.created";
+	public static final String QUERY_REQUESTS = "query.requests";
+	public static final String QUERY_HITS = "query.hits";
+	public static final String QUERY_MISSES = "query.misses";
+	public static final String QUERY_EVICTIONS = "query.evictions";
+	public static final String STORE_ROWS = "store.rows";
+	public static final String STORE_DUPLICATES = "store.duplicates";
+	public static final String PAYLOAD_RECORDS = "payload.records";
+	public static final String PAYLOAD_TEXT_BYTES = "payload.bytes.text";
+	public static final String PAYLOAD_ENCODED_BYTES = "payload.bytes.encoded";
+	public static final String PAYLOAD_ENCODE_NANOS = "payload.encode-nanos";
+	
+	//Histogram names, one per stage of the pipeline
+	public static final String STAGE_FETCH = "stage.fetch";
+	public static final String STAGE_PARSE = "stage.parse";
+	public static final String STAGE_KEYS = "stage.keys";
+	public static final String STAGE_QUEUE_WAIT = "stage.queue-wait";
+	public static final String STAGE_RPC = "stage.rpc";
+	public static final String STAGE_QUERY = "stage.query";
+	
+	private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+	
+	/**
+	 * Unlabelled counters by name
+	 */
+	private final ConcurrentMap<String, StripedCounter> counters = new ConcurrentHashMap<String, StripedCounter>();
+	
+	/**
+	 * Labelled counters by name, then by label value
+	 */
+	private final ConcurrentMap<String, ConcurrentMap<String, StripedCounter>> labelledCounters = new ConcurrentHashMap<String, ConcurrentMap<String, StripedCounter>>();
+	
+	private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+	
+	/**
+	 * @return the registry shared by the whole process
+	 */
+	public static MetricsRegistry getDefault() {
+		return DEFAULT;
+	}
+	
+	/**
+	 * Obtains a counter, creating it on first use
+	 * 
+	 * @param name the name of the counter
+	 * @return the counter
+	 */
+	public StripedCounter counter(String name) {
+		StripedCounter counter = counters.get(name);
+		if (null == counter) {
+			StripedCounter created = new StripedCounter();
+			counter = counters.putIfAbsent(name, created);
+			if (null == counter) {
+				counter = created;
+			}
+		}
+		return counter;
+	}
+	
+	/**
+	 * Obtains the counter of a country, creating it on first use
+	 * 
+	 * @param name the name of the counter
+	 * @param country the country counted
+	 * @return the counter
+	 */
+	public StripedCounter counter(String name, String country) {
+		ConcurrentMap<String, StripedCounter> countries = labelledCounters.get(name);
+		if (null == countries) {
+			ConcurrentMap<String, StripedCounter> created = new ConcurrentHashMap<String, StripedCounter>();
+			countries = labelledCounters.putIfAbsent(name, created);
+			if (null == countries) {
+				countries = created;
+			}
+		}
+		
+		StripedCounter counter = countries.get(country);
+		if (null == counter) {
+			StripedCounter created = new StripedCounter();
+			counter = countries.putIfAbsent(country, created);
+			if (null == counter) {
+				counter = created;
+			}
+		}
+		return counter;
+	}
+	
+	/**
+	 * Obtains a histogram, creating it on first use
+	 * 
+	 * @param name the name of the histogram
+	 * @return the histogram
+	 */
+	public LatencyHistogram histogram(String name) {
+		LatencyHistogram histogram = histograms.get(name);
+		if (null == histogram) {
+			LatencyHistogram created = new LatencyHistogram();
+			histogram = histograms.putIfAbsent(name, created);
+			if (null == histogram) {
+				histogram = created;
+			}
+		}
+		return histogram;
+	}
+	
+	/**
+	 * @return the current value of every unlabelled counter, sorted by name
+	 */
+	public Map<String, Long> getCounters() {
+		Map<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, StripedCounter> counter : counters.entrySet()) {
+			values.put(counter.getKey(), counter.getValue().sum());
+		}
+		return values;
+	}
+	
+	/**
+	 * @return the current value of every labelled counter by name, then by country, sorted
+	 */
+	public Map<String, Map<String, Long>> getLabelledCounters() {
+		Map<String, Map<String, Long>> values = new TreeMap<String, Map<String, Long>>();
+		for (Map.Entry<String, ConcurrentMap<String, StripedCounter>> countries : labelledCounters.entrySet()) {
+			Map<String, Long> countryValues = new TreeMap<String, Long>();
+			for (Map.Entry<String, StripedCounter> counter : countries.getValue().entrySet()) {
+				countryValues.put(counter.getKey(), counter.getValue().sum());
+			}
+			values.put(countries.getKey(), countryValues);
+		}
+		return values;
+	}
+	
+	/**
+	 * @return every histogram, sorted by name
+	 */
+	public Map<String, LatencyHistogram> getHistograms() {
+		return new TreeMap<String, LatencyHistogram>(histograms);
+	}
+}
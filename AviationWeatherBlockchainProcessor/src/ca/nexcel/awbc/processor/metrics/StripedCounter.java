@@ -0,0 +1,56 @@
+package ca.nexcel.awbc.processor.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can increment at the same time without
+ * contending for a single value.
+ * <p/>
+ * The count is split over several stripes. Each thread adds to the stripe
+ * selected by its identifier, and the stripes are summed when the count is
+ * read. Stripes are spaced a cache line apart, so that threads adding to 
+ * neighbouring stripes do not invalidate each other's cache line.
+ * 
+ * @author George Franciscus
+ *
+ */
+public class StripedCounter {
+	
+	/**
+	 * The number of longs between two stripes, 64 bytes
+	 */
+	private static final int STRIDE = 8;
+	
+	/**
+	 * The number of stripes, a power of two of at least twice the number of processors
+	 */
+	private static final int STRIPES = Math.min(64, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors())) << 1);
+	
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * STRIDE);
+	
+	public void increment() {
+		add(1);
+	}
+	
+	public void add(long value) {
+		cells.getAndAdd(stripe(), value);
+	}
+	
+	/**
+	 * @return the sum of all additions. Additions made while summing may or may not be included.
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * STRIDE);
+		}
+		return sum;
+	}
+	
+	/**
+	 * Thread identifiers are handed out in sequence, so consecutive threads use different stripes.
+	 */
+	private static int stripe() {
+		return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIDE;
+	}
+}
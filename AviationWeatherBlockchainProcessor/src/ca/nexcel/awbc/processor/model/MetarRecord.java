@@ -0,0 +1,373 @@
+package ca.nexcel.awbc.processor.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import ca.nexcel.awbc.processor.common.StringInterner;
+
+/**
+ * A single METAR observation as captured from the XML source.
+ * <p/>
+ * The record is filled one field at a time while parsing. Numeric fields are
+ * converted to primitives once, as they are captured, and repeated text such
+ * as station identifiers is interned. The record also keeps the JSON form of
+ * the captured fields, in document order, for publishers that need it.
+ * <p/>
+ * A record is reused for every observation parsed by the same handler. It
+ * must therefore not be retained once it has been published. Copy the values
+ * of interest instead.
+ *
+ * @author George Franciscus
+ *
+ */
+public class MetarRecord {
+
+	/**
+	 * The value of an integer field that was not present in the observation
+	 */
+	public static final int MISSING_INT = Integer.MIN_VALUE;
+
+	/**
+	 * The kind of value held by a field
+	 */
+	public enum Type { TEXT, INTERNED_TEXT, DECIMAL, INTEGER }
+
+	/**
+	 * The fields of a METAR observation. The name is the XML element name.
+	 */
+	public enum Field {
+		RAW_TEXT("raw_text", Type.TEXT),
+		STATION_ID("station_id", Type.INTERNED_TEXT),
+		OBSERVATION_TIME("observation_time", Type.INTERNED_TEXT),
+		LATITUDE("latitude", Type.DECIMAL),
+		LONGITUDE("longitude", Type.DECIMAL),
+		TEMP_C("temp_c", Type.DECIMAL),
+		DEWPOINT_C("dewpoint_c", Type.DECIMAL),
+		WIND_DIR_DEGREES("wind_dir_degrees", Type.INTEGER),
+		WIND_SPEED_KT("wind_speed_kt", Type.INTEGER),
+		WIND_GUST_KT("wind_gust_kt", Type.INTEGER),
+		VISIBILITY_STATUTE_MI("visibility_statute_mi", Type.DECIMAL),
+		ALTIM_IN_HG("altim_in_hg", Type.DECIMAL),
+		SEA_LEVEL_PRESSURE_MB("sea_level_pressure_mb", Type.DECIMAL),
+		WX_STRING("wx_string", Type.INTERNED_TEXT),
+		FLIGHT_CATEGORY("flight_category", Type.INTERNED_TEXT),
+		THREE_HR_PRESSURE_TENDENCY_MB("three_hr_pressure_tendency_mb", Type.DECIMAL),
+		MAXT_C("maxT_c", Type.DECIMAL),
+		MINT_C("minT_c", Type.DECIMAL),
+		MAXT24HR_C("maxT24hr_c", Type.DECIMAL),
+		MINT24HR_C("minT24hr_c", Type.DECIMAL),
+		PRECIP_IN("precip_in", Type.DECIMAL),
+		PCP3HR_IN("pcp3hr_in", Type.DECIMAL),
+		PCP6HR_IN("pcp6hr_in", Type.DECIMAL),
+		PCP24HR_IN("pcp24hr_in", Type.DECIMAL),
+		SNOW_IN("snow_in", Type.DECIMAL),
+		VERT_VIS_FT("vert_vis_ft", Type.INTEGER),
+		METAR_TYPE("metar_type", Type.INTERNED_TEXT),
+		ELEVATION_M("elevation_m", Type.DECIMAL);
+
+		private static final Map<String, Field> FIELDS_BY_NAME = new HashMap<String, Field>();
+		static {
+			for (Field field : values()) {
+				FIELDS_BY_NAME.put(field.getName(), field);
+			}
+		}
+
+		private String name;
+		private Type type;
+
+		private Field(String name, Type type) {
+			this.name = name;
+			this.type = type;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		/**
+		 * Finds a field by its XML element name
+		 *
+		 * @param name the XML element name
+		 * @return the field, or null when the element is not a known METAR field
+		 */
+		public static Field forName(String name) {
+			return FIELDS_BY_NAME.get(name);
+		}
+	}
+
+	private static final int FIELD_COUNT = Field.values().length;
+
+	/**
+	 * Text values indexed by field ordinal
+	 */
+	private String[] texts = new String[FIELD_COUNT];
+
+	/**
+	 * Decimal values indexed by field ordinal. NaN means not present.
+	 */
+	private double[] decimals = new double[FIELD_COUNT];
+
+	/**
+	 * Integer values indexed by field ordinal. MISSING_INT means not present.
+	 */
+	private int[] integers = new int[FIELD_COUNT];
+
+	/**
+	 * The captured fields in JSON format. The buffer is reused for every record.
+	 */
+	private StringBuilder json = new StringBuilder(1024);
+
+	/**
+	 * The JSON form of the record, created on demand
+	 */
+	private String jsonText = null;
+
+	/**
+	 * Is the next field the first field of the record
+	 */
+	private boolean isFirstField = true;
+
+	/**
+	 * The position in the JSON buffer where the value of the current field starts
+	 */
+	private int valueStart = 0;
+
+	/**
+	 * Shares repeated text values between records
+	 */
+	private StringInterner interner = new StringInterner();
+
+	public MetarRecord() {
+		reset();
+	}
+
+	/**
+	 * Clears all values so that the record may be filled with a new observation.
+	 */
+	public void reset() {
+		Arrays.fill(texts, null);
+		Arrays.fill(decimals, Double.NaN);
+		Arrays.fill(integers, MISSING_INT);
+		json.setLength(0);
+		json.append('{');
+		jsonText = null;
+		isFirstField = true;
+	}
+
+	/**
+	 * Starts capturing the value of a field.
+	 *
+	 * @param prefix the JSON prefix of the field, "name":"
+	 */
+	public void beginField(char[] prefix) {
+		if (! isFirstField) {
+			json.append(',');
+		}
+		isFirstField = false;
+		json.append(prefix);
+		valueStart = json.length();
+	}
+
+	/**
+	 * Appends characters to the value of the field being captured.
+	 * May be called several times for the same field.
+	 */
+	public void appendValue(char[] ch, int start, int length) {
+		json.append(ch, start, length);
+	}
+
+	/**
+	 * Completes the capture of a field, converting the value to its type.
+	 *
+	 * @param field the field captured. A null value means the field is
+	 * not a known METAR field and is only kept in JSON form.
+	 */
+	public void endField(Field field) {
+		int valueEnd = json.length();
+		json.append('"');
+
+		if (null == field) {
+			return;
+		}
+
+		int ordinal = field.ordinal();
+		switch (field.getType()) {
+		case TEXT:
+			texts[ordinal] = json.substring(valueStart, valueEnd);
+			break;
+		case INTERNED_TEXT:
+			texts[ordinal] = interner.intern(json, valueStart, valueEnd);
+			break;
+		case DECIMAL:
+			decimals[ordinal] = parseDecimal(json, valueStart, valueEnd);
+			break;
+		case INTEGER:
+			double value = parseDecimal(json, valueStart, valueEnd);
+			integers[ordinal] = Double.isNaN(value) ? MISSING_INT : (int) value;
+			break;
+		}
+	}
+
+	/**
+	 * Completes the record once all fields are captured.
+	 */
+	public void endRecord() {
+		json.append('}');
+	}
+
+	/**
+	 * Obtains the captured fields in JSON format, as published
+	 * before records were typed.
+	 *
+	 * @return the record in JSON format
+	 */
+	public String toJSON() {
+		if (null == jsonText) {
+			jsonText = json.toString();
+		}
+		return jsonText;
+	}
+
+	@Override
+	public String toString() {
+		return toJSON();
+	}
+
+	public String getText(Field field) {
+		return texts[field.ordinal()];
+	}
+
+	public double getDecimal(Field field) {
+		return decimals[field.ordinal()];
+	}
+
+	public int getInteger(Field field) {
+		return integers[field.ordinal()];
+	}
+
+	public String getRawText() {
+		return texts[Field.RAW_TEXT.ordinal()];
+	}
+
+	public String getStationId() {
+		return texts[Field.STATION_ID.ordinal()];
+	}
+
+	public String getObservationTime() {
+		return texts[Field.OBSERVATION_TIME.ordinal()];
+	}
+
+	public double getLatitude() {
+		return decimals[Field.LATITUDE.ordinal()];
+	}
+
+	public double getLongitude() {
+		return decimals[Field.LONGITUDE.ordinal()];
+	}
+
+	public double getTempC() {
+		return decimals[Field.TEMP_C.ordinal()];
+	}
+
+	public double getDewpointC() {
+		return decimals[Field.DEWPOINT_C.ordinal()];
+	}
+
+	public int getWindDirDegrees() {
+		return integers[Field.WIND_DIR_DEGREES.ordinal()];
+	}
+
+	public int getWindSpeedKt() {
+		return integers[Field.WIND_SPEED_KT.ordinal()];
+	}
+
+	public int getWindGustKt() {
+		return integers[Field.WIND_GUST_KT.ordinal()];
+	}
+
+	public double getVisibilityStatuteMi() {
+		return decimals[Field.VISIBILITY_STATUTE_MI.ordinal()];
+	}
+
+	public double getAltimInHg() {
+		return decimals[Field.ALTIM_IN_HG.ordinal()];
+	}
+
+	public double getSeaLevelPressureMb() {
+		return decimals[Field.SEA_LEVEL_PRESSURE_MB.ordinal()];
+	}
+
+	public String getWxString() {
+		return texts[Field.WX_STRING.ordinal()];
+	}
+
+	public String getFlightCategory() {
+		return texts[Field.FLIGHT_CATEGORY.ordinal()];
+	}
+
+	public String getMetarType() {
+		return texts[Field.METAR_TYPE.ordinal()];
+	}
+
+	public double getElevationM() {
+		return decimals[Field.ELEVATION_M.ordinal()];
+	}
+
+	/**
+	 * Converts a decimal number such as -12.5 to a double without creating
+	 * a String. Values that are not a plain decimal number, such as 10+,
+	 * produce NaN.
+	 */
+	static double parseDecimal(CharSequence text, int start, int end) {
+		while ((start < end) && Character.isWhitespace(text.charAt(start))) start++;
+		while ((end > start) && Character.isWhitespace(text.charAt(end - 1))) end--;
+		if (start == end) {
+			return Double.NaN;
+		}
+
+		boolean negative = false;
+		char first = text.charAt(start);
+		if ((first == '-') || (first == '+')) {
+			negative = (first == '-');
+			start++;
+		}
+
+		long mantissa = 0;
+		int scale = 0;
+		int digits = 0;
+		boolean isFraction = false;
+		for (int i = start; i < end; i++) {
+			char ch = text.charAt(i);
+			if ((ch >= '0') && (ch <= '9')) {
+				if (digits < 18) {
+					mantissa = (mantissa * 10) + (ch - '0');
+					digits++;
+					if (isFraction) scale++;
+				} else if (! isFraction) {
+					//too many digits to be exact, let the JDK do it
+					return Double.parseDouble(text.subSequence(start, end).toString()) * (negative ? -1 : 1);
+				}
+			} else if ((ch == '.') && ! isFraction) {
+				isFraction = true;
+			} else {
+				return Double.NaN;
+			}
+		}
+		if (0 == digits) {
+			return Double.NaN;
+		}
+
+		double value = (scale < POWERS_OF_TEN.length) ? mantissa / POWERS_OF_TEN[scale] : mantissa / Math.pow(10, scale);
+		return negative ? -value : value;
+	}
+
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+		1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+	};
+}
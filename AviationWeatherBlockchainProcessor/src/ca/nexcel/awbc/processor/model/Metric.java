@@ -1,45 +1,94 @@
-package ca.nexcel.awbc.processor.model;
-
-/**
- * A class that contains publication metrics
- * 
- * @author George Franciscus
- *
- */
-public class Metric {
-	
-	private int successCount = 0;
-	private int failureCount = 0;
-	private int attemptCount = 0;
-	
-	public Metric(int successCount, int failureCount, int attemptCount) {
-		this.successCount = successCount;
-		this.failureCount = failureCount;
-		this.attemptCount = attemptCount;
-	}
-
-	public void addToSuccessCount(int count) {
-		this.successCount += count;
-	}
-	
-	public void addToFailureCount(int count) {
-		this.failureCount += count;
-	}
-	
-	public void addToAttemptCount(int count) {
-		this.attemptCount += count;
-	}
-
-	public int getSuccessCount() {
-		return successCount;
-	}
-
-	public int getFailureCount() {
-		return failureCount;
-	}
-
-
-	public int getAttemptCount() {
-		return attemptCount;
-	}
-}
+package ca.nexcel.awbc.processor.model;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A class that contains publication metrics. Counts may be added 
+ * from several threads at the same time.
+ * 
+ * @author George Franciscus
+ *
+ */
+public class Metric {
+	
+	private AtomicInteger successCount = new AtomicInteger();
+	private AtomicInteger failureCount = new AtomicInteger();
+	private AtomicInteger attemptCount = new AtomicInteger();
+	private AtomicInteger duplicateCount = new AtomicInteger();
+	private ConcurrentMap<String, AtomicInteger> failureReasons = new ConcurrentHashMap<String, AtomicInteger>();
+	
+	public Metric(int successCount, int failureCount, int attemptCount) {
+		this.successCount.set(successCount);
+		this.failureCount.set(failureCount);
+		this.attemptCount.set(attemptCount);
+	}
+
+	public void addToSuccessCount(int count) {
+		this.successCount.addAndGet(count);
+	}
+	
+	public void addToFailureCount(int count) {
+		this.failureCount.addAndGet(count);
+	}
+	
+	public void addToAttemptCount(int count) {
+		this.attemptCount.addAndGet(count);
+	}
+
+	public void addToDuplicateCount(int count) {
+		this.duplicateCount.addAndGet(count);
+	}
+
+	/**
+	 * Counts failures by reason
+	 * 
+	 * @param reason the reason of the failure
+	 * @param count the number of failures
+	 */
+	public void addToFailureReasons(String reason, int count) {
+		AtomicInteger reasonCount = failureReasons.get(reason);
+		if (null == reasonCount) {
+			AtomicInteger created = new AtomicInteger();
+			reasonCount = failureReasons.putIfAbsent(reason, created);
+			if (null == reasonCount) {
+				reasonCount = created;
+			}
+		}
+		reasonCount.addAndGet(count);
+	}
+
+	public int getSuccessCount() {
+		return successCount.get();
+	}
+
+	public int getFailureCount() {
+		return failureCount.get();
+	}
+
+
+	public int getAttemptCount() {
+		return attemptCount.get();
+	}
+
+	/**
+	 * @return the number of records skipped because they were already published
+	 */
+	public int getDuplicateCount() {
+		return duplicateCount.get();
+	}
+
+	/**
+	 * @return the number of failures by reason, sorted by reason
+	 */
+	public Map<String, Integer> getFailureReasons() {
+		Map<String, Integer> reasons = new TreeMap<String, Integer>();
+		for (Map.Entry<String, AtomicInteger> reason : failureReasons.entrySet()) {
+			reasons.put(reason.getKey(), reason.getValue().get());
+		}
+		return reasons;
+	}
+}
@@ -0,0 +1,53 @@
+package ca.nexcel.awbc.processor.payload;
+
+import ca.nexcel.awbc.processor.common.JsonWriter;
+
+/**
+ * Encodes the raw text of a METAR into the data of a stream item, and decodes
+ * the data read back from the chain.
+ * <p/>
+ * The data is encoded when the record is queued, and written when the
+ * batch it belongs to is sent, possibly by another run replaying the spool.
+ * The format of the codec is therefore kept with the encoded data.
+ *
+ * @author George Franciscus
+ *
+ */
+public interface PayloadCodec {
+
+	/**
+	 * @return the name of the format, as set in multichain.payload.format
+	 */
+	public String getFormat();
+
+	/**
+	 * Encodes the raw text of a METAR
+	 *
+	 * @param rawText the raw text
+	 * @return the encoded data, as passed to writeData
+	 */
+	public String encode(String rawText);
+
+	/**
+	 * Writes the data member of a stream item, as expected by createrawsendfrom
+	 *
+	 * @param writer the writer of the batch, positioned after "data":
+	 * @param data the encoded data
+	 */
+	public void writeData(JsonWriter writer, String data);
+
+	/**
+	 * @param data the encoded data
+	 * @return the number of bytes the data takes in the chain, used to report the compression ratio
+	 */
+	public int getSize(String data);
+
+	/**
+	 * Decodes the data of a stream item read back from the chain
+	 *
+	 * @param data the data as listed by liststreamitems: the text of JSON data, or the hex of binary data
+	 * @return the raw text of the METAR, as passed to encode
+	 * @throws IllegalArgumentException when the data cannot be decoded
+	 */
+	public String decode(String data);
+}
@@ -0,0 +1,249 @@
+package ca.nexcel.awbc.processor.payload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import ca.nexcel.awbc.processor.common.JsonWriter;
+
+/**
+ * Encodes the raw text of a METAR as raw data, written to the chain as hex.
+ * The raw text is neither escaped nor wrapped in JSON, and is compressed with
+ * a preset dictionary (see PayloadDictionary) when that makes it smaller.
+ * <p/>
+ * A payload starts with its format:
+ * <br/>
+ * 0x10 followed by the raw text in UTF-8
+ * <br/>
+ * 0x11 followed by the raw text in UTF-8 compressed by deflate (RFC 1951)
+ * <br/>
+ * 0x12 followed by the identifier of the dictionary in 2 bytes, big endian, and the raw
+ * text in UTF-8 compressed by deflate with that preset dictionary
+ * <p/>
+ * Readers decode payloads with decode. The built-in dictionary is always known,
+ * a trained dictionary must be configured with setDictionaryFile, as it is
+ * when writing.
+ *
+ * @author George Franciscus
+ *
+ */
+public class PayloadCodecBinary implements PayloadCodec {
+
+	private static final Logger LOGGER = Logger.getLogger(PayloadCodecBinary.class.getName());
+
+	public static final String FORMAT = "binary";
+
+	/**
+	 * Set as the dictionary file to compress without a dictionary
+	 */
+	public static final String NO_DICTIONARY = "none";
+
+	static final int TEXT = 0x10;
+	static final int DEFLATED = 0x11;
+	static final int DEFLATED_WITH_DICTIONARY = 0x12;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/**
+	 * The dictionary payloads are compressed with. A null value means no dictionary is used.
+	 */
+	private byte[] dictionary = PayloadDictionary.builtIn();
+
+	private int dictionaryId = PayloadDictionary.id(dictionary);
+
+	/**
+	 * The dictionaries payloads can be decoded with, by identifier
+	 */
+	private final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<Integer, byte[]>();
+
+	/**
+	 * A compressor for every thread encoding payloads, reused from payload to payload
+	 */
+	private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_COMPRESSION, true);
+		}
+	};
+
+	public PayloadCodecBinary() {
+		dictionaries.put(dictionaryId, dictionary);
+	}
+
+	/**
+	 * Sets the dictionary payloads are compressed with
+	 *
+	 * @param fileName the file of a dictionary trained by PayloadDictionary, or none to compress
+	 * without a dictionary. Not set means the built-in dictionary is used
+	 */
+	public void setDictionaryFile(String fileName) {
+		if ((null == fileName) || fileName.trim().equals("")) {
+			dictionary = PayloadDictionary.builtIn();
+		} else if (NO_DICTIONARY.equalsIgnoreCase(fileName.trim())) {
+			dictionary = null;
+			return;
+		} else {
+			try {
+				dictionary = PayloadDictionary.load(fileName.trim());
+			} catch (IOException e) {
+				LOGGER.severe("Unable to read the payload dictionary " + fileName + ". Defaulted to the built-in dictionary");
+				e.printStackTrace();
+				dictionary = PayloadDictionary.builtIn();
+			}
+		}
+		dictionaryId = PayloadDictionary.id(dictionary);
+		dictionaries.put(dictionaryId, dictionary);
+	}
+
+	public String getFormat() {
+		return FORMAT;
+	}
+
+	/**
+	 * Encodes the raw text of a METAR, compressed unless that makes it larger
+	 *
+	 * @param rawText the raw text
+	 * @return the payload, in hex
+	 */
+	public String encode(String rawText) {
+		byte[] text = rawText.getBytes(UTF8);
+		byte[] compressed = new byte[text.length + 16];
+
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		if (null != dictionary) {
+			deflater.setDictionary(dictionary);
+		}
+		deflater.setInput(text);
+		deflater.finish();
+		int length = 0;
+		while (! deflater.finished() && (length < compressed.length)) {
+			length += deflater.deflate(compressed, length, compressed.length - length);
+		}
+
+		int headerBytes = (null == dictionary) ? 1 : 3;
+		if (! deflater.finished() || (headerBytes + length >= 1 + text.length)) {
+			return hex(TEXT, -1, text, text.length);
+		}
+		return (null == dictionary) ? hex(DEFLATED, -1, compressed, length) : hex(DEFLATED_WITH_DICTIONARY, dictionaryId, compressed, length);
+	}
+
+	/**
+	 * Writes the payload as raw data, a hex string
+	 */
+	public void writeData(JsonWriter writer, String data) {
+		writer.value(data);
+	}
+
+	public int getSize(String data) {
+		return data.length() / 2;
+	}
+
+	/**
+	 * Decodes a payload
+	 *
+	 * @param data the payload, in hex, as listed by liststreamitems
+	 * @return the raw text of the METAR
+	 * @throws IllegalArgumentException when the payload is not valid, or was compressed with a dictionary that is not known
+	 */
+	public String decode(String data) {
+		byte[] payload = fromHex(data);
+		if (payload.length == 0) {
+			throw new IllegalArgumentException("empty payload");
+		}
+
+		int format = payload[0] & 0xFF;
+		if (format == TEXT) {
+			return new String(payload, 1, payload.length - 1, UTF8);
+		}
+		if (format == DEFLATED) {
+			return inflate(payload, 1, null);
+		}
+		if ((format == DEFLATED_WITH_DICTIONARY) && (payload.length > 3)) {
+			int id = ((payload[1] & 0xFF) << 8) | (payload[2] & 0xFF);
+			byte[] payloadDictionary = dictionaries.get(id);
+			if (null == payloadDictionary) {
+				throw new IllegalArgumentException("payload compressed with an unknown dictionary. id=" + id);
+			}
+			return inflate(payload, 3, payloadDictionary);
+		}
+		throw new IllegalArgumentException("unknown payload format " + format);
+	}
+
+	private static String inflate(byte[] payload, int offset, byte[] dictionary) {
+		Inflater inflater = new Inflater(true);
+		try {
+			if (null != dictionary) {
+				inflater.setDictionary(dictionary);
+			}
+			//without the zlib wrapper, the inflater needs a byte after the compressed data
+			inflater.setInput(Arrays.copyOfRange(payload, offset, payload.length + 1));
+
+			ByteArrayOutputStream text = new ByteArrayOutputStream(payload.length * 3);
+			byte[] buffer = new byte[256];
+			while (! inflater.finished()) {
+				int length = inflater.inflate(buffer);
+				if ((length == 0) && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IllegalArgumentException("truncated payload");
+				}
+				text.write(buffer, 0, length);
+			}
+			return new String(text.toByteArray(), UTF8);
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("corrupt payload. " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * @param format the format of the payload
+	 * @param id the identifier of the dictionary, or -1 when the format has none
+	 * @param bytes the bytes following the format, and the identifier
+	 * @param length the number of bytes
+	 * @return the payload, in hex
+	 */
+	private static String hex(int format, int id, byte[] bytes, int length) {
+		char[] hex = new char[2 * (1 + ((id < 0) ? 0 : 2) + length)];
+		int position = putHex(hex, 0, format);
+		if (id >= 0) {
+			position = putHex(hex, position, id >> 8);
+			position = putHex(hex, position, id);
+		}
+		for (int i = 0; i < length; i++) {
+			position = putHex(hex, position, bytes[i]);
+		}
+		return new String(hex);
+	}
+
+	private static int putHex(char[] hex, int position, int value) {
+		hex[position] = HEX_DIGITS[(value >> 4) & 0xF];
+		hex[position + 1] = HEX_DIGITS[value & 0xF];
+		return position + 2;
+	}
+
+	private static byte[] fromHex(String hex) {
+		if ((hex.length() % 2) != 0) {
+			throw new IllegalArgumentException("payload is not hex");
+		}
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			int high = Character.digit(hex.charAt(2 * i), 16);
+			int low = Character.digit(hex.charAt((2 * i) + 1), 16);
+			if ((high < 0) || (low < 0)) {
+				throw new IllegalArgumentException("payload is not hex");
+			}
+			bytes[i] = (byte) ((high << 4) | low);
+		}
+		return bytes;
+	}
+}
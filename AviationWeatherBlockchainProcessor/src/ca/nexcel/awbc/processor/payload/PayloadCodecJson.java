@@ -0,0 +1,47 @@
+package ca.nexcel.awbc.processor.payload;
+
+import ca.nexcel.awbc.processor.common.JSONUtil;
+import ca.nexcel.awbc.processor.common.JsonWriter;
+
+/**
+ * Encodes the raw text of a METAR as JSON data, {"text":rawText}, the format
+ * the processor has always written. The raw text is escaped before it is written,
+ * so the text read back from the chain is unescaped.
+ *
+ * @author George Franciscus
+ *
+ */
+public class PayloadCodecJson implements PayloadCodec {
+
+	public static final String FORMAT = "json";
+
+	/**
+	 * The number of bytes of the data besides the text, {"text":""}
+	 */
+	private static final int DATA_OVERHEAD_BYTES = 11;
+
+	public String getFormat() {
+		return FORMAT;
+	}
+
+	public String encode(String rawText) {
+		return JSONUtil.escape(rawText);
+	}
+
+	public void writeData(JsonWriter writer, String data) {
+		writer.beginObject().name("text").value(data).endObject();
+	}
+
+	public int getSize(String data) {
+		return DATA_OVERHEAD_BYTES + data.length();
+	}
+
+	public String decode(String data) {
+		try {
+			return JSONUtil.unescape(data);
+		} catch (RuntimeException e) {
+			//an escape cut short or not followed by hex digits
+			throw new IllegalArgumentException("malformed text. " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package ca.nexcel.awbc.processor.payload;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Adler32;
+
+/**
+ * The preset dictionaries METARs are compressed with by PayloadCodecBinary.
+ * <p/>
+ * A METAR is too short to compress well on its own. A preset dictionary holds
+ * the groups METARs have in common, such as RMK AO2 or BKN, so that they can be
+ * compressed as references to the dictionary from the first byte.
+ * <p/>
+ * The built-in dictionary holds the groups common to METARs worldwide. A dictionary
+ * trained on the METARs of the countries processed may be used instead:
+ * <br/>
+ * java -cp awbc.jar ca.nexcel.awbc.processor.payload.PayloadDictionary metars.txt dictionary.txt [max bytes]
+ * <br/>
+ * where metars.txt holds the raw text of a METAR on every line.
+ *
+ * @author George Franciscus
+ *
+ */
+public class PayloadDictionary {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The default size of a trained dictionary. METARs are short, so a
+	 * larger dictionary mostly holds groups that are rarely referenced.
+	 */
+	public static final int DEFAULT_MAX_BYTES = 2048;
+
+	/**
+	 * The groups common to METARs worldwide, the most common last, as deflate
+	 * finds the closest match first and encodes nearer matches in fewer bits
+	 */
+	private static final String BUILT_IN =
+			"METAR SPECI COR NIL CAVOK NOSIG TEMPO BECMG FM TL AT NSC NCD NSW SKC CLR VV/// "
+			+ "FG BCFG MIFG PRFG FZFG HZ FU DU SA DZ -DZ FZDZ FZRA -FZRA SN -SN +SN SHSN -SHSN "
+			+ "SG PL GR GS UP TS TSRA -TSRA +TSRA VCTS VCSH VCFG SHRA -SHRA +SHRA +RA RA -RA BR "
+			+ "CB TCU /// ////// RVR P6000 M0050 R06/ R24/ R33/ U D N "
+			+ "VRB 00000KT VRB01KT VRB02KT VRB03KT MPS G15KT G20KT G25KT G30KT "
+			+ "0100 0200 0400 0800 1200 1500 3000 5000 6000 7000 8000 9000 9999 "
+			+ "1/4SM 1/2SM 3/4SM 1 1/2SM 2SM 3SM 4SM 5SM 7SM 15SM P6SM 1SM 6SM 9SM 10SM "
+			+ "FEW002 SCT003 BKN004 OVC005 FEW008 SCT009 BKN010 OVC011 FEW014 SCT016 BKN018 OVC020 "
+			+ "FEW025 SCT030 BKN035 OVC040 FEW045 SCT050 BKN060 OVC070 FEW080 SCT100 BKN120 FEW200 SCT250 "
+			+ "Q0990 Q1000 Q1005 Q1010 Q1015 Q1020 Q1025 A2980 A2990 A3000 A3010 A3020 "
+			+ "M01/M03 M00/M02 00/M01 01/M01 02/00 05/02 10/05 15/10 20/15 25/20 30/22 "
+			+ "RMK AO1 SLPNO PRESFR PRESRR TSNO PWINO FZRANO RVRNO CIG VIS OCNL LTG DSNT ALQDS "
+			+ "T0 T1 10 11 20 21 4/ 51 52 53 56 57 58 5 $ "
+			+ "010KT 020KT 030KT 040KT 050KT 060KT 070KT 080KT 090KT 100KT 110KT 120KT 130KT 140KT "
+			+ "150KT 160KT 170KT 180KT 190KT 200KT 210KT 220KT 230KT 240KT 250KT 260KT 270KT 280KT "
+			+ "290KT 300KT 310KT 320KT 330KT 340KT 350KT 360KT 03KT 04KT 05KT 06KT 07KT 08KT 09KT "
+			+ "10KT 12KT 15KT 00Z 20Z 30Z 50Z 51Z 52Z 53Z 54Z 55Z 56Z 57Z 58Z "
+			+ "FEW SCT BKN OVC BKN0 OVC0 FEW0 SCT0 RMK AO2 SLP0 SLP1 SLP2 ";
+
+	private static final byte[] BUILT_IN_BYTES = BUILT_IN.getBytes(UTF8);
+
+	/**
+	 * @return the built-in dictionary
+	 */
+	public static byte[] builtIn() {
+		return BUILT_IN_BYTES.clone();
+	}
+
+	/**
+	 * @param fileName the file a dictionary was saved to
+	 * @return the dictionary
+	 * @throws IOException when the file cannot be read
+	 */
+	public static byte[] load(String fileName) throws IOException {
+		return Files.readAllBytes(new File(fileName).toPath());
+	}
+
+	/**
+	 * @param dictionary a dictionary
+	 * @return the identifier of the dictionary written in every payload compressed with it,
+	 * the low 16 bits of its Adler-32 checksum
+	 */
+	public static int id(byte[] dictionary) {
+		Adler32 adler = new Adler32();
+		adler.update(dictionary);
+		return (int) (adler.getValue() & 0xFFFF);
+	}
+
+	/**
+	 * Trains a dictionary on METARs. The groups found in more than one METAR are
+	 * kept, those saving the most bytes over all the METARs last.
+	 *
+	 * @param rawTexts the raw text of METARs of the countries processed
+	 * @param maxBytes the maximum size of the dictionary
+	 * @return the dictionary
+	 */
+	public static byte[] train(Collection<String> rawTexts, int maxBytes) {
+		final Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (String rawText : rawTexts) {
+			for (String group : rawText.trim().split(" +")) {
+				Integer count = counts.get(group);
+				counts.put(group, (null == count) ? 1 : count + 1);
+			}
+		}
+
+		List<String> groups = new ArrayList<String>();
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			if ((entry.getValue() > 1) && (entry.getKey().length() > 1)) {
+				groups.add(entry.getKey());
+			}
+		}
+		//the bytes a group saves, followed by a space, over all the METARs
+		Collections.sort(groups, new Comparator<String>() {
+			public int compare(String group1, String group2) {
+				long saved1 = (long) counts.get(group1) * (group1.length() + 1);
+				long saved2 = (long) counts.get(group2) * (group2.length() + 1);
+				return (saved1 != saved2) ? (saved1 > saved2 ? -1 : 1) : group1.compareTo(group2);
+			}
+		});
+
+		List<String> kept = new ArrayList<String>();
+		int size = 0;
+		for (String group : groups) {
+			if (size + group.length() + 1 > maxBytes) {
+				continue;
+			}
+			kept.add(group);
+			size += group.length() + 1;
+		}
+
+		StringBuilder dictionary = new StringBuilder(size);
+		for (int i = kept.size() - 1; i >= 0; i--) {
+			dictionary.append(kept.get(i)).append(' ');
+		}
+		return dictionary.toString().getBytes(UTF8);
+	}
+
+	/**
+	 * Trains a dictionary on a file holding the raw text of a METAR on every line
+	 *
+	 * @param args the METAR file, the dictionary file written, and optionally the maximum size of the dictionary
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("usage: PayloadDictionary metars.txt dictionary.txt [max bytes, default " + DEFAULT_MAX_BYTES + "]");
+			return;
+		}
+
+		List<String> rawTexts = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(args[0]), UTF8));
+		try {
+			String line = reader.readLine();
+			while (null != line) {
+				if (! line.trim().equals("")) {
+					rawTexts.add(line);
+				}
+				line = reader.readLine();
+			}
+		} finally {
+			reader.close();
+		}
+
+		int maxBytes = (args.length > 2) ? Integer.parseInt(args[2].trim()) : DEFAULT_MAX_BYTES;
+		byte[] dictionary = train(rawTexts, maxBytes);
+		OutputStream output = new FileOutputStream(args[1]);
+		try {
+			output.write(dictionary);
+		} finally {
+			output.close();
+		}
+		System.out.println("dictionary of " + dictionary.length + " bytes trained on " + rawTexts.size()
+				+ " METARs written to " + args[1] + ". id=" + id(dictionary));
+	}
+}
@@ -0,0 +1,158 @@
+package ca.nexcel.awbc.processor.payload;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several observations written to the chain as the text of a single stream item.
+ * <p/>
+ * The text starts with the format marker, followed by the number of observations,
+ * an index entry for every observation, and the raw texts one after the other,
+ * separated by vertical bars:
+ * <br/>
+ * awbc-pack-1|2|CYOW 2018-11-05T00:00:00Z 53|CYOW 2018-11-05T01:00:00Z 61|CYOW 050000Z ...CYOW 050100Z ...
+ * <br/>
+ * An index entry holds the station identifier, the observation time and the
+ * number of characters of the raw text. The raw text of an observation starts
+ * where the raw text of the previous one ends.
+ * <p/>
+ * The raw text of a METAR never starts with the marker, so readers tell packs
+ * from single observations with isPack. The text is encoded by a PayloadCodec,
+ * like the raw text of a single observation.
+ *
+ * @author George Franciscus
+ *
+ */
+public class PayloadPack {
+
+	public static final String MARKER = "awbc-pack-1";
+
+	private static final char SEPARATOR = '|';
+
+	private final List<String> stationIds = new ArrayList<String>();
+	private final List<String> observationTimes = new ArrayList<String>();
+	private final List<String> rawTexts = new ArrayList<String>();
+
+	/**
+	 * The number of characters of the text of the pack
+	 */
+	private int length = MARKER.length() + 2;
+
+	/**
+	 * @param text the raw text of a METAR, or the text of a pack
+	 * @return true when the text is the text of a pack
+	 */
+	public static boolean isPack(String text) {
+		return text.startsWith(MARKER) && (text.length() > MARKER.length()) && (text.charAt(MARKER.length()) == SEPARATOR);
+	}
+
+	/**
+	 * @return true when the station identifier and observation time can be written in an index entry
+	 */
+	public static boolean isPackable(String stationId, String observationTime) {
+		return (null != stationId) && (null != observationTime) && (stationId.length() > 0)
+				&& (stationId.indexOf(' ') < 0) && (stationId.indexOf(SEPARATOR) < 0)
+				&& (observationTime.trim().indexOf(' ') < 0) && (observationTime.indexOf(SEPARATOR) < 0);
+	}
+
+	/**
+	 * Adds an observation. See isPackable.
+	 *
+	 * @param stationId the station identifier
+	 * @param observationTime the observation time
+	 * @param rawText the raw text
+	 */
+	public void add(String stationId, String observationTime, String rawText) {
+		stationIds.add(stationId);
+		observationTimes.add(observationTime.trim());
+		rawTexts.add(rawText);
+		length += entryLength(stationId, observationTime, rawText) + rawText.length();
+	}
+
+	/**
+	 * @return the number of characters the index entry of an observation takes, including its separator
+	 */
+	public static int entryLength(String stationId, String observationTime, String rawText) {
+		return stationId.length() + observationTime.trim().length() + Integer.toString(rawText.length()).length() + 3;
+	}
+
+	public int size() {
+		return rawTexts.size();
+	}
+
+	/**
+	 * @return the number of characters of the text of the pack, less the digits of the count
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	public String getStationId(int index) {
+		return stationIds.get(index);
+	}
+
+	public String getObservationTime(int index) {
+		return observationTimes.get(index);
+	}
+
+	public String getRawText(int index) {
+		return rawTexts.get(index);
+	}
+
+	/**
+	 * @return the text of the pack
+	 */
+	public String toText() {
+		StringBuilder text = new StringBuilder(length + 8);
+		text.append(MARKER).append(SEPARATOR).append(rawTexts.size()).append(SEPARATOR);
+		for (int i = 0; i < rawTexts.size(); i++) {
+			text.append(stationIds.get(i)).append(' ').append(observationTimes.get(i)).append(' ')
+					.append(rawTexts.get(i).length()).append(SEPARATOR);
+		}
+		for (int i = 0; i < rawTexts.size(); i++) {
+			text.append(rawTexts.get(i));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Reads the observations of a pack
+	 *
+	 * @param text the text of a pack
+	 * @return the pack
+	 * @throws IllegalArgumentException when the text is not the text of a pack
+	 */
+	public static PayloadPack parse(String text) {
+		if (! isPack(text)) {
+			throw new IllegalArgumentException("not a pack");
+		}
+
+		try {
+			int position = MARKER.length() + 1;
+			int end = text.indexOf(SEPARATOR, position);
+			int count = Integer.parseInt(text.substring(position, end));
+			position = end + 1;
+
+			String[] entries = new String[count];
+			for (int i = 0; i < count; i++) {
+				end = text.indexOf(SEPARATOR, position);
+				entries[i] = text.substring(position, end);
+				position = end + 1;
+			}
+
+			PayloadPack pack = new PayloadPack();
+			for (int i = 0; i < count; i++) {
+				int space1 = entries[i].indexOf(' ');
+				int space2 = entries[i].indexOf(' ', space1 + 1);
+				int rawTextLength = Integer.parseInt(entries[i].substring(space2 + 1));
+				pack.add(entries[i].substring(0, space1), entries[i].substring(space1 + 1, space2)
+						, text.substring(position, position + rawTextLength));
+				position += rawTextLength;
+			}
+			return pack;
+		} catch (RuntimeException e) {
+			//a missing separator, a count or length that is not a number, or a raw text cut short
+			throw new IllegalArgumentException("malformed pack. " + e.getMessage());
+		}
+	}
+}
@@ -1,191 +1,262 @@
-package ca.nexcel.awbc.processor.process;
-
-
-import java.util.ArrayList;
-import java.util.List;
-import java.util.logging.Logger;
-
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
-
-import ca.nexcel.awbc.processor.common.Utils;
-import ca.nexcel.awbc.processor.publisher.KeyCreator;
-import ca.nexcel.awbc.processor.publisher.Publisher;
-
-/*
- * This SAX handler is responsible for parsing XML, capturing data of interest
- * and outputting the data. The output data consists of a key-value pair and a namespace
- * intended to classify the key-value key pair.
- * 
- * The Publisher object is responsible for output. The implementation of the Publisher
- * is created external to this class and injected as a property prior to parsing.
- * 
- * This SAX handler may optionally receive a KeyCreator responsible for creating the
- * key for the output record. If The KeyCreator is not injected into this class, the
- * value of the key property is employed by default.
- * 
- * The summary of the processing logic is as follows
- * 1. Set class properties externally
- * 2. Invoke parsing externally
- * 3. For each tag identified as "root", extract the list of XML entities
- *    injected as a property, and transform them to JSON format.
- * 4. Once all of the entities for a "root" is harvested, create a key
- *    and publish the record. 
- *    
- * @author George Franciscus    
- */
-
-public class AviationWeatherHandler extends DefaultHandler {
-	
-   private static final Logger LOGGER = Logger.getLogger( AviationWeatherHandler.class.getName());
-
-   //Handler property: The name of the XML element that embodies the data elements
-   private  String rootElement = "";
-   
-   //Handler property: The name of the XML element that contains the key to the output
-   private  String key = "";
-   
-   //Handler property: A means of further classifying the key-value pair
-   private  String namespace = "";
-   
-   //Handler property: The object responsible for outputting the data captured
-   private Publisher publisher;
-   
-   //Handler property: The object responsible for manufacturing a key for publication
-   private KeyCreator keyCreator = null;
-   
-   //The list of fields of interest
-   private  List<String> fieldList = null;
-   
-   //Determine if a field is to be captured for output
-   private boolean isElementValueCaptured = false;
-   
-   //is this the first output for a record
-   private boolean isFirstRecordEntityCaptured = true;	
-   
-   //The XML data in JSON format
-   private String recordJSON = "";
-   
-   //The name of the field being processed
-   private String fieldName = "";
-   
-   //The number of successful publications in the parsing of the file
-   private int numberOfSuccessfulPublications = 0;
-   
-   //The number of successful publications in the parsing of the file
-   private int numberOfFailedPublications = 0;
-   
-   //The number of attempted publications in the parsing of the file
-   private int numberOfAttemptedPublications = 0;
-
-   //Sets the key creator
-   public void setKeyCreator(KeyCreator keyCreator) {
-	this.keyCreator = keyCreator;
-   }
-
-   //Sets the namespace
-   public void setNamespace(String namespace) {
-	this.namespace = namespace;
-   }
-
-   //Sets the value of the key
-   public void setKey(String key) {
-	   this.key = key;
-   }
-
-   //Sets the implementation of the publisher
-	public void setPublisher(Publisher publisher) {
-		this.publisher = publisher;
-	}
-	
-	//Gets the implementation of the publisher
-	public Publisher getPublisher() {
-			return publisher;
-	}
-
-	//Sets the name of the XML element wrapping the data of interest
-	public void setRootElement(String rootElement) {
-		this.rootElement = rootElement;
-	}
-	
-	//Sets the name of the XML elements to be captured
-	public void setAllFields(String allFields) {
-		fieldList = Utils.buildListFromString(allFields);
-	}
-
-	//Gets the number of success publications performed in the parse
-	public int getNumberOfSuccessfulPublications() {
-		return numberOfSuccessfulPublications;
-	}
-
-	//Gets the number of failed publications performed in the parse
-	public int getNumberOfFailedPublications() {
-		return numberOfFailedPublications;
-	}
-
-	public int getNumberOfAttemptedPublications() {
-		return numberOfAttemptedPublications;
-	}
-
-	//Gets the number of attempted publications performed in the parse
-	public void startDocument() throws SAXException {
-		numberOfSuccessfulPublications = 0;
-		numberOfFailedPublications = 0;
-		numberOfAttemptedPublications = 0;
-    }
-
-	public void startElement(String uri, String localName,String qName, Attributes attributes) throws SAXException {
-		if (qName.trim().equalsIgnoreCase(rootElement.trim())) {
-			recordJSON = "{";
-		}
-		
-		isElementValueCaptured = false;	
-		
-		if (fieldList.contains(qName)) {
-			fieldName = qName;
-			isElementValueCaptured = true;
-		}
-	}
-	
-
-	public void endElement(String uri, String localName, String qName) throws SAXException {
-		List<String> keys = new ArrayList<String>();
-		
-		if (qName.trim().equalsIgnoreCase(rootElement.trim())) {
-			recordJSON += "}";
-			isFirstRecordEntityCaptured = true;
-			
-			if (null == keyCreator) {
-				keys.add(Utils.getValueFromJSON(key, recordJSON));
-			} else {
-				keys.addAll(keyCreator.createKey(recordJSON));
-			}
-		
-			numberOfAttemptedPublications++;
-			if (publisher.publish(namespace, keys, recordJSON)) {
-				numberOfSuccessfulPublications++;
-			} else {
-				numberOfFailedPublications++;
-			}
-		}
-	}
-	
-
-	public void characters(char ch[], int start, int length) throws SAXException {
-		
-		if (isElementValueCaptured) {
-			if (! isFirstRecordEntityCaptured) {
-				recordJSON += ",";
-			}
-
-			isFirstRecordEntityCaptured = false;
-			recordJSON += "\"" + fieldName + "\":\"" + new String(ch, start, length) + "\"";
-		}
-		
-		isElementValueCaptured = false;
-
-	}
-
-}
-
+package ca.nexcel.awbc.processor.process;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.metrics.LatencyHistogram;
+import ca.nexcel.awbc.processor.metrics.MetricsRegistry;
+import ca.nexcel.awbc.processor.model.MetarRecord;
+import ca.nexcel.awbc.processor.publisher.KeyCreator;
+import ca.nexcel.awbc.processor.publisher.Publisher;
+
+/*
+ * This SAX handler is responsible for parsing XML, capturing data of interest
+ * and outputting the data. The output data consists of a key-value pair and a namespace
+ * intended to classify the key-value key pair.
+ * 
+ * The Publisher object is responsible for output. The implementation of the Publisher
+ * is created external to this class and injected as a property prior to parsing.
+ * 
+ * This SAX handler may optionally receive a KeyCreator responsible for creating the
+ * key for the output record. If The KeyCreator is not injected into this class, the
+ * value of the key property is employed by default.
+ * 
+ * The summary of the processing logic is as follows
+ * 1. Set class properties externally
+ * 2. Invoke parsing externally
+ * 3. For each tag identified as "root", extract the list of XML entities
+ *    injected as a property into a MetarRecord, which converts them to 
+ *    their types and to JSON format.
+ * 4. Once all of the entities for a "root" is harvested, create a key
+ *    and publish the record. 
+ *    
+ * @author George Franciscus    
+ */
+
+public class AviationWeatherHandler extends DefaultHandler {
+	
+   private static final Logger LOGGER = Logger.getLogger( AviationWeatherHandler.class.getName());
+   
+   //The time taken to create the keys of each record
+   private static final LatencyHistogram KEY_LATENCIES = MetricsRegistry.getDefault().histogram(MetricsRegistry.STAGE_KEYS);
+
+   //Handler property: The name of the XML element that embodies the data elements
+   private  String rootElement = "";
+   
+   //Handler property: The name of the XML element that contains the key to the output
+   private  String key = "";
+   
+   //Handler property: A means of further classifying the key-value pair
+   private  String namespace = "";
+   
+   //Handler property: The object responsible for outputting the data captured
+   private Publisher publisher;
+   
+   //Handler property: The object responsible for manufacturing a key for publication
+   private KeyCreator keyCreator = null;
+   
+   //The fields of interest, precompiled and looked up by XML element name
+   private Map<String, CapturedField> capturedFields = new HashMap<String, CapturedField>();
+   
+   //The field being captured. A null value means the element is not captured
+   private CapturedField capturedField = null;
+   
+   //Determine if the value of the field being captured has started to be output
+   private boolean isElementValueCaptured = false;
+   
+   //The record being captured. The record is reused for every METAR
+   private MetarRecord record = new MetarRecord();
+   
+   //The number of successful publications in the parsing of the file
+   private int numberOfSuccessfulPublications = 0;
+   
+   //The number of successful publications in the parsing of the file
+   private int numberOfFailedPublications = 0;
+   
+   //The number of attempted publications in the parsing of the file
+   private int numberOfAttemptedPublications = 0;
+
+   //Sets the key creator
+   public void setKeyCreator(KeyCreator keyCreator) {
+	this.keyCreator = keyCreator;
+   }
+
+   //Sets the namespace
+   public void setNamespace(String namespace) {
+	this.namespace = namespace;
+   }
+
+   //Sets the value of the key
+   public void setKey(String key) {
+	   this.key = key;
+   }
+
+   //Sets the implementation of the publisher
+	public void setPublisher(Publisher publisher) {
+		this.publisher = publisher;
+	}
+	
+	//Gets the implementation of the publisher
+	public Publisher getPublisher() {
+			return publisher;
+	}
+
+	//Sets the name of the XML element wrapping the data of interest
+	public void setRootElement(String rootElement) {
+		this.rootElement = rootElement.trim();
+	}
+	
+	//Sets the name of the XML elements to be captured, and precompiles them
+	public void setAllFields(String allFields) {
+		capturedFields = new HashMap<String, CapturedField>();
+		List<String> fieldList = Utils.buildListFromString(allFields);
+		for (String field : fieldList) {
+			capturedFields.put(field, new CapturedField(field));
+		}
+	}
+
+	//Gets the number of success publications performed in the parse
+	public int getNumberOfSuccessfulPublications() {
+		return numberOfSuccessfulPublications;
+	}
+
+	//Gets the number of failed publications performed in the parse
+	public int getNumberOfFailedPublications() {
+		return numberOfFailedPublications;
+	}
+
+	public int getNumberOfAttemptedPublications() {
+		return numberOfAttemptedPublications;
+	}
+
+	//Gets the number of attempted publications performed in the parse
+	public void startDocument() throws SAXException {
+		startPublications();
+    }
+	
+	//Clears the publication counts, at the start of a document
+	void startPublications() {
+		numberOfSuccessfulPublications = 0;
+		numberOfFailedPublications = 0;
+		numberOfAttemptedPublications = 0;
+	}
+
+	public void startElement(String uri, String localName,String qName, Attributes attributes) throws SAXException {
+		if (isRootElement(qName)) {
+			startRecord();
+		}
+		beginField(qName);
+	}
+	
+
+	public void endElement(String uri, String localName, String qName) throws SAXException {
+		endField();
+		
+		if (isRootElement(qName)) {
+			endRecord();
+		}
+	}
+	
+
+	/*
+	 * The parser may deliver the value of an element in several chunks,
+	 * so every chunk is appended until the element ends.
+	 */
+	public void characters(char ch[], int start, int length) throws SAXException {
+		appendField(ch, start, length);
+	}
+	
+	/*
+	 * The methods below assemble and publish records. They are called by the
+	 * SAX callbacks above, and directly by parse engines that do not use SAX.
+	 */
+	
+	//Starts capturing a record, at the start of a root element
+	void startRecord() {
+		record.reset();
+	}
+	
+	/*
+	 * Starts capturing the value of an element, when it is a field of interest.
+	 * Returns false when the element is not captured.
+	 */
+	boolean beginField(String name) {
+		isElementValueCaptured = false;	
+		capturedField = capturedFields.get(name);
+		return null != capturedField;
+	}
+	
+	//Appends a chunk of the value of the field being captured
+	void appendField(char ch[], int start, int length) {
+		if (null == capturedField) {
+			return;
+		}
+		
+		if (! isElementValueCaptured) {
+			isElementValueCaptured = true;
+			record.beginField(capturedField.prefix);
+		}
+		
+		record.appendValue(ch, start, length);
+	}
+	
+	//Completes the value of the field being captured, at the end of any element
+	void endField() {
+		if (isElementValueCaptured) {
+			record.endField(capturedField.field);
+			isElementValueCaptured = false;
+		}
+		capturedField = null;
+	}
+	
+	//Completes the record, creates its keys and publishes it, at the end of a root element
+	void endRecord() {
+		record.endRecord();
+		
+		long keyStartNanos = System.nanoTime();
+		List<String> keys = new ArrayList<String>(2);
+		if (null == keyCreator) {
+			keys.add(Utils.getValueFromJSON(key, record.toJSON()));
+		} else {
+			keys.addAll(keyCreator.createKey(record));
+		}
+		KEY_LATENCIES.recordSince(keyStartNanos);
+	
+		numberOfAttemptedPublications++;
+		if (publisher.publish(namespace, keys, record)) {
+			numberOfSuccessfulPublications++;
+		} else {
+			numberOfFailedPublications++;
+		}
+	}
+	
+	//Determine if the element is the XML element wrapping the data of interest
+	boolean isRootElement(String qName) {
+		return (qName == rootElement) || qName.equalsIgnoreCase(rootElement);
+	}
+	
+	/*
+	 * A field of interest. Holds the precompiled JSON prefix "name":" and the
+	 * typed METAR field. The typed field is null for elements that are not
+	 * known METAR fields, which are then only captured in JSON form.
+	 */
+	private static class CapturedField {
+		private char[] prefix;
+		private MetarRecord.Field field;
+		
+		private CapturedField(String name) {
+			this.prefix = ("\"" + name + "\":\"").toCharArray();
+			this.field = MetarRecord.Field.forName(name);
+		}
+	}
+
+}
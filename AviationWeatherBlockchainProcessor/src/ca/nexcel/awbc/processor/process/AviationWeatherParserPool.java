@@ -0,0 +1,142 @@
+package ca.nexcel.awbc.processor.process;
+
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+
+import org.xml.sax.SAXException;
+
+import ca.nexcel.awbc.processor.publisher.KeyCreator;
+import ca.nexcel.awbc.processor.publisher.Publisher;
+
+/**
+ * A fixed size pool of parse engines, each paired with its own handler.
+ * <p/>
+ * Creating a parser factory and parser for every country is
+ * wasteful, and parsers and handlers are not thread safe. This pool
+ * creates one engine and handler per worker thread up front and hands
+ * them out one at a time. A borrowed parser must be given back using
+ * release once the parse is complete.
+ * <p/>
+ * All handlers share the same key creator and publisher. The publisher
+ * must therefore be safe to call from several threads at once.
+ *
+ * @author George Franciscus
+ *
+ */
+public class AviationWeatherParserPool {
+	
+	/**
+	 * The engine names, as set in metar.parser
+	 */
+	public static final String ENGINE_SAX = "sax";
+	public static final String ENGINE_STAX = "stax";
+	
+	private static final Logger LOGGER = Logger.getLogger(AviationWeatherParserPool.class.getName());
+
+	/**
+	 * The parsers not currently in use
+	 */
+	private BlockingQueue<PooledParser> available;
+
+	/**
+	 * Creates the pool and all of its parsers.
+	 *
+	 * @param size the number of parsers in the pool
+	 * @param engine the name of the parse engine, sax or stax. Defaults to sax
+	 * @param rootElement the name of the XML element that embodies the data elements
+	 * @param allFields comma delimited list of XML elements to be captured
+	 * @param key the name of the XML element that contains the key to the output
+	 * @param keyCreator the object responsible for manufacturing a key for publication
+	 * @param publisher the object responsible for outputting the data captured
+	 *
+	 * @throws ParserConfigurationException when a SAX parser cannot be created
+	 * @throws SAXException when a SAX parser cannot be created
+	 */
+	public AviationWeatherParserPool(int size, String engine, String rootElement, String allFields, String key,
+			KeyCreator keyCreator, Publisher publisher) throws ParserConfigurationException, SAXException {
+
+		available = new ArrayBlockingQueue<PooledParser>(size);
+
+		boolean isStax = ENGINE_STAX.equalsIgnoreCase((null == engine) ? "" : engine.trim());
+		if (! isStax && (null != engine) && ! ENGINE_SAX.equalsIgnoreCase(engine.trim())) {
+			LOGGER.warning("invalid parser " + engine + " defined. Defaulted to " + ENGINE_SAX);
+		}
+		SAXParserFactory saxFactory = isStax ? null : SAXParserFactory.newInstance();
+		XMLInputFactory staxFactory = isStax ? ParseEngineStax.createFactory() : null;
+		for (int i = 0; i < size; i++) {
+			AviationWeatherHandler handler = new AviationWeatherHandler();
+			handler.setRootElement(rootElement);
+			handler.setAllFields(allFields);
+			handler.setKey(key);
+			handler.setKeyCreator(keyCreator);
+			handler.setPublisher(publisher);
+
+			available.add(new PooledParser(isStax ? new ParseEngineStax(staxFactory) : new ParseEngineSax(saxFactory), handler));
+		}
+	}
+
+	/**
+	 * Obtains a parser from the pool, waiting until one is available.
+	 *
+	 * @param namespace the namespace the handler publishes to, typically the country
+	 * @return a parser and handler ready to parse
+	 * @throws InterruptedException when interrupted while waiting
+	 */
+	public PooledParser borrow(String namespace) throws InterruptedException {
+		PooledParser pooledParser = available.take();
+		pooledParser.getHandler().setNamespace(namespace);
+		return pooledParser;
+	}
+
+	/**
+	 * Returns a parser to the pool. The parser is reset so
+	 * that a failed parse does not leak state into the next one.
+	 *
+	 * @param pooledParser the parser to be returned
+	 */
+	public void release(PooledParser pooledParser) {
+		pooledParser.getEngine().reset();
+		available.add(pooledParser);
+	}
+
+	/**
+	 * A convenience class used to group a parse engine
+	 * with the handler it is used with.
+	 *
+	 * @author George Franciscus
+	 *
+	 */
+	public static class PooledParser {
+		private ParseEngine engine;
+		private AviationWeatherHandler handler;
+
+		public PooledParser(ParseEngine engine, AviationWeatherHandler handler) {
+			this.engine = engine;
+			this.handler = handler;
+		}
+		
+		/**
+		 * Parses a document with the engine, publishing its records with the handler
+		 * 
+		 * @param inputStream the document
+		 * @throws Exception when the document cannot be read or is not well formed
+		 */
+		public void parse(InputStream inputStream) throws Exception {
+			engine.parse(inputStream, handler);
+		}
+
+		public ParseEngine getEngine() {
+			return engine;
+		}
+
+		public AviationWeatherHandler getHandler() {
+			return handler;
+		}
+	}
+}
@@ -1,237 +1,956 @@
-package ca.nexcel.awbc.processor.process;
-
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
-import java.text.MessageFormat;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.Properties;
-import java.util.logging.LogManager;
-import java.util.logging.Logger;
-
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-
-import org.xml.sax.InputSource;
-
-import ca.nexcel.awbc.processor.common.JsonRpcClient;
-import ca.nexcel.awbc.processor.common.Utils;
-import ca.nexcel.awbc.processor.model.Metric;
-import ca.nexcel.awbc.processor.publisher.KeyCreator;
-import ca.nexcel.awbc.processor.publisher.KeyCreatorMetar;
-import ca.nexcel.awbc.processor.publisher.PublisherMultiChain;
-import ca.nexcel.awbc.processor.publisher.PublisherPrint;
-
-/**
- * Processes weather input by reading from an XML source and publishes
- * to a data store. This class is the only class invoked, and done so from
- * the main method.
- * <p/>
- * Although the current class only implements metars, the design of this
- * class plans for the addition of other weather data.
- * <p/>
- * This class expects that the name and path to a config path be provided
- * as a argument to the main method. See ARG_NAME_CONFIG_PROPERTY_FILE.
- *  
- * @author George Franciscus
- *
- */
-public class AviationWeatherProcessor {
-	private static final String ARG_NAME_CONFIG_PROPERTY_FILE = "-config=";
-	private static final String CONFIG_WEATHER_KEY_PREFIX_DEFAULT = "metar";
-
-	private static final Logger LOGGER = Logger.getLogger(AviationWeatherProcessor.class.getName());
-	private Properties configProperties = null;
-       
-	   /**
-	    * Aviation processor. This method is called by the runnable jar file. This class expects only
-	    * the location of the config file as a mandatory parameter.
-	    * 
-	    * -config=/somepath/myconfig.properties
-	    * 
-	    * @param argv location of the config file as a mandatory parameter.
-	    */
-		public static void main (String argv []) {
-	    	AviationWeatherProcessor aviationWeatherProcessor = new AviationWeatherProcessor();
-	    	aviationWeatherProcessor.process(argv);
-	    }
-       
-     /**
-     * The main processing method
-     * 
-     * @param argv parameters passed at runtime
-     */
-    public void process(String argv []) {
-    	   
-    	   //obtain properties from argument 
-    	   String config_file_system_file_name = "";
-    	   for (int i=0; i < argv.length; i++) {
-    		   if (argv[i].startsWith(ARG_NAME_CONFIG_PROPERTY_FILE)) {
-    			   config_file_system_file_name = argv[i].substring(ARG_NAME_CONFIG_PROPERTY_FILE.length());
-    		   }
-      	   }
-    	   
-    	   if (config_file_system_file_name.trim().equals("")) {
-    		   System.out.println("** FAIL TO START!!! *** " + ARG_NAME_CONFIG_PROPERTY_FILE + " runtime parameter is missing");
-    		   System.out.println("Please run your application with using the location of your config file. For example " + ARG_NAME_CONFIG_PROPERTY_FILE + "\\path\\to\\myconfig.properties. See readme file.");
-    		   return;
-    	   }
-  
-    	   //obtain the configuraiton properties file
-    	   configProperties = Utils.getConfigProperfiesFile(config_file_system_file_name);
-    	   if (null == configProperties) {
-    		  String errorMessage = "Unable to load property file from the file system. " + ARG_NAME_CONFIG_PROPERTY_FILE + config_file_system_file_name;
-    	      LOGGER.severe(errorMessage);
-    	     return; //hard stop
-    	   }
-    	   
-    	   //configure loggers
-           configLogger(configProperties.getProperty("logging.file"));
-            
-	       LOGGER.info("aviation weather processor started");
-           metar(CONFIG_WEATHER_KEY_PREFIX_DEFAULT);
-           LOGGER.info("aviation weather processor completed!");
-           LOGGER.info("-------------------------------------"); 
-       }
-
-	/**
-	 * Configures the logger. The location and name of the logging properties file is set
-	 * using the logging.file property in the config.properties file. If the 
-	 * logging properties file does not exist, then this method defaults to the
-	 * logging.properties file found in the classpath.
-	 */
-	private void configLogger(String absolutePathToLoggingFile) {
-		InputStream inputStream = null;
-		
-		try {
-			absolutePathToLoggingFile = ((null == absolutePathToLoggingFile) || (absolutePathToLoggingFile.trim().equals(""))) ? "" : absolutePathToLoggingFile;
-			inputStream = new FileInputStream(absolutePathToLoggingFile);
-		    LogManager.getLogManager().readConfiguration(inputStream);
-		}
-		catch (IOException e1) {
-			inputStream = AviationWeatherProcessor.class.getResourceAsStream("/awbcProcessorLogging.properties");
-			try {
-			    LogManager.getLogManager().readConfiguration(inputStream);
-			}
-			catch (IOException e2) {
-			    Logger.getAnonymousLogger().severe("Could not load default awbcProcessorLogging.properties file from classpath");
-			}
-		}
-	}
-
-		/**
-		 * Process metar data source
-		 * 
-		 * @param config_weather_key_prefix the key used to obtain property configs specific to metars
-		 * 
-		 */
-		private void metar(String config_weather_key_prefix) {
-			
-			try {
-				LOGGER.info("metar processing started");
-				
-				//Obtain the list of countries that metars will be processed
-	            List countries = Utils.buildListFromString(configProperties.getProperty(config_weather_key_prefix + ".countries"));
-
-	            //Configure the Json RPC client
-	            JsonRpcClient jsonRpcClient = new JsonRpcClient(configProperties.getProperty("multichain.url")
-	            		, configProperties.getProperty("multichain.username")
-	            		, configProperties.getProperty("multichain.password"));
-	            
-
-	            //Create and configure a publisher
-	            PublisherMultiChain publisherMultiChain = new PublisherMultiChain();
-	            publisherMultiChain.setJsonRpcClient(jsonRpcClient);
-	            publisherMultiChain.setFromAddress(configProperties.getProperty("multichain.fromAddress"));
-	            publisherMultiChain.setMaxStdOpReturnsCount(configProperties.getProperty("multichain.max-std-op-returns-count"));
-	            publisherMultiChain.initialize();
-	            
-	            //Create a key creator to be used by the publisher to create keys to index metars
-	            KeyCreator metarKeyCreator = new KeyCreatorMetar();
-  	            
-	            LOGGER.info("number of countries to be processed is " + countries.size());
-	            
-	            //Process each country
-	        	Iterator countryIterator = countries.iterator();
-	        	while (countryIterator.hasNext()) {
-	        		String country = (String) countryIterator.next();
-	        		
-	        		//The data source is XML. Create an XML parser. A SAX parser was chosen for its speed and efficiency
-			        SAXParserFactory factory = SAXParserFactory.newInstance();
-		            SAXParser      saxParser = factory.newSAXParser();
-		            AviationWeatherHandler handler   = new AviationWeatherHandler();
- 
-		            //Configure the XML Parser
-		            handler.setRootElement(configProperties.getProperty(config_weather_key_prefix+ ".root"));
-		            handler.setAllFields(configProperties.getProperty(config_weather_key_prefix + ".fields"));
-		            handler.setKey(configProperties.getProperty(config_weather_key_prefix + ".key"));
-		            handler.setKeyCreator(metarKeyCreator);
-		            handler.setPublisher(publisherMultiChain);
-		            handler.setNamespace(country);
-
-		            //Set up parsing parameters and parse XML
-		            Object[] objects = {country};
-		            MessageFormat form = new MessageFormat(configProperties.getProperty(config_weather_key_prefix + ".url"));
-		            String url = form.format(objects);
-		            URL sourceUrl = new URL(url);
-		            saxParser.parse(new InputSource(sourceUrl.openStream()), handler);
-		            LOGGER.info("Processed country:" + country);
-
-	        	}  
-	        	
-	        	//Must be called to clean up.
-	        	publisherMultiChain.finalize();
-	        	
-	        	//Present publication statistics in the log
-	        	logMetrics(publisherMultiChain.getMetrics());
-
-	        } catch (Throwable err) {
-	        	LOGGER.severe("unable to fully process all metars in all countries");
-	        	err.printStackTrace();
-	            new RuntimeException("unable to process METAR");
-	        }
-			
-			LOGGER.info("metar processing completed");
-		}
-		
-		/**
-		 * Log statistics
-		 * 
-		 * @param metrics publication statistics
-		 */
-		private void logMetrics(Map <String, Metric> metrics) {
-			
-            int totalAttemptCount = 0;
-            int totalSuccessCount = 0;
-            int totalFailureCount = 0;
-			
-			Iterator<String> metricsIterator = metrics.keySet().iterator();
-			while (metricsIterator.hasNext()) {
-				String key = metricsIterator.next();
-				Metric metric = metrics.get(key);
-				
-				totalAttemptCount += metric.getAttemptCount();
-				totalSuccessCount += metric.getSuccessCount();
-				totalFailureCount += metric.getFailureCount();
-				
-	            String failFlag = (metric.getFailureCount() > 0) ? "  *" : "   ";
-	            LOGGER.info(failFlag + "country " + key + " publication metrics."
-	            		+ " attempted="  + metric.getAttemptCount()
-	            		+ " successful=" + metric.getSuccessCount()
-	            		+ " failed="     + metric.getFailureCount());
-				
-			}
-			
-			int successPercentage = (0 == totalAttemptCount) ? 0 :  ((totalSuccessCount *100) / totalAttemptCount);
-            LOGGER.info("total processing metrics: " 
-            		+ " success percentage="     + successPercentage + "%"
-            		+ " total attempted="  + totalAttemptCount
-            		+ " successful=" + totalSuccessCount
-            		+ " failed="     + totalFailureCount);
-			
-			
-		}
-}
+package ca.nexcel.awbc.processor.process;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.InputSource;
+
+import ca.nexcel.awbc.processor.common.JsonRpcClient;
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.metrics.LatencyHistogram;
+import ca.nexcel.awbc.processor.metrics.MetricsHttpEndpoint;
+import ca.nexcel.awbc.processor.metrics.MetricsMBean;
+import ca.nexcel.awbc.processor.metrics.MetricsRegistry;
+import ca.nexcel.awbc.processor.model.Metric;
+import ca.nexcel.awbc.processor.payload.PayloadCodecBinary;
+import ca.nexcel.awbc.processor.payload.PayloadCodecJson;
+import ca.nexcel.awbc.processor.publisher.BatchPolicy;
+import ca.nexcel.awbc.processor.publisher.DedupIndex;
+import ca.nexcel.awbc.processor.publisher.KeyCreator;
+import ca.nexcel.awbc.processor.publisher.KeyCreatorMetar;
+import ca.nexcel.awbc.processor.publisher.Publisher;
+import ca.nexcel.awbc.processor.publisher.PublisherColumnStore;
+import ca.nexcel.awbc.processor.publisher.PublisherCountryRouter;
+import ca.nexcel.awbc.processor.publisher.PublisherMultiChain;
+import ca.nexcel.awbc.processor.publisher.PublisherPrint;
+import ca.nexcel.awbc.processor.publisher.PublisherWatermark;
+import ca.nexcel.awbc.processor.publisher.StreamRegistry;
+import ca.nexcel.awbc.processor.query.MetarChainReader;
+import ca.nexcel.awbc.processor.query.MetarIndex;
+import ca.nexcel.awbc.processor.query.MetarQueryHttpEndpoint;
+import ca.nexcel.awbc.processor.source.SourceClient;
+import ca.nexcel.awbc.processor.source.SourceClientHttp;
+import ca.nexcel.awbc.processor.source.SourceClientUrl;
+import ca.nexcel.awbc.processor.source.SourceResponse;
+import ca.nexcel.awbc.processor.source.WatermarkStore;
+import ca.nexcel.awbc.processor.store.ColumnStore;
+
+/**
+ * Processes weather input by reading from an XML source and publishes
+ * to a data store. This class is the only class invoked, and done so from
+ * the main method.
+ * <p/>
+ * Although the current class only implements metars, the design of this
+ * class plans for the addition of other weather data.
+ * <p/>
+ * This class expects that the name and path to a config path be provided
+ * as a argument to the main method. See ARG_NAME_CONFIG_PROPERTY_FILE.
+ * <p/>
+ * Metars are processed once, unless daemon.interval-minutes is configured, 
+ * in which case the processor stays resident and processes metars every interval.
+ * <p/>
+ * When shard.directory is configured, several processors sharing the directory
+ * split the countries between them. See ShardCoordinator.
+ * <p/>
+ * When query.http.port is configured, the metars written to the chain are indexed
+ * and served over HTTP. See MetarQueryHttpEndpoint.
+ * <p/>
+ * When store.directory is configured, the fields of the metars parsed are also
+ * kept in a columnar store for analytics. See ColumnStore.
+ *  
+ * @author George Franciscus
+ *
+ */
+public class AviationWeatherProcessor {
+	private static final String ARG_NAME_CONFIG_PROPERTY_FILE = "-config=";
+	private static final String CONFIG_WEATHER_KEY_PREFIX_DEFAULT = "metar";
+	private static final int DEFAULT_THREADS = 1;
+	private static final String SOURCE_COUNTRY = "country";
+	private static final String SOURCE_BULK = "bulk";
+	private static final int DEFAULT_DEDUP_CAPACITY = 1 << 20;
+	private static final int DEFAULT_DEDUP_EXPIRY_HOURS = 48;
+
+	private static final String DEFAULT_METRICS_HTTP_HOST = "127.0.0.1";
+	private static final String DEFAULT_QUERY_HTTP_HOST = "127.0.0.1";
+	private static final int DEFAULT_INTERVAL_MINUTES = 0;
+	private static final String SOURCE_CLIENT_HTTP = "http";
+	private static final String SOURCE_CLIENT_URL = "url";
+	private static final long SHUTDOWN_TIMEOUT_SECONDS = 120;
+
+	private static final Logger LOGGER = Logger.getLogger(AviationWeatherProcessor.class.getName());
+	private static final MetricsRegistry METRICS = MetricsRegistry.getDefault();
+	private Properties configProperties = null;
+	
+	//The metar pipeline, created once and used by every run of a resident processor
+	private Publisher publisher = null;
+	private AviationWeatherParserPool parserPool = null;
+	private SourceClient sourceClient = null;
+	private WatermarkStore watermarkStore = null;
+	private List<String> countries = null;
+	private PublisherCountryRouter publisherCountryRouter = null;
+	private ShardCoordinator shardCoordinator = null;
+	private MetarQueryHttpEndpoint queryEndpoint = null;
+	private int threads = DEFAULT_THREADS;
+	private boolean isBulkSource = false;
+	private String metarUrl = null;
+	
+	//Starts the runs of a resident processor
+	private volatile ScheduledExecutorService scheduler = null;
+	
+	//Set when a resident processor is stopping, so that no further country is started
+	private volatile boolean stopping = false;
+       
+	   /**
+	    * Aviation processor. This method is called by the runnable jar file. This class expects only
+	    * the location of the config file as a mandatory parameter.
+	    * 
+	    * -config=/somepath/myconfig.properties
+	    * 
+	    * @param argv location of the config file as a mandatory parameter.
+	    */
+		public static void main (String argv []) {
+	    	AviationWeatherProcessor aviationWeatherProcessor = new AviationWeatherProcessor();
+	    	aviationWeatherProcessor.process(argv);
+	    }
+       
+     /**
+     * The main processing method
+     * 
+     * @param argv parameters passed at runtime
+     */
+    public void process(String argv []) {
+    	   
+    	   //obtain properties from argument 
+    	   String config_file_system_file_name = "";
+    	   for (int i=0; i < argv.length; i++) {
+    		   if (argv[i].startsWith(ARG_NAME_CONFIG_PROPERTY_FILE)) {
+    			   config_file_system_file_name = argv[i].substring(ARG_NAME_CONFIG_PROPERTY_FILE.length());
+    		   }
+      	   }
+    	   
+    	   if (config_file_system_file_name.trim().equals("")) {
+    		   System.out.println("** FAIL TO START!!! *** " + ARG_NAME_CONFIG_PROPERTY_FILE + " runtime parameter is missing");
+    		   System.out.println("Please run your application with using the location of your config file. For example " + ARG_NAME_CONFIG_PROPERTY_FILE + "\\path\\to\\myconfig.properties. See readme file.");
+    		   return;
+    	   }
+  
+    	   //obtain the configuraiton properties file
+    	   configProperties = Utils.getConfigProperfiesFile(config_file_system_file_name);
+    	   if (null == configProperties) {
+    		  String errorMessage = "Unable to load property file from the file system. " + ARG_NAME_CONFIG_PROPERTY_FILE + config_file_system_file_name;
+    	      LOGGER.severe(errorMessage);
+    	     return; //hard stop
+    	   }
+    	   
+    	   //configure loggers
+           configLogger(configProperties.getProperty("logging.file"));
+            
+	       LOGGER.info("aviation weather processor started");
+	       MetricsHttpEndpoint metricsEndpoint = exposeMetrics();
+	       try {
+	    	   //A processor with an interval stays resident and runs every interval
+	    	   int intervalMinutes = Utils.stringToIntegerConverter(configProperties.getProperty("daemon.interval-minutes", "" + DEFAULT_INTERVAL_MINUTES)
+	    			   , DEFAULT_INTERVAL_MINUTES, "invalid daemon.interval-minutes property defined. Processing metars once");
+	    	   if (intervalMinutes > 0) {
+	    		   metarResident(CONFIG_WEATHER_KEY_PREFIX_DEFAULT, intervalMinutes);
+	    	   } else {
+	    		   metar(CONFIG_WEATHER_KEY_PREFIX_DEFAULT);
+	    	   }
+	       } finally {
+	    	   if (null != metricsEndpoint) {
+	    		   metricsEndpoint.stop();
+	    	   }
+	    	   if (null != queryEndpoint) {
+	    		   queryEndpoint.stop();
+	    	   }
+	       }
+           LOGGER.info("aviation weather processor completed!");
+           LOGGER.info("-------------------------------------"); 
+       }
+
+	/**
+	 * Configures the logger. The location and name of the logging properties file is set
+	 * using the logging.file property in the config.properties file. If the 
+	 * logging properties file does not exist, then this method defaults to the
+	 * logging.properties file found in the classpath.
+	 */
+	private void configLogger(String absolutePathToLoggingFile) {
+		InputStream inputStream = null;
+		
+		try {
+			absolutePathToLoggingFile = ((null == absolutePathToLoggingFile) || (absolutePathToLoggingFile.trim().equals(""))) ? "" : absolutePathToLoggingFile;
+			inputStream = new FileInputStream(absolutePathToLoggingFile);
+		    LogManager.getLogManager().readConfiguration(inputStream);
+		}
+		catch (IOException e1) {
+			inputStream = AviationWeatherProcessor.class.getResourceAsStream("/awbcProcessorLogging.properties");
+			try {
+			    LogManager.getLogManager().readConfiguration(inputStream);
+			}
+			catch (IOException e2) {
+			    Logger.getAnonymousLogger().severe("Could not load default awbcProcessorLogging.properties file from classpath");
+			}
+		}
+	}
+
+	/**
+	 * Exposes the metrics registry over JMX and, when metrics.http.port is set, 
+	 * over HTTP, so that a run can be watched while it progresses.
+	 * 
+	 * @return the HTTP endpoint to be stopped at the end of the run, or null
+	 */
+	private MetricsHttpEndpoint exposeMetrics() {
+		if (! "false".equalsIgnoreCase(configProperties.getProperty("metrics.jmx", "true").trim())) {
+			MetricsMBean.register(METRICS);
+		}
+		
+		String port = configProperties.getProperty("metrics.http.port");
+		if ((null == port) || port.trim().equals("")) {
+			return null;
+		}
+		
+		MetricsHttpEndpoint metricsEndpoint = new MetricsHttpEndpoint(METRICS);
+		try {
+			metricsEndpoint.start(configProperties.getProperty("metrics.http.host", DEFAULT_METRICS_HTTP_HOST).trim()
+					, Utils.stringToIntegerConverter(port, 0, "invalid metrics.http.port property defined. Defaulted to a free port"));
+			return metricsEndpoint;
+		} catch (IOException e) {
+			LOGGER.severe("unable to serve metrics over HTTP on port " + port);
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+		/**
+		 * Process metar data source
+		 * 
+		 * @param config_weather_key_prefix the key used to obtain property configs specific to metars
+		 * 
+		 */
+		private void metar(String config_weather_key_prefix) {
+			
+			try {
+				LOGGER.info("metar processing started");
+				createMetarPipeline(config_weather_key_prefix);
+				processMetars();
+	        } catch (Throwable err) {
+	        	LOGGER.severe("unable to fully process all metars in all countries");
+	        	err.printStackTrace();
+	            new RuntimeException("unable to process METAR");
+	        } finally {
+	        	leaveShard();
+	        }
+			
+			LOGGER.info("metar processing completed");
+		}
+		
+		/**
+		 * Processes the metar data source every interval until the processor is stopped,
+		 * keeping the publisher, its connection to the chain, the list of streams and 
+		 * the parsers between runs. 
+		 * <p/>
+		 * Runs are started every interval. A run never overlaps the previous run. When a 
+		 * run takes longer than the interval, the runs that should have started meanwhile 
+		 * are skipped. The processor is stopped by stop(), or by terminating the JVM, in 
+		 * which case the current run completes, skipping the countries not yet started, 
+		 * and everything published is written out before the JVM exits.
+		 * 
+		 * @param config_weather_key_prefix the key used to obtain property configs specific to metars
+		 * @param intervalMinutes the number of minutes between the start of two runs
+		 */
+		private void metarResident(String config_weather_key_prefix, int intervalMinutes) {
+			try {
+				createMetarPipeline(config_weather_key_prefix);
+			} catch (Throwable err) {
+				LOGGER.severe("unable to start resident metar processing");
+				err.printStackTrace();
+				return;
+			}
+			
+			ScheduledThreadPoolExecutor runScheduler = new ScheduledThreadPoolExecutor(1);
+			runScheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+			scheduler = runScheduler;
+			
+			//Terminating the JVM waits for the current run to write out everything published
+			Thread shutdownHook = new Thread(new Runnable() {
+				public void run() {
+					stop();
+					awaitStop(SHUTDOWN_TIMEOUT_SECONDS);
+					leaveShard();
+				}
+			}, "awbc-shutdown");
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+			
+			LOGGER.info("resident metar processing started. A run is started every " + intervalMinutes + " minutes");
+			runScheduler.execute(new ScheduledRun(intervalMinutes * 60L * 1000L));
+			awaitStop(Long.MAX_VALUE);
+			
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) {
+				//the JVM is terminating
+			}
+			leaveShard();
+			LOGGER.info("resident metar processing stopped");
+		}
+		
+		/**
+		 * Stops a resident processor. The current run completes, skipping the 
+		 * countries not yet started, and no further run is started.
+		 */
+		public void stop() {
+			stopping = true;
+			ScheduledExecutorService runScheduler = scheduler;
+			if (null != runScheduler) {
+				runScheduler.shutdown();
+			}
+		}
+		
+		/**
+		 * Leaves the shard members, when sharded, so that the countries of this 
+		 * processor are processed by the others from their next run
+		 */
+		private void leaveShard() {
+			if (null != shardCoordinator) {
+				shardCoordinator.leave();
+			}
+		}
+		
+		/**
+		 * Waits for the current run of a resident processor to complete after it is stopped
+		 * 
+		 * @param timeoutSeconds the longest time waited
+		 */
+		private void awaitStop(long timeoutSeconds) {
+			try {
+				if (! scheduler.awaitTermination(timeoutSeconds, TimeUnit.SECONDS)) {
+					LOGGER.warning("the current metar run did not complete within " + timeoutSeconds + " seconds");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		/**
+		 * A run of a resident processor, which schedules the next run once complete
+		 */
+		private class ScheduledRun implements Runnable {
+			private long intervalMillis;
+			private long startMillis = System.currentTimeMillis();
+			
+			ScheduledRun(long intervalMillis) {
+				this.intervalMillis = intervalMillis;
+			}
+			
+			public void run() {
+				try {
+					LOGGER.info("metar processing started");
+					processMetars();
+				} catch (Throwable err) {
+					//a failed run must not prevent the next run
+					LOGGER.severe("unable to fully process all metars in all countries");
+					err.printStackTrace();
+				}
+				LOGGER.info("metar processing completed");
+				
+				long nowMillis = System.currentTimeMillis();
+				int skippedRuns = 0;
+				startMillis += intervalMillis;
+				while (startMillis <= nowMillis) {
+					startMillis += intervalMillis;
+					skippedRuns++;
+				}
+				if (skippedRuns > 0) {
+					LOGGER.warning("metar run took longer than the interval. Runs skipped=" + skippedRuns);
+				}
+				
+				try {
+					scheduler.schedule(this, startMillis - nowMillis, TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException e) {
+					//the processor is stopping
+				}
+			}
+		}
+		
+		/**
+		 * Creates the metar pipeline: the connection to the chain, the publisher and the 
+		 * parsers. The pipeline is created once and used by every run.
+		 * 
+		 * @param config_weather_key_prefix the key used to obtain property configs specific to metars
+		 * @throws Exception when the pipeline cannot be created
+		 */
+		private void createMetarPipeline(String config_weather_key_prefix) throws Exception {
+				
+				//Obtain the list of countries that metars will be processed
+	            countries = Utils.buildListFromString(configProperties.getProperty(config_weather_key_prefix + ".countries"));
+
+	            //Configure the Json RPC client
+	            JsonRpcClient jsonRpcClient = new JsonRpcClient(configProperties.getProperty("multichain.url")
+	            		, configProperties.getProperty("multichain.username")
+	            		, configProperties.getProperty("multichain.password"));
+	            jsonRpcClient.setConnectTimeoutMillis(configProperties.getProperty("multichain.connect-timeout-ms"));
+	            jsonRpcClient.setReadTimeoutMillis(configProperties.getProperty("multichain.read-timeout-ms"));
+	            jsonRpcClient.setProbeIntervalMillis(configProperties.getProperty("multichain.probe-interval-ms"));
+	            
+
+	            //Create and configure a publisher
+	            PublisherMultiChain publisherMultiChain = new PublisherMultiChain();
+	            publisherMultiChain.setJsonRpcClient(jsonRpcClient);
+	            publisherMultiChain.setFromAddress(configProperties.getProperty("multichain.fromAddress"));
+	            publisherMultiChain.setMaxStdOpReturnsCount(configProperties.getProperty("multichain.max-std-op-returns-count"));
+	            publisherMultiChain.setSenderThreads(configProperties.getProperty("multichain.sender-threads"));
+	            publisherMultiChain.setMaxQueuedBatches(configProperties.getProperty("multichain.max-queued-batches"));
+	            
+	            BatchPolicy batchPolicy = new BatchPolicy();
+	            batchPolicy.setMaxBytes(configProperties.getProperty("multichain.max-batch-bytes"));
+	            batchPolicy.setAdaptive(configProperties.getProperty("multichain.adaptive-batching"));
+	            batchPolicy.setTargetLatencyMillis(configProperties.getProperty("multichain.target-batch-latency-ms"));
+	            batchPolicy.setLingerMillis(configProperties.getProperty("multichain.batch-linger-ms"));
+	            publisherMultiChain.setBatchPolicy(batchPolicy);
+	            publisherMultiChain.setSpoolFile(configProperties.getProperty("multichain.spool.file"));
+	            publisherMultiChain.setDedupIndex(createDedupIndex());
+	            publisherMultiChain.setRetryAttempts(configProperties.getProperty("multichain.retry-attempts"));
+	            publisherMultiChain.setRetryBackoffMillis(configProperties.getProperty("multichain.retry-backoff-ms"));
+	            publisherMultiChain.setRetryMaxBackoffMillis(configProperties.getProperty("multichain.retry-max-backoff-ms"));
+	            publisherMultiChain.setBisectRejectedBatches(configProperties.getProperty("multichain.bisect-rejected-batches"));
+	            publisherMultiChain.setRpcBatching(configProperties.getProperty("multichain.rpc-batching"));
+	            publisherMultiChain.setRpcBatchMaxCalls(configProperties.getProperty("multichain.rpc-batch.max-calls"));
+	            publisherMultiChain.setRpcBatchMaxBytes(configProperties.getProperty("multichain.rpc-batch.max-bytes"));
+	            publisherMultiChain.setRpcBatchLingerMillis(configProperties.getProperty("multichain.rpc-batch.linger-ms"));
+	            
+	            //The raw text may be written as compressed binary data rather than JSON text. Binary data
+	            //is decoded when read back from the chain, whatever the format written by this run
+	            PayloadCodecBinary payloadCodecBinary = new PayloadCodecBinary();
+	            payloadCodecBinary.setDictionaryFile(configProperties.getProperty("multichain.payload.dictionary-file"));
+	            String payloadFormat = configProperties.getProperty("multichain.payload.format", "").trim();
+	            if (PayloadCodecBinary.FORMAT.equalsIgnoreCase(payloadFormat)) {
+	            	publisherMultiChain.setPayloadCodec(payloadCodecBinary);
+	            } else if (! payloadFormat.equals("") && ! PayloadCodecJson.FORMAT.equalsIgnoreCase(payloadFormat)) {
+	            	LOGGER.warning("invalid multichain.payload.format property defined. Defaulted to " + PayloadCodecJson.FORMAT);
+	            }
+	            
+	            //The observations of a station, or a group of stations, within a window may be packed in a single item
+	            publisherMultiChain.setPackWindowMinutes(configProperties.getProperty("multichain.pack.window-minutes"));
+	            publisherMultiChain.setPackMaxStations(configProperties.getProperty("multichain.pack.max-stations"));
+	            publisherMultiChain.setPackMaxObservations(configProperties.getProperty("multichain.pack.max-observations"));
+	            publisherMultiChain.setPackMaxBytes(configProperties.getProperty("multichain.pack.max-bytes"));
+	            
+	            //Streams are looked up in a registry, which may create the streams of countries missing from the chain
+	            StreamRegistry streamRegistry = new StreamRegistry();
+	            streamRegistry.setJsonRpcClient(jsonRpcClient);
+	            streamRegistry.setCacheFile(configProperties.getProperty("multichain.streams.cache.file"));
+	            streamRegistry.setCacheTtlMinutes(configProperties.getProperty("multichain.streams.cache-ttl-minutes"));
+	            publisherMultiChain.setStreamRegistry(streamRegistry);
+	            publisherMultiChain.setExpectedStreams(countries);
+	            publisherMultiChain.setCreateMissingStreams(configProperties.getProperty("multichain.streams.create-missing"));
+	            
+	            //The metars written may be indexed and queried locally rather than on the chain
+	            publisherMultiChain.setMetarIndex(serveMetarQueries(jsonRpcClient, payloadCodecBinary));
+	            
+	            //A bulk source is not classified by country, so records are routed by station
+	            String source = configProperties.getProperty(config_weather_key_prefix + ".source", SOURCE_COUNTRY).trim();
+	            isBulkSource = SOURCE_BULK.equalsIgnoreCase(source);
+	            publisher = publisherMultiChain;
+	            
+	            //The fields of the metars parsed may be kept in a columnar store, for analytics
+	            String storeDirectory = configProperties.getProperty("store.directory");
+	            if ((null != storeDirectory) && ! storeDirectory.trim().equals("")) {
+	            	ColumnStore columnStore = new ColumnStore();
+	            	columnStore.setDirectory(storeDirectory);
+	            	columnStore.setSegmentRows(configProperties.getProperty("store.segment-rows"));
+	            	PublisherColumnStore publisherColumnStore = new PublisherColumnStore();
+	            	publisherColumnStore.setColumnStore(columnStore);
+	            	publisherColumnStore.setPublisher(publisherMultiChain);
+	            	publisher = publisherColumnStore;
+	            }
+	            
+	            if (isBulkSource) {
+	            	publisherCountryRouter = new PublisherCountryRouter();
+	            	publisherCountryRouter.setPublisher(publisher);
+	            	publisherCountryRouter.setCountries(countries);
+	            	publisherCountryRouter.setStationCountries(loadStationCountries(configProperties.getProperty(config_weather_key_prefix + ".stations.url")));
+	            	publisher = publisherCountryRouter;
+	            } else {
+	            	//Countries may be fetched incrementally, from the newest observation time processed
+	            	String watermarkFile = configProperties.getProperty(config_weather_key_prefix + ".watermark.file");
+	            	if ((null != watermarkFile) && ! watermarkFile.trim().equals("")) {
+	            		watermarkStore = new WatermarkStore();
+	            		watermarkStore.setFile(watermarkFile);
+	            		watermarkStore.setOverlapMinutes(configProperties.getProperty(config_weather_key_prefix + ".watermark.overlap-minutes"));
+	            		watermarkStore.setMaxCatchUpHours(configProperties.getProperty(config_weather_key_prefix + ".watermark.max-catch-up-hours"));
+	            		PublisherWatermark publisherWatermark = new PublisherWatermark();
+	            		publisherWatermark.setWatermarkStore(watermarkStore);
+	            		publisherWatermark.setPublisher(publisher);
+	            		publisher = publisherWatermark;
+	            	}
+	            }
+	            metarUrl = configProperties.getProperty(config_weather_key_prefix + (isBulkSource ? ".bulk.url" : ".url"));
+	            
+	            //Create a key creator to be used by the publisher to create keys to index metars
+	            KeyCreator metarKeyCreator = new KeyCreatorMetar();
+  	            
+	            LOGGER.info("number of countries to be processed is " + countries.size());
+	            
+	            //The number of countries fetched and parsed at the same time. 1 processes countries one at a time
+	            threads = Utils.stringToIntegerConverter(configProperties.getProperty(config_weather_key_prefix + ".threads", "" + DEFAULT_THREADS)
+	            		, DEFAULT_THREADS, "invalid " + config_weather_key_prefix + ".threads property defined. Defaulted to " + DEFAULT_THREADS);
+	            threads = isBulkSource ? 1 : Math.max(1, Math.min(threads, countries.size()));
+	            
+	            sourceClient = createSourceClient(config_weather_key_prefix, threads);
+	            
+	            //The data source is XML. Create a pool of XML parsers. A SAX parser was chosen for its speed and efficiency,
+	            //a StAX parser may be configured instead
+	            parserPool = new AviationWeatherParserPool(threads
+	            		, configProperties.getProperty(config_weather_key_prefix + ".parser", AviationWeatherParserPool.ENGINE_SAX)
+	            		, configProperties.getProperty(config_weather_key_prefix + ".root")
+	            		, configProperties.getProperty(config_weather_key_prefix + ".fields")
+	            		, configProperties.getProperty(config_weather_key_prefix + ".key")
+	            		, metarKeyCreator
+	            		, publisher);
+	            
+	            //Processors sharing a shard directory split the countries between them
+	            String shardDirectory = configProperties.getProperty("shard.directory");
+	            if ((null != shardDirectory) && ! shardDirectory.trim().equals("")) {
+	            	shardCoordinator = new ShardCoordinator();
+	            	shardCoordinator.setDirectory(shardDirectory);
+	            	shardCoordinator.setInstanceId(configProperties.getProperty("shard.instance-id"));
+	            	shardCoordinator.setWindowMinutes(configProperties.getProperty("shard.window-minutes", configProperties.getProperty("daemon.interval-minutes")));
+	            	shardCoordinator.setHeartbeatSeconds(configProperties.getProperty("shard.heartbeat-seconds"));
+	            	shardCoordinator.join();
+	            }
+		}
+		
+		/**
+		 * Indexes the metars written to the chain and serves them over HTTP, when query.http.port
+		 * is set. The index is first rebuilt from the latest items of the streams of the countries.
+		 * 
+		 * @param jsonRpcClient the client the chain is read with
+		 * @param payloadDecoder decodes binary data read from the chain
+		 * @return the index to be filled by the publisher, or null
+		 */
+		private MetarIndex serveMetarQueries(JsonRpcClient jsonRpcClient, PayloadCodecBinary payloadDecoder) {
+			String port = configProperties.getProperty("query.http.port");
+			if ((null == port) || port.trim().equals("")) {
+				return null;
+			}
+			
+			MetarChainReader chainReader = new MetarChainReader();
+			chainReader.setJsonRpcClient(jsonRpcClient);
+			chainReader.setRebuildItems(configProperties.getProperty("query.index.rebuild-items"));
+			chainReader.setPayloadDecoder(payloadDecoder);
+			
+			MetarIndex metarIndex = new MetarIndex();
+			metarIndex.setMaxStations(configProperties.getProperty("query.index.max-stations"));
+			metarIndex.setMaxObservationsPerStation(configProperties.getProperty("query.index.max-observations-per-station"));
+			metarIndex.setMaxDates(configProperties.getProperty("query.index.max-dates"));
+			metarIndex.setChainReader(chainReader);
+			chainReader.startRebuild(metarIndex, countries);
+			
+			MetarQueryHttpEndpoint endpoint = new MetarQueryHttpEndpoint(metarIndex);
+			endpoint.setThreads(configProperties.getProperty("query.http.threads"));
+			try {
+				endpoint.start(configProperties.getProperty("query.http.host", DEFAULT_QUERY_HTTP_HOST).trim()
+						, Utils.stringToIntegerConverter(port, 0, "invalid query.http.port property defined. Defaulted to a free port"));
+				queryEndpoint = endpoint;
+			} catch (IOException e) {
+				LOGGER.severe("unable to serve metar queries over HTTP on port " + port);
+				e.printStackTrace();
+			}
+			return metarIndex;
+		}
+		
+		/**
+		 * Fetches, parses and publishes the metars of every country once, using the metar pipeline
+		 * 
+		 * @throws Exception when processing is interrupted
+		 */
+		private void processMetars() throws Exception {
+			Map<String, Long> countersAtStart = METRICS.getCounters();
+			
+			//A sharded processor only processes the countries it acquires for the current window
+			List<String> runCountries = countries;
+			if (null != shardCoordinator) {
+				runCountries = shardCoordinator.acquire(countries);
+				if (isBulkSource) {
+					publisherCountryRouter.setCountries(runCountries);
+				}
+			}
+			
+			sourceClient.initialize();
+			if (null != watermarkStore) {
+				watermarkStore.initialize();
+			}
+			publisher.initialize();
+			try {
+	            if (runCountries.isEmpty()) {
+	            	LOGGER.info("No country to be processed by this processor during this run");
+	            } else if (isBulkSource) {
+	            	processBulk(parserPool, metarUrl, runCountries);
+	            } else {
+	            	processCountries(parserPool, metarUrl, runCountries, threads);
+	            }
+			} finally {
+	        	//Must be called to clean up. Writes out everything published
+	        	publisher.finalize();
+	        	sourceClient.finalize();
+	        	if (null != watermarkStore) {
+	        		//watermarks only move once the metars observed before them are written
+	        		watermarkStore.commit(publisher.getMetrics());
+	        		watermarkStore.force();
+	        	}
+			}
+        	
+        	//Present publication statistics in the log
+        	logMetrics(publisher.getMetrics());
+        	logSourceMetrics(countersAtStart);
+        	logPayloadMetrics(countersAtStart);
+		}
+		
+		/**
+		 * Creates the client metars are fetched with. The http client is used unless
+		 * the url client is configured.
+		 * 
+		 * @param config_weather_key_prefix the key used to obtain property configs specific to metars
+		 * @param threads the number of countries fetched at the same time
+		 * @return the source client
+		 */
+		private SourceClient createSourceClient(String config_weather_key_prefix, int threads) {
+			String client = configProperties.getProperty(config_weather_key_prefix + ".source.client", SOURCE_CLIENT_HTTP).trim();
+			if (SOURCE_CLIENT_URL.equalsIgnoreCase(client)) {
+				return new SourceClientUrl();
+			}
+			
+			SourceClientHttp sourceClientHttp = new SourceClientHttp();
+			sourceClientHttp.setConnectTimeoutMillis(configProperties.getProperty(config_weather_key_prefix + ".connect-timeout-ms"));
+			sourceClientHttp.setReadTimeoutMillis(configProperties.getProperty(config_weather_key_prefix + ".read-timeout-ms"));
+			sourceClientHttp.setCacheFile(configProperties.getProperty(config_weather_key_prefix + ".source.cache.file"));
+			sourceClientHttp.setMaxConnections(threads);
+			return sourceClientHttp;
+		}
+		
+		/**
+		 * Opens the index of metars already written to the chain, when configured.
+		 * 
+		 * @return the dedup index. A null value means every metar is written
+		 * @throws IOException when the index cannot be opened
+		 */
+		private DedupIndex createDedupIndex() throws IOException {
+			String fileName = configProperties.getProperty("multichain.dedup.file");
+			if ((null == fileName) || fileName.trim().equals("")) {
+				return null;
+			}
+			
+			int capacity = Utils.stringToIntegerConverter(configProperties.getProperty("multichain.dedup.capacity", "" + DEFAULT_DEDUP_CAPACITY)
+					, DEFAULT_DEDUP_CAPACITY, "invalid multichain.dedup.capacity property defined. Defaulted to " + DEFAULT_DEDUP_CAPACITY);
+			int expiryHours = Utils.stringToIntegerConverter(configProperties.getProperty("multichain.dedup.expiry-hours", "" + DEFAULT_DEDUP_EXPIRY_HOURS)
+					, DEFAULT_DEDUP_EXPIRY_HOURS, "invalid multichain.dedup.expiry-hours property defined. Defaulted to " + DEFAULT_DEDUP_EXPIRY_HOURS);
+			return new DedupIndex(fileName.trim(), capacity, expiryHours * 60L * 60L * 1000L);
+		}
+		
+		/**
+		 * Fetches and parses the metars of every country, one request per country. 
+		 * 
+		 * @param parserPool the pool parsers are borrowed from
+		 * @param urlPattern the metar url containing the {0} country placeholder
+		 * @param countries the countries to be processed
+		 * @param threads the number of countries processed at the same time
+		 * @throws Exception when processing is interrupted
+		 */
+		private void processCountries(final AviationWeatherParserPool parserPool, final String urlPattern, List<String> countries, int threads) throws Exception {
+            LOGGER.info("number of countries processed concurrently is " + threads);
+            
+            //Process each country
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+            	List<Future<?>> results = new ArrayList<Future<?>>();
+            	for (final String country : countries) {
+            		results.add(executor.submit(new Runnable() {
+            			public void run() {
+            				processCountry(parserPool, urlPattern, country);
+            			}
+            		}));
+            	}
+            	
+            	//Wait for every country to complete before finalizing the publisher
+            	for (Future<?> result : results) {
+            		result.get();
+            	}
+            } finally {
+            	executor.shutdown();
+            }
+		}
+		
+		/**
+		 * Fetches and parses the metars of all countries in a single request. 
+		 * The publisher is responsible for routing each record to its country.
+		 * 
+		 * @param parserPool the pool the parser is borrowed from
+		 * @param url the url of all current metars, optionally gzip compressed
+		 * @param runCountries the countries processed by this processor during this run
+		 * @throws Exception when the metars cannot be fetched or parsed
+		 */
+		private void processBulk(AviationWeatherParserPool parserPool, String url, List<String> runCountries) throws Exception {
+			LOGGER.info("processing all countries from bulk source " + url);
+			
+			AviationWeatherParserPool.PooledParser pooledParser = parserPool.borrow("");
+			SourceResponse response = null;
+			boolean isParseStarted = false;
+			try {
+				response = sourceClient.open(url);
+				if (response.isNotModified()) {
+					LOGGER.info("Unchanged bulk source. Skipped");
+					return;
+				}
+				long parseStartNanos = System.nanoTime();
+				isParseStarted = true;
+				pooledParser.parse(response.getInputStream());
+				METRICS.histogram(MetricsRegistry.STAGE_PARSE).recordSince(parseStartNanos);
+				sourceClient.processed(response);
+				LOGGER.info("Processed bulk source");
+			} catch (Exception e) {
+				for (String country : runCountries) {
+					releaseLease(country, isParseStarted);
+				}
+				throw e;
+			} finally {
+				if (null != response) {
+					response.close();
+				}
+				parserPool.release(pooledParser);
+			}
+		}
+		
+		/**
+		 * Loads the station identifier to country code lookup table.
+		 * 
+		 * @param url the url of the station information, optionally gzip compressed
+		 * @return the station identifier to country code lookup table
+		 * @throws Exception when the station information cannot be fetched or parsed
+		 */
+		private Map<String, String> loadStationCountries(String url) throws Exception {
+			InputStream inputStream = null;
+			try {
+				inputStream = Utils.openStream(url);
+				StationCountryHandler handler = new StationCountryHandler();
+				SAXParserFactory.newInstance().newSAXParser().parse(new InputSource(inputStream), handler);
+				LOGGER.info("number of stations associated with a country is " + handler.getStationCountries().size());
+				return handler.getStationCountries();
+			} finally {
+				if (null != inputStream) {
+					inputStream.close();
+				}
+			}
+		}
+		
+		/**
+		 * Fetches and parses the metars of a single country. A failure is logged 
+		 * and does not prevent the remaining countries from being processed. 
+		 * 
+		 * @param parserPool the pool the parser is borrowed from
+		 * @param urlPattern the metar url containing the {0} country placeholder
+		 * @param country the country to be processed
+		 */
+		private void processCountry(AviationWeatherParserPool parserPool, String urlPattern, String country) {
+			if (stopping) {
+				LOGGER.info("Skipped country:" + country + ". The processor is stopping");
+				releaseLease(country, false);
+				return;
+			}
+			
+			AviationWeatherParserPool.PooledParser pooledParser = null;
+			SourceResponse response = null;
+			boolean isParseStarted = false;
+			try {
+				pooledParser = parserPool.borrow(country);
+				
+	            //Set up parsing parameters and parse XML
+	            Object[] objects = {country};
+	            MessageFormat form = new MessageFormat(urlPattern);
+	            String url = form.format(objects);
+	            String incrementalUrl = null;
+	            if (null != watermarkStore) {
+	            	watermarkStore.begin(country);
+	            	incrementalUrl = watermarkStore.incrementalUrl(url, country);
+	            }
+	            response = sourceClient.open((null == incrementalUrl) ? url : incrementalUrl);
+	            if (response.isNotModified()) {
+	            	LOGGER.info("Unchanged country:" + country + ". Skipped");
+	            	return;
+	            }
+	            long parseStartNanos = System.nanoTime();
+	            isParseStarted = true;
+	            pooledParser.parse(response.getInputStream());
+	            METRICS.histogram(MetricsRegistry.STAGE_PARSE).recordSince(parseStartNanos);
+	            METRICS.counter(MetricsRegistry.COUNTRIES_PROCESSED).increment();
+	            if (null == incrementalUrl) {
+	            	//an incremental url changes every run, so its validators would never be sent again
+	            	sourceClient.processed(response);
+	            }
+	            if (null != watermarkStore) {
+	            	watermarkStore.parsed(country);
+	            }
+	            LOGGER.info("Processed country:" + country);
+	            
+			} catch (Throwable err) {
+				METRICS.counter(MetricsRegistry.COUNTRIES_FAILED).increment();
+				LOGGER.severe("unable to process metars for country " + country);
+				err.printStackTrace();
+				releaseLease(country, isParseStarted);
+			} finally {
+				if (null != response) {
+					try {
+						response.close();
+					} catch (IOException e) {
+						LOGGER.warning("unable to close metar input stream for country " + country);
+					}
+				}
+				if (null != pooledParser) {
+					parserPool.release(pooledParser);
+				}
+			}
+		}
+		
+		/**
+		 * Releases the shard lease of a country that was not processed, so that
+		 * the country is not left unprocessed until the next window. Once parsing
+		 * has started, records of the country may already have been handed to the 
+		 * publisher, so the lease is kept until the next window rather than letting
+		 * another processor publish them again.
+		 * 
+		 * @param country the country
+		 * @param isParseStarted true when the metars of the country were being parsed
+		 */
+		private void releaseLease(String country, boolean isParseStarted) {
+			if (null == shardCoordinator) {
+				return;
+			}
+			if (isParseStarted) {
+				LOGGER.info("lease of country " + country + " kept. Its metars may have been published in part, so it is processed again in the next window");
+				return;
+			}
+			shardCoordinator.release(country);
+		}
+		
+		/**
+		 * Logs the requests made to the source during a run, and how many were 
+		 * answered without content because the content had not changed
+		 * 
+		 * @param countersAtStart the counters of the metrics registry when the run started
+		 */
+		private void logSourceMetrics(Map<String, Long> countersAtStart) {
+			Map<String, Long> counters = METRICS.getCounters();
+			long requests = counterDelta(counters, countersAtStart, MetricsRegistry.SOURCE_REQUESTS);
+			long notModified = counterDelta(counters, countersAtStart, MetricsRegistry.SOURCE_NOT_MODIFIED);
+			long hitPercentage = (0 == requests) ? 0 : ((notModified * 100) / requests);
+			LOGGER.info("source metrics: "
+					+ " cache hit percentage=" + hitPercentage + "%"
+					+ " requests="      + requests
+					+ " not modified="  + notModified
+					+ " bytes fetched=" + counterDelta(counters, countersAtStart, MetricsRegistry.BYTES_FETCHED)
+					+ " bytes saved="   + counterDelta(counters, countersAtStart, MetricsRegistry.BYTES_SAVED));
+		}
+		
+		/**
+		 * Logs how much the raw text of the metars queued during a run was compressed
+		 * by the payload codec, and how fast it was encoded
+		 * 
+		 * @param countersAtStart the counters of the metrics registry when the run started
+		 */
+		private void logPayloadMetrics(Map<String, Long> countersAtStart) {
+			Map<String, Long> counters = METRICS.getCounters();
+			long records = counterDelta(counters, countersAtStart, MetricsRegistry.PAYLOAD_RECORDS);
+			long textBytes = counterDelta(counters, countersAtStart, MetricsRegistry.PAYLOAD_TEXT_BYTES);
+			long encodedBytes = counterDelta(counters, countersAtStart, MetricsRegistry.PAYLOAD_ENCODED_BYTES);
+			long encodeNanos = counterDelta(counters, countersAtStart, MetricsRegistry.PAYLOAD_ENCODE_NANOS);
+			long ratioPercentage = (0 == textBytes) ? 0 : ((encodedBytes * 100) / textBytes);
+			long recordsPerSecond = (0 == encodeNanos) ? 0 : ((records * 1000000000L) / encodeNanos);
+			LOGGER.info("payload metrics: "
+					+ " encoded size=" + ratioPercentage + "% of the text"
+					+ " records="       + records
+					+ " text bytes="    + textBytes
+					+ " encoded bytes=" + encodedBytes
+					+ " records encoded per second=" + recordsPerSecond);
+		}
+		
+		private static long counterDelta(Map<String, Long> counters, Map<String, Long> countersAtStart, String name) {
+			Long value = counters.get(name);
+			Long valueAtStart = countersAtStart.get(name);
+			return ((null == value) ? 0 : value) - ((null == valueAtStart) ? 0 : valueAtStart);
+		}
+		
+		/**
+		 * Log statistics
+		 * 
+		 * @param metrics publication statistics
+		 */
+		private void logMetrics(Map <String, Metric> metrics) {
+			
+            int totalAttemptCount = 0;
+            int totalSuccessCount = 0;
+            int totalFailureCount = 0;
+            int totalDuplicateCount = 0;
+			
+			Iterator<String> metricsIterator = metrics.keySet().iterator();
+			while (metricsIterator.hasNext()) {
+				String key = metricsIterator.next();
+				Metric metric = metrics.get(key);
+				
+				totalAttemptCount += metric.getAttemptCount();
+				totalSuccessCount += metric.getSuccessCount();
+				totalFailureCount += metric.getFailureCount();
+				totalDuplicateCount += metric.getDuplicateCount();
+				
+	            String failFlag = (metric.getFailureCount() > 0) ? "  *" : "   ";
+	            LOGGER.info(failFlag + "country " + key + " publication metrics."
+	            		+ " attempted="  + metric.getAttemptCount()
+	            		+ " successful=" + metric.getSuccessCount()
+	            		+ " failed="     + metric.getFailureCount()
+	            		+ " duplicates=" + metric.getDuplicateCount());
+	            
+	            Iterator<Map.Entry<String, Integer>> reasonsIterator = metric.getFailureReasons().entrySet().iterator();
+	            while (reasonsIterator.hasNext()) {
+	            	Map.Entry<String, Integer> reason = reasonsIterator.next();
+	            	LOGGER.info("       failed=" + reason.getValue() + " reason=" + reason.getKey());
+	            }
+				
+			}
+			
+			int successPercentage = (0 == totalAttemptCount) ? 0 :  ((totalSuccessCount *100) / totalAttemptCount);
+            LOGGER.info("total processing metrics: " 
+            		+ " success percentage="     + successPercentage + "%"
+            		+ " total attempted="  + totalAttemptCount
+            		+ " successful=" + totalSuccessCount
+            		+ " failed="     + totalFailureCount
+            		+ " duplicates=" + totalDuplicateCount);
+            
+            Iterator<Map.Entry<String, LatencyHistogram>> stagesIterator = METRICS.getHistograms().entrySet().iterator();
+            while (stagesIterator.hasNext()) {
+            	Map.Entry<String, LatencyHistogram> stage = stagesIterator.next();
+            	LatencyHistogram latencies = stage.getValue();
+            	LOGGER.info(stage.getKey() + " latency ms:"
+            			+ " count=" + latencies.getCount()
+            			+ " p50="   + (latencies.getPercentile(50) / 1000.0)
+            			+ " p99="   + (latencies.getPercentile(99) / 1000.0)
+            			+ " max="   + (latencies.getMax() / 1000.0));
+            }
+			
+		}
+}
@@ -0,0 +1,29 @@
+package ca.nexcel.awbc.processor.process;
+
+import java.io.InputStream;
+
+/**
+ * Parses a weather XML document, handing the elements of interest to an
+ * AviationWeatherHandler, which assembles and publishes the records.
+ * <p/>
+ * Engines are not thread safe. Each thread uses its own engine, 
+ * obtained from AviationWeatherParserPool.
+ * 
+ * @author George Franciscus
+ */
+public interface ParseEngine {
+	
+	/**
+	 * Parses a document
+	 * 
+	 * @param inputStream the document
+	 * @param handler assembles and publishes the records found
+	 * @throws Exception when the document cannot be read or is not well formed
+	 */
+	public void parse(InputStream inputStream, AviationWeatherHandler handler) throws Exception;
+	
+	/**
+	 * Resets the engine, so that a failed parse does not leak state into the next one
+	 */
+	public void reset();
+}
@@ -0,0 +1,39 @@
+package ca.nexcel.awbc.processor.process;
+
+import java.io.InputStream;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Parses with a SAX parser, which calls back the handler for every
+ * element and every chunk of text of the document.
+ * 
+ * @author George Franciscus
+ *
+ */
+public class ParseEngineSax implements ParseEngine {
+	
+	private SAXParser parser;
+	
+	/**
+	 * @param factory the factory the SAX parser is created with
+	 * @throws ParserConfigurationException when a SAX parser cannot be created
+	 * @throws SAXException when a SAX parser cannot be created
+	 */
+	public ParseEngineSax(SAXParserFactory factory) throws ParserConfigurationException, SAXException {
+		parser = factory.newSAXParser();
+	}
+	
+	public void parse(InputStream inputStream, AviationWeatherHandler handler) throws Exception {
+		parser.parse(new InputSource(inputStream), handler);
+	}
+	
+	public void reset() {
+		parser.reset();
+	}
+}
@@ -0,0 +1,110 @@
+package ca.nexcel.awbc.processor.process;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Parses with a StAX pull parser. Rather than being called back for every
+ * element of the document, the engine pulls events and moves straight to 
+ * the next root element. Within a root element only the elements that are 
+ * fields of interest are read. The text of a field is appended to the record
+ * chunk by chunk from the parser's own buffer, without creating strings, and
+ * any other element is passed over.
+ * <p/>
+ * Fields are read from the direct children of root elements, which is 
+ * where every METAR field is found.
+ * 
+ * @author George Franciscus
+ *
+ */
+public class ParseEngineStax implements ParseEngine {
+	
+	private XMLInputFactory factory;
+	
+	/**
+	 * @param factory the factory the StAX readers are created with, configured by createFactory
+	 */
+	public ParseEngineStax(XMLInputFactory factory) {
+		this.factory = factory;
+	}
+	
+	/**
+	 * Creates a factory for the engine. The factory is thread safe once configured, 
+	 * so every engine may share the same factory.
+	 * 
+	 * @return the factory
+	 */
+	public static XMLInputFactory createFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		return factory;
+	}
+	
+	public void parse(InputStream inputStream, AviationWeatherHandler handler) throws Exception {
+		XMLStreamReader reader = factory.createXMLStreamReader(inputStream);
+		try {
+			handler.startPublications();
+			while (reader.hasNext()) {
+				if ((reader.next() == XMLStreamConstants.START_ELEMENT) && handler.isRootElement(reader.getLocalName())) {
+					parseRecord(reader, handler);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Reads a record, from the start of its root element to its end
+	 */
+	private void parseRecord(XMLStreamReader reader, AviationWeatherHandler handler) throws XMLStreamException {
+		handler.startRecord();
+		
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				if ((depth == 1) && handler.beginField(reader.getLocalName())) {
+					parseField(reader, handler);
+				} else {
+					depth++;
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+		
+		handler.endRecord();
+	}
+	
+	/**
+	 * Reads the text of a field, up to the end of its element. The text of 
+	 * elements nested in the field is not part of its value.
+	 */
+	private void parseField(XMLStreamReader reader, AviationWeatherHandler handler) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if ((depth == 1) && ((event == XMLStreamConstants.CHARACTERS) || (event == XMLStreamConstants.CDATA) 
+					|| (event == XMLStreamConstants.SPACE))) {
+				handler.appendField(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+			} else if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+		handler.endField();
+	}
+	
+	public void reset() {
+		//every parse creates its own reader
+	}
+}
@@ -0,0 +1,441 @@
+package ca.nexcel.awbc.processor.process;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import ca.nexcel.awbc.processor.common.Utils;
+
+/**
+ * Splits the countries between several processor instances sharing a directory,
+ * so that ingestion can grow beyond a single machine. Nothing but the directory
+ * is shared: instances coordinate through the files they create in it.
+ * <p/>
+ * Every instance is a member while it runs, and keeps a heartbeat file in the
+ * members directory fresh. A member that misses three heartbeats is taken to
+ * have died. At the start of every run, each country is
+ * assigned to one of the live members by rendezvous hashing: the member with
+ * the highest hash of its id and the country. Members therefore agree on the
+ * assignment without talking to each other, a member keeps the same countries
+ * from run to run, and when a member joins or leaves, only the countries it
+ * gains or loses move. The countries of a member that died are assigned to the
+ * others at their next run.
+ * <p/>
+ * Time is divided into windows, normally the interval between runs. When it
+ * claims a country, a member takes the lease of the country for the current
+ * window, by creating the lease file of the country and window. Creating a file
+ * that does not exist is atomic, so only one member takes a lease, even when
+ * members disagree on who is alive, and no country is processed twice in the
+ * same window. A member that fails to fetch the metars of a country, before any
+ * is handed to its publisher, releases its lease, so that the country is taken
+ * again during the window by the member it is then assigned to. A member that
+ * fails once parsing has started keeps the lease, as metars already published
+ * would otherwise be published again, and the country is processed again in the
+ * next window. Leases of past windows are deleted.
+ * <p/>
+ * A member that has just joined waits one heartbeat before its first assignment,
+ * so that instances started together, for example by cron, see each other.
+ * A member that stops deletes its heartbeat file, so its countries are assigned
+ * to the others at once.
+ *
+ * @author George Franciscus
+ *
+ */
+public class ShardCoordinator {
+
+	private static final Logger LOGGER = Logger.getLogger(ShardCoordinator.class.getName());
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int DEFAULT_WINDOW_MINUTES = 60;
+	private static final int DEFAULT_HEARTBEAT_SECONDS = 10;
+
+	/**
+	 * The number of heartbeats a member may miss before it is taken to have died
+	 */
+	private static final int MISSED_HEARTBEATS = 3;
+
+	/**
+	 * The number of past windows whose leases are kept
+	 */
+	private static final int KEPT_WINDOWS = 2;
+
+	private static final String MEMBERS_DIRECTORY = "members";
+	private static final String LEASES_DIRECTORY = "leases";
+	private static final String MEMBER_SUFFIX = ".member";
+	private static final String LEASE_SUFFIX = ".lease";
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private File membersDirectory;
+	private File leasesDirectory;
+	private String instanceId = defaultInstanceId();
+	private long windowMillis = DEFAULT_WINDOW_MINUTES * 60L * 1000L;
+	private long heartbeatMillis = DEFAULT_HEARTBEAT_SECONDS * 1000L;
+
+	/**
+	 * The heartbeat file of this instance. A null value means the instance has not joined.
+	 */
+	private volatile File memberFile = null;
+
+	/**
+	 * Keeps the heartbeat file fresh while the instance is a member
+	 */
+	private ScheduledExecutorService heartbeat = null;
+
+	/**
+	 * When the instance joined, so that its first assignment waits one heartbeat
+	 */
+	private long joinedMillis = 0;
+
+	/**
+	 * The lease files taken by the last acquire, by country
+	 */
+	private final Map<String, File> leases = new HashMap<String, File>();
+
+	/**
+	 * Sets the directory shared by the instances
+	 *
+	 * @param directory the path of the shared directory
+	 */
+	public void setDirectory(String directory) {
+		File root = new File(directory.trim());
+		membersDirectory = new File(root, MEMBERS_DIRECTORY);
+		leasesDirectory = new File(root, LEASES_DIRECTORY);
+	}
+
+	/**
+	 * Sets the id of this instance, which must differ from the id of every other instance
+	 *
+	 * @param instanceId the instance id. Not set means the host name and process id
+	 */
+	public void setInstanceId(String instanceId) {
+		if ((null != instanceId) && ! instanceId.trim().equals("")) {
+			this.instanceId = sanitize(instanceId.trim());
+		}
+	}
+
+	/**
+	 * Sets the length of the windows no country is processed twice in
+	 *
+	 * @param minutes the window length in minutes. Should be the interval between runs
+	 */
+	public void setWindowMinutes(String minutes) {
+		if ((null == minutes) || minutes.trim().equals("")) {
+			windowMillis = DEFAULT_WINDOW_MINUTES * 60L * 1000L;
+			return;
+		}
+
+		windowMillis = Math.max(1, Utils.stringToIntegerConverter(minutes, DEFAULT_WINDOW_MINUTES
+				, "invalid shard.window-minutes property defined. Defaulted to " + DEFAULT_WINDOW_MINUTES)) * 60L * 1000L;
+	}
+
+	/**
+	 * Sets how often the heartbeat file is refreshed. A member that misses three
+	 * heartbeats is taken to have died.
+	 *
+	 * @param seconds the heartbeat interval in seconds
+	 */
+	public void setHeartbeatSeconds(String seconds) {
+		if ((null == seconds) || seconds.trim().equals("")) {
+			heartbeatMillis = DEFAULT_HEARTBEAT_SECONDS * 1000L;
+			return;
+		}
+
+		heartbeatMillis = Math.max(1, Utils.stringToIntegerConverter(seconds, DEFAULT_HEARTBEAT_SECONDS
+				, "invalid shard.heartbeat-seconds property defined. Defaulted to " + DEFAULT_HEARTBEAT_SECONDS)) * 1000L;
+	}
+
+	public String getInstanceId() {
+		return instanceId;
+	}
+
+	/**
+	 * Joins the members, creating the shared directories when missing, and
+	 * keeps the heartbeat file fresh until the instance leaves
+	 *
+	 * @throws IOException when the shared directory cannot be written
+	 */
+	public synchronized void join() throws IOException {
+		if (null != memberFile) {
+			return;
+		}
+
+		if ((! membersDirectory.isDirectory() && ! membersDirectory.mkdirs())
+				|| (! leasesDirectory.isDirectory() && ! leasesDirectory.mkdirs())) {
+			throw new IOException("unable to create the shard directories in " + membersDirectory.getParent());
+		}
+
+		memberFile = new File(membersDirectory, instanceId + MEMBER_SUFFIX);
+		beat();
+		joinedMillis = System.currentTimeMillis();
+
+		heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "awbc-shard-heartbeat");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		heartbeat.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					beat();
+				} catch (IOException e) {
+					LOGGER.warning("unable to refresh the shard heartbeat file " + memberFile + ". " + e.getMessage());
+				}
+			}
+		}, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+
+		LOGGER.info("shard member joined. instance=" + instanceId + " directory=" + membersDirectory.getParent()
+				+ " window minutes=" + (windowMillis / 60000));
+	}
+
+	/**
+	 * Leaves the members, so that the countries of this instance are assigned to the others at once
+	 */
+	public synchronized void leave() {
+		if (null == memberFile) {
+			return;
+		}
+
+		heartbeat.shutdownNow();
+		try {
+			//a heartbeat being written would create the file again once deleted
+			heartbeat.awaitTermination(heartbeatMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		heartbeat = null;
+		if (! memberFile.delete()) {
+			LOGGER.warning("unable to delete the shard heartbeat file " + memberFile + ". It expires on its own");
+		}
+		memberFile = null;
+		LOGGER.info("shard member left. instance=" + instanceId);
+	}
+
+	/**
+	 * Obtains the countries this instance processes during the current window:
+	 * the countries assigned to it whose lease it takes
+	 *
+	 * @param countries every country
+	 * @return the countries to be processed by this instance
+	 * @throws IOException when the shared directory cannot be read or written
+	 */
+	public synchronized List<String> acquire(List<String> countries) throws IOException {
+		if (null == memberFile) {
+			throw new IOException("shard member has not joined");
+		}
+
+		//instances started together see each other before countries are assigned
+		long settleMillis = joinedMillis + heartbeatMillis - System.currentTimeMillis();
+		if (settleMillis > 0) {
+			try {
+				Thread.sleep(settleMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		beat();
+
+		long window = System.currentTimeMillis() / windowMillis;
+		deletePastLeases(window);
+
+		List<String> members = listMembers();
+		leases.clear();
+		List<String> acquired = new ArrayList<String>();
+		int assigned = 0;
+		int taken = 0;
+		for (String country : countries) {
+			if (! instanceId.equals(owner(country, members))) {
+				continue;
+			}
+			assigned++;
+
+			File leaseFile = new File(leasesDirectory, sanitize(country) + "-" + window + LEASE_SUFFIX);
+			try {
+				Files.write(leaseFile.toPath(), (instanceId + "\n").getBytes(UTF8), StandardOpenOption.CREATE_NEW
+						, StandardOpenOption.WRITE);
+				acquired.add(country);
+				leases.put(country, leaseFile);
+			} catch (FileAlreadyExistsException e) {
+				taken++;
+				LOGGER.fine("country " + country + " already processed during this window by " + readLeaseHolder(leaseFile));
+			}
+		}
+
+		LOGGER.info("shard assignment. instance=" + instanceId + " members=" + members.size() + " countries=" + countries.size()
+				+ " assigned=" + assigned + " acquired=" + acquired.size() + " already processed this window=" + taken);
+		return acquired;
+	}
+
+	/**
+	 * Releases the lease of a country this instance acquired but failed to process,
+	 * so that the country can be taken again during the window. Only called when
+	 * none of the metars of the country were handed to the publisher.
+	 *
+	 * @param country the country
+	 */
+	public synchronized void release(String country) {
+		File leaseFile = leases.remove(country);
+		if (null == leaseFile) {
+			return;
+		}
+		if (leaseFile.delete() || ! leaseFile.exists()) {
+			LOGGER.info("lease of country " + country + " released. It may be processed again during this window");
+		} else {
+			LOGGER.warning("unable to release the lease of country " + country + ". It is processed again in the next window");
+		}
+	}
+
+	/**
+	 * Refreshes the heartbeat file of this instance
+	 */
+	private void beat() throws IOException {
+		File file = memberFile;
+		if (null == file) {
+			return;
+		}
+		if (! file.exists()) {
+			Files.write(file.toPath(), (instanceId + "\n").getBytes(UTF8));
+		}
+		if (! file.setLastModified(System.currentTimeMillis())) {
+			throw new IOException("unable to touch " + file);
+		}
+	}
+
+	/**
+	 * @return the ids of the members whose heartbeat is fresh, including this instance, sorted
+	 */
+	private List<String> listMembers() {
+		long oldestMillis = System.currentTimeMillis() - MISSED_HEARTBEATS * heartbeatMillis;
+		List<String> members = new ArrayList<String>();
+		File[] files = membersDirectory.listFiles();
+		if (null != files) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.endsWith(MEMBER_SUFFIX) && (file.lastModified() >= oldestMillis)) {
+					members.add(name.substring(0, name.length() - MEMBER_SUFFIX.length()));
+				}
+			}
+		}
+		if (! members.contains(instanceId)) {
+			members.add(instanceId);
+		}
+		Collections.sort(members);
+		return members;
+	}
+
+	/**
+	 * Deletes the leases of windows older than the windows kept. Other members
+	 * may delete the same leases, so leases already deleted are ignored.
+	 */
+	private void deletePastLeases(long window) {
+		File[] files = leasesDirectory.listFiles();
+		if (null == files) {
+			return;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			int dash = name.lastIndexOf('-');
+			if ((dash < 0) || ! name.endsWith(LEASE_SUFFIX)) {
+				continue;
+			}
+			try {
+				long leaseWindow = Long.parseLong(name.substring(dash + 1, name.length() - LEASE_SUFFIX.length()));
+				if (leaseWindow < window - KEPT_WINDOWS) {
+					file.delete();
+				}
+			} catch (NumberFormatException e) {
+				//not a lease file
+			}
+		}
+	}
+
+	private String readLeaseHolder(File leaseFile) {
+		try {
+			return new String(Files.readAllBytes(leaseFile.toPath()), UTF8).trim();
+		} catch (IOException e) {
+			return "an unknown instance";
+		}
+	}
+
+	/**
+	 * Chooses the member a country is assigned to, by rendezvous hashing
+	 *
+	 * @param country the country
+	 * @param members the live members
+	 * @return the member with the highest hash of its id and the country
+	 */
+	static String owner(String country, List<String> members) {
+		String owner = null;
+		long highest = 0;
+		for (String member : members) {
+			long score = score(member, country);
+			if ((null == owner) || (score > highest)) {
+				owner = member;
+				highest = score;
+			}
+		}
+		return owner;
+	}
+
+	/**
+	 * Hashes a member id and a country with FNV-1a, then mixes the bits so
+	 * that members with similar ids get unrelated scores
+	 */
+	private static long score(String member, String country) {
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = 0; i < member.length(); i++) {
+			hash = (hash ^ member.charAt(i)) * FNV_PRIME;
+		}
+		hash = (hash ^ '/') * FNV_PRIME;
+		for (int i = 0; i < country.length(); i++) {
+			hash = (hash ^ country.charAt(i)) * FNV_PRIME;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * @return the host name and process id, such as host-1234
+	 */
+	private static String defaultInstanceId() {
+		//the name of the runtime is pid@host
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		int at = name.indexOf('@');
+		return sanitize((at < 0) ? name : name.substring(at + 1) + "-" + name.substring(0, at));
+	}
+
+	/**
+	 * @return the text with every character that is not safe in a file name replaced by an underscore
+	 */
+	private static String sanitize(String text) {
+		StringBuilder sanitized = new StringBuilder(text.length());
+		for (int i = 0; i < text.length(); i++) {
+			char ch = text.charAt(i);
+			sanitized.append((Character.isLetterOrDigit(ch) || (ch == '.') || (ch == '_') || (ch == '-')) ? ch : '_');
+		}
+		return sanitized.toString();
+	}
+}
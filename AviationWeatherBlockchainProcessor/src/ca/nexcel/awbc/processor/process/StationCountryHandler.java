@@ -0,0 +1,84 @@
+package ca.nexcel.awbc.processor.process;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/*
+ * This SAX handler builds a lookup table associating each ICAO station
+ * identifier with the country code of the country the station is located in.
+ *
+ * The input is the aviationweather.gov station information, where every
+ * Station element contains a station_id and a country element.
+ *
+ *  <Station>
+ *    <station_id>CYYZ</station_id>
+ *    ...
+ *    <country>CA</country>
+ *  </Station>
+ *
+ * The table is used to route records obtained in a single bulk request
+ * to the stream of the country they belong to.
+ *
+ * @author George Franciscus
+ */
+public class StationCountryHandler extends DefaultHandler {
+
+	//The name of the XML element that embodies a station
+	private static final String STATION_ELEMENT = "Station";
+
+	//The name of the XML element that contains the station identifier
+	private static final String STATION_ID_ELEMENT = "station_id";
+
+	//The name of the XML element that contains the country code
+	private static final String COUNTRY_ELEMENT = "country";
+
+	//The station identifier to country code lookup table
+	private Map<String, String> stationCountries = new HashMap<String, String>();
+
+	//The text of the element being processed
+	private StringBuilder text = new StringBuilder();
+
+	//The station identifier of the station being processed
+	private String stationId = null;
+
+	//The country code of the station being processed
+	private String country = null;
+
+	//Gets the station identifier to country code lookup table
+	public Map<String, String> getStationCountries() {
+		return stationCountries;
+	}
+
+	public void startDocument() throws SAXException {
+		stationCountries = new HashMap<String, String>();
+	}
+
+	public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+		if (STATION_ELEMENT.equals(qName)) {
+			stationId = null;
+			country = null;
+		}
+		text.setLength(0);
+	}
+
+	public void endElement(String uri, String localName, String qName) throws SAXException {
+		if (STATION_ID_ELEMENT.equals(qName)) {
+			stationId = text.toString().trim();
+		} else if (COUNTRY_ELEMENT.equals(qName)) {
+			country = text.toString().trim().intern();
+		} else if (STATION_ELEMENT.equals(qName)) {
+			if ((null != stationId) && (null != country) && (stationId.length() > 0) && (country.length() > 0)) {
+				stationCountries.put(stationId, country);
+			}
+		}
+		text.setLength(0);
+	}
+
+	public void characters(char ch[], int start, int length) throws SAXException {
+		text.append(ch, start, length);
+	}
+}
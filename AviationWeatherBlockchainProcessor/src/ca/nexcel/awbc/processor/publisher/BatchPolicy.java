@@ -0,0 +1,168 @@
+package ca.nexcel.awbc.processor.publisher;
+
+import java.util.logging.Logger;
+
+import ca.nexcel.awbc.processor.common.Utils;
+
+/**
+ * Decides when a batch of stream items is full and should be written to the chain.
+ * <p/>
+ * A batch is full when it reaches either a number of items or a number of
+ * serialized bytes. The number of items can never exceed the chain's
+ * max-std-op-returns-count.
+ * <p/>
+ * When adaptive batching is enabled, the number of items is tuned from the
+ * outcome of each write. A write that completes within the target latency
+ * grows the batch by one item. A slow write shrinks it by a quarter and a
+ * failed write halves it.
+ * <p/>
+ * A linger time may also be set. A batch that is only partly filled is written
+ * once its first item has waited for the linger time, so items do not wait
+ * for a batch to fill up when records arrive slowly.
+ *
+ * @author George Franciscus
+ *
+ */
+public class BatchPolicy {
+
+	private static final Logger LOGGER = Logger.getLogger(BatchPolicy.class.getName());
+
+	private static final int DEFAULT_MAX_BYTES = Integer.MAX_VALUE;
+	private static final int DEFAULT_TARGET_LATENCY_MILLIS = 2000;
+	private static final int DEFAULT_LINGER_MILLIS = 0;
+
+	/**
+	 * The maximum number of items in a batch, the chain's max-std-op-returns-count
+	 */
+	private int maxCount = 1;
+
+	/**
+	 * The maximum number of serialized bytes in a batch
+	 */
+	private int maxBytes = DEFAULT_MAX_BYTES;
+
+	/**
+	 * Is the number of items tuned from the outcome of each write
+	 */
+	private boolean isAdaptive = false;
+
+	/**
+	 * The longest a write should take
+	 */
+	private int targetLatencyMillis = DEFAULT_TARGET_LATENCY_MILLIS;
+
+	/**
+	 * The longest an item waits in a partly filled batch. 0 waits for the batch to fill up.
+	 */
+	private int lingerMillis = DEFAULT_LINGER_MILLIS;
+
+	/**
+	 * The current number of items that makes a batch full
+	 */
+	private volatile int targetCount = 1;
+
+	/**
+	 * Sets the maximum number of items in a batch. Resets the
+	 * current number of items to this maximum.
+	 *
+	 * @param maxCount the chain's max-std-op-returns-count
+	 */
+	public void setMaxCount(int maxCount) {
+		this.maxCount = Math.max(1, maxCount);
+		this.targetCount = this.maxCount;
+	}
+
+	/**
+	 * Sets the maximum number of serialized bytes in a batch
+	 *
+	 * @param bytes the maximum number of serialized bytes. Not set means no limit
+	 */
+	public void setMaxBytes(String bytes) {
+		maxBytes = isSet(bytes) ? Math.max(1, Utils.stringToIntegerConverter(bytes, DEFAULT_MAX_BYTES
+				, "invalid max-batch-bytes property defined. No byte limit applied")) : DEFAULT_MAX_BYTES;
+	}
+
+	/**
+	 * Sets whether the number of items is tuned from the outcome of each write
+	 *
+	 * @param adaptive true to tune the number of items
+	 */
+	public void setAdaptive(String adaptive) {
+		isAdaptive = isSet(adaptive) && Boolean.parseBoolean(adaptive.trim());
+	}
+
+	/**
+	 * Sets the longest a write should take
+	 *
+	 * @param millis the target latency in milliseconds
+	 */
+	public void setTargetLatencyMillis(String millis) {
+		targetLatencyMillis = isSet(millis) ? Utils.stringToIntegerConverter(millis, DEFAULT_TARGET_LATENCY_MILLIS
+				, "invalid target-batch-latency-ms property defined. Defaulted to " + DEFAULT_TARGET_LATENCY_MILLIS) : DEFAULT_TARGET_LATENCY_MILLIS;
+	}
+
+	/**
+	 * Sets the longest an item waits in a partly filled batch
+	 *
+	 * @param millis the linger time in milliseconds. 0 waits for the batch to fill up
+	 */
+	public void setLingerMillis(String millis) {
+		lingerMillis = isSet(millis) ? Math.max(0, Utils.stringToIntegerConverter(millis, DEFAULT_LINGER_MILLIS
+				, "invalid batch-linger-ms property defined. Defaulted to " + DEFAULT_LINGER_MILLIS)) : DEFAULT_LINGER_MILLIS;
+	}
+
+	public int getLingerMillis() {
+		return lingerMillis;
+	}
+
+	public int getTargetCount() {
+		return targetCount;
+	}
+
+	/**
+	 * Determines if an item must go in a new batch.
+	 *
+	 * @param count the number of items in the batch
+	 * @param bytes the number of serialized bytes in the batch
+	 * @param itemBytes the number of serialized bytes of the item to be added
+	 * @return true when the batch must be written before the item is added
+	 */
+	public boolean isFull(int count, int bytes, int itemBytes) {
+		if (0 == count) {
+			return false;
+		}
+		return (count >= targetCount) || (((long) bytes + itemBytes) > maxBytes);
+	}
+
+	/**
+	 * Tunes the number of items from the outcome of a write.
+	 *
+	 * @param count the number of items written
+	 * @param latencyMillis the time the write took
+	 * @param isSuccessful was the write successful
+	 */
+	public synchronized void recordResult(int count, long latencyMillis, boolean isSuccessful) {
+		if (! isAdaptive) {
+			return;
+		}
+
+		int previousCount = targetCount;
+		if (! isSuccessful) {
+			targetCount = Math.max(1, targetCount / 2);
+		} else if (latencyMillis > targetLatencyMillis) {
+			targetCount = Math.max(1, (targetCount * 3) / 4);
+		} else if (count >= targetCount) {
+			//only grow when full batches are fast
+			targetCount = Math.min(maxCount, targetCount + 1);
+		}
+
+		if (targetCount != previousCount) {
+			LOGGER.fine("batch size changed from " + previousCount + " to " + targetCount
+					+ " latencyMillis=" + latencyMillis + " successful=" + isSuccessful);
+		}
+	}
+
+	private static boolean isSet(String value) {
+		return (null != value) && ! value.trim().equals("");
+	}
+}
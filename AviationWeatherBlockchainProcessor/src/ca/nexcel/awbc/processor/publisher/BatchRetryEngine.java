@@ -0,0 +1,315 @@
+package ca.nexcel.awbc.processor.publisher;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+import com.googlecode.jsonrpc4j.JsonRpcClientException;
+
+import ca.nexcel.awbc.processor.common.JsonRpcClient;
+import ca.nexcel.awbc.processor.common.Utils;
+
+/**
+ * Writes a batch to the chain, retrying errors that are expected to clear
+ * up and isolating the records the chain rejects.
+ * <p/>
+ * An error is transient when the batch was not processed by the chain, that
+ * is when the chain could not be reached or refused the request, or when the
+ * node reports a condition of the node rather than of the batch, such as
+ * being in warmup. A transient error is retried after a random delay of up
+ * to the backoff time, which doubles after every attempt up to a maximum.
+ * The random delay keeps sender threads from retrying at the same moment.
+ * When the attempts are used up, the batch is reported as unavailable.
+ * <p/>
+ * When the batch was sent but no response came back, for example when the
+ * connection timed out while the node was processing it, the batch may have
+ * been written. Writing it again could write its records twice, so it is 
+ * neither retried nor split, and is reported as uncertain.
+ * <p/>
+ * Any other error, including an error of the processor itself, means the 
+ * batch is rejected. A rejected batch is
+ * split in two halves, and each half is written on its own, splitting again
+ * until the rejected records are isolated. Good records are therefore still
+ * written, in as few transactions as the rejected records allow, and each
+ * rejected record is reported with the reason given by the node.
+ *
+ * @author George Franciscus
+ *
+ * @param <T> the type of the items in a batch
+ */
+public class BatchRetryEngine<T> {
+
+	private static final Logger LOGGER = Logger.getLogger(BatchRetryEngine.class.getName());
+
+	private static final int DEFAULT_ATTEMPTS = 3;
+	private static final int DEFAULT_BACKOFF_MILLIS = 250;
+	private static final int DEFAULT_MAX_BACKOFF_MILLIS = 5000;
+
+	/**
+	 * The longest reason kept, so that reasons can be counted in the metrics
+	 */
+	private static final int MAX_REASON_LENGTH = 120;
+
+	/**
+	 * Multichain error codes describing the state of the node rather than the batch:
+	 * client not connected, in initial download, insufficient funds, wallet locked and in warmup
+	 */
+	private static final int[] TRANSIENT_ERROR_CODES = {-9, -10, -6, -13, -28};
+
+	/**
+	 * Writes a batch to the chain
+	 */
+	public interface BatchWriter<T> {
+		/**
+		 * @param batch the items to be written in a single raw transaction
+		 * @throws Exception when the batch is not written
+		 */
+		public void write(List<T> batch) throws Exception;
+	}
+
+	/**
+	 * Receives the outcome of every item of a batch
+	 */
+	public interface Outcome<T> {
+		/**
+		 * @param batch items written to the chain
+		 * @param latencyMillis the time the successful write took
+		 */
+		public void written(List<T> batch, long latencyMillis);
+
+		/**
+		 * @param item an item the chain rejected
+		 * @param reason the reason given by the chain
+		 */
+		public void rejected(T item, String reason);
+
+		/**
+		 * @param batch items that could not be written because of a transient error
+		 * @param reason the last error
+		 */
+		public void unavailable(List<T> batch, String reason);
+
+		/**
+		 * @param batch items sent to the chain without an answer, which may or may not have been written
+		 * @param reason the error
+		 */
+		public void uncertain(List<T> batch, String reason);
+	}
+
+	/**
+	 * The number of times a batch is written before it is reported as unavailable
+	 */
+	private int attempts = DEFAULT_ATTEMPTS;
+
+	/**
+	 * The longest delay before the first retry
+	 */
+	private int backoffMillis = DEFAULT_BACKOFF_MILLIS;
+
+	/**
+	 * The longest delay before any retry
+	 */
+	private int maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+
+	/**
+	 * Are rejected batches split to isolate the rejected records
+	 */
+	private boolean isBisecting = true;
+
+	/**
+	 * Sets the number of times a batch is written before it is reported as unavailable
+	 *
+	 * @param attempts the number of attempts, at least 1
+	 */
+	public void setAttempts(String attempts) {
+		this.attempts = isSet(attempts) ? Math.max(1, Utils.stringToIntegerConverter(attempts, DEFAULT_ATTEMPTS
+				, "invalid retry-attempts property defined. Defaulted to " + DEFAULT_ATTEMPTS)) : DEFAULT_ATTEMPTS;
+	}
+
+	/**
+	 * Sets the longest delay before the first retry
+	 *
+	 * @param millis the backoff time in milliseconds
+	 */
+	public void setBackoffMillis(String millis) {
+		backoffMillis = isSet(millis) ? Math.max(0, Utils.stringToIntegerConverter(millis, DEFAULT_BACKOFF_MILLIS
+				, "invalid retry-backoff-ms property defined. Defaulted to " + DEFAULT_BACKOFF_MILLIS)) : DEFAULT_BACKOFF_MILLIS;
+	}
+
+	/**
+	 * Sets the longest delay before any retry
+	 *
+	 * @param millis the maximum backoff time in milliseconds
+	 */
+	public void setMaxBackoffMillis(String millis) {
+		maxBackoffMillis = isSet(millis) ? Math.max(0, Utils.stringToIntegerConverter(millis, DEFAULT_MAX_BACKOFF_MILLIS
+				, "invalid retry-max-backoff-ms property defined. Defaulted to " + DEFAULT_MAX_BACKOFF_MILLIS)) : DEFAULT_MAX_BACKOFF_MILLIS;
+	}
+
+	/**
+	 * Sets whether rejected batches are split to isolate the rejected records
+	 *
+	 * @param bisecting false to report every item of a rejected batch as rejected
+	 */
+	public void setBisecting(String bisecting) {
+		isBisecting = ! isSet(bisecting) || Boolean.parseBoolean(bisecting.trim());
+	}
+
+	/**
+	 * Writes a batch, retrying transient errors and splitting rejected batches.
+	 * An error thrown by the outcome is not retried, and is thrown to the caller.
+	 *
+	 * @param batch the items to be written
+	 * @param writer writes a batch to the chain
+	 * @param outcome receives the outcome of every item
+	 */
+	public void write(List<T> batch, BatchWriter<T> writer, Outcome<T> outcome) {
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		for (int attempt = 1; ; attempt++) {
+			long startMillis = System.currentTimeMillis();
+			try {
+				writer.write(batch);
+			} catch (Exception e) {
+				String reason = reasonOf(e);
+
+				if (isUnanswered(e)) {
+					LOGGER.warning("Batch sent without an answer. It is not written again, as it may have been written."
+							+ " items=" + batch.size() + " reason=" + reason);
+					outcome.uncertain(batch, reason);
+					return;
+				}
+
+				if (! isTransient(e)) {
+					reject(batch, reason, writer, outcome);
+					return;
+				}
+
+				if (attempt >= attempts) {
+					LOGGER.warning("Batch not written after " + attempt + " attempts. items=" + batch.size() + " reason=" + reason);
+					outcome.unavailable(batch, reason);
+					return;
+				}
+
+				if (! sleep(attempt)) {
+					outcome.unavailable(batch, reason);
+					return;
+				}
+				continue;
+			}
+
+			//outside the try, so that an error recording the outcome is not taken for the chain rejecting the batch
+			outcome.written(batch, System.currentTimeMillis() - startMillis);
+			return;
+		}
+	}
+
+	/**
+	 * Splits a rejected batch in two halves and writes each on its own.
+	 * A single rejected item is reported as rejected.
+	 */
+	private void reject(List<T> batch, String reason, BatchWriter<T> writer, Outcome<T> outcome) {
+		if ((batch.size() == 1) || ! isBisecting) {
+			for (T item : batch) {
+				outcome.rejected(item, reason);
+			}
+			return;
+		}
+
+		LOGGER.fine("Batch rejected. Splitting to isolate rejected records. items=" + batch.size() + " reason=" + reason);
+		int middle = batch.size() / 2;
+		write(batch.subList(0, middle), writer, outcome);
+		write(batch.subList(middle, batch.size()), writer, outcome);
+	}
+
+	/**
+	 * Waits a random time of up to the backoff time of an attempt.
+	 *
+	 * @param attempt the attempt that failed, starting at 1
+	 * @return false when interrupted
+	 */
+	private boolean sleep(int attempt) {
+		long ceiling = Math.min(maxBackoffMillis, (long) backoffMillis << Math.min(attempt - 1, 30));
+		if (ceiling <= 0) {
+			return true;
+		}
+
+		try {
+			Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+			return true;
+		} catch (InterruptedException e) {
+			LOGGER.warning("Interrupted waiting to retry a batch");
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Determines if an error is expected to clear up. IO errors, such as a refused 
+	 * connection, are transient, as the batch was not processed. Errors from the node 
+	 * are transient when they describe the state of the node. Any other error is not.
+	 *
+	 * @param e the error
+	 * @return true when writing the same batch again may succeed
+	 */
+	protected boolean isTransient(Throwable e) {
+		JsonRpcClientException rpcException = findRpcException(e);
+		if (null == rpcException) {
+			return e instanceof IOException;
+		}
+
+		for (int code : TRANSIENT_ERROR_CODES) {
+			if (rpcException.getCode() == code) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Describes an error in a short form that can be counted
+	 */
+	private static String reasonOf(Throwable e) {
+		String reason;
+		JsonRpcClientException rpcException = findRpcException(e);
+		if (null != rpcException) {
+			reason = "code " + rpcException.getCode() + ": " + rpcException.getMessage();
+		} else {
+			Throwable cause = e;
+			while ((null != cause.getCause()) && (cause.getCause() != cause)) {
+				cause = cause.getCause();
+			}
+			reason = cause.getClass().getSimpleName() + ((null == cause.getMessage()) ? "" : ": " + cause.getMessage());
+		}
+
+		return (reason.length() > MAX_REASON_LENGTH) ? reason.substring(0, MAX_REASON_LENGTH) : reason;
+	}
+
+	/**
+	 * Determines if a batch was sent without an answer, so that it may have been written
+	 */
+	private static boolean isUnanswered(Throwable e) {
+		for (Throwable cause = e; null != cause; cause = (cause.getCause() == cause) ? null : cause.getCause()) {
+			if (cause instanceof JsonRpcClient.UnansweredException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static JsonRpcClientException findRpcException(Throwable e) {
+		for (Throwable cause = e; null != cause; cause = (cause.getCause() == cause) ? null : cause.getCause()) {
+			if (cause instanceof JsonRpcClientException) {
+				return (JsonRpcClientException) cause;
+			}
+		}
+		return null;
+	}
+
+	private static boolean isSet(String value) {
+		return (null != value) && ! value.trim().equals("");
+	}
+}
@@ -0,0 +1,277 @@
+package ca.nexcel.awbc.processor.publisher;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A durable, append-only file of batches that could not be written to the chain.
+ * <p/>
+ * Each batch is appended as a frame made of a marker, the length of the
+ * payload, a CRC32 checksum of the payload, and the payload itself. The
+ * file is forced to disk after every append. A frame that is incomplete or
+ * does not match its checksum, such as one being written when the process
+ * died, ends the replay.
+ * <p/>
+ * Every item is appended with the format of the payload codec its value was
+ * encoded by, and the fingerprint of every record it holds, several when the
+ * item is a pack.
+ * <p/>
+ * Replay moves the spool aside to a .replay file, reads it sequentially
+ * through a large buffer, and hands every batch back in the order it was
+ * appended. Batches that fail again are appended to the new spool. The
+ * .replay file is deleted once every batch has been handled, that is written,
+ * rejected or appended to the new spool, so a replay interrupted by a crash is
+ * simply repeated on the next run.
+ *
+ * @author George Franciscus
+ *
+ */
+public class BatchSpool {
+
+	private static final Logger LOGGER = Logger.getLogger(BatchSpool.class.getName());
+
+	/**
+	 * Marks the start of every frame
+	 */
+	private static final int FRAME_MARKER = 0x53504F4C;
+
+	/**
+	 * The number of bytes preceding the payload of a frame: marker, length and checksum
+	 */
+	private static final int FRAME_HEADER_BYTES = 4 + 4 + 8;
+
+	/**
+	 * The size of the buffer the spool is read through during replay
+	 */
+	private static final int REPLAY_BUFFER_BYTES = 1024 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Receives the batches of the spool during replay
+	 */
+	public interface BatchHandler {
+		/**
+		 * Handles a batch. The batch must be written, rejected or appended to the spool
+		 * again before this method returns, as the replayed spool is deleted once every
+		 * batch has been handled.
+		 *
+		 * @param batch a batch appended to the spool
+		 */
+		public void handle(List<PublisherMultiChain.Triple> batch);
+	}
+
+	/**
+	 * The spool file
+	 */
+	private File file;
+
+	/**
+	 * The channel batches are appended through. Opened on the first append.
+	 */
+	private FileChannel channel = null;
+
+	/**
+	 * The number of batches appended since the spool was created
+	 */
+	private int appendedCount = 0;
+
+	/**
+	 * @param fileName the name and path of the spool file
+	 */
+	public BatchSpool(String fileName) {
+		this.file = new File(fileName);
+	}
+
+	public int getAppendedCount() {
+		return appendedCount;
+	}
+
+	/**
+	 * Appends a batch to the spool and forces it to disk.
+	 *
+	 * @param batch the batch to be appended
+	 * @throws IOException when the batch cannot be written
+	 */
+	public synchronized void append(List<PublisherMultiChain.Triple> batch) throws IOException {
+		byte[] payload = encode(batch);
+
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+
+		ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + payload.length);
+		frame.putInt(FRAME_MARKER);
+		frame.putInt(payload.length);
+		frame.putLong(crc.getValue());
+		frame.put(payload);
+		frame.flip();
+
+		if (null == channel) {
+			channel = new RandomAccessFile(file, "rw").getChannel();
+			channel.position(channel.size());
+		}
+		while (frame.hasRemaining()) {
+			channel.write(frame);
+		}
+		channel.force(false);
+		appendedCount++;
+	}
+
+	/**
+	 * Hands every batch in the spool to a handler, in the order they were appended,
+	 * and removes them from the spool. A replay left over by an earlier run is
+	 * completed first.
+	 *
+	 * @param handler receives each batch
+	 * @return the number of batches handed to the handler
+	 * @throws IOException when the spool cannot be read
+	 */
+	public int replay(BatchHandler handler) throws IOException {
+		File replayFile = new File(file.getPath() + ".replay");
+
+		int count = 0;
+		if (replayFile.exists()) {
+			count += replay(replayFile, handler);
+		}
+
+		synchronized (this) {
+			close();
+			if (! file.exists() || (file.length() == 0)) {
+				return count;
+			}
+			if (! file.renameTo(replayFile)) {
+				throw new IOException("unable to move spool " + file + " to " + replayFile);
+			}
+		}
+		return count + replay(replayFile, handler);
+	}
+
+	/**
+	 * Closes the spool file. The spool is reopened on the next append.
+	 */
+	public synchronized void close() throws IOException {
+		if (null != channel) {
+			channel.close();
+			channel = null;
+		}
+	}
+
+	private int replay(File replayFile, BatchHandler handler) throws IOException {
+		int count = 0;
+		long position = 0;
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(replayFile), REPLAY_BUFFER_BYTES));
+		try {
+			CRC32 crc = new CRC32();
+			long size = replayFile.length();
+
+			while (size - position >= FRAME_HEADER_BYTES) {
+				int marker = input.readInt();
+				int length = input.readInt();
+				long checksum = input.readLong();
+				if ((marker != FRAME_MARKER) || (length < 0) || (length > size - position - FRAME_HEADER_BYTES)) {
+					LOGGER.warning("Spool " + replayFile + " is incomplete at byte " + position + ". Remaining content discarded");
+					break;
+				}
+
+				byte[] payload = new byte[length];
+				input.readFully(payload);
+				crc.reset();
+				crc.update(payload);
+				if (crc.getValue() != checksum) {
+					LOGGER.warning("Spool " + replayFile + " checksum mismatch at byte " + position + ". Remaining content discarded");
+					break;
+				}
+
+				handler.handle(decode(payload));
+				position += FRAME_HEADER_BYTES + length;
+				count++;
+			}
+		} finally {
+			input.close();
+		}
+
+		if (! replayFile.delete()) {
+			LOGGER.warning("Unable to delete replayed spool " + replayFile);
+		}
+		return count;
+	}
+
+	private static byte[] encode(List<PublisherMultiChain.Triple> batch) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 * batch.size());
+		DataOutputStream output = new DataOutputStream(bytes);
+		output.writeInt(batch.size());
+		for (PublisherMultiChain.Triple item : batch) {
+			writeString(output, item.getStream());
+			output.writeInt(item.getKeys().size());
+			for (String key : item.getKeys()) {
+				writeString(output, key);
+			}
+			writeString(output, item.getValue());
+			writeString(output, item.getFormat());
+			output.writeInt(item.getRecords().size());
+			for (PublisherMultiChain.Triple record : item.getRecords()) {
+				output.writeLong(record.getFingerprint());
+			}
+		}
+		output.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param payload the payload of a frame
+	 * @return the batch
+	 */
+	private static List<PublisherMultiChain.Triple> decode(byte[] payload) {
+		ByteBuffer input = ByteBuffer.wrap(payload);
+		int itemCount = input.getInt();
+		List<PublisherMultiChain.Triple> batch = new ArrayList<PublisherMultiChain.Triple>(itemCount);
+		for (int i = 0; i < itemCount; i++) {
+			String stream = readString(input);
+			int keyCount = input.getInt();
+			List<String> keys = new ArrayList<String>(keyCount);
+			for (int k = 0; k < keyCount; k++) {
+				keys.add(readString(input));
+			}
+			String value = readString(input);
+			String format = readString(input);
+			int recordCount = input.getInt();
+			if (recordCount == 1) {
+				batch.add(new PublisherMultiChain.Triple(stream, keys, value, format, input.getLong()));
+				continue;
+			}
+			
+			//the records of a pack, for the fingerprints and counts kept once the pack is written
+			List<PublisherMultiChain.Triple> records = new ArrayList<PublisherMultiChain.Triple>(recordCount);
+			for (int r = 0; r < recordCount; r++) {
+				records.add(new PublisherMultiChain.Triple(stream, keys, "", format, input.getLong()));
+			}
+			batch.add(new PublisherMultiChain.Triple(stream, keys, value, format, records));
+		}
+		return batch;
+	}
+
+	private static void writeString(DataOutputStream output, String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	private static String readString(ByteBuffer input) {
+		byte[] bytes = new byte[input.getInt()];
+		input.get(bytes);
+		return new String(bytes, UTF8);
+	}
+}
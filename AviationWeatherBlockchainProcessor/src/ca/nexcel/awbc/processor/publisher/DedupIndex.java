@@ -0,0 +1,270 @@
+package ca.nexcel.awbc.processor.publisher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+/**
+ * A persistent index of the METARs already written to the chain, used to
+ * skip METARs that are fetched again by overlapping runs.
+ * <p/>
+ * Each METAR is identified by a 64 bit fingerprint of its station identifier,
+ * observation time and raw text. Fingerprints are kept in a memory-mapped,
+ * open-addressing hash table with linear probing. Every slot holds a
+ * fingerprint and the time it expires, 16 bytes in all. A fingerprint of 0
+ * marks an empty slot.
+ * <p/>
+ * Expired fingerprints are not found, and their slots are reused by new
+ * fingerprints. When too many slots are in use, the table is compacted by
+ * reinserting only the fingerprints that have not expired. The size of the
+ * file is therefore fixed by its capacity.
+ *
+ * @author George Franciscus
+ *
+ */
+public class DedupIndex {
+
+	private static final Logger LOGGER = Logger.getLogger(DedupIndex.class.getName());
+
+	/**
+	 * Identifies the file as a dedup index
+	 */
+	private static final long FILE_MARKER = 0x4157424344445550L;
+
+	/**
+	 * The number of bytes before the first slot: marker, capacity and padding
+	 */
+	private static final int HEADER_BYTES = 64;
+
+	/**
+	 * The number of bytes in a slot: fingerprint and expiry time
+	 */
+	private static final int SLOT_BYTES = 16;
+
+	/**
+	 * The fraction of slots in use, expired or not, that triggers a compaction
+	 */
+	private static final double MAX_LOAD = 0.75;
+
+	/**
+	 * The largest number of slots, keeping the mapping under 2GB
+	 */
+	private static final int MAX_CAPACITY = 1 << 26;
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * The table
+	 */
+	private MappedByteBuffer table;
+
+	/**
+	 * The number of slots, a power of two
+	 */
+	private int capacity;
+
+	/**
+	 * Mask used to map a fingerprint to a slot
+	 */
+	private int mask;
+
+	/**
+	 * The number of slots that are not empty, including expired fingerprints
+	 */
+	private int usedSlots = 0;
+
+	/**
+	 * How long a fingerprint is kept
+	 */
+	private long expiryMillis;
+
+	/**
+	 * Opens the index, creating it when it does not exist.
+	 *
+	 * @param fileName the name and path of the index file
+	 * @param capacity the number of slots when the index is created, rounded up to a power of two
+	 * @param expiryMillis how long a fingerprint is kept
+	 * @throws IOException when the index cannot be opened
+	 */
+	public DedupIndex(String fileName, int capacity, long expiryMillis) throws IOException {
+		this.expiryMillis = expiryMillis;
+
+		File file = new File(fileName);
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			if (randomAccessFile.length() >= HEADER_BYTES) {
+				randomAccessFile.seek(0);
+				if (randomAccessFile.readLong() != FILE_MARKER) {
+					throw new IOException(fileName + " is not a dedup index");
+				}
+				this.capacity = randomAccessFile.readInt();
+			} else {
+				this.capacity = Integer.highestOneBit(Math.max(2, Math.min(capacity, MAX_CAPACITY) - 1)) << 1;
+				randomAccessFile.setLength(HEADER_BYTES + ((long) this.capacity * SLOT_BYTES));
+				randomAccessFile.seek(0);
+				randomAccessFile.writeLong(FILE_MARKER);
+				randomAccessFile.writeInt(this.capacity);
+			}
+
+			mask = this.capacity - 1;
+			table = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + ((long) this.capacity * SLOT_BYTES));
+		} finally {
+			//the mapping remains valid once the file is closed
+			randomAccessFile.close();
+		}
+
+		for (int slot = 0; slot < this.capacity; slot++) {
+			if (fingerprintAt(slot) != 0) {
+				usedSlots++;
+			}
+		}
+		LOGGER.info("dedup index opened. file=" + fileName + " capacity=" + this.capacity + " usedSlots=" + usedSlots);
+	}
+
+	/**
+	 * Computes the fingerprint of a METAR
+	 *
+	 * @param stationId the station identifier
+	 * @param observationTime the observation time
+	 * @param rawText the raw text
+	 * @return the fingerprint, never 0
+	 */
+	public static long fingerprint(String stationId, String observationTime, String rawText) {
+		long hash = FNV_OFFSET_BASIS;
+		hash = hash(hash, stationId);
+		hash = hash(hash, observationTime);
+		hash = hash(hash, rawText);
+		return (hash == 0) ? 1 : hash;
+	}
+
+	/**
+	 * Determines if a fingerprint is in the index and has not expired
+	 *
+	 * @param fingerprint the fingerprint of a METAR
+	 * @return true when the METAR was already written
+	 */
+	public synchronized boolean contains(long fingerprint) {
+		long now = System.currentTimeMillis();
+		int slot = slotOf(fingerprint);
+		for (int probes = 0; probes < capacity; probes++) {
+			long stored = fingerprintAt(slot);
+			if (stored == 0) {
+				return false;
+			}
+			if ((stored == fingerprint) && (expiresAt(slot) > now)) {
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds a fingerprint to the index, or extends its expiry time when already present
+	 *
+	 * @param fingerprint the fingerprint of a METAR written to the chain
+	 */
+	public synchronized void add(long fingerprint) {
+		long now = System.currentTimeMillis();
+		if (usedSlots + 1 > capacity * MAX_LOAD) {
+			compact(now);
+			if (usedSlots + 1 > capacity * MAX_LOAD) {
+				LOGGER.warning("dedup index is full. Increase its capacity. capacity=" + capacity);
+				return;
+			}
+		}
+
+		int reusableSlot = -1;
+		int slot = slotOf(fingerprint);
+		for (int probes = 0; probes < capacity; probes++) {
+			long stored = fingerprintAt(slot);
+			if (stored == fingerprint) {
+				table.putLong(offsetOf(slot) + 8, now + expiryMillis);
+				return;
+			}
+			if (stored == 0) {
+				break;
+			}
+			if ((reusableSlot < 0) && (expiresAt(slot) <= now)) {
+				reusableSlot = slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		if (reusableSlot < 0) {
+			reusableSlot = slot;
+			usedSlots++;
+		}
+		table.putLong(offsetOf(reusableSlot), fingerprint);
+		table.putLong(offsetOf(reusableSlot) + 8, now + expiryMillis);
+	}
+
+	/**
+	 * Writes any changes to disk
+	 */
+	public synchronized void force() {
+		table.force();
+	}
+
+	/**
+	 * Rebuilds the table with only the fingerprints that have not expired
+	 */
+	private void compact(long now) {
+		long[] fingerprints = new long[usedSlots];
+		long[] expiries = new long[usedSlots];
+		int live = 0;
+		for (int slot = 0; slot < capacity; slot++) {
+			long stored = fingerprintAt(slot);
+			if ((stored != 0) && (expiresAt(slot) > now)) {
+				fingerprints[live] = stored;
+				expiries[live] = expiresAt(slot);
+				live++;
+			}
+			table.putLong(offsetOf(slot), 0);
+			table.putLong(offsetOf(slot) + 8, 0);
+		}
+
+		for (int i = 0; i < live; i++) {
+			int slot = slotOf(fingerprints[i]);
+			while (fingerprintAt(slot) != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table.putLong(offsetOf(slot), fingerprints[i]);
+			table.putLong(offsetOf(slot) + 8, expiries[i]);
+		}
+		LOGGER.fine("dedup index compacted. before=" + usedSlots + " after=" + live);
+		usedSlots = live;
+	}
+
+	private int slotOf(long fingerprint) {
+		return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+	}
+
+	private int offsetOf(int slot) {
+		return HEADER_BYTES + (slot * SLOT_BYTES);
+	}
+
+	private long fingerprintAt(int slot) {
+		return table.getLong(offsetOf(slot));
+	}
+
+	private long expiresAt(int slot) {
+		return table.getLong(offsetOf(slot) + 8);
+	}
+
+	private static long hash(long hash, String value) {
+		if (null != value) {
+			for (int i = 0; i < value.length(); i++) {
+				char ch = value.charAt(i);
+				hash = (hash ^ (ch & 0xff)) * FNV_PRIME;
+				hash = (hash ^ (ch >>> 8)) * FNV_PRIME;
+			}
+		}
+		//separate the values so that "AB"+"C" differs from "A"+"BC"
+		return (hash ^ 0xff) * FNV_PRIME;
+	}
+}
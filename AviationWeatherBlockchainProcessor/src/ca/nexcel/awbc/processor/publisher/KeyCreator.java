@@ -1,19 +1,29 @@
-package ca.nexcel.awbc.processor.publisher;
-
-import java.util.List;
-
-/**
- * 
- * A interface supporting the key creation implementations
- * @author George Franciscus
- *
- */
-public interface KeyCreator {
-	/**
-	 * 
-	 * Create a key
-	 * @param data data available to create a key
-	 * @return a key
-	 */
-	public List <String>  createKey(String data);
-}
+package ca.nexcel.awbc.processor.publisher;
+
+import java.util.List;
+
+import ca.nexcel.awbc.processor.model.MetarRecord;
+
+/**
+ * 
+ * A interface supporting the key creation implementations
+ * @author George Franciscus
+ *
+ */
+public interface KeyCreator {
+	/**
+	 * 
+	 * Create a key
+	 * @param data data available to create a key
+	 * @return a key
+	 */
+	public List <String>  createKey(String data);
+	
+	/**
+	 * 
+	 * Create a key from a typed record
+	 * @param record the record available to create a key
+	 * @return a key
+	 */
+	public List <String>  createKey(MetarRecord record);
+}
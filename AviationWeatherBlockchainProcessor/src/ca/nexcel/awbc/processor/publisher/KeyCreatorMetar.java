@@ -1,38 +1,65 @@
-package ca.nexcel.awbc.processor.publisher;
-
-import java.util.ArrayList;
-import java.util.List;
-import java.util.logging.Logger;
-
-import ca.nexcel.awbc.processor.common.Utils;
-
-
-/**
- * The key creator used for Metars. This key creator
- * keys on station identifier and observation date (CCYYMMDD)
- * 
- * @author George Franciscus
- *
- */
-
-public class KeyCreatorMetar implements KeyCreator {
-	
-	private static final Logger LOGGER = Logger.getLogger( KeyCreatorMetar.class.getName());
-	
-	
-	/* (non-Javadoc)
-	 * @see KeyCreator#createKey(java.lang.String)
-	 */
-	public List <String> createKey(String json) {
-		List <String> keys = new ArrayList<String>();
-		
-		keys.add(Utils.getValueFromJSON("station_id", json).trim());
-		
-		String observationDate = Utils.getValueFromJSON("observation_time", json);
-		if (observationDate.trim().length() >= 10) {
-			keys.add(observationDate.trim().substring(0, 10).replaceAll("-", ""));
-		}
-		
-		return keys;
-	}
-}
+package ca.nexcel.awbc.processor.publisher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.model.MetarRecord;
+
+
+/**
+ * The key creator used for Metars. This key creator
+ * keys on station identifier and observation date (CCYYMMDD)
+ * 
+ * @author George Franciscus
+ *
+ */
+
+public class KeyCreatorMetar implements KeyCreator {
+	
+	private static final Logger LOGGER = Logger.getLogger( KeyCreatorMetar.class.getName());
+	
+	
+	/* (non-Javadoc)
+	 * @see KeyCreator#createKey(java.lang.String)
+	 */
+	public List <String> createKey(String json) {
+		return createKey(Utils.getValueFromJSON("station_id", json)
+				, Utils.getValueFromJSON("observation_time", json));
+	}
+	
+	/* (non-Javadoc)
+	 * @see KeyCreator#createKey(ca.nexcel.awbc.processor.model.MetarRecord)
+	 */
+	public List <String> createKey(MetarRecord record) {
+		return createKey(record.getStationId(), record.getObservationTime());
+	}
+	
+	/**
+	 * Creates the station identifier and observation date (CCYYMMDD) keys
+	 * 
+	 * @param stationId the station identifier
+	 * @param observationTime the observation time, CCYY-MM-DDTHH:MM:SSZ
+	 * @return the keys
+	 */
+	private List <String> createKey(String stationId, String observationTime) {
+		List <String> keys = new ArrayList<String>(2);
+		
+		keys.add(stationId.trim());
+		
+		String observationDate = observationTime.trim();
+		if (observationDate.length() >= 10) {
+			StringBuilder date = new StringBuilder(8);
+			for (int i = 0; i < 10; i++) {
+				char ch = observationDate.charAt(i);
+				if (ch != '-') {
+					date.append(ch);
+				}
+			}
+			keys.add(date.toString());
+		}
+		
+		return keys;
+	}
+}
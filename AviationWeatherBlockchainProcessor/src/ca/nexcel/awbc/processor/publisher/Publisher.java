@@ -1,47 +1,68 @@
-package ca.nexcel.awbc.processor.publisher;
-
-import java.util.List;
-import java.util.Map;
-
-import ca.nexcel.awbc.processor.model.Metric;
-
-
-/**
- * 
- * Publish data. The implementation class of this interface
- * may publish to the console, a blockchain, or theoretically
- * anything.
- * 
- * @author George Franciscus
- */
-public interface Publisher {
-	
-	/**
-	 * Performs any initializing activities. Must be called before publish.
-	 */
-	public void initialize();
-	
-	/**
-	 * Publish data
-	 * 
-	 * @param namespace a classification of the key-value pair
-	 * @param key the publication key. See implementation class for guidance on uniqueness.
-	 * @param value The data to be published
-	 * 
-	 * @return true for success and false for failure
-	 */
-	public boolean publish (String namespace, List<String> keys, String value);
-	
-	/**
-	 * Performs any finalizing activities.
-	 */
-	public void finalize();
-	
-	/**
-	 * Obtains publishing metrics
-	 * 
-	 * @return publishing metrics
-	 */
-	public Map<String, Metric> getMetrics();
-
-}
+package ca.nexcel.awbc.processor.publisher;
+
+import java.util.List;
+import java.util.Map;
+
+import ca.nexcel.awbc.processor.model.MetarRecord;
+import ca.nexcel.awbc.processor.model.Metric;
+
+
+/**
+ * 
+ * Publish data. The implementation class of this interface
+ * may publish to the console, a blockchain, or theoretically
+ * anything.
+ * <p/>
+ * Countries may be parsed concurrently, so implementations
+ * must allow publish to be called from several threads.
+ * <p/>
+ * A resident processor initializes and finalizes the same publisher
+ * once per run, so state that is expensive to obtain may be kept 
+ * between runs. Metrics are cleared by initialize.
+ * 
+ * @author George Franciscus
+ */
+public interface Publisher {
+	
+	/**
+	 * Performs any initializing activities. Must be called before publish.
+	 */
+	public void initialize();
+	
+	/**
+	 * Publish data
+	 * 
+	 * @param namespace a classification of the key-value pair
+	 * @param key the publication key. See implementation class for guidance on uniqueness.
+	 * @param value The data to be published
+	 * 
+	 * @return true for success and false for failure
+	 */
+	public boolean publish (String namespace, List<String> keys, String value);
+	
+	/**
+	 * Publish a typed record. The record is reused by the caller once
+	 * this method returns, so it must not be retained.
+	 * 
+	 * @param namespace a classification of the key-value pair
+	 * @param key the publication key. See implementation class for guidance on uniqueness.
+	 * @param record The record to be published
+	 * 
+	 * @return true for success and false for failure
+	 */
+	public boolean publish (String namespace, List<String> keys, MetarRecord record);
+	
+	/**
+	 * Performs any finalizing activities. Everything published is written 
+	 * out before this method returns.
+	 */
+	public void finalize();
+	
+	/**
+	 * Obtains publishing metrics
+	 * 
+	 * @return publishing metrics
+	 */
+	public Map<String, Metric> getMetrics();
+
+}
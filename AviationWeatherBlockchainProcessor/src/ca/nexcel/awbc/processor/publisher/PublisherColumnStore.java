@@ -0,0 +1,93 @@
+package ca.nexcel.awbc.processor.publisher;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import ca.nexcel.awbc.processor.model.MetarRecord;
+import ca.nexcel.awbc.processor.model.Metric;
+import ca.nexcel.awbc.processor.store.ColumnStore;
+
+/**
+ * An implementation of Publisher that appends the fields of every record
+ * to a ColumnStore, for analytics, and hands the record to another publisher.
+ * <p/>
+ * Only typed records are stored. Records are stored as they are parsed,
+ * whether or not the other publisher writes them to the chain. A record that
+ * cannot be stored is still handed to the other publisher.
+ *
+ * @author George Franciscus
+ *
+ */
+public class PublisherColumnStore implements Publisher {
+
+	private static final Logger LOGGER = Logger.getLogger(PublisherColumnStore.class.getName());
+
+	/**
+	 * The publisher records are handed to once stored
+	 */
+	private Publisher publisher;
+
+	private ColumnStore columnStore;
+
+	/**
+	 * Whether a failure to store a record was logged during this run, so that it is logged once
+	 */
+	private volatile boolean isFailureLogged = false;
+
+	/**
+	 * Sets the publisher records are handed to once stored
+	 *
+	 * @param publisher the publisher records are handed to once stored
+	 */
+	public void setPublisher(Publisher publisher) {
+		this.publisher = publisher;
+	}
+
+	public void setColumnStore(ColumnStore columnStore) {
+		this.columnStore = columnStore;
+	}
+
+	public void initialize() {
+		isFailureLogged = false;
+		publisher.initialize();
+	}
+
+	/**
+	 * Hands a value to the other publisher. The value is not stored, as it is not typed.
+	 */
+	public boolean publish(String namespace, List<String> keys, String value) {
+		return publisher.publish(namespace, keys, value);
+	}
+
+	/**
+	 * Stores a record and hands it to the other publisher
+	 *
+	 * @param namespace the stream of the record
+	 * @param keys the keys used to index the record
+	 * @param record the record
+	 */
+	public boolean publish(String namespace, List<String> keys, MetarRecord record) {
+		try {
+			columnStore.append(namespace, record);
+		} catch (IOException e) {
+			if (! isFailureLogged) {
+				isFailureLogged = true;
+				LOGGER.severe("Unable to store records in the column store. Records are still published. " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+		return publisher.publish(namespace, keys, record);
+	}
+
+	public void finalize() {
+		publisher.finalize();
+		columnStore.force();
+	}
+
+	@Override
+	public Map<String, Metric> getMetrics() {
+		return publisher.getMetrics();
+	}
+}
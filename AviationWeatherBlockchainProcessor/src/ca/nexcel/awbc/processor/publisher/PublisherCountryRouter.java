@@ -0,0 +1,147 @@
+package ca.nexcel.awbc.processor.publisher;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.model.MetarRecord;
+import ca.nexcel.awbc.processor.model.Metric;
+
+/**
+ * An implementation of Publisher that routes each record to the
+ * stream of the country its station is located in, and hands it
+ * to another publisher.
+ * <p/>
+ * Records obtained in a single bulk request are not classified by
+ * country. This publisher looks up the station_id of each record in a
+ * station to country lookup table and replaces the namespace with the
+ * country code. Records of stations that are unknown, or located in a
+ * country that is not configured, are discarded and counted as failures
+ * under the UNROUTED key.
+ *
+ * @author George Franciscus
+ *
+ */
+public class PublisherCountryRouter implements Publisher {
+
+	/**
+	 * The metrics key used to count records that could not be routed to a country
+	 */
+	public static final String UNROUTED = "unrouted";
+
+	private static final Logger LOGGER = Logger.getLogger(PublisherCountryRouter.class.getName());
+
+	/**
+	 * The publisher records are handed to once routed
+	 */
+	private Publisher publisher;
+
+	/**
+	 * The station identifier to country code lookup table
+	 */
+	private Map<String, String> stationCountries = new HashMap<String, String>();
+
+	/**
+	 * The countries records may be routed to
+	 */
+	private Set<String> countries = new HashSet<String>();
+
+	/**
+	 * Metrics of the records that could not be routed
+	 */
+	private Map<String, Metric> metrics = new HashMap<String, Metric>();
+
+	/**
+	 * Sets the publisher records are handed to once routed
+	 *
+	 * @param publisher the publisher records are handed to once routed
+	 */
+	public void setPublisher(Publisher publisher) {
+		this.publisher = publisher;
+	}
+
+	/**
+	 * Sets the station identifier to country code lookup table
+	 *
+	 * @param stationCountries the station identifier to country code lookup table
+	 */
+	public void setStationCountries(Map<String, String> stationCountries) {
+		this.stationCountries = stationCountries;
+	}
+
+	/**
+	 * Sets the countries records may be routed to
+	 *
+	 * @param countries the list of country codes
+	 */
+	public void setCountries(List<String> countries) {
+		this.countries = new HashSet<String>(countries);
+	}
+
+	public void initialize() {
+		metrics = new HashMap<String, Metric>();
+		publisher.initialize();
+	}
+
+	/**
+	 * Publishes a value to the stream of the country the station is located in.
+	 * The namespace is ignored.
+	 *
+	 * @param namespace ignored, the namespace is derived from the station
+	 * @param keys the keys used to index the value
+	 * @param value the value to be published
+	 */
+	public boolean publish(String namespace, List<String> keys, String value) {
+		String country = route(Utils.getValueFromJSON("station_id", value), keys);
+		return (null != country) && publisher.publish(country, keys, value);
+	}
+
+	/**
+	 * Publishes a record to the stream of the country the station is located in.
+	 * The namespace is ignored.
+	 *
+	 * @param namespace ignored, the namespace is derived from the station
+	 * @param keys the keys used to index the value
+	 * @param record the record to be published
+	 */
+	public boolean publish(String namespace, List<String> keys, MetarRecord record) {
+		String country = route(record.getStationId(), keys);
+		return (null != country) && publisher.publish(country, keys, record);
+	}
+
+	/**
+	 * Finds the country a station is located in
+	 *
+	 * @param stationId the station identifier
+	 * @param keys the keys of the record, used for logging
+	 * @return the country code, or null when the record cannot be routed
+	 */
+	private String route(String stationId, List<String> keys) {
+		String country = (null == stationId) ? null : stationCountries.get(stationId.trim());
+
+		if ((null == country) || ! countries.contains(country)) {
+			LOGGER.fine("Record discarded. Station " + stationId + " is not located in a configured country. keys=" + keys.toString());
+			synchronized (this) {
+				Utils.addToMap(metrics, UNROUTED, 0, 1, 1);
+			}
+			return null;
+		}
+		return country;
+	}
+
+	public void finalize() {
+		publisher.finalize();
+	}
+
+	@Override
+	public synchronized Map<String, Metric> getMetrics() {
+		Map<String, Metric> allMetrics = new HashMap<String, Metric>(publisher.getMetrics());
+		allMetrics.putAll(metrics);
+		return allMetrics;
+	}
+
+}
@@ -1,275 +1,1307 @@
-package ca.nexcel.awbc.processor.publisher;
-
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.logging.Logger;
-
-import ca.nexcel.awbc.processor.common.JSONUtil;
-import ca.nexcel.awbc.processor.common.JsonRpcClient;
-import ca.nexcel.awbc.processor.common.Utils;
-import ca.nexcel.awbc.processor.model.Metric;
-
-/**
- * An implementation of Publisher that write data to the 
- * MultiChain Blockchain stream
- * @author George Franciscus
- *
- */
-public class PublisherMultiChain implements Publisher {
-	/**
-	 * The default number of transactions to package in a block. The 
-	 * value 10 was chosen because that is the default value configured
-	 * in the multichain params.dat file.
-	 */
-	private static final int DEFAULT_MAX_STD_OP_RETURNS_COUNT = 10;
-	
-	/**
-	 * Multichain command to obtain streams
-	 */
-	private static final String LISTSTREAMS = "liststreams";
-
-
-	private static final Logger LOGGER = Logger.getLogger(PublisherMultiChain.class.getName());
-	
-	
-	/**
-	 * Publishing metrics
-	 */
-	private Map<String, Metric> metrics = new HashMap<String, Metric>(); 
-	
-	/**
-	 * The queue used to store transactions until they are used to write to a block
-	 */
-	private List<Triple> queue = new ArrayList<Triple>();
-	
-	/**
-	 * The address used to write the raw transaction to the chain
-	 */
-	private String fromAddress;
-	
-	/**
-	 * The value of the multichain property maxStdOpReturnsCount. Used
-	 * to specify how many transactions participate in a raw transaction. 
-	 */
-	private int maxStdOpReturnsCount = DEFAULT_MAX_STD_OP_RETURNS_COUNT;
-	
-	
-	/**
-	 * A list of a streams (except root) available in the chain
-	 */
-	private List<String> streams = new ArrayList<String>();
-	
-	
-	/**
-	 * Sets the multichain maxStdOpReturnsCount property 
-	 * 
-	 * @param count the multichain maxStdOpReturnsCount property 
-	 */
-	public void setMaxStdOpReturnsCount(String count) {
-		if ((null == count) || count.trim().equals("")) {
-			LOGGER.warning("No max_std_op_returns_count property defined. Defaulted to " + DEFAULT_MAX_STD_OP_RETURNS_COUNT);
-			maxStdOpReturnsCount = DEFAULT_MAX_STD_OP_RETURNS_COUNT;
-			return; 
-		} 
-		
-		maxStdOpReturnsCount = Utils.stringToIntegerConverter(count, DEFAULT_MAX_STD_OP_RETURNS_COUNT
-				, "invalid max_std_op_returns_count property defined. Defaulted to " + DEFAULT_MAX_STD_OP_RETURNS_COUNT);
-	}
-
-	/**
-	 * Sets the address used to write the raw transaction to the chain
-	 * 
-	 * @param fromAddress the address used to write the raw transaction to the chain 
-	 */
-	public void setFromAddress(String fromAddress) {
-		this.fromAddress = fromAddress;
-	}
-
-
-	/**
-	 * JSON RPC client
-	 */
-	private JsonRpcClient jsonRpcClient;
-	
-	/**
-	 * Stores an instance of the RPC Client
-	 * 
-	 * @param jsonRpcClient
-	 */
-	public void setJsonRpcClient(JsonRpcClient jsonRpcClient) {
-		this.jsonRpcClient = jsonRpcClient;
-	}
-
-	public void initialize() {
-		metrics = new HashMap<String, Metric>();
-		streams = obtainStreams();
-	}
-	
-	/**
-	 * Publishes a value to a Multichain stream. 
-	 * This method collects and stores publication 
-	 * requests in a queue. When the queue is reaches 
-	 * the limit, it writes all of the publication
-	 * requests at once. This allows several publication 
-	 * requests to be bundled in a single block as a means
-	 * to reduce the the size of the chain.
-	 * 
-	 * 
-	 * @param stream the blockchain stream name
-	 * @param keys the keys used to index the value in the chain.
-	 * @param value the value to be written to the chain
-	 */
-	public boolean publish(String stream, List<String> keys, String value) {
-		if ( ! streams.contains(stream)) {
-			LOGGER.severe("Record discarded. Stream " + stream + " does not exist in the chain. keys="+ keys.toString() + " value="+value);
-			return false;
-		}
-		
-		
-		
-		//publish when the queue is full
-		if (queue.size() >= maxStdOpReturnsCount) {
-			flush();
-			queue = new ArrayList<Triple>(); //clear the queue
-		}
-		
-		String rawText = Utils.getValueFromJSON("raw_text", value);
-		String escapedRawText = JSONUtil.escape(rawText);
-		
-		queue.add(new Triple(stream, keys, escapedRawText));
-		return true;
-	}
-	
-	public void finalize() {
-		/* 
-		 * The queue may contain data, so flush
-		 * out anything not yet published
-		 */
-		flush();
-	}
-	
-	/**
-	 * Writes out all transactions stored in the queue 
-	 */
-	private void flush() {
-		if (queue.size() == 0) {
-			return;
-		}
-		
-		List transactions = new ArrayList();
-		Iterator<Triple> queueIterator = queue.iterator();
-		while (queueIterator.hasNext()) {
-			transactions.add(createTransaction(queueIterator.next()));
-		}	
-		
-		boolean flushSuccessful = false;
-		try {
-			jsonRpcClient.invokeRaw(fromAddress, transactions);
-			flushSuccessful = true;
-		} catch (Exception ex) {
-			LOGGER.severe("Unable to execute Multichain blockchain command"
-					+ " fromAddress=" + fromAddress
-					+ " transactions=" + transactions.toString());
-		}
-		
-		/* Since all transactions are written to the same block
-		 * They will either succeed or fail together
-		 */
-		
-		int successCount = 0;
-		int failureCount = 0;
-		if (flushSuccessful) {
-			successCount = 1;
-			failureCount = 0;
-		} else {
-			successCount = 0;
-			failureCount = 1;
-		}
-		
-		queueIterator = queue.iterator();
-		while (queueIterator.hasNext()) {
-			Triple item = queueIterator.next();
-			Utils.addToMap(metrics, item.getStream(), successCount, failureCount, 1);
-		}
-	}
-	
-	/**
-	 * Creates a transaction from an item
-	 * 
-	 * @param item contains data to create the transaction
-	 * @return A transaction to be written out
-	 */
-	private Map createTransaction(Triple item) {
-    	Map transaction = new LinkedHashMap<>();
-    	transaction.put("for", item.getStream());
-    	transaction.put("keys",item.getKeys());
-    	
-    	Map data = new HashMap();
-    	data.put("text", item.getValue());
-    	transaction.put("data",data);
-        	
-        return transaction;
-	}
-	
-	
-	/**
-	 * A convenience class used to group
-	 * a stream, a list of keys and a value.
-	 * 
-	 * @author George Franciscus
-	 *
-	 */
-	private class Triple {
-		private String stream;
-		private List<String> keys;
-		private String value;
-		
-		
-		public Triple (String stream, List<String> keys, String value) {
-			this.stream = stream;
-			this.keys = keys;
-			this.value = value;
-		}
-		
-		public String getStream() {
-			return stream;
-		}
-
-
-		public List<String> getKeys() {
-			return keys;
-		}
-
-
-		public String getValue() {
-			return value;
-		}
-	}
-
-
-	@Override
-	public Map<String, Metric> getMetrics() {
-		return metrics;
-	}
-	
-	
-	/**
-	 * Obtains a list of all streams
-	 * 
-	 * @return
-	 */
-	private List<String> obtainStreams() {
-		Object[] obs = new Object[]{};
-		String returnValue = jsonRpcClient.invoke(LISTSTREAMS, obs);
-		List<String> streamNames = Utils.extractTextFromJSon(returnValue, "name");
-		streamNames.remove("root"); //remove default stream
-		return streamNames;
-	}
-
-
-}
+package ca.nexcel.awbc.processor.publisher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import ca.nexcel.awbc.processor.common.JsonRpcBatcher;
+import ca.nexcel.awbc.processor.common.JsonRpcClient;
+import ca.nexcel.awbc.processor.common.JsonWriter;
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.metrics.MetricsRegistry;
+import ca.nexcel.awbc.processor.model.MetarRecord;
+import ca.nexcel.awbc.processor.model.Metric;
+import ca.nexcel.awbc.processor.payload.PayloadCodec;
+import ca.nexcel.awbc.processor.payload.PayloadCodecBinary;
+import ca.nexcel.awbc.processor.payload.PayloadCodecJson;
+import ca.nexcel.awbc.processor.payload.PayloadPack;
+import ca.nexcel.awbc.processor.query.MetarIndex;
+
+/**
+ * An implementation of Publisher that write data to the 
+ * MultiChain Blockchain stream
+ * <p/>
+ * By default a full batch is written to the chain by the thread
+ * calling publish. When sender threads are configured, full batches 
+ * are placed in a bounded queue instead and written by the sender threads,
+ * allowing several batches to be in flight while parsing continues. When
+ * the queue of batches is full, publish waits until a sender thread 
+ * takes a batch, slowing the parser down to the pace of the chain.
+ * <p/>
+ * When a batch is full is decided by a BatchPolicy, which caps batches
+ * by number of items and serialized bytes, and may tune the number of 
+ * items from the latency of each write.
+ * <p/>
+ * Batches are written through a BatchRetryEngine, which retries transient 
+ * errors and splits rejected batches so that only the rejected records fail.
+ * <p/>
+ * When a spool file is configured, batches that cannot be written are 
+ * appended to the spool, and replayed the next time the publisher is initialized.
+ * <p/>
+ * When a dedup index is configured, records already written to the chain by an 
+ * earlier run are skipped and counted as duplicates.
+ * <p/>
+ * Streams are looked up in a StreamRegistry. When configured, streams missing
+ * from the chain are created rather than their records discarded.
+ * <p/>
+ * When RPC batching is configured, the batches written at the same time by
+ * the sender threads are sent together in a single JSON RPC batch request.
+ * Each batch still gets its own outcome, so retries work the same way.
+ * <p/>
+ * When the JSON RPC client is given several nodes, batches are spread across
+ * them, and a retry is sent to another node when the node of the failed write
+ * is unhealthy.
+ * <p/>
+ * When a METAR index is configured, every record written to the chain is added
+ * to the index, so that it can be queried without reading the chain.
+ * <p/>
+ * The raw text of a record is encoded into the data of its stream item by a
+ * PayloadCodec, as JSON text by default. The format is kept with every queued
+ * item, so that spooled items are written the way they were encoded.
+ * <p/>
+ * When packing is configured, the observations of a station, or of a group of
+ * stations, within a window of time are written in a single item, a PayloadPack,
+ * rather than an item each. The item has the keys of every observation packed.
+ * A pack is written out when it is full, when too many packs are being filled,
+ * and when the publisher is finalized.
+ *
+ * @author George Franciscus
+ *
+ */
+public class PublisherMultiChain implements Publisher {
+	/**
+	 * The default number of transactions to package in a block. The 
+	 * value 10 was chosen because that is the default value configured
+	 * in the multichain params.dat file.
+	 */
+	private static final int DEFAULT_MAX_STD_OP_RETURNS_COUNT = 10;
+	
+	/**
+	 * Multichain command to write a raw transaction
+	 */
+	private static final String CREATERAWSENDFROM = "createrawsendfrom";
+	
+	/**
+	 * The default number of sender threads. 0 writes batches from the thread calling publish.
+	 */
+	private static final int DEFAULT_SENDER_THREADS = 0;
+	
+	/**
+	 * The default number of full batches waiting for a sender thread
+	 */
+	private static final int DEFAULT_MAX_QUEUED_BATCHES = 16;
+	
+	/**
+	 * Placed in the queue of batches to tell a sender thread to stop
+	 */
+	private static final List<Triple> END_OF_BATCHES = new ArrayList<Triple>();
+	
+	/**
+	 * The number of serialized bytes of a transaction, excluding its stream, keys and text
+	 * {"for":"","keys":[],"data":{"text":""}},
+	 */
+	private static final int TRANSACTION_OVERHEAD_BYTES = 40;
+	
+	/**
+	 * The default maximum number of stations whose observations are packed in an item
+	 */
+	private static final int DEFAULT_PACK_MAX_STATIONS = 1;
+	
+	/**
+	 * The default maximum number of observations packed in an item
+	 */
+	private static final int DEFAULT_PACK_MAX_OBSERVATIONS = 48;
+	
+	/**
+	 * The default maximum number of characters of the text of a pack, 
+	 * within the max-std-element-size of the chain once encoded
+	 */
+	private static final int DEFAULT_PACK_MAX_BYTES = 4096;
+	
+	/**
+	 * The maximum number of packs being filled. The pack opened first is written out when exceeded.
+	 */
+	private static final int MAX_OPEN_PACKS = 1024;
+
+
+	private static final Logger LOGGER = Logger.getLogger(PublisherMultiChain.class.getName());
+	private static final MetricsRegistry METRICS = MetricsRegistry.getDefault();
+	
+	
+	/**
+	 * Publishing metrics, updated by the sender threads
+	 */
+	private Map<String, Metric> metrics = new ConcurrentHashMap<String, Metric>(); 
+	
+	/**
+	 * The queue used to store transactions until they are used to write to a block
+	 */
+	private List<Triple> queue = new ArrayList<Triple>();
+	
+	/**
+	 * The number of serialized bytes of the transactions in the queue
+	 */
+	private int queueBytes = 0;
+	
+	/**
+	 * When the first transaction was added to the queue
+	 */
+	private long queueStartMillis = 0;
+	
+	/**
+	 * Decides when the queue is full
+	 */
+	private BatchPolicy batchPolicy = new BatchPolicy();
+	
+	/**
+	 * Writes out a partly filled queue once the linger time has elapsed. 
+	 * A null value means the queue is only written out when full.
+	 */
+	private ScheduledExecutorService lingerTimer = null;
+	
+	/**
+	 * The address used to write the raw transaction to the chain
+	 */
+	private String fromAddress;
+	
+	/**
+	 * The value of the multichain property maxStdOpReturnsCount. Used
+	 * to specify how many transactions participate in a raw transaction. 
+	 */
+	private int maxStdOpReturnsCount = DEFAULT_MAX_STD_OP_RETURNS_COUNT;
+	
+	
+	/**
+	 * The streams available in the chain. Kept between runs of a resident processor.
+	 */
+	private StreamRegistry streamRegistry = null;
+	
+	/**
+	 * The streams records are expected to be published to. A null value means not known.
+	 */
+	private List<String> expectedStreams = null;
+	
+	/**
+	 * Whether streams missing from the chain are created
+	 */
+	private boolean isCreatingMissingStreams = false;
+	
+	/**
+	 * The number of threads writing batches to the chain
+	 */
+	private int senderThreads = DEFAULT_SENDER_THREADS;
+	
+	/**
+	 * The maximum number of full batches waiting for a sender thread
+	 */
+	private int maxQueuedBatches = DEFAULT_MAX_QUEUED_BATCHES;
+	
+	/**
+	 * Full batches waiting for a sender thread
+	 */
+	private BlockingQueue<List<Triple>> batches = null;
+	
+	/**
+	 * The sender threads. A null value means batches are written by the thread calling publish.
+	 */
+	private ExecutorService senders = null;
+	
+	/**
+	 * Sets the number of threads writing batches to the chain.
+	 * 
+	 * @param count the number of threads. 0 writes batches from the thread calling publish
+	 */
+	public void setSenderThreads(String count) {
+		if ((null == count) || count.trim().equals("")) {
+			senderThreads = DEFAULT_SENDER_THREADS;
+			return; 
+		} 
+		
+		senderThreads = Math.max(0, Utils.stringToIntegerConverter(count, DEFAULT_SENDER_THREADS
+				, "invalid sender-threads property defined. Defaulted to " + DEFAULT_SENDER_THREADS));
+	}
+	
+	/**
+	 * Sets the maximum number of full batches waiting for a sender thread
+	 * 
+	 * @param count the maximum number of full batches waiting for a sender thread
+	 */
+	public void setMaxQueuedBatches(String count) {
+		if ((null == count) || count.trim().equals("")) {
+			maxQueuedBatches = DEFAULT_MAX_QUEUED_BATCHES;
+			return; 
+		} 
+		
+		maxQueuedBatches = Math.max(1, Utils.stringToIntegerConverter(count, DEFAULT_MAX_QUEUED_BATCHES
+				, "invalid max-queued-batches property defined. Defaulted to " + DEFAULT_MAX_QUEUED_BATCHES));
+	}
+	
+	
+	/**
+	 * Sets the multichain maxStdOpReturnsCount property 
+	 * 
+	 * @param count the multichain maxStdOpReturnsCount property 
+	 */
+	public void setMaxStdOpReturnsCount(String count) {
+		if ((null == count) || count.trim().equals("")) {
+			LOGGER.warning("No max_std_op_returns_count property defined. Defaulted to " + DEFAULT_MAX_STD_OP_RETURNS_COUNT);
+			maxStdOpReturnsCount = DEFAULT_MAX_STD_OP_RETURNS_COUNT;
+			return; 
+		} 
+		
+		maxStdOpReturnsCount = Utils.stringToIntegerConverter(count, DEFAULT_MAX_STD_OP_RETURNS_COUNT
+				, "invalid max_std_op_returns_count property defined. Defaulted to " + DEFAULT_MAX_STD_OP_RETURNS_COUNT);
+	}
+
+	/**
+	 * Batches that could not be written. A null value means failed batches are discarded.
+	 */
+	private BatchSpool spool = null;
+	
+	/**
+	 * Sets the file batches that cannot be written are appended to
+	 * 
+	 * @param fileName the name and path of the spool file. Not set means failed batches are discarded
+	 */
+	public void setSpoolFile(String fileName) {
+		spool = ((null == fileName) || fileName.trim().equals("")) ? null : new BatchSpool(fileName.trim());
+	}
+	
+	/**
+	 * The records already written to the chain. A null value means every record is written.
+	 */
+	private DedupIndex dedupIndex = null;
+	
+	/**
+	 * Sets the index of records already written to the chain
+	 * 
+	 * @param dedupIndex the index of records already written. A null value means every record is written
+	 */
+	public void setDedupIndex(DedupIndex dedupIndex) {
+		this.dedupIndex = dedupIndex;
+	}
+	
+	/**
+	 * The index of the records written to the chain, queried locally. A null value means no index is kept.
+	 */
+	private MetarIndex metarIndex = null;
+	
+	/**
+	 * @param metarIndex the index every record written to the chain is added to
+	 */
+	public void setMetarIndex(MetarIndex metarIndex) {
+		this.metarIndex = metarIndex;
+	}
+	
+	/**
+	 * Encodes the raw text of the records queued
+	 */
+	private PayloadCodec payloadCodec = new PayloadCodecJson();
+	
+	/**
+	 * Writes the data of queued items, by format, including those spooled by a run using another format
+	 */
+	private final Map<String, PayloadCodec> payloadCodecs = new HashMap<String, PayloadCodec>();
+	{
+		payloadCodecs.put(PayloadCodecJson.FORMAT, payloadCodec);
+		payloadCodecs.put(PayloadCodecBinary.FORMAT, new PayloadCodecBinary());
+	}
+	
+	/**
+	 * @param payloadCodec encodes the raw text of the records queued
+	 */
+	public void setPayloadCodec(PayloadCodec payloadCodec) {
+		this.payloadCodec = payloadCodec;
+		payloadCodecs.put(payloadCodec.getFormat(), payloadCodec);
+	}
+	
+	/**
+	 * The number of minutes of the windows the observations packed in an item fall in. 
+	 * 0 writes every observation in an item of its own.
+	 */
+	private int packWindowMinutes = 0;
+	
+	private int packMaxStations = DEFAULT_PACK_MAX_STATIONS;
+	private int packMaxObservations = DEFAULT_PACK_MAX_OBSERVATIONS;
+	private int packMaxBytes = DEFAULT_PACK_MAX_BYTES;
+	
+	/**
+	 * The packs being filled, by stream and window, and by station when a pack holds a single station
+	 */
+	private final LinkedHashMap<String, OpenPack> openPacks = new LinkedHashMap<String, OpenPack>();
+	
+	/**
+	 * Sets the window of time the observations packed in an item fall in
+	 * 
+	 * @param minutes the number of minutes of a window, within a day. 0 writes every observation in an item of its own
+	 */
+	public void setPackWindowMinutes(String minutes) {
+		if ((null == minutes) || minutes.trim().equals("")) {
+			packWindowMinutes = 0;
+			return; 
+		} 
+		
+		packWindowMinutes = Math.min(24 * 60, Math.max(0, Utils.stringToIntegerConverter(minutes, 0
+				, "invalid pack.window-minutes property defined. Observations are not packed")));
+	}
+	
+	/**
+	 * Sets the maximum number of stations whose observations are packed in an item
+	 * 
+	 * @param count the maximum number of stations
+	 */
+	public void setPackMaxStations(String count) {
+		if ((null == count) || count.trim().equals("")) {
+			packMaxStations = DEFAULT_PACK_MAX_STATIONS;
+			return; 
+		} 
+		
+		packMaxStations = Math.max(1, Utils.stringToIntegerConverter(count, DEFAULT_PACK_MAX_STATIONS
+				, "invalid pack.max-stations property defined. Defaulted to " + DEFAULT_PACK_MAX_STATIONS));
+	}
+	
+	/**
+	 * Sets the maximum number of observations packed in an item
+	 * 
+	 * @param count the maximum number of observations
+	 */
+	public void setPackMaxObservations(String count) {
+		if ((null == count) || count.trim().equals("")) {
+			packMaxObservations = DEFAULT_PACK_MAX_OBSERVATIONS;
+			return; 
+		} 
+		
+		packMaxObservations = Math.max(1, Utils.stringToIntegerConverter(count, DEFAULT_PACK_MAX_OBSERVATIONS
+				, "invalid pack.max-observations property defined. Defaulted to " + DEFAULT_PACK_MAX_OBSERVATIONS));
+	}
+	
+	/**
+	 * Sets the maximum number of characters of the text of a pack, before it is encoded
+	 * 
+	 * @param bytes the maximum number of characters
+	 */
+	public void setPackMaxBytes(String bytes) {
+		if ((null == bytes) || bytes.trim().equals("")) {
+			packMaxBytes = DEFAULT_PACK_MAX_BYTES;
+			return; 
+		} 
+		
+		packMaxBytes = Math.max(1, Utils.stringToIntegerConverter(bytes, DEFAULT_PACK_MAX_BYTES
+				, "invalid pack.max-bytes property defined. Defaulted to " + DEFAULT_PACK_MAX_BYTES));
+	}
+	
+	/**
+	 * Retries transient errors and isolates rejected records
+	 */
+	private final BatchRetryEngine<Triple> retryEngine = new BatchRetryEngine<Triple>();
+	
+	/**
+	 * Sets the number of times a batch is written before it is spooled
+	 * 
+	 * @param attempts the number of attempts
+	 */
+	public void setRetryAttempts(String attempts) {
+		retryEngine.setAttempts(attempts);
+	}
+	
+	/**
+	 * Sets the longest delay before the first retry
+	 * 
+	 * @param millis the backoff time in milliseconds
+	 */
+	public void setRetryBackoffMillis(String millis) {
+		retryEngine.setBackoffMillis(millis);
+	}
+	
+	/**
+	 * Sets the longest delay before any retry
+	 * 
+	 * @param millis the maximum backoff time in milliseconds
+	 */
+	public void setRetryMaxBackoffMillis(String millis) {
+		retryEngine.setMaxBackoffMillis(millis);
+	}
+	
+	/**
+	 * Sets whether rejected batches are split to isolate the rejected records
+	 * 
+	 * @param bisecting false to fail every item of a rejected batch
+	 */
+	public void setBisectRejectedBatches(String bisecting) {
+		retryEngine.setBisecting(bisecting);
+	}
+
+	/**
+	 * Sends the batches written at the same time by the sender threads in a single request
+	 */
+	private final JsonRpcBatcher rpcBatcher = new JsonRpcBatcher();
+
+	/**
+	 * Whether batches are sent through the batcher
+	 */
+	private boolean isRpcBatching = false;
+
+	/**
+	 * Sets whether the batches written at the same time by the sender threads
+	 * are sent together, as a JSON RPC batch request
+	 *
+	 * @param batching true to send batches together. Otherwise every batch is sent in a request of its own
+	 */
+	public void setRpcBatching(String batching) {
+		isRpcBatching = (null != batching) && Boolean.parseBoolean(batching.trim());
+	}
+
+	/**
+	 * Sets the maximum number of batches sent in a single request
+	 *
+	 * @param count the maximum number of batches
+	 */
+	public void setRpcBatchMaxCalls(String count) {
+		rpcBatcher.setMaxCalls(count);
+	}
+
+	/**
+	 * Sets the maximum number of bytes of a single request
+	 *
+	 * @param bytes the maximum number of bytes
+	 */
+	public void setRpcBatchMaxBytes(String bytes) {
+		rpcBatcher.setMaxBytes(bytes);
+	}
+
+	/**
+	 * Sets the longest time a request waits for batches from other sender threads
+	 *
+	 * @param millis the linger time in milliseconds
+	 */
+	public void setRpcBatchLingerMillis(String millis) {
+		rpcBatcher.setLingerMillis(millis);
+	}
+
+	/**
+	 * Sets the policy that decides when a batch is full
+	 * 
+	 * @param batchPolicy the policy that decides when a batch is full
+	 */
+	public void setBatchPolicy(BatchPolicy batchPolicy) {
+		this.batchPolicy = batchPolicy;
+	}
+
+	/**
+	 * Sets the registry streams are looked up in
+	 * 
+	 * @param streamRegistry the registry of the streams of the chain
+	 */
+	public void setStreamRegistry(StreamRegistry streamRegistry) {
+		this.streamRegistry = streamRegistry;
+	}
+	
+	/**
+	 * Sets the streams records are expected to be published to, so that those 
+	 * missing are created together when the publisher is initialized
+	 * 
+	 * @param expectedStreams the streams records are expected to be published to
+	 */
+	public void setExpectedStreams(List<String> expectedStreams) {
+		this.expectedStreams = expectedStreams;
+	}
+	
+	/**
+	 * Sets whether streams missing from the chain are created
+	 * 
+	 * @param creating true to create missing streams. Otherwise records of missing streams are discarded
+	 */
+	public void setCreateMissingStreams(String creating) {
+		isCreatingMissingStreams = (null != creating) && Boolean.parseBoolean(creating.trim());
+	}
+	
+	/**
+	 * Sets the address used to write the raw transaction to the chain
+	 * 
+	 * @param fromAddress the address used to write the raw transaction to the chain 
+	 */
+	public void setFromAddress(String fromAddress) {
+		this.fromAddress = fromAddress;
+	}
+
+
+	/**
+	 * JSON RPC client
+	 */
+	private JsonRpcClient jsonRpcClient;
+	
+	/**
+	 * Stores an instance of the RPC Client
+	 * 
+	 * @param jsonRpcClient
+	 */
+	public void setJsonRpcClient(JsonRpcClient jsonRpcClient) {
+		this.jsonRpcClient = jsonRpcClient;
+		rpcBatcher.setJsonRpcClient(jsonRpcClient);
+	}
+
+	public void initialize() {
+		metrics = new ConcurrentHashMap<String, Metric>();
+		jsonRpcClient.startProbes();
+		if (null == streamRegistry) {
+			streamRegistry = new StreamRegistry();
+			streamRegistry.setJsonRpcClient(jsonRpcClient);
+		}
+		//streams are created by raw transactions, sent from the address records are
+		streamRegistry.setFromAddress(fromAddress);
+		streamRegistry.setMaxCreatesPerTransaction(maxStdOpReturnsCount);
+		streamRegistry.initialize();
+		if (isCreatingMissingStreams && (null != expectedStreams)) {
+			streamRegistry.provision(expectedStreams);
+		}
+		batchPolicy.setMaxCount(maxStdOpReturnsCount);
+		startSenders();
+		startLingerTimer();
+		replaySpool();
+	}
+	
+	/**
+	 * Writes out the batches that could not be written in earlier runs, when a spool is configured.
+	 * <p/>
+	 * Replayed batches are written from the calling thread, not handed to the sender threads, 
+	 * so that every batch is written, rejected or spooled again before the replayed spool is deleted.
+	 */
+	private void replaySpool() {
+		if (null == spool) {
+			return;
+		}
+		
+		try {
+			int count = spool.replay(new BatchSpool.BatchHandler() {
+				public void handle(List<Triple> batch) {
+					send(batch);
+				}
+			});
+			if (count > 0) {
+				LOGGER.info("Spooled batches replayed. batches=" + count);
+			}
+		} catch (IOException e) {
+			LOGGER.severe("Unable to replay spooled batches. They will be replayed on the next run");
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Starts writing out partly filled queues once the linger time has elapsed, when configured.
+	 */
+	private void startLingerTimer() {
+		final int lingerMillis = batchPolicy.getLingerMillis();
+		if (lingerMillis <= 0) {
+			return;
+		}
+		
+		lingerTimer = Executors.newSingleThreadScheduledExecutor();
+		lingerTimer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				synchronized (PublisherMultiChain.this) {
+					if ((queue.size() > 0) && (System.currentTimeMillis() - queueStartMillis >= lingerMillis)) {
+						flush();
+					}
+				}
+			}
+		}, lingerMillis, Math.max(1, lingerMillis / 2), TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Starts the sender threads, when configured.
+	 */
+	private void startSenders() {
+		if (senderThreads <= 0) {
+			return;
+		}
+		
+		batches = new ArrayBlockingQueue<List<Triple>>(maxQueuedBatches);
+		senders = Executors.newFixedThreadPool(senderThreads);
+		for (int i = 0; i < senderThreads; i++) {
+			senders.execute(new Runnable() {
+				public void run() {
+					try {
+						List<Triple> batch = batches.take();
+						while (batch != END_OF_BATCHES) {
+							send(batch);
+							batch = batches.take();
+						}
+					} catch (InterruptedException e) {
+						LOGGER.severe("Multichain sender thread interrupted. Queued batches may not be written");
+					}
+				}
+			});
+		}
+		LOGGER.info("Multichain sender threads started. threads=" + senderThreads + " maxQueuedBatches=" + maxQueuedBatches);
+	}
+	
+	/**
+	 * Publishes a value to a Multichain stream. 
+	 * This method collects and stores publication 
+	 * requests in a queue. When the queue is reaches 
+	 * the limit, it writes all of the publication
+	 * requests at once. This allows several publication 
+	 * requests to be bundled in a single block as a means
+	 * to reduce the the size of the chain.
+	 * <p/>
+	 * The queue is synchronized so that countries parsed
+	 * concurrently may share a single publisher.
+	 * 
+	 * @param stream the blockchain stream name
+	 * @param keys the keys used to index the value in the chain.
+	 * @param value the value to be written to the chain
+	 */
+	public boolean publish(String stream, List<String> keys, String value) {
+		return enqueue(stream, keys, Utils.getValueFromJSON("station_id", value)
+				, Utils.getValueFromJSON("observation_time", value)
+				, Utils.getValueFromJSON("raw_text", value), value);
+	}
+	
+	/**
+	 * Publishes a record to a Multichain stream. Only the
+	 * raw text of the record is written to the chain.
+	 * 
+	 * @param stream the blockchain stream name
+	 * @param keys the keys used to index the value in the chain.
+	 * @param record the record to be written to the chain
+	 */
+	public boolean publish(String stream, List<String> keys, MetarRecord record) {
+		return enqueue(stream, keys, record.getStationId(), record.getObservationTime(), record.getRawText(), record);
+	}
+	
+	/**
+	 * Adds the raw text to the queue, writing out the queue first when it is full.
+	 * Records already written to the chain are skipped.
+	 * <p/>
+	 * The raw text is encoded before the queue is locked, so that the records
+	 * of countries parsed concurrently are encoded in parallel.
+	 * <p/>
+	 * When packing is configured, the record is added to the pack of its window instead.
+	 * 
+	 * @param stream the blockchain stream name
+	 * @param keys the keys used to index the value in the chain.
+	 * @param stationId the station identifier, used to detect duplicates
+	 * @param observationTime the observation time, used to detect duplicates
+	 * @param rawText the text to be written to the chain
+	 * @param value the value being published, used for logging
+	 */
+	private boolean enqueue(String stream, List<String> keys, String stationId, String observationTime, String rawText, Object value) {
+		if ( ! streamRegistry.contains(stream) && ! findStream(stream)) {
+			LOGGER.severe("Record discarded. Stream " + stream + " does not exist in the chain. keys="+ keys.toString() + " value="+value);
+			return false;
+		}
+		
+		if (null == rawText) {
+			LOGGER.severe("Record discarded. No raw text. keys="+ keys.toString() + " value="+value);
+			return false;
+		}
+		
+		long fingerprint = 0;
+		if (null != dedupIndex) {
+			fingerprint = DedupIndex.fingerprint(stationId, observationTime, rawText);
+			if (dedupIndex.contains(fingerprint)) {
+				Utils.addToMap(metrics, stream, 0, 0, 0);
+				metrics.get(stream).addToDuplicateCount(1);
+				METRICS.counter(MetricsRegistry.RECORDS_DUPLICATE, stream).increment();
+				return true;
+			}
+		}
+		
+		METRICS.counter(MetricsRegistry.RECORDS_QUEUED, stream).increment();
+		if ((packWindowMinutes > 0) && PayloadPack.isPackable(stationId, observationTime)) {
+			String packKey = packKey(stream, stationId, observationTime);
+			if (null != packKey) {
+				pack(packKey, stationId, new Triple(stream, keys, rawText, null, fingerprint, observationTime, rawText));
+				return true;
+			}
+		}
+		
+		String data = encode(rawText, 1, rawText.length());
+		queue(new Triple(stream, keys, data, payloadCodec.getFormat(), fingerprint, observationTime, rawText));
+		return true;
+	}
+	
+	/**
+	 * Encodes the text of an item with the payload codec
+	 * 
+	 * @param text the raw text of a record, or the text of a pack
+	 * @param records the number of records in the text
+	 * @param rawTextLength the number of characters of the raw text of the records
+	 * @return the encoded data
+	 */
+	private String encode(String text, int records, int rawTextLength) {
+		long encodeStartNanos = System.nanoTime();
+		String data = payloadCodec.encode(text);
+		METRICS.counter(MetricsRegistry.PAYLOAD_ENCODE_NANOS).add(System.nanoTime() - encodeStartNanos);
+		METRICS.counter(MetricsRegistry.PAYLOAD_RECORDS).add(records);
+		METRICS.counter(MetricsRegistry.PAYLOAD_TEXT_BYTES).add(rawTextLength);
+		METRICS.counter(MetricsRegistry.PAYLOAD_ENCODED_BYTES).add(payloadCodec.getSize(data));
+		return data;
+	}
+	
+	/**
+	 * Adds an item to the queue, writing out the queue first when it is full
+	 * 
+	 * @param item the item
+	 */
+	private synchronized void queue(Triple item) {
+		//publish when the queue is full
+		if (batchPolicy.isFull(queue.size(), queueBytes, item.getSize())) {
+			flush();
+		}
+		
+		if (queue.size() == 0) {
+			queueStartMillis = System.currentTimeMillis();
+		}
+		queue.add(item);
+		queueBytes += item.getSize();
+	}
+	
+	/**
+	 * @param stream the blockchain stream name
+	 * @param stationId the station identifier
+	 * @param observationTime the observation time, CCYY-MM-DDTHH:MM:SSZ
+	 * @return the key of the pack the observation belongs to, or null when the observation time is not valid
+	 */
+	private String packKey(String stream, String stationId, String observationTime) {
+		String time = observationTime.trim();
+		if ((time.length() < 16) || (time.charAt(10) != 'T') || (time.charAt(13) != ':')) {
+			return null;
+		}
+		
+		int minuteOfDay;
+		try {
+			minuteOfDay = (Integer.parseInt(time.substring(11, 13)) * 60) + Integer.parseInt(time.substring(14, 16));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		
+		StringBuilder key = new StringBuilder(48).append(stream).append('|').append(time, 0, 10)
+				.append('|').append(minuteOfDay / packWindowMinutes);
+		if (packMaxStations == 1) {
+			key.append('|').append(stationId);
+		}
+		return key.toString();
+	}
+	
+	/**
+	 * Adds a record to the pack of its window, and queues the packs written out
+	 * 
+	 * @param packKey the key of the pack of the record
+	 * @param stationId the station identifier
+	 * @param record the record, whose value is its raw text
+	 */
+	private void pack(String packKey, String stationId, Triple record) {
+		List<OpenPack> closed = new ArrayList<OpenPack>(2);
+		synchronized (openPacks) {
+			OpenPack pack = openPacks.get(packKey);
+			if ((null != pack) && ! pack.accepts(stationId, record)) {
+				closed.add(openPacks.remove(packKey));
+				pack = null;
+			}
+			
+			if (null == pack) {
+				pack = new OpenPack(record.getStream());
+				openPacks.put(packKey, pack);
+				if (openPacks.size() > MAX_OPEN_PACKS) {
+					Iterator<OpenPack> eldest = openPacks.values().iterator();
+					closed.add(eldest.next());
+					eldest.remove();
+				}
+			}
+			
+			pack.add(stationId, record);
+			if (pack.isFull()) {
+				closed.add(openPacks.remove(packKey));
+			}
+		}
+		
+		for (OpenPack pack : closed) {
+			queuePack(pack);
+		}
+	}
+	
+	/**
+	 * Queues every pack being filled
+	 */
+	private void closePacks() {
+		List<OpenPack> closed;
+		synchronized (openPacks) {
+			closed = new ArrayList<OpenPack>(openPacks.values());
+			openPacks.clear();
+		}
+		
+		for (OpenPack pack : closed) {
+			queuePack(pack);
+		}
+	}
+	
+	/**
+	 * Encodes a pack and queues it as a single item
+	 * 
+	 * @param pack the pack
+	 */
+	private void queuePack(OpenPack pack) {
+		String data = encode(pack.payload.toText(), pack.records.size(), pack.rawTextLength);
+		queue(new Triple(pack.stream, new ArrayList<String>(pack.keys), data, payloadCodec.getFormat(), pack.records));
+	}
+	
+	/**
+	 * Looks up a stream missing from the registry, creating it when configured
+	 * 
+	 * @param stream the blockchain stream name
+	 * @return true when the stream exists in the chain
+	 */
+	private boolean findStream(String stream) {
+		if (streamRegistry.find(stream)) {
+			return true;
+		}
+		
+		if (isCreatingMissingStreams) {
+			streamRegistry.provision(Collections.singletonList(stream));
+			return streamRegistry.contains(stream);
+		}
+		return false;
+	}
+	
+	public synchronized void finalize() {
+		if (null != lingerTimer) {
+			lingerTimer.shutdownNow();
+			lingerTimer = null;
+		}
+		
+		/* 
+		 * The packs and the queue may contain data, so flush
+		 * out anything not yet published
+		 */
+		closePacks();
+		flush();
+		
+		stopSenders();
+		jsonRpcClient.stopProbes();
+		
+		if (null != spool) {
+			try {
+				spool.close();
+			} catch (IOException e) {
+				LOGGER.warning("Unable to close the spool file");
+			}
+		}
+		
+		if (null != dedupIndex) {
+			dedupIndex.force();
+		}
+	}
+	
+	/**
+	 * Stops the sender threads, waiting for every queued 
+	 * and in-flight batch to be written.
+	 */
+	private void stopSenders() {
+		if (null == senders) {
+			return;
+		}
+		
+		try {
+			for (int i = 0; i < senderThreads; i++) {
+				batches.put(END_OF_BATCHES);
+			}
+			senders.shutdown();
+			senders.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			LOGGER.severe("Interrupted waiting for Multichain sender threads. Queued batches may not be written");
+			Thread.currentThread().interrupt();
+		}
+		senders = null;
+	}
+	
+	/**
+	 * Hands all transactions stored in the queue over to be written out,
+	 * and starts a new queue.
+	 */
+	private void flush() {
+		if (queue.size() == 0) {
+			return;
+		}
+		
+		List<Triple> batch = queue;
+		queue = new ArrayList<Triple>(); //clear the queue
+		queueBytes = 0;
+		
+		dispatch(batch);
+	}
+	
+	/**
+	 * Writes out a batch from the calling thread, or hands it to the sender
+	 * threads when configured.
+	 * 
+	 * @param batch the items to be written in a single raw transaction 
+	 */
+	private void dispatch(List<Triple> batch) {
+		if (null == senders) {
+			send(batch);
+			return;
+		}
+		
+		try {
+			//waits when the sender threads are behind
+			batches.put(batch);
+		} catch (InterruptedException e) {
+			LOGGER.severe("Interrupted queuing a batch. Writing it from the publishing thread");
+			Thread.currentThread().interrupt();
+			send(batch);
+		}
+	}
+	
+	/**
+	 * Writes out a batch of transactions. Transient errors are retried and rejected 
+	 * batches are split by the retry engine, so the outcome is recorded per item.
+	 * Any other error is recorded as the failure of the batch, so that the sender 
+	 * thread goes on writing the batches queued. 
+	 * 
+	 * @param batch the items to be written in a single raw transaction 
+	 */
+	private void send(List<Triple> batch) {
+		//the first item of a batch has waited the longest
+		METRICS.histogram(MetricsRegistry.STAGE_QUEUE_WAIT).recordSince(batch.get(0).getCreatedNanos());
+		try {
+			retryEngine.write(batch, batchWriter, batchOutcome);
+		} catch (RuntimeException e) {
+			//not spooled, as the batch may have been written before the error
+			LOGGER.severe("Unable to write batch. Its records are counted as failed. items=" + batch.size());
+			e.printStackTrace();
+			countFailed(batch, "error: " + e.getClass().getSimpleName());
+		}
+	}
+	
+	/**
+	 * Counts the records of a batch as failed
+	 * 
+	 * @param batch the items of the batch
+	 * @param reason why the records failed
+	 */
+	private void countFailed(List<Triple> batch, String reason) {
+		for (Triple item : batch) {
+			int records = item.getRecords().size();
+			Utils.addToMap(metrics, item.getStream(), 0, records, records);
+			metrics.get(item.getStream()).addToFailureReasons(reason, records);
+			METRICS.counter(MetricsRegistry.RECORDS_FAILED, item.getStream()).add(records);
+		}
+	}
+	
+	/**
+	 * The buffer each thread writes its batches into, reused from batch to batch
+	 */
+	private final ThreadLocal<JsonWriter> jsonWriters = new ThreadLocal<JsonWriter>() {
+		@Override
+		protected JsonWriter initialValue() {
+			return new JsonWriter();
+		}
+	};
+	
+	/**
+	 * Writes a batch to the chain in a single raw transaction
+	 */
+	private final BatchRetryEngine.BatchWriter<Triple> batchWriter = new BatchRetryEngine.BatchWriter<Triple>() {
+		public void write(List<Triple> batch) throws Exception {
+			JsonWriter params = jsonWriters.get();
+			params.reset();
+			params.beginArray();
+			params.value(fromAddress);
+			params.beginObject().endObject(); //no addresses are sent to
+			params.beginArray();
+			for (int i = 0; i < batch.size(); i++) {
+				writeTransaction(params, batch.get(i));
+			}
+			params.endArray();
+			params.value("send");
+			params.endArray();
+			
+			long startNanos = System.nanoTime();
+			METRICS.counter(MetricsRegistry.RPC_CALLS).increment();
+			METRICS.counter(MetricsRegistry.BYTES_SENT).add(params.size());
+			try {
+				if (isRpcBatching) {
+					rpcBatcher.call(CREATERAWSENDFROM, params);
+				} else {
+					jsonRpcClient.call(CREATERAWSENDFROM, params);
+				}
+			} catch (Exception e) {
+				METRICS.counter(MetricsRegistry.RPC_ERRORS).increment();
+				throw e;
+			} finally {
+				METRICS.histogram(MetricsRegistry.STAGE_RPC).recordSince(startNanos);
+			}
+		}
+	};
+	
+	/**
+	 * Records the outcome of every item written by the retry engine
+	 */
+	private final BatchRetryEngine.Outcome<Triple> batchOutcome = new BatchRetryEngine.Outcome<Triple>() {
+		
+		public void written(List<Triple> batch, long latencyMillis) {
+			batchPolicy.recordResult(batch.size(), latencyMillis, true);
+			
+			for (Triple item : batch) {
+				for (Triple record : item.getRecords()) {
+					if ((null != dedupIndex) && (record.getFingerprint() != 0)) {
+						dedupIndex.add(record.getFingerprint());
+					}
+					
+					Utils.addToMap(metrics, record.getStream(), 1, 0, 1);
+					METRICS.counter(MetricsRegistry.RECORDS_WRITTEN, record.getStream()).increment();
+					if (null != metarIndex) {
+						metarIndex.add(record.getStream(), record.getKeys(), record.getObservationTime(), record.getRawText());
+					}
+				}
+			}
+		}
+		
+		public void rejected(Triple item, String reason) {
+			int records = item.getRecords().size();
+			LOGGER.severe("Record rejected by the chain."
+					+ " stream=" + item.getStream()
+					+ " keys=" + item.getKeys()
+					+ ((records > 1) ? " records=" + records : "")
+					+ " reason=" + reason);
+			
+			Utils.addToMap(metrics, item.getStream(), 0, records, records);
+			metrics.get(item.getStream()).addToFailureReasons(reason, records);
+			METRICS.counter(MetricsRegistry.RECORDS_FAILED, item.getStream()).add(records);
+		}
+		
+		public void unavailable(List<Triple> batch, String reason) {
+			batchPolicy.recordResult(batch.size(), 0, false);
+			
+			if (null != spool) {
+				try {
+					spool.append(batch);
+					LOGGER.warning("Batch spooled for replay on the next run. items=" + batch.size());
+				} catch (IOException e) {
+					LOGGER.severe("Unable to spool batch. items=" + batch.size());
+					e.printStackTrace();
+				}
+			}
+			countFailed(batch, reason);
+		}
+
+		public void uncertain(List<Triple> batch, String reason) {
+			batchPolicy.recordResult(batch.size(), 0, false);
+
+			//not spooled, as replaying a batch the chain may have written could write it twice
+			for (Triple item : batch) {
+				int records = item.getRecords().size();
+				LOGGER.severe("Record may not have been written, check the chain."
+						+ " stream=" + item.getStream()
+						+ " keys=" + item.getKeys()
+						+ ((records > 1) ? " records=" + records : "")
+						+ " reason=" + reason);
+
+				Utils.addToMap(metrics, item.getStream(), 0, records, records);
+				metrics.get(item.getStream()).addToFailureReasons("unanswered: " + reason, records);
+				METRICS.counter(MetricsRegistry.RECORDS_FAILED, item.getStream()).add(records);
+			}
+		}
+	};
+	
+	/**
+	 * Writes the transaction of an item
+	 * {"for":stream,"keys":[keys],"data":data}
+	 * 
+	 * @param writer the writer of the batch
+	 * @param item contains data to create the transaction
+	 */
+	private void writeTransaction(JsonWriter writer, Triple item) {
+		writer.beginObject();
+		writer.name("for").value(item.getStream());
+		writer.name("keys").value(item.getKeys());
+		writer.name("data");
+		payloadCodecs.get(item.getFormat()).writeData(writer, item.getValue());
+		writer.endObject();
+	}
+	
+	
+	/**
+	 * A pack being filled with the observations of a window
+	 */
+	private class OpenPack {
+		private final String stream;
+		private final PayloadPack payload = new PayloadPack();
+		private final List<Triple> records = new ArrayList<Triple>();
+		private final Set<String> keys = new LinkedHashSet<String>();
+		private final Set<String> stationIds = new HashSet<String>();
+		private int rawTextLength = 0;
+		
+		private OpenPack(String stream) {
+			this.stream = stream;
+		}
+		
+		/**
+		 * @return true when the observation of a station fits in the pack
+		 */
+		private boolean accepts(String stationId, Triple record) {
+			if (! stationIds.contains(stationId) && (stationIds.size() >= packMaxStations)) {
+				return false;
+			}
+			int length = payload.getLength() + record.getRawText().length()
+					+ PayloadPack.entryLength(stationId, record.getObservationTime(), record.getRawText());
+			return records.isEmpty() || (length <= packMaxBytes);
+		}
+		
+		private void add(String stationId, Triple record) {
+			payload.add(stationId, record.getObservationTime(), record.getRawText());
+			records.add(record);
+			keys.addAll(record.getKeys());
+			stationIds.add(stationId);
+			rawTextLength += record.getRawText().length();
+		}
+		
+		private boolean isFull() {
+			return records.size() >= packMaxObservations;
+		}
+	}
+	
+	
+	/**
+	 * A convenience class used to group
+	 * a stream, a list of keys and a value.
+	 * 
+	 * @author George Franciscus
+	 *
+	 */
+	static class Triple {
+		private String stream;
+		private List<String> keys;
+		private String value;
+		private String format;
+		private int size;
+		private long fingerprint;
+		private long createdNanos;
+		private String observationTime;
+		private String rawText;
+		
+		/**
+		 * The records packed in the item. A null value means the item is a single record.
+		 */
+		private List<Triple> members = null;
+		
+		
+		/**
+		 * @param format the format of the payload codec the value was encoded by
+		 */
+		public Triple (String stream, List<String> keys, String value, String format, long fingerprint) {
+			this(stream, keys, value, format, fingerprint, null, null);
+		}
+		
+		/**
+		 * @param members the records packed in the item
+		 */
+		public Triple (String stream, List<String> keys, String value, String format, List<Triple> members) {
+			this(stream, keys, value, format, 0, null, null);
+			this.members = members;
+		}
+		
+		/**
+		 * @param observationTime the observation time, kept for the METAR index
+		 * @param rawText the raw text before it was encoded, kept for the METAR index
+		 */
+		public Triple (String stream, List<String> keys, String value, String format, long fingerprint, String observationTime, String rawText) {
+			this.stream = stream;
+			this.keys = keys;
+			this.value = value;
+			this.format = format;
+			this.fingerprint = fingerprint;
+			this.observationTime = observationTime;
+			this.rawText = rawText;
+			this.createdNanos = System.nanoTime();
+			
+			//an estimate of the serialized size, exact for ASCII text and a little over for binary data
+			size = TRANSACTION_OVERHEAD_BYTES + stream.length() + value.length();
+			for (String key : keys) {
+				size += key.length() + 3;
+			}
+		}
+		
+		public int getSize() {
+			return size;
+		}
+		
+		public long getFingerprint() {
+			return fingerprint;
+		}
+		
+		/**
+		 * @return the System.nanoTime() the item was queued at
+		 */
+		public long getCreatedNanos() {
+			return createdNanos;
+		}
+		
+		public String getStream() {
+			return stream;
+		}
+
+
+		public List<String> getKeys() {
+			return keys;
+		}
+
+
+		public String getValue() {
+			return value;
+		}
+		
+		/**
+		 * @return the format of the payload codec the value was encoded by
+		 */
+		public String getFormat() {
+			return format;
+		}
+		
+		/**
+		 * @return the records of the item: the records packed in it, or the item itself
+		 */
+		public List<Triple> getRecords() {
+			return (null == members) ? Collections.singletonList(this) : members;
+		}
+		
+		/**
+		 * @return the observation time, or null when the item was replayed from the spool
+		 */
+		public String getObservationTime() {
+			return observationTime;
+		}
+		
+		/**
+		 * @return the raw text, or null when the item was replayed from the spool
+		 */
+		public String getRawText() {
+			return rawText;
+		}
+	}
+
+
+	@Override
+	public synchronized Map<String, Metric> getMetrics() {
+		return metrics;
+	}
+
+
+}
\ No newline at end of file
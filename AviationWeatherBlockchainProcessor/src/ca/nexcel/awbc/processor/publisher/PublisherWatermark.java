@@ -0,0 +1,88 @@
+package ca.nexcel.awbc.processor.publisher;
+
+import java.util.List;
+import java.util.Map;
+
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.model.MetarRecord;
+import ca.nexcel.awbc.processor.model.Metric;
+import ca.nexcel.awbc.processor.source.WatermarkStore;
+
+/**
+ * An implementation of Publisher that shows the observation time of every
+ * record to a WatermarkStore, and hands the record to another publisher.
+ * <p/>
+ * The namespace of a record is its country, as when metars are fetched one
+ * country at a time. A record the other publisher discards keeps the watermark
+ * of its country from moving, see WatermarkStore.commit.
+ *
+ * @author George Franciscus
+ *
+ */
+public class PublisherWatermark implements Publisher {
+
+	/**
+	 * The publisher records are handed to
+	 */
+	private Publisher publisher;
+
+	private WatermarkStore watermarkStore;
+
+	/**
+	 * Sets the publisher records are handed to
+	 *
+	 * @param publisher the publisher records are handed to
+	 */
+	public void setPublisher(Publisher publisher) {
+		this.publisher = publisher;
+	}
+
+	public void setWatermarkStore(WatermarkStore watermarkStore) {
+		this.watermarkStore = watermarkStore;
+	}
+
+	public void initialize() {
+		publisher.initialize();
+	}
+
+	/**
+	 * Observes the observation time of a value and hands it to the other publisher
+	 */
+	public boolean publish(String namespace, List<String> keys, String value) {
+		watermarkStore.observe(namespace, Utils.getValueFromJSON("observation_time", value));
+		return published(namespace, publisher.publish(namespace, keys, value));
+	}
+
+	/**
+	 * Observes the observation time of a record and hands it to the other publisher
+	 *
+	 * @param namespace the country of the record
+	 * @param keys the keys used to index the record
+	 * @param record the record
+	 */
+	public boolean publish(String namespace, List<String> keys, MetarRecord record) {
+		watermarkStore.observe(namespace, record.getObservationTime());
+		return published(namespace, publisher.publish(namespace, keys, record));
+	}
+	
+	/**
+	 * @param namespace the country of the record
+	 * @param isPublished false when the other publisher discarded the record
+	 * @return isPublished
+	 */
+	private boolean published(String namespace, boolean isPublished) {
+		if (! isPublished) {
+			watermarkStore.discarded(namespace);
+		}
+		return isPublished;
+	}
+
+	public void finalize() {
+		publisher.finalize();
+	}
+
+	@Override
+	public Map<String, Metric> getMetrics() {
+		return publisher.getMetrics();
+	}
+}
@@ -0,0 +1,426 @@
+package ca.nexcel.awbc.processor.publisher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.googlecode.jsonrpc4j.JsonRpcClientException;
+
+import ca.nexcel.awbc.processor.common.JsonRpcClient;
+import ca.nexcel.awbc.processor.common.JsonWriter;
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.metrics.MetricsRegistry;
+
+/**
+ * The streams of the chain, looked up by the publisher for every record.
+ * Lookups take constant time and do not lock, as the streams are held in
+ * a hash set that is replaced, never changed, when streams are found or created.
+ * <p/>
+ * Streams are listed from the result of liststreams. When a cache file is
+ * configured, the streams are kept in the file and used by the next runs until
+ * they are older than the time to live, so that a run can start without
+ * liststreams. Streams cannot be removed from a chain, so the cached streams
+ * can only lack streams created since they were listed. A stream that is not
+ * found is therefore listed again, at most once per run.
+ * <p/>
+ * Missing streams can be provisioned, as createStream.sh and subscribeStream.sh
+ * do during installation. The streams missing are created by raw transactions
+ * holding as many creates as a transaction may hold, all sent in a single JSON
+ * RPC batch, and all of them are subscribed to in a single call to every node.
+ *
+ * @author George Franciscus
+ *
+ */
+public class StreamRegistry {
+
+	private static final Logger LOGGER = Logger.getLogger(StreamRegistry.class.getName());
+	private static final MetricsRegistry METRICS = MetricsRegistry.getDefault();
+
+	/**
+	 * Multichain commands
+	 */
+	private static final String LISTSTREAMS = "liststreams";
+	private static final String CREATERAWSENDFROM = "createrawsendfrom";
+	private static final String SUBSCRIBE = "subscribe";
+
+	/**
+	 * The default stream, which is never published to
+	 */
+	private static final String ROOT_STREAM = "root";
+
+	private static final int DEFAULT_CACHE_TTL_MINUTES = 60;
+	private static final int DEFAULT_MAX_CREATES_PER_TRANSACTION = 10;
+
+	/**
+	 * Names of the properties of the cache file
+	 */
+	private static final String CACHE_LISTED = "listed";
+	private static final String CACHE_STREAMS = "streams";
+
+	/**
+	 * The streams of the chain, excluding root. Replaced rather than changed.
+	 */
+	private volatile Set<String> streams = Collections.emptySet();
+
+	/**
+	 * When the streams were listed, in milliseconds. 0 means never.
+	 */
+	private long listedMillis = 0;
+
+	/**
+	 * Set once the streams are listed during the current run
+	 */
+	private boolean isListedThisRun = false;
+
+	/**
+	 * The streams that could not be created during the current run, so that
+	 * records of these streams do not each attempt to create them again
+	 */
+	private Set<String> failedStreams = new HashSet<String>();
+
+	private JsonRpcClient jsonRpcClient;
+
+	/**
+	 * The address the transactions creating streams are sent from
+	 */
+	private String fromAddress;
+
+	private int maxCreatesPerTransaction = DEFAULT_MAX_CREATES_PER_TRANSACTION;
+
+	/**
+	 * The file the streams are kept in. A null value means the streams are not kept between runs.
+	 */
+	private File cacheFile = null;
+
+	private long cacheTtlMillis = DEFAULT_CACHE_TTL_MINUTES * 60L * 1000L;
+
+	public void setJsonRpcClient(JsonRpcClient jsonRpcClient) {
+		this.jsonRpcClient = jsonRpcClient;
+	}
+
+	/**
+	 * @param fromAddress the address the transactions creating streams are sent from
+	 */
+	public void setFromAddress(String fromAddress) {
+		this.fromAddress = fromAddress;
+	}
+
+	/**
+	 * Sets how many streams a single transaction creates
+	 *
+	 * @param count the multichain maxStdOpReturnsCount property, as every create is an output of the transaction
+	 */
+	public void setMaxCreatesPerTransaction(int count) {
+		maxCreatesPerTransaction = Math.max(1, count);
+	}
+
+	/**
+	 * Sets the file the streams are kept in between runs
+	 *
+	 * @param fileName the name and path of the cache file. Not set means the streams are listed by every run
+	 */
+	public void setCacheFile(String fileName) {
+		cacheFile = ((null == fileName) || fileName.trim().equals("")) ? null : new File(fileName.trim());
+	}
+
+	/**
+	 * Sets how long the streams are used before they are listed again
+	 *
+	 * @param minutes the time to live in minutes
+	 */
+	public void setCacheTtlMinutes(String minutes) {
+		if ((null == minutes) || minutes.trim().equals("")) {
+			cacheTtlMillis = DEFAULT_CACHE_TTL_MINUTES * 60L * 1000L;
+			return;
+		}
+
+		cacheTtlMillis = Math.max(0, Utils.stringToIntegerConverter(minutes, DEFAULT_CACHE_TTL_MINUTES
+				, "invalid streams cache-ttl-minutes property defined. Defaulted to " + DEFAULT_CACHE_TTL_MINUTES)) * 60L * 1000L;
+	}
+
+	/**
+	 * Prepares the registry for a run. The streams are loaded from the cache file,
+	 * or listed from the chain, unless the streams already held are still fresh.
+	 */
+	public synchronized void initialize() {
+		isListedThisRun = false;
+		failedStreams.clear();
+
+		if (isFresh(listedMillis)) {
+			return;
+		}
+
+		if ((0 == listedMillis) && loadCache()) {
+			return;
+		}
+
+		list();
+	}
+
+	/**
+	 * @param stream the stream name
+	 * @return true when the stream is known to exist in the chain
+	 */
+	public boolean contains(String stream) {
+		return streams.contains(stream);
+	}
+
+	/**
+	 * Looks a stream up, listing the streams of the chain again when the stream
+	 * is not known and the streams were not yet listed during this run.
+	 *
+	 * @param stream the stream name
+	 * @return true when the stream exists in the chain
+	 */
+	public synchronized boolean find(String stream) {
+		if (! streams.contains(stream) && ! isListedThisRun) {
+			list();
+		}
+		return streams.contains(stream);
+	}
+
+	/**
+	 * Creates the streams missing from the chain in a single batch, and subscribes to them
+	 * in a single call to every node. Streams not created are listed again, as another
+	 * processor may have created them, and the rest are created once more. Streams that 
+	 * still cannot be created are reported and not attempted again during this run.
+	 *
+	 * @param names the streams that must exist
+	 * @return the streams created
+	 */
+	public synchronized List<String> provision(Collection<String> names) {
+		List<String> missing = findMissing(names);
+		if (missing.isEmpty()) {
+			return missing;
+		}
+
+		//streams created since they were listed are not created again
+		if (! isListedThisRun) {
+			list();
+			missing = findMissing(names);
+			if (missing.isEmpty()) {
+				return missing;
+			}
+		}
+
+		List<String> created = new ArrayList<String>(missing.size());
+		List<String> uncreated = missing;
+		for (int attempt = 1; ! uncreated.isEmpty(); attempt++) {
+			String error = create(uncreated, created);
+			if (null == error) {
+				break;
+			}
+
+			//streams created meanwhile by another processor, or by a transaction that was not answered, are listed
+			list();
+			uncreated = findMissing(missing);
+			uncreated.removeAll(created);
+			if ((attempt > 1) && ! uncreated.isEmpty()) {
+				failedStreams.addAll(uncreated);
+				LOGGER.severe("Unable to create streams " + uncreated + ". " + error);
+				break;
+			}
+		}
+
+		List<String> available = new ArrayList<String>(missing.size());
+		for (String stream : missing) {
+			if (! failedStreams.contains(stream)) {
+				available.add(stream);
+			}
+		}
+		if (available.isEmpty()) {
+			return created;
+		}
+
+		//new streams hold no items, so they are subscribed to without rescanning the chain
+		try {
+			JsonWriter params = new JsonWriter();
+			params.beginArray().value(available).value(false).endArray();
+			jsonRpcClient.callEveryNode(SUBSCRIBE, params);
+		} catch (Exception e) {
+			LOGGER.warning("Unable to subscribe to streams " + available + ". Records are still written. " + e.getMessage());
+		}
+
+		Set<String> updated = new HashSet<String>(streams);
+		updated.addAll(available);
+		streams = updated;
+		saveCache();
+
+		METRICS.counter(MetricsRegistry.STREAMS_CREATED).add(created.size());
+		LOGGER.info("Streams provisioned. created=" + created + " available=" + available.size() + " failed=" + (missing.size() - available.size()));
+		return created;
+	}
+
+	/**
+	 * Creates streams by raw transactions, each creating up to maxCreatesPerTransaction
+	 * streams, sent together in a single JSON RPC batch
+	 *
+	 * @param streams the streams to be created
+	 * @param created the streams created, to which the streams of every transaction accepted are added
+	 * @return the reason a transaction failed, or null when every stream was created
+	 */
+	private String create(List<String> streams, List<String> created) {
+		List<JsonRpcClient.Call> calls = new ArrayList<JsonRpcClient.Call>();
+		List<List<String>> transactions = new ArrayList<List<String>>();
+		for (int start = 0; start < streams.size(); start += maxCreatesPerTransaction) {
+			List<String> transaction = streams.subList(start, Math.min(streams.size(), start + maxCreatesPerTransaction));
+			JsonWriter params = new JsonWriter();
+			params.beginArray();
+			params.value(fromAddress);
+			params.beginObject().endObject(); //no addresses are sent to
+			params.beginArray();
+			for (String stream : transaction) {
+				params.beginObject().name("create").value("stream").name("name").value(stream).name("open").value(false).endObject();
+			}
+			params.endArray();
+			params.value("send");
+			params.endArray();
+			transactions.add(transaction);
+			calls.add(new JsonRpcClient.Call(CREATERAWSENDFROM, params));
+		}
+
+		try {
+			jsonRpcClient.callBatch(calls);
+		} catch (IOException e) {
+			return e.getMessage();
+		}
+
+		String error = null;
+		for (int i = 0; i < calls.size(); i++) {
+			try {
+				calls.get(i).getResult();
+				created.addAll(transactions.get(i));
+			} catch (JsonRpcClientException e) {
+				error = "code " + e.getCode() + ": " + e.getMessage();
+			} catch (IOException e) {
+				error = e.getMessage();
+			}
+		}
+		return error;
+	}
+
+	/**
+	 * @return the streams not known to exist, excluding those that could not be created during this run
+	 */
+	private List<String> findMissing(Collection<String> names) {
+		List<String> missing = new ArrayList<String>();
+		for (String name : names) {
+			String stream = name.trim();
+			if (! streams.contains(stream) && ! failedStreams.contains(stream) && ! missing.contains(stream)) {
+				missing.add(stream);
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * Lists the streams of the chain, keeping them in the cache file when configured.
+	 * When the chain cannot be reached, the streams already held are kept.
+	 */
+	private void list() {
+		isListedThisRun = true;
+
+		JsonNode result;
+		try {
+			result = jsonRpcClient.call(LISTSTREAMS, new JsonWriter(16).beginArray().endArray());
+		} catch (Exception e) {
+			LOGGER.severe("Unable to list the streams of the chain. Known streams=" + streams.size() + ". " + e.getMessage());
+			return;
+		}
+
+		Set<String> listed = new HashSet<String>();
+		if (null != result) {
+			for (JsonNode stream : result) {
+				String name = stream.path("name").asText();
+				if (! name.equals("") && ! name.equals(ROOT_STREAM)) {
+					listed.add(name);
+				}
+			}
+		}
+
+		streams = listed;
+		listedMillis = System.currentTimeMillis();
+		saveCache();
+		LOGGER.info("Streams listed. streams=" + listed.size());
+	}
+
+	private boolean isFresh(long millis) {
+		return (millis > 0) && (System.currentTimeMillis() - millis < cacheTtlMillis);
+	}
+
+	/**
+	 * Loads the streams kept in the cache file, when they are fresh
+	 *
+	 * @return true when the streams were loaded
+	 */
+	private boolean loadCache() {
+		if ((null == cacheFile) || ! cacheFile.exists()) {
+			return false;
+		}
+
+		Properties cache;
+		try {
+			cache = Utils.loadPropertiesFile(cacheFile);
+		} catch (IOException e) {
+			LOGGER.warning("Unable to load the streams cache file " + cacheFile + ". Streams will be listed");
+			return false;
+		}
+
+		long cachedMillis = 0;
+		try {
+			cachedMillis = Long.parseLong(cache.getProperty(CACHE_LISTED, "0").trim());
+		} catch (NumberFormatException e) {
+			LOGGER.warning("invalid listed time in streams cache file " + cacheFile);
+		}
+		if (! isFresh(cachedMillis)) {
+			return false;
+		}
+
+		Set<String> cached = new HashSet<String>();
+		for (String stream : Utils.buildListFromString(cache.getProperty(CACHE_STREAMS, ""))) {
+			if (! stream.trim().equals("")) {
+				cached.add(stream.trim());
+			}
+		}
+
+		streams = cached;
+		listedMillis = cachedMillis;
+		LOGGER.info("Streams loaded from cache. streams=" + cached.size());
+		return true;
+	}
+
+	/**
+	 * Keeps the streams in the cache file, when configured
+	 */
+	private void saveCache() {
+		if (null == cacheFile) {
+			return;
+		}
+
+		StringBuilder names = new StringBuilder();
+		for (String stream : streams) {
+			if (names.length() > 0) {
+				names.append(',');
+			}
+			names.append(stream);
+		}
+
+		Properties cache = new Properties();
+		cache.setProperty(CACHE_LISTED, Long.toString(listedMillis));
+		cache.setProperty(CACHE_STREAMS, names.toString());
+
+		try {
+			Utils.storePropertiesFile(cache, cacheFile, "Streams of the chain");
+		} catch (IOException e) {
+			LOGGER.warning("Unable to write the streams cache file " + cacheFile + ". Streams will be listed by the next run");
+		}
+	}
+}
@@ -0,0 +1,285 @@
+package ca.nexcel.awbc.processor.query;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import ca.nexcel.awbc.processor.common.JsonRpcClient;
+import ca.nexcel.awbc.processor.common.JsonWriter;
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.payload.PayloadCodecBinary;
+import ca.nexcel.awbc.processor.payload.PayloadCodecJson;
+import ca.nexcel.awbc.processor.payload.PayloadPack;
+
+/**
+ * Reads the METARs written to the chain back into a MetarIndex: the latest
+ * items of every stream when the index is rebuilt at startup, and the latest
+ * items of a station when a station evicted from the index is queried.
+ * <p/>
+ * Only the raw text of a METAR is written to the chain. The observation time
+ * is therefore rebuilt from the observation date key (CCYYMMDD) and the time
+ * group of the raw text (DDHHMMZ). Items without a time group are skipped.
+ * <p/>
+ * The raw text is unescaped from JSON text data written by PayloadCodecJson, or 
+ * decoded from binary data written by PayloadCodecBinary. Data that cannot be 
+ * decoded is skipped.
+ * <p/>
+ * An item whose text is a PayloadPack holds several observations, with their
+ * station identifiers and observation times. Every observation of the pack is
+ * read, and only those of the station when a station is queried.
+ * <p/>
+ * The node read from must be subscribed to the streams.
+ *
+ * @author George Franciscus
+ *
+ */
+public class MetarChainReader {
+
+	private static final Logger LOGGER = Logger.getLogger(MetarChainReader.class.getName());
+
+	/**
+	 * Multichain command to list the latest items of a stream
+	 */
+	private static final String LISTSTREAMITEMS = "liststreamitems";
+
+	/**
+	 * Multichain command to list the latest items of a key of a stream
+	 */
+	private static final String LISTSTREAMKEYITEMS = "liststreamkeyitems";
+
+	private static final int DEFAULT_REBUILD_ITEMS = 5000;
+
+	private JsonRpcClient jsonRpcClient;
+
+	private int rebuildItems = DEFAULT_REBUILD_ITEMS;
+
+	/**
+	 * Decodes binary data, with the dictionaries it may have been compressed with
+	 */
+	private PayloadCodecBinary payloadDecoder = new PayloadCodecBinary();
+
+	/**
+	 * Unescapes JSON text data
+	 */
+	private final PayloadCodecJson textDecoder = new PayloadCodecJson();
+
+	public void setJsonRpcClient(JsonRpcClient jsonRpcClient) {
+		this.jsonRpcClient = jsonRpcClient;
+	}
+
+	/**
+	 * @param payloadDecoder decodes binary data, configured with the dictionary it is written with
+	 */
+	public void setPayloadDecoder(PayloadCodecBinary payloadDecoder) {
+		this.payloadDecoder = payloadDecoder;
+	}
+
+	/**
+	 * @param count the number of latest items of every stream read when the index is rebuilt. 0 does not rebuild.
+	 */
+	public void setRebuildItems(String count) {
+		if ((null == count) || count.trim().equals("")) {
+			rebuildItems = DEFAULT_REBUILD_ITEMS;
+			return;
+		}
+
+		rebuildItems = Math.max(0, Utils.stringToIntegerConverter(count, DEFAULT_REBUILD_ITEMS
+				, "invalid query.index.rebuild-items property defined. Defaulted to " + DEFAULT_REBUILD_ITEMS));
+	}
+
+	/**
+	 * Fills an index with the latest items of every stream on a thread of its own,
+	 * so that the processor starts without waiting for the chain to be read. Until
+	 * the index is filled, stations missing from it are read from the chain when queried.
+	 *
+	 * @param index the index
+	 * @param streams the streams read
+	 */
+	public void startRebuild(final MetarIndex index, List<String> streams) {
+		if (rebuildItems <= 0) {
+			return;
+		}
+
+		final List<String> rebuiltStreams = new ArrayList<String>(streams);
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				rebuild(index, rebuiltStreams);
+			}
+		}, "awbc-index-rebuild");
+		thread.setDaemon(true);
+		thread.start();
+		LOGGER.info("METAR index rebuild started. streams=" + rebuiltStreams.size() + " items per stream=" + rebuildItems);
+	}
+
+	/**
+	 * Fills an index with the latest items of every stream. A stream that cannot be read is skipped.
+	 *
+	 * @param index the index
+	 * @param streams the streams read
+	 */
+	public void rebuild(MetarIndex index, List<String> streams) {
+		if (rebuildItems <= 0) {
+			return;
+		}
+
+		long startMillis = System.currentTimeMillis();
+		for (String name : streams) {
+			String stream = name.trim();
+			JsonWriter params = new JsonWriter(64).beginArray()
+					.value(stream).value(false).value(rebuildItems).value(-rebuildItems)
+					.endArray();
+			index.addAll(read(LISTSTREAMITEMS, params, stream));
+		}
+		index.logSize("rebuilt from the chain in " + (System.currentTimeMillis() - startMillis) + " ms");
+	}
+
+	/**
+	 * Reads the latest items of a station
+	 *
+	 * @param stream the stream of the station
+	 * @param stationId the station identifier
+	 * @param count the number of latest items read
+	 * @return the observations read. None when the stream cannot be read.
+	 */
+	public List<MetarIndex.Observation> readStation(String stream, String stationId, int count) {
+		JsonWriter params = new JsonWriter(64).beginArray()
+				.value(stream).value(stationId).value(false).value(count).value(-count)
+				.endArray();
+		List<MetarIndex.Observation> observations = read(LISTSTREAMKEYITEMS, params, stream);
+		//the packs of a station key may hold the observations of other stations
+		for (Iterator<MetarIndex.Observation> iterator = observations.iterator(); iterator.hasNext();) {
+			if (! iterator.next().getStationId().equals(stationId)) {
+				iterator.remove();
+			}
+		}
+		return observations;
+	}
+
+	private List<MetarIndex.Observation> read(String method, JsonWriter params, String stream) {
+		JsonNode result;
+		try {
+			result = jsonRpcClient.call(method, params);
+		} catch (Exception e) {
+			LOGGER.warning("Unable to read METARs from stream " + stream + ". " + e.getMessage());
+			return new ArrayList<MetarIndex.Observation>();
+		}
+		if (null == result) {
+			return new ArrayList<MetarIndex.Observation>();
+		}
+
+		List<MetarIndex.Observation> observations = new ArrayList<MetarIndex.Observation>(result.size());
+		for (JsonNode item : result) {
+			addObservations(stream, item, observations);
+		}
+		return observations;
+	}
+
+	/**
+	 * Adds the observations of an item. An item that is not a METAR written by the processor adds none.
+	 *
+	 * @param stream the stream of the item
+	 * @param item an item of liststreamitems or liststreamkeyitems
+	 * @param observations the observations added to
+	 */
+	void addObservations(String stream, JsonNode item, List<MetarIndex.Observation> observations) {
+		JsonNode keys = item.path("keys");
+		String text = rawText(item.path("data"));
+		if (null == text) {
+			return;
+		}
+
+		if (PayloadPack.isPack(text)) {
+			PayloadPack pack;
+			try {
+				pack = PayloadPack.parse(text);
+			} catch (IllegalArgumentException e) {
+				LOGGER.warning("Unable to read the observations packed in an item. " + e.getMessage());
+				return;
+			}
+			for (int i = 0; i < pack.size(); i++) {
+				String observationTime = pack.getObservationTime(i);
+				String date = date(observationTime);
+				if (null != date) {
+					observations.add(new MetarIndex.Observation(stream, pack.getStationId(i), date, observationTime, pack.getRawText(i)));
+				}
+			}
+			return;
+		}
+
+		if (keys.size() < 2) {
+			return;
+		}
+		String stationId = keys.get(0).asText();
+		String date = keys.get(1).asText();
+		String observationTime = observationTime(date, text);
+		if (null != observationTime) {
+			observations.add(new MetarIndex.Observation(stream, stationId, date, observationTime, text));
+		}
+	}
+
+	/**
+	 * @param observationTime an observation time, CCYY-MM-DDTHH:MM:SSZ
+	 * @return the observation date, CCYYMMDD, or null when the observation time is not valid
+	 */
+	private static String date(String observationTime) {
+		if ((observationTime.length() < 10) || (observationTime.charAt(4) != '-') || (observationTime.charAt(7) != '-')) {
+			return null;
+		}
+		return new StringBuilder(8).append(observationTime, 0, 4).append(observationTime, 5, 7)
+				.append(observationTime, 8, 10).toString();
+	}
+
+	/**
+	 * @param data the data of an item, JSON text or binary data in hex
+	 * @return the raw text, or null when the data is neither
+	 */
+	private String rawText(JsonNode data) {
+		try {
+			if (! data.isTextual()) {
+				String text = data.path("text").asText(null);
+				return (null == text) ? null : textDecoder.decode(text);
+			}
+			return payloadDecoder.decode(data.asText());
+		} catch (IllegalArgumentException e) {
+			LOGGER.warning("Unable to decode the data of an item. " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Rebuilds the observation time of a METAR
+	 *
+	 * @param date the observation date, CCYYMMDD
+	 * @param rawText the raw text of the METAR, whose time group is DDHHMMZ
+	 * @return the observation time, CCYY-MM-DDTHH:MM:00Z, or null when it cannot be rebuilt
+	 */
+	static String observationTime(String date, String rawText) {
+		if (date.length() != 8) {
+			return null;
+		}
+
+		int end = rawText.length() - 7;
+		for (int i = 0; i <= end; i++) {
+			if (((i == 0) || (rawText.charAt(i - 1) == ' ')) && isTimeGroup(rawText, i)) {
+				return new StringBuilder(20)
+						.append(date, 0, 4).append('-').append(date, 4, 6).append('-').append(date, 6, 8)
+						.append('T').append(rawText, i + 2, i + 4).append(':').append(rawText, i + 4, i + 6)
+						.append(":00Z").toString();
+			}
+		}
+		return null;
+	}
+
+	private static boolean isTimeGroup(String text, int start) {
+		for (int i = start; i < start + 6; i++) {
+			char ch = text.charAt(i);
+			if ((ch < '0') || (ch > '9')) {
+				return false;
+			}
+		}
+		return (text.charAt(start + 6) == 'Z') && ((start + 7 == text.length()) || (text.charAt(start + 7) == ' '));
+	}
+}
@@ -0,0 +1,379 @@
+package ca.nexcel.awbc.processor.query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.metrics.MetricsRegistry;
+
+/**
+ * An in-memory index of the METARs published to the chain, so that the latest
+ * observation of a station, or its observations over a period, are found without
+ * calling liststreamkeyitems on the chain.
+ * <p/>
+ * Observations are indexed by the keys KeyCreatorMetar creates: the station
+ * identifier, and the observation date (CCYYMMDD). The observations of a station
+ * are held in observation time order. The date index holds the stations observed
+ * on every date.
+ * <p/>
+ * Memory is bounded. The stations are held in least recently used order, and the
+ * least recently used station is evicted once max-stations are held. A station
+ * holds its latest max-observations-per-station observations, and the date index
+ * holds the latest max-dates dates. The stream of every station seen is kept, so
+ * that an evicted station is read back from the chain when queried, when a
+ * MetarChainReader is set.
+ * <p/>
+ * The index is thread safe. It is filled by the publisher as batches are written,
+ * and queried by the HTTP threads of MetarQueryHttpEndpoint.
+ *
+ * @author George Franciscus
+ *
+ */
+public class MetarIndex {
+
+	private static final Logger LOGGER = Logger.getLogger(MetarIndex.class.getName());
+	private static final MetricsRegistry METRICS = MetricsRegistry.getDefault();
+
+	private static final int DEFAULT_MAX_STATIONS = 20000;
+	private static final int DEFAULT_MAX_OBSERVATIONS_PER_STATION = 48;
+	private static final int DEFAULT_MAX_DATES = 7;
+
+	private int maxStations = DEFAULT_MAX_STATIONS;
+	private int maxObservationsPerStation = DEFAULT_MAX_OBSERVATIONS_PER_STATION;
+	private int maxDates = DEFAULT_MAX_DATES;
+
+	/**
+	 * The observations of every station held, in least recently used order
+	 */
+	private final LinkedHashMap<String, NavigableMap<String, Observation>> stations
+		= new LinkedHashMap<String, NavigableMap<String, Observation>>(1024, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, NavigableMap<String, Observation>> eldest) {
+				if (size() > maxStations) {
+					METRICS.counter(MetricsRegistry.QUERY_EVICTIONS).increment();
+					return true;
+				}
+				return false;
+			}
+		};
+
+	/**
+	 * The stations observed on every date held, by CCYYMMDD
+	 */
+	private final TreeMap<String, Set<String>> dates = new TreeMap<String, Set<String>>();
+
+	/**
+	 * The stream of every station seen, including evicted stations
+	 */
+	private final Map<String, String> stationStreams = new HashMap<String, String>();
+
+	/**
+	 * Reads evicted stations back from the chain. A null value means they are not read back.
+	 */
+	private MetarChainReader chainReader = null;
+
+	/**
+	 * @param count the maximum number of stations held
+	 */
+	public void setMaxStations(String count) {
+		if ((null == count) || count.trim().equals("")) {
+			maxStations = DEFAULT_MAX_STATIONS;
+			return;
+		}
+
+		maxStations = Math.max(1, Utils.stringToIntegerConverter(count, DEFAULT_MAX_STATIONS
+				, "invalid query.index.max-stations property defined. Defaulted to " + DEFAULT_MAX_STATIONS));
+	}
+
+	/**
+	 * @param count the maximum number of observations held for a station
+	 */
+	public void setMaxObservationsPerStation(String count) {
+		if ((null == count) || count.trim().equals("")) {
+			maxObservationsPerStation = DEFAULT_MAX_OBSERVATIONS_PER_STATION;
+			return;
+		}
+
+		maxObservationsPerStation = Math.max(1, Utils.stringToIntegerConverter(count, DEFAULT_MAX_OBSERVATIONS_PER_STATION
+				, "invalid query.index.max-observations-per-station property defined. Defaulted to " + DEFAULT_MAX_OBSERVATIONS_PER_STATION));
+	}
+
+	/**
+	 * @param count the maximum number of dates held in the date index
+	 */
+	public void setMaxDates(String count) {
+		if ((null == count) || count.trim().equals("")) {
+			maxDates = DEFAULT_MAX_DATES;
+			return;
+		}
+
+		maxDates = Math.max(1, Utils.stringToIntegerConverter(count, DEFAULT_MAX_DATES
+				, "invalid query.index.max-dates property defined. Defaulted to " + DEFAULT_MAX_DATES));
+	}
+
+	/**
+	 * @param chainReader reads evicted stations back from the chain
+	 */
+	public void setChainReader(MetarChainReader chainReader) {
+		this.chainReader = chainReader;
+	}
+
+	public int getMaxObservationsPerStation() {
+		return maxObservationsPerStation;
+	}
+
+	/**
+	 * Adds an observation written to the chain. An observation already held is replaced.
+	 *
+	 * @param stream the stream the observation was written to
+	 * @param keys the keys of the observation, station identifier and observation date
+	 * @param observationTime the observation time, CCYY-MM-DDTHH:MM:SSZ
+	 * @param rawText the raw text written to the chain
+	 */
+	public void add(String stream, List<String> keys, String observationTime, String rawText) {
+		if ((keys.size() < 2) || (null == observationTime) || (null == rawText)) {
+			return;
+		}
+
+		Observation observation = new Observation(stream, keys.get(0), keys.get(1), observationTime.trim(), rawText);
+		synchronized (this) {
+			add(observation);
+		}
+	}
+
+	/**
+	 * Adds observations read from the chain
+	 *
+	 * @param observations the observations
+	 */
+	public synchronized void addAll(Collection<Observation> observations) {
+		for (Observation observation : observations) {
+			add(observation);
+		}
+	}
+
+	private void add(Observation observation) {
+		String stationId = observation.getStationId();
+		stationStreams.put(stationId, observation.getStream());
+
+		NavigableMap<String, Observation> observations = stations.get(stationId);
+		if (null == observations) {
+			observations = new TreeMap<String, Observation>();
+			stations.put(stationId, observations);
+		}
+		observations.put(observation.getObservationTime(), observation);
+		while (observations.size() > maxObservationsPerStation) {
+			observations.pollFirstEntry();
+		}
+
+		Set<String> dateStations = dates.get(observation.getDate());
+		if (null == dateStations) {
+			if ((dates.size() >= maxDates) && (observation.getDate().compareTo(dates.firstKey()) < 0)) {
+				return; //older than every date held
+			}
+			dateStations = new HashSet<String>();
+			dates.put(observation.getDate(), dateStations);
+			while (dates.size() > maxDates) {
+				dates.pollFirstEntry();
+			}
+		}
+		dateStations.add(stationId);
+	}
+
+	/**
+	 * @param stationId the station identifier
+	 * @return the latest observation of the station, or null when none is known
+	 */
+	public Observation latest(String stationId) {
+		NavigableMap<String, Observation> observations = find(stationId);
+		if (null == observations) {
+			return null;
+		}
+		synchronized (this) {
+			Map.Entry<String, Observation> latest = observations.lastEntry();
+			return (null == latest) ? null : latest.getValue();
+		}
+	}
+
+	/**
+	 * Finds the observations of a station over a period. Times are compared as
+	 * text, so they must be given in full, CCYY-MM-DDTHH:MM:SSZ.
+	 *
+	 * @param stationId the station identifier
+	 * @param fromTime the earliest observation time, included. A null value means from the earliest held.
+	 * @param toTime the latest observation time, included. A null value means to the latest held.
+	 * @return the observations in observation time order
+	 */
+	public List<Observation> range(String stationId, String fromTime, String toTime) {
+		NavigableMap<String, Observation> observations = find(stationId);
+		if (null == observations) {
+			return Collections.emptyList();
+		}
+		synchronized (this) {
+			NavigableMap<String, Observation> period = observations;
+			if ((null != fromTime) && (null != toTime)) {
+				if (fromTime.compareTo(toTime) > 0) {
+					return Collections.emptyList();
+				}
+				period = observations.subMap(fromTime, true, toTime, true);
+			} else if (null != fromTime) {
+				period = observations.tailMap(fromTime, true);
+			} else if (null != toTime) {
+				period = observations.headMap(toTime, true);
+			}
+			return new ArrayList<Observation>(period.values());
+		}
+	}
+
+	/**
+	 * Finds the observations of a date
+	 *
+	 * @param date the observation date, CCYYMMDD
+	 * @param stream the stream of the stations. A null value means every stream.
+	 * @return the observations, by station and in observation time order
+	 */
+	public List<Observation> date(String date, String stream) {
+		List<String> dateStations;
+		synchronized (this) {
+			Set<String> observed = dates.get(date);
+			if (null == observed) {
+				return Collections.emptyList();
+			}
+			dateStations = new ArrayList<String>(observed.size());
+			for (String stationId : observed) {
+				if ((null == stream) || stream.equals(stationStreams.get(stationId))) {
+					dateStations.add(stationId);
+				}
+			}
+		}
+		Collections.sort(dateStations);
+
+		List<Observation> observations = new ArrayList<Observation>();
+		for (String stationId : dateStations) {
+			for (Observation observation : range(stationId, null, null)) {
+				if (observation.getDate().equals(date)) {
+					observations.add(observation);
+				}
+			}
+		}
+		return observations;
+	}
+
+	/**
+	 * Finds the observations of a station, reading them back from the chain
+	 * when the station was evicted
+	 *
+	 * @param stationId the station identifier
+	 * @return the observations of the station, or null when none is known
+	 */
+	private NavigableMap<String, Observation> find(String stationId) {
+		String stream;
+		synchronized (this) {
+			NavigableMap<String, Observation> observations = stations.get(stationId);
+			if (null != observations) {
+				METRICS.counter(MetricsRegistry.QUERY_HITS).increment();
+				return observations;
+			}
+			stream = stationStreams.get(stationId);
+		}
+		METRICS.counter(MetricsRegistry.QUERY_MISSES).increment();
+		if ((null == stream) || (null == chainReader)) {
+			return null;
+		}
+
+		//read outside of the lock, the chain is much slower than the index
+		List<Observation> observations = chainReader.readStation(stream, stationId, maxObservationsPerStation);
+		synchronized (this) {
+			addAll(observations);
+			return stations.get(stationId);
+		}
+	}
+
+	/**
+	 * @return the number of stations held
+	 */
+	public synchronized int getStationCount() {
+		return stations.size();
+	}
+
+	/**
+	 * @return the number of observations held
+	 */
+	public synchronized int getObservationCount() {
+		int count = 0;
+		for (NavigableMap<String, Observation> observations : stations.values()) {
+			count += observations.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Logs the size of the index
+	 *
+	 * @param event what changed the index
+	 */
+	void logSize(String event) {
+		LOGGER.info("metar index " + event + ". stations=" + getStationCount() + " observations=" + getObservationCount());
+	}
+
+
+	/**
+	 * An observation written to the chain. Observations are immutable.
+	 *
+	 * @author George Franciscus
+	 *
+	 */
+	public static class Observation {
+		private final String stream;
+		private final String stationId;
+		private final String date;
+		private final String observationTime;
+		private final String rawText;
+
+		public Observation(String stream, String stationId, String date, String observationTime, String rawText) {
+			this.stream = stream;
+			this.stationId = stationId;
+			this.date = date;
+			this.observationTime = observationTime;
+			this.rawText = rawText;
+		}
+
+		public String getStream() {
+			return stream;
+		}
+
+		public String getStationId() {
+			return stationId;
+		}
+
+		/**
+		 * @return the observation date, CCYYMMDD
+		 */
+		public String getDate() {
+			return date;
+		}
+
+		/**
+		 * @return the observation time, CCYY-MM-DDTHH:MM:SSZ
+		 */
+		public String getObservationTime() {
+			return observationTime;
+		}
+
+		public String getRawText() {
+			return rawText;
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package ca.nexcel.awbc.processor.query;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import ca.nexcel.awbc.processor.common.JsonWriter;
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.metrics.MetricsRegistry;
+
+/**
+ * Serves the METARs of a MetarIndex over HTTP, in JSON, so that consumers
+ * do not have to call liststreamkeyitems on the chain.
+ * <p/>
+ * /metars/latest?station=CYOW returns the latest observation of a station.
+ * <br/>
+ * /metars/range?station=CYOW&from=2018-11-05T00:00:00Z&to=2018-11-05T12:00:00Z
+ * returns the observations of a station over a period, from and to included.
+ * Either may be left out.
+ * <br/>
+ * /metars/date?date=20181105&stream=CA returns the observations of a date,
+ * of the stations of a stream. The stream may be left out.
+ * <p/>
+ * An observation is returned as {"stream":,"station_id":,"observation_time":,"raw_text":}.
+ * A station that is not known is answered with 404. The time taken by every query
+ * is kept in the histogram stage.query.
+ * <p/>
+ * The endpoint binds to the loopback interface unless another host is configured.
+ *
+ * @author George Franciscus
+ *
+ */
+public class MetarQueryHttpEndpoint {
+
+	private static final Logger LOGGER = Logger.getLogger(MetarQueryHttpEndpoint.class.getName());
+	private static final MetricsRegistry METRICS = MetricsRegistry.getDefault();
+
+	private static final String CONTEXT = "/metars/";
+	private static final String LATEST = "latest";
+	private static final String RANGE = "range";
+	private static final String DATE = "date";
+	private static final int DEFAULT_THREADS = 2;
+
+	private MetarIndex index;
+	private int threads = DEFAULT_THREADS;
+	private HttpServer server;
+	private ExecutorService executor;
+
+	public MetarQueryHttpEndpoint(MetarIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * @param count the number of threads answering queries
+	 */
+	public void setThreads(String count) {
+		if ((null == count) || count.trim().equals("")) {
+			threads = DEFAULT_THREADS;
+			return;
+		}
+
+		threads = Math.max(1, Utils.stringToIntegerConverter(count, DEFAULT_THREADS
+				, "invalid query.http.threads property defined. Defaulted to " + DEFAULT_THREADS));
+	}
+
+	/**
+	 * Starts serving queries
+	 *
+	 * @param host the host name or address bound to
+	 * @param port the port bound to
+	 * @throws IOException when the port cannot be bound
+	 */
+	public void start(String host, int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(host, port), 0);
+		server.createContext(CONTEXT, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				long startNanos = System.nanoTime();
+				METRICS.counter(MetricsRegistry.QUERY_REQUESTS).increment();
+				JsonWriter body = new JsonWriter(1024);
+				int status;
+				try {
+					status = answer(exchange.getRequestURI().getPath().substring(CONTEXT.length())
+							, parameters(exchange.getRequestURI().getRawQuery()), body);
+				} catch (RuntimeException e) {
+					LOGGER.severe("Unable to answer METAR query " + exchange.getRequestURI());
+					e.printStackTrace();
+					body.reset();
+					status = 500;
+					error(body, "internal error");
+				}
+				METRICS.histogram(MetricsRegistry.STAGE_QUERY).recordSince(startNanos);
+
+				exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+				exchange.sendResponseHeaders(status, body.size());
+				OutputStream output = exchange.getResponseBody();
+				body.writeTo(output);
+				output.close();
+			}
+		});
+		final AtomicInteger threadNumber = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "awbc-query-http-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+		LOGGER.info("METAR queries served at http://" + host + ":" + server.getAddress().getPort() + CONTEXT);
+	}
+
+	/**
+	 * Stops serving queries
+	 */
+	public void stop() {
+		if (null != server) {
+			server.stop(0);
+			executor.shutdownNow();
+			server = null;
+		}
+	}
+
+	/**
+	 * @return the port served, useful when started on port 0
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Answers a query
+	 *
+	 * @param query latest, range or date
+	 * @param parameters the parameters of the query
+	 * @param body the body of the answer
+	 * @return the HTTP status of the answer
+	 */
+	int answer(String query, Map<String, String> parameters, JsonWriter body) {
+		String stationId = parameters.get("station");
+		if (LATEST.equals(query)) {
+			if (null == stationId) {
+				return error(body, "station is missing");
+			}
+			MetarIndex.Observation observation = index.latest(stationId);
+			if (null == observation) {
+				error(body, "station not found");
+				return 404;
+			}
+			write(body, observation);
+			return 200;
+		}
+
+		if (RANGE.equals(query)) {
+			if (null == stationId) {
+				return error(body, "station is missing");
+			}
+			List<MetarIndex.Observation> observations = index.range(stationId, parameters.get("from"), parameters.get("to"));
+			if (observations.isEmpty() && (null == index.latest(stationId))) {
+				error(body, "station not found");
+				return 404;
+			}
+			write(body, observations);
+			return 200;
+		}
+
+		if (DATE.equals(query)) {
+			String date = parameters.get("date");
+			if ((null == date) || (date.length() != 8)) {
+				return error(body, "date is missing, it must be given as CCYYMMDD");
+			}
+			write(body, index.date(date, parameters.get("stream")));
+			return 200;
+		}
+
+		error(body, "unknown query, use latest, range or date");
+		return 404;
+	}
+
+	private static void write(JsonWriter body, List<MetarIndex.Observation> observations) {
+		body.beginArray();
+		for (int i = 0; i < observations.size(); i++) {
+			write(body, observations.get(i));
+		}
+		body.endArray();
+	}
+
+	private static void write(JsonWriter body, MetarIndex.Observation observation) {
+		body.beginObject();
+		body.name("stream").value(observation.getStream());
+		body.name("station_id").value(observation.getStationId());
+		body.name("observation_time").value(observation.getObservationTime());
+		body.name("raw_text").value(observation.getRawText());
+		body.endObject();
+	}
+
+	/**
+	 * @return 400, the status of a query that is not valid
+	 */
+	private static int error(JsonWriter body, String message) {
+		body.beginObject().name("error").value(message).endObject();
+		return 400;
+	}
+
+	/**
+	 * @param query the raw query of the URI, name=value pairs separated by ampersands
+	 * @return the parameters by name. Parameters without a value are left out.
+	 */
+	static Map<String, String> parameters(String query) {
+		Map<String, String> parameters = new HashMap<String, String>();
+		if (null == query) {
+			return parameters;
+		}
+		for (String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			if ((equals > 0) && (equals < pair.length() - 1)) {
+				try {
+					parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8")
+							, URLDecoder.decode(pair.substring(equals + 1), "UTF-8").trim());
+				} catch (UnsupportedEncodingException e) {
+					//UTF-8 is always supported
+				} catch (IllegalArgumentException e) {
+					//a malformed escape, the parameter is left out
+				}
+			}
+		}
+		return parameters;
+	}
+}
@@ -0,0 +1,45 @@
+package ca.nexcel.awbc.processor.source;
+
+import java.io.IOException;
+
+/**
+ * Fetches weather data from a source such as aviationweather.gov. The 
+ * implementation class of this interface may simply open the URL, or 
+ * may reuse connections and avoid fetching content that has not changed.
+ * <p/>
+ * Countries may be fetched concurrently, so implementations must allow
+ * open to be called from several threads.
+ * 
+ * @author George Franciscus
+ */
+public interface SourceClient {
+	
+	/**
+	 * Performs any initializing activities. Must be called before open.
+	 */
+	public void initialize();
+	
+	/**
+	 * Opens the content of a URL. The content is decompressed while it is read.
+	 * 
+	 * @param url the URL of the content
+	 * @return the response, which must be closed. A response may report the content 
+	 * has not changed since it was last processed, in which case it has no content
+	 * @throws IOException when the content cannot be fetched
+	 */
+	public SourceResponse open(String url) throws IOException;
+	
+	/**
+	 * Records that the content of a response was processed successfully, so that
+	 * it is not fetched again until it changes. Content that fails to be processed
+	 * is fetched again.
+	 * 
+	 * @param response a response obtained from open
+	 */
+	public void processed(SourceResponse response);
+	
+	/**
+	 * Performs any finalizing activities.
+	 */
+	public void finalize();
+}
@@ -0,0 +1,262 @@
+package ca.nexcel.awbc.processor.source;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.metrics.CountingInputStream;
+import ca.nexcel.awbc.processor.metrics.MetricsRegistry;
+
+/**
+ * Fetches content over HTTP, reusing connections and avoiding fetching 
+ * content that has not changed since it was last processed.
+ * <p/>
+ * Requests ask for gzip compressed content, which is decompressed while
+ * it is parsed. Connections are kept alive and reused by later requests to 
+ * the same server, provided the content is read to the end. Connecting and 
+ * reading time out, so that a stalled server does not stall a run.
+ * <p/>
+ * The ETag and Last-Modified date of content processed successfully are 
+ * remembered, and sent with the next request for the same URL. A server 
+ * answering 304 Not Modified sends no content, and the response reports the
+ * content has not changed, so it is not parsed again. The validators may be
+ * kept in a file, so that they are remembered by the next run of the processor.
+ * <p/>
+ * URLs other than http and https, such as file URLs, are simply opened.
+ * 
+ * @author George Franciscus
+ *
+ */
+public class SourceClientHttp implements SourceClient {
+	
+	private static final Logger LOGGER = Logger.getLogger(SourceClientHttp.class.getName());
+	private static final MetricsRegistry METRICS = MetricsRegistry.getDefault();
+	
+	private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+	private static final int DEFAULT_READ_TIMEOUT_MILLIS = 60000;
+	
+	/**
+	 * Separates the validators of a URL in the cache file
+	 */
+	private static final String SEPARATOR = "\t";
+	
+	private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+	private int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+	
+	/**
+	 * The file validators are kept in between runs. A null value means validators
+	 * are only remembered while the processor runs.
+	 */
+	private File cacheFile = null;
+	
+	/**
+	 * The validators of the content processed, by URL
+	 */
+	private ConcurrentMap<String, Validators> validators = new ConcurrentHashMap<String, Validators>();
+	
+	/**
+	 * Set when validators are remembered that are not yet kept in the cache file
+	 */
+	private volatile boolean isCacheChanged = false;
+	
+	private boolean isCacheLoaded = false;
+	
+	/**
+	 * Sets the time allowed to connect to the server
+	 * 
+	 * @param millis the connect timeout in milliseconds
+	 */
+	public void setConnectTimeoutMillis(String millis) {
+		if ((null == millis) || millis.trim().equals("")) {
+			connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+			return; 
+		} 
+		
+		connectTimeoutMillis = Math.max(0, Utils.stringToIntegerConverter(millis, DEFAULT_CONNECT_TIMEOUT_MILLIS
+				, "invalid connect-timeout-ms property defined. Defaulted to " + DEFAULT_CONNECT_TIMEOUT_MILLIS));
+	}
+	
+	/**
+	 * Sets the time allowed to wait for content from the server
+	 * 
+	 * @param millis the read timeout in milliseconds
+	 */
+	public void setReadTimeoutMillis(String millis) {
+		if ((null == millis) || millis.trim().equals("")) {
+			readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+			return; 
+		} 
+		
+		readTimeoutMillis = Math.max(0, Utils.stringToIntegerConverter(millis, DEFAULT_READ_TIMEOUT_MILLIS
+				, "invalid read-timeout-ms property defined. Defaulted to " + DEFAULT_READ_TIMEOUT_MILLIS));
+	}
+	
+	/**
+	 * Sets the file validators are kept in between runs
+	 * 
+	 * @param fileName the name and path of the cache file. Not set means validators are not kept between runs
+	 */
+	public void setCacheFile(String fileName) {
+		cacheFile = ((null == fileName) || fileName.trim().equals("")) ? null : new File(fileName.trim());
+	}
+	
+	/**
+	 * Sets the number of idle connections kept alive per server, so that countries fetched 
+	 * concurrently each reuse a connection. The http.maxConnections system property 
+	 * is left unchanged when set on the command line. Must be called before the first
+	 * connection is made.
+	 * 
+	 * @param connections the number of connections
+	 */
+	public void setMaxConnections(int connections) {
+		if (null == System.getProperty("http.maxConnections")) {
+			System.setProperty("http.maxConnections", "" + Math.max(1, connections));
+		}
+	}
+	
+	/**
+	 * Loads the validators kept in the cache file, once
+	 */
+	public synchronized void initialize() {
+		if (isCacheLoaded || (null == cacheFile) || ! cacheFile.exists()) {
+			return;
+		}
+		isCacheLoaded = true;
+		
+		Properties cache;
+		try {
+			cache = Utils.loadPropertiesFile(cacheFile);
+		} catch (IOException e) {
+			LOGGER.warning("Unable to load the source cache file " + cacheFile + ". Every source will be fetched");
+			return;
+		}
+		
+		for (String url : cache.stringPropertyNames()) {
+			String[] values = cache.getProperty(url).split(SEPARATOR, -1);
+			if (values.length == 3) {
+				validators.put(url, new Validators(emptyToNull(values[0]), emptyToNull(values[1])
+						, Utils.stringToIntegerConverter(values[2], 0, "invalid size in source cache file for " + url)));
+			}
+		}
+		LOGGER.info("source cache loaded. urls=" + validators.size());
+	}
+	
+	public SourceResponse open(String url) throws IOException {
+		METRICS.counter(MetricsRegistry.SOURCE_REQUESTS).increment();
+		if (! url.startsWith("http:") && ! url.startsWith("https:")) {
+			return new SourceResponse(url, Utils.openStream(url), null, null, null);
+		}
+		
+		long startNanos = System.nanoTime();
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setConnectTimeout(connectTimeoutMillis);
+		connection.setReadTimeout(readTimeoutMillis);
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+		
+		Validators cached = validators.get(url);
+		if (null != cached) {
+			if (null != cached.entityTag) {
+				connection.setRequestProperty("If-None-Match", cached.entityTag);
+			}
+			if (null != cached.lastModified) {
+				connection.setRequestProperty("If-Modified-Since", cached.lastModified);
+			}
+		}
+		
+		int status = connection.getResponseCode();
+		
+		if ((status == HttpURLConnection.HTTP_NOT_MODIFIED) && (null != cached)) {
+			METRICS.histogram(MetricsRegistry.STAGE_FETCH).recordSince(startNanos);
+			METRICS.counter(MetricsRegistry.SOURCE_NOT_MODIFIED).increment();
+			METRICS.counter(MetricsRegistry.BYTES_SAVED).add(cached.size);
+			
+			//closing the empty content returns the connection to be reused
+			Utils.closeQuietly(connection.getInputStream());
+			return new SourceResponse(url);
+		}
+		
+		if (status != HttpURLConnection.HTTP_OK) {
+			Utils.closeQuietly(connection.getErrorStream());
+			throw new IOException("Server returned HTTP response code: " + status + " for URL: " + url);
+		}
+		
+		CountingInputStream fetchedStream = new CountingInputStream(connection.getInputStream()
+				, METRICS.counter(MetricsRegistry.BYTES_FETCHED));
+		return new SourceResponse(url, Utils.decompressStream(fetchedStream, startNanos)
+				, connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"), fetchedStream);
+	}
+	
+	/**
+	 * Remembers the validators of the content processed
+	 */
+	public void processed(SourceResponse response) {
+		if (response.isNotModified()) {
+			return;
+		}
+		
+		if ((null == response.getEntityTag()) && (null == response.getLastModified())) {
+			//the server does not support conditional requests for this content
+			if (null != validators.remove(response.getUrl())) {
+				isCacheChanged = true;
+			}
+			return;
+		}
+		
+		validators.put(response.getUrl(), new Validators(response.getEntityTag(), response.getLastModified()
+				, response.getBytesTransferred()));
+		isCacheChanged = true;
+	}
+	
+	/**
+	 * Keeps the validators in the cache file, when configured
+	 */
+	public synchronized void finalize() {
+		if ((null == cacheFile) || ! isCacheChanged) {
+			return;
+		}
+		isCacheChanged = false;
+		
+		Properties cache = new Properties();
+		for (Map.Entry<String, Validators> entry : validators.entrySet()) {
+			Validators cached = entry.getValue();
+			cache.setProperty(entry.getKey(), nullToEmpty(cached.entityTag) + SEPARATOR 
+					+ nullToEmpty(cached.lastModified) + SEPARATOR + cached.size);
+		}
+		
+		try {
+			Utils.storePropertiesFile(cache, cacheFile, "ETag and Last-Modified of the sources processed");
+		} catch (IOException e) {
+			LOGGER.warning("Unable to write the source cache file " + cacheFile + ". Every source will be fetched by the next run");
+		}
+	}
+	
+	private static String emptyToNull(String value) {
+		return value.equals("") ? null : value;
+	}
+	
+	private static String nullToEmpty(String value) {
+		return (null == value) ? "" : value;
+	}
+	
+	/**
+	 * The validators of content, and its size as transferred
+	 */
+	private static class Validators {
+		private String entityTag;
+		private String lastModified;
+		private long size;
+		
+		Validators(String entityTag, String lastModified, long size) {
+			this.entityTag = entityTag;
+			this.lastModified = lastModified;
+			this.size = size;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package ca.nexcel.awbc.processor.source;
+
+import java.io.IOException;
+
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.metrics.MetricsRegistry;
+
+/**
+ * Opens the URL of the content every time it is requested, using the 
+ * connection settings of the JVM. Content compressed with gzip, such as
+ * the aviationweather.gov cache files, is decompressed while it is read.
+ * 
+ * @author George Franciscus
+ *
+ */
+public class SourceClientUrl implements SourceClient {
+	
+	public void initialize() {
+	}
+	
+	public SourceResponse open(String url) throws IOException {
+		MetricsRegistry.getDefault().counter(MetricsRegistry.SOURCE_REQUESTS).increment();
+		return new SourceResponse(url, Utils.openStream(url), null, null, null);
+	}
+	
+	public void processed(SourceResponse response) {
+	}
+	
+	public void finalize() {
+	}
+}
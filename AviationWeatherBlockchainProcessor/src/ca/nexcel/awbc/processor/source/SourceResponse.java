@@ -0,0 +1,87 @@
+package ca.nexcel.awbc.processor.source;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import ca.nexcel.awbc.processor.metrics.CountingInputStream;
+
+/**
+ * The response of a source client to a request for content
+ * 
+ * @author George Franciscus
+ *
+ */
+public class SourceResponse implements Closeable {
+	
+	private String url;
+	private InputStream inputStream;
+	private String entityTag;
+	private String lastModified;
+	private CountingInputStream bytes;
+	
+	/**
+	 * Creates a response with content
+	 * 
+	 * @param url the URL of the content
+	 * @param inputStream the uncompressed content
+	 * @param entityTag the ETag of the content. May be null
+	 * @param lastModified the Last-Modified date of the content. May be null
+	 * @param bytes the stream of the content as transferred, counting the bytes transferred. May be null
+	 */
+	SourceResponse(String url, InputStream inputStream, String entityTag, String lastModified, CountingInputStream bytes) {
+		this.url = url;
+		this.inputStream = inputStream;
+		this.entityTag = entityTag;
+		this.lastModified = lastModified;
+		this.bytes = bytes;
+	}
+	
+	/**
+	 * Creates a response reporting the content has not changed
+	 * 
+	 * @param url the URL of the content
+	 */
+	SourceResponse(String url) {
+		this.url = url;
+	}
+	
+	public String getUrl() {
+		return url;
+	}
+	
+	/**
+	 * @return the uncompressed content, or null when the content has not changed
+	 */
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+	
+	/**
+	 * @return true when the content has not changed since it was last processed
+	 */
+	public boolean isNotModified() {
+		return null == inputStream;
+	}
+	
+	String getEntityTag() {
+		return entityTag;
+	}
+	
+	String getLastModified() {
+		return lastModified;
+	}
+	
+	/**
+	 * @return the number of bytes transferred so far, compressed when the content was compressed
+	 */
+	long getBytesTransferred() {
+		return (null == bytes) ? 0 : bytes.getCount();
+	}
+	
+	public void close() throws IOException {
+		if (null != inputStream) {
+			inputStream.close();
+		}
+	}
+}
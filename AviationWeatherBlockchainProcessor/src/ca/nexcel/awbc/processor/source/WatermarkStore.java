@@ -0,0 +1,331 @@
+package ca.nexcel.awbc.processor.source;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.model.Metric;
+
+/**
+ * The newest observation time of the metars processed, by country, kept in a
+ * file between runs, so that every run fetches only the metars observed since.
+ * <p/>
+ * Observation times are seen while the metars of a country are parsed. The newest
+ * becomes the watermark of the country once the publisher is finalized, provided
+ * the metars of the country were parsed successfully and none was discarded, rejected
+ * by the chain or left unwritten. Otherwise the country keeps its watermark, so the
+ * next run fetches its metars again. A watermark never moves back.
+ * <p/>
+ * The url of a country with a watermark is made incremental by replacing its
+ * hoursBeforeNow parameter with startTime and endTime. The start time is the
+ * watermark less an overlap, as a metar may reach the server after later ones,
+ * and no earlier than the catch-up limit, however long ago the last run was.
+ * A country without a watermark is fetched with the url as configured.
+ *
+ * @author George Franciscus
+ *
+ */
+public class WatermarkStore {
+
+	private static final Logger LOGGER = Logger.getLogger(WatermarkStore.class.getName());
+
+	private static final int DEFAULT_OVERLAP_MINUTES = 15;
+	private static final int DEFAULT_MAX_CATCH_UP_HOURS = 72;
+
+	/**
+	 * The format of observation times and of the start and end times of a request, CCYY-MM-DDTHH:MM:SSZ
+	 */
+	private static final String TIME_FORMAT = "yyyy-MM-dd'T'HH:mm:ss'Z'";
+
+	/**
+	 * The parameter of the url replaced by the start and end times
+	 */
+	private static final Pattern HOURS_BEFORE_NOW = Pattern.compile("hoursBeforeNow=[^&]*");
+
+	/**
+	 * The file watermarks are kept in between runs. A null value means watermarks
+	 * are only remembered while the processor runs.
+	 */
+	private File file = null;
+
+	private int overlapMinutes = DEFAULT_OVERLAP_MINUTES;
+	private int maxCatchUpHours = DEFAULT_MAX_CATCH_UP_HOURS;
+
+	/**
+	 * The watermarks, by country
+	 */
+	private final ConcurrentMap<String, String> watermarks = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * The newest observation times seen while the metars of countries are parsed, by country
+	 */
+	private final ConcurrentMap<String, String> observed = new ConcurrentHashMap<String, String>();
+	
+	/**
+	 * The countries whose metars were parsed successfully during the run
+	 */
+	private final Set<String> parsed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	
+	/**
+	 * The countries a metar of which was discarded by the publisher during the run
+	 */
+	private final Set<String> discarded = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Set when watermarks are moved that are not yet kept in the file
+	 */
+	private volatile boolean isChanged = false;
+
+	private boolean isLoaded = false;
+
+	/**
+	 * Sets the file watermarks are kept in between runs
+	 *
+	 * @param fileName the name and path of the watermark file. Not set means watermarks are not kept between runs
+	 */
+	public void setFile(String fileName) {
+		file = ((null == fileName) || fileName.trim().equals("")) ? null : new File(fileName.trim());
+	}
+
+	/**
+	 * Sets how long before the watermark metars are fetched again
+	 *
+	 * @param minutes the overlap in minutes
+	 */
+	public void setOverlapMinutes(String minutes) {
+		if ((null == minutes) || minutes.trim().equals("")) {
+			overlapMinutes = DEFAULT_OVERLAP_MINUTES;
+			return;
+		}
+
+		overlapMinutes = Math.max(0, Utils.stringToIntegerConverter(minutes, DEFAULT_OVERLAP_MINUTES
+				, "invalid watermark.overlap-minutes property defined. Defaulted to " + DEFAULT_OVERLAP_MINUTES));
+	}
+
+	/**
+	 * Sets how far back metars are fetched after a gap between runs
+	 *
+	 * @param hours the maximum number of hours before now
+	 */
+	public void setMaxCatchUpHours(String hours) {
+		if ((null == hours) || hours.trim().equals("")) {
+			maxCatchUpHours = DEFAULT_MAX_CATCH_UP_HOURS;
+			return;
+		}
+
+		maxCatchUpHours = Math.max(1, Utils.stringToIntegerConverter(hours, DEFAULT_MAX_CATCH_UP_HOURS
+				, "invalid watermark.max-catch-up-hours property defined. Defaulted to " + DEFAULT_MAX_CATCH_UP_HOURS));
+	}
+
+	/**
+	 * Loads the watermarks kept in the file, once
+	 */
+	public synchronized void initialize() {
+		if (isLoaded || (null == file) || ! file.exists()) {
+			return;
+		}
+		isLoaded = true;
+
+		Properties properties;
+		try {
+			properties = Utils.loadPropertiesFile(file);
+		} catch (IOException e) {
+			LOGGER.warning("Unable to load the watermark file " + file + ". Every country will be fetched as configured");
+			return;
+		}
+
+		for (String country : properties.stringPropertyNames()) {
+			String watermark = properties.getProperty(country).trim();
+			if (isObservationTime(watermark)) {
+				watermarks.put(country, watermark);
+			}
+		}
+		LOGGER.info("watermarks loaded. countries=" + watermarks.size());
+	}
+
+	/**
+	 * @param country the country
+	 * @return the newest observation time of the metars of the country processed, or null when none were
+	 */
+	public String get(String country) {
+		return watermarks.get(country);
+	}
+
+	/**
+	 * Makes the url of a country incremental
+	 *
+	 * @param url the url of the metars of the country
+	 * @param country the country
+	 * @return the url asking for the metars observed since the watermark, or null when the country has no watermark
+	 */
+	public String incrementalUrl(String url, String country) {
+		String watermark = watermarks.get(country);
+		if (null == watermark) {
+			return null;
+		}
+
+		long nowMillis = System.currentTimeMillis();
+		long startMillis;
+		try {
+			startMillis = newTimeFormat().parse(watermark).getTime();
+		} catch (ParseException e) {
+			return null;
+		}
+		//an observation time ahead of the clock does not skip the metars observed until then
+		startMillis = Math.min(startMillis, nowMillis) - (overlapMinutes * 60L * 1000L);
+		startMillis = Math.max(startMillis, nowMillis - (maxCatchUpHours * 60L * 60L * 1000L));
+
+		SimpleDateFormat timeFormat = newTimeFormat();
+		String range = "startTime=" + timeFormat.format(new Date(startMillis))
+				+ "&endTime=" + timeFormat.format(new Date(nowMillis + (overlapMinutes * 60L * 1000L)));
+		Matcher matcher = HOURS_BEFORE_NOW.matcher(url);
+		if (matcher.find()) {
+			return url.substring(0, matcher.start()) + range + url.substring(matcher.end());
+		}
+		return url + ((url.indexOf('?') < 0) ? '?' : '&') + range;
+	}
+
+	/**
+	 * Forgets what was seen while the metars of a country were last parsed.
+	 * Called before the metars of the country are fetched.
+	 *
+	 * @param country the country
+	 */
+	public void begin(String country) {
+		observed.remove(country);
+		parsed.remove(country);
+		discarded.remove(country);
+	}
+
+	/**
+	 * Remembers the observation time of a metar parsed. Observation times that are not
+	 * CCYY-MM-DDTHH:MM:SSZ are ignored.
+	 *
+	 * @param country the country of the metar
+	 * @param observationTime the observation time
+	 */
+	public void observe(String country, String observationTime) {
+		if (! isObservationTime(observationTime)) {
+			return;
+		}
+
+		String newest = observed.get(country);
+		while ((null == newest) || (observationTime.compareTo(newest) > 0)) {
+			if ((null == newest) ? (null == observed.putIfAbsent(country, observationTime))
+					: observed.replace(country, newest, observationTime)) {
+				return;
+			}
+			newest = observed.get(country);
+		}
+	}
+
+	/**
+	 * Remembers that a metar of a country was discarded by the publisher, so
+	 * that the watermark of the country is not moved during this run
+	 *
+	 * @param country the country of the metar
+	 */
+	public void discarded(String country) {
+		discarded.add(country);
+	}
+
+	/**
+	 * Remembers that the metars of a country were parsed successfully
+	 *
+	 * @param country the country
+	 */
+	public void parsed(String country) {
+		parsed.add(country);
+	}
+
+	/**
+	 * Moves the watermark of every country parsed successfully to the newest observation
+	 * time seen, unless a metar of the country was discarded or not written. Called once
+	 * the publisher is finalized, so that every metar has been written or has failed.
+	 *
+	 * @param metrics the publication metrics of the run, by country
+	 */
+	public void commit(Map<String, Metric> metrics) {
+		for (String country : parsed) {
+			Metric metric = metrics.get(country);
+			String newest = observed.remove(country);
+			if (discarded.contains(country) || ((null != metric) && (metric.getFailureCount() > 0))) {
+				LOGGER.info("Watermark of country " + country + " not moved. Metars were not written, so they are fetched again by the next run");
+			} else if (null != newest) {
+				commit(country, newest);
+			}
+		}
+		parsed.clear();
+		discarded.clear();
+		observed.clear();
+	}
+
+	/**
+	 * Moves the watermark of a country forward
+	 *
+	 * @param country the country
+	 * @param newest the newest observation time of the metars of the country written
+	 */
+	private void commit(String country, String newest) {
+		String watermark = watermarks.get(country);
+		while ((null == watermark) || (newest.compareTo(watermark) > 0)) {
+			if ((null == watermark) ? (null == watermarks.putIfAbsent(country, newest))
+					: watermarks.replace(country, watermark, newest)) {
+				isChanged = true;
+				return;
+			}
+			watermark = watermarks.get(country);
+		}
+	}
+
+	/**
+	 * Keeps the watermarks in the file, when configured
+	 */
+	public synchronized void force() {
+		if ((null == file) || ! isChanged) {
+			return;
+		}
+		isChanged = false;
+
+		Properties properties = new Properties();
+		for (Map.Entry<String, String> entry : watermarks.entrySet()) {
+			properties.setProperty(entry.getKey(), entry.getValue());
+		}
+
+		try {
+			Utils.storePropertiesFile(properties, file, "Newest observation time of the metars processed, by country");
+		} catch (IOException e) {
+			isChanged = true;
+			LOGGER.warning("Unable to write the watermark file " + file + ". " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return true when the text is an observation time, CCYY-MM-DDTHH:MM:SSZ,
+	 * so that observation times are ordered as text
+	 */
+	private static boolean isObservationTime(String text) {
+		return (null != text) && (text.length() == 20) && (text.charAt(4) == '-') && (text.charAt(10) == 'T')
+				&& (text.charAt(13) == ':') && (text.charAt(19) == 'Z');
+	}
+
+	private static SimpleDateFormat newTimeFormat() {
+		SimpleDateFormat timeFormat = new SimpleDateFormat(TIME_FORMAT, Locale.ROOT);
+		timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return timeFormat;
+	}
+}
@@ -0,0 +1,461 @@
+package ca.nexcel.awbc.processor.store;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.nexcel.awbc.processor.model.MetarRecord;
+
+/**
+ * A segment of the column store: the observations of one day, held column by
+ * column in a memory-mapped file, so that they are scanned without being read
+ * onto the heap.
+ * <p/>
+ * The file starts with a header holding the capacity of the segment, the number
+ * of rows written, and the name, type and offset of every column. Each column then
+ * takes capacity values of a fixed width: decimals as floats, integers as ints,
+ * the observation time as a long number of seconds since 1970, and text as the int
+ * code of the value in the dictionary of its column. Missing values are NaN,
+ * MetarRecord.MISSING_INT and MISSING_CODE. The size of the file is fixed by its
+ * capacity. Space is only used on disk once written, on file systems that support
+ * sparse files.
+ * <p/>
+ * The dictionaries are kept in a second file, to which every new value is appended
+ * before a row refers to it. The number of rows is updated once the values of a row
+ * are written, so a reader never sees a partly written row.
+ * <p/>
+ * A segment opened for reading holds the rows written when it was opened. A segment
+ * is not thread safe.
+ *
+ * @author George Franciscus
+ *
+ */
+public class ColumnSegment {
+
+	/**
+	 * The code of a missing text value
+	 */
+	public static final int MISSING_CODE = -1;
+
+	/**
+	 * The name of the column holding the stream, that is the country, of an observation
+	 */
+	public static final String STREAM_COLUMN = "stream";
+
+	/**
+	 * Identifies the file as a column store segment
+	 */
+	private static final long FILE_MARKER = 0x4157424353454731L;
+
+	/**
+	 * The number of bytes before the first column
+	 */
+	private static final int HEADER_BYTES = 4096;
+
+	private static final int CAPACITY_OFFSET = 8;
+	private static final int ROWS_OFFSET = 12;
+	private static final int COLUMN_COUNT_OFFSET = 16;
+	private static final int COLUMNS_OFFSET = 20;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The way values of a column are held
+	 */
+	public enum ColumnType {
+		FLOAT(4), INT(4), TIME(8), CODE(4);
+
+		private int width;
+
+		private ColumnType(int width) {
+			this.width = width;
+		}
+
+		/**
+		 * @return the number of bytes of a value
+		 */
+		public int getWidth() {
+			return width;
+		}
+	}
+
+	private final File file;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private int rows;
+	private final List<Column> columns = new ArrayList<Column>();
+	private final Map<String, Column> columnsByName = new HashMap<String, Column>();
+
+	/**
+	 * Receives the new values of the dictionaries. A null value means the segment is read only.
+	 */
+	private DataOutputStream dictionaryOutput = null;
+
+	/**
+	 * Creates a segment for writing
+	 *
+	 * @param file the segment file, which must not exist
+	 * @param capacity the number of rows
+	 * @return the segment
+	 * @throws IOException when the segment cannot be created
+	 */
+	public static ColumnSegment create(File file, int capacity) throws IOException {
+		Map<String, ColumnType> schema = schema();
+		int rowBytes = 0;
+		for (ColumnType type : schema.values()) {
+			rowBytes += type.getWidth();
+		}
+		capacity = Math.max(1, Math.min(capacity, (Integer.MAX_VALUE - HEADER_BYTES) / rowBytes));
+
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.setLength(HEADER_BYTES + ((long) capacity * rowBytes));
+			randomAccessFile.writeLong(FILE_MARKER);
+			randomAccessFile.writeInt(capacity);
+			randomAccessFile.writeInt(0);
+			randomAccessFile.writeInt(schema.size());
+			int offset = HEADER_BYTES;
+			for (Map.Entry<String, ColumnType> column : schema.entrySet()) {
+				randomAccessFile.writeUTF(column.getKey());
+				randomAccessFile.writeByte(column.getValue().ordinal());
+				randomAccessFile.writeInt(offset);
+				offset += capacity * column.getValue().getWidth();
+			}
+			if (randomAccessFile.getFilePointer() > HEADER_BYTES) {
+				throw new IOException("the columns do not fit in the header of " + file);
+			}
+		} finally {
+			randomAccessFile.close();
+		}
+		return open(file, true);
+	}
+
+	/**
+	 * Opens an existing segment
+	 *
+	 * @param file the segment file
+	 * @param isWritable true to append rows
+	 * @return the segment
+	 * @throws IOException when the file is not a segment or cannot be read
+	 */
+	public static ColumnSegment open(File file, boolean isWritable) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, isWritable ? "rw" : "r");
+		try {
+			if ((randomAccessFile.length() < HEADER_BYTES) || (randomAccessFile.readLong() != FILE_MARKER)) {
+				throw new IOException(file + " is not a column store segment");
+			}
+			MappedByteBuffer buffer = randomAccessFile.getChannel().map(
+					isWritable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+			return new ColumnSegment(file, buffer, isWritable);
+		} finally {
+			//the mapping remains valid once the file is closed
+			randomAccessFile.close();
+		}
+	}
+
+	private ColumnSegment(File file, MappedByteBuffer buffer, boolean isWritable) throws IOException {
+		this.file = file;
+		this.buffer = buffer;
+		this.capacity = buffer.getInt(CAPACITY_OFFSET);
+		this.rows = buffer.getInt(ROWS_OFFSET);
+
+		int columnCount = buffer.getInt(COLUMN_COUNT_OFFSET);
+		int position = COLUMNS_OFFSET;
+		for (int i = 0; i < columnCount; i++) {
+			int length = buffer.getShort(position) & 0xFFFF;
+			byte[] name = new byte[length];
+			for (int b = 0; b < length; b++) {
+				name[b] = buffer.get(position + 2 + b);
+			}
+			position += 2 + length;
+			ColumnType type = ColumnType.values()[buffer.get(position)];
+			int offset = buffer.getInt(position + 1);
+			position += 5;
+
+			String columnName = new String(name, UTF8);
+			Column column = new Column(columnName, type, fieldOf(columnName));
+			column.index = i;
+			column.offset = offset;
+			columns.add(column);
+			columnsByName.put(column.name, column);
+		}
+
+		readDictionaries();
+		if (isWritable) {
+			dictionaryOutput = new DataOutputStream(new FileOutputStream(dictionaryFile(), true));
+		}
+	}
+
+	/**
+	 * @return the name and type of the columns of a new segment: the stream, then every METAR field that is not free text
+	 */
+	private static Map<String, ColumnType> schema() {
+		Map<String, ColumnType> schema = new LinkedHashMap<String, ColumnType>();
+		schema.put(STREAM_COLUMN, ColumnType.CODE);
+		for (MetarRecord.Field field : MetarRecord.Field.values()) {
+			switch (field.getType()) {
+			case DECIMAL:
+				schema.put(field.getName(), ColumnType.FLOAT);
+				break;
+			case INTEGER:
+				schema.put(field.getName(), ColumnType.INT);
+				break;
+			case INTERNED_TEXT:
+				schema.put(field.getName(), (field == MetarRecord.Field.OBSERVATION_TIME) ? ColumnType.TIME : ColumnType.CODE);
+				break;
+			case TEXT:
+				//free text, such as the raw text, is kept by the chain
+				break;
+			}
+		}
+		return schema;
+	}
+
+	private static MetarRecord.Field fieldOf(String name) {
+		return STREAM_COLUMN.equals(name) ? null : MetarRecord.Field.forName(name);
+	}
+
+	private File dictionaryFile() {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		return new File(file.getParentFile(), ((dot < 0) ? name : name.substring(0, dot)) + ".dict");
+	}
+
+	/**
+	 * Reads the dictionary values, each the index of its column followed by the value
+	 */
+	private void readDictionaries() throws IOException {
+		File dictionaryFile = dictionaryFile();
+		if (! dictionaryFile.exists()) {
+			return;
+		}
+
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(dictionaryFile)));
+		try {
+			while (true) {
+				int index = input.readShort();
+				String value = input.readUTF();
+				if ((index >= 0) && (index < columns.size())) {
+					columns.get(index).addToDictionary(value);
+				}
+			}
+		} catch (EOFException e) {
+			//every value is read. A value partly written when the processor stopped is not used by any row
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Appends an observation
+	 *
+	 * @param stream the stream of the observation
+	 * @param record the observation
+	 * @param observationSeconds the observation time, in seconds since 1970
+	 * @return false when the segment is full
+	 * @throws IOException when a dictionary value cannot be written
+	 */
+	public boolean append(String stream, MetarRecord record, long observationSeconds) throws IOException {
+		if (rows >= capacity) {
+			return false;
+		}
+
+		for (int i = 0; i < columns.size(); i++) {
+			Column column = columns.get(i);
+			int position = column.offset + (rows * column.type.getWidth());
+			MetarRecord.Field field = column.field;
+			switch (column.type) {
+			case FLOAT:
+				buffer.putFloat(position, (null == field) ? Float.NaN : (float) record.getDecimal(field));
+				break;
+			case INT:
+				buffer.putInt(position, (null == field) ? MetarRecord.MISSING_INT : record.getInteger(field));
+				break;
+			case TIME:
+				buffer.putLong(position, observationSeconds);
+				break;
+			case CODE:
+				String value = (null == field) ? (STREAM_COLUMN.equals(column.name) ? stream : null) : record.getText(field);
+				buffer.putInt(position, encode(column, value));
+				break;
+			}
+		}
+
+		rows++;
+		buffer.putInt(ROWS_OFFSET, rows);
+		return true;
+	}
+
+	/**
+	 * @return the code of a value, adding it to the dictionary of the column when new
+	 */
+	private int encode(Column column, String value) throws IOException {
+		if (null == value) {
+			return MISSING_CODE;
+		}
+
+		int code = column.codeOf(value);
+		if (code == MISSING_CODE) {
+			dictionaryOutput.writeShort(column.index);
+			dictionaryOutput.writeUTF(value);
+			dictionaryOutput.flush();
+			code = column.addToDictionary(value);
+		}
+		return code;
+	}
+
+	/**
+	 * Writes the rows appended to the disk
+	 */
+	public void force() {
+		if (null != dictionaryOutput) {
+			buffer.force();
+		}
+	}
+
+	/**
+	 * Writes the rows appended to the disk and stops appending rows
+	 */
+	public void close() {
+		if (null != dictionaryOutput) {
+			buffer.force();
+			try {
+				dictionaryOutput.close();
+			} catch (IOException e) {
+				//every value was flushed when written
+			}
+			dictionaryOutput = null;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the number of rows
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public List<Column> getColumns() {
+		return Collections.unmodifiableList(columns);
+	}
+
+	/**
+	 * @param name the name of the column, the name of the METAR field or STREAM_COLUMN
+	 * @return the column, or null when the segment has no such column
+	 */
+	public Column getColumn(String name) {
+		return columnsByName.get(name);
+	}
+
+
+	/**
+	 * A column of the segment. Values are read straight from the mapped file.
+	 *
+	 * @author George Franciscus
+	 *
+	 */
+	public class Column {
+		private String name;
+		private ColumnType type;
+		private MetarRecord.Field field;
+		private int index;
+		private int offset;
+		private List<String> dictionary = null;
+		private Map<String, Integer> codes = null;
+
+		private Column(String name, ColumnType type, MetarRecord.Field field) {
+			this.name = name;
+			this.type = type;
+			this.field = field;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public ColumnType getType() {
+			return type;
+		}
+
+		public float getFloat(int row) {
+			return buffer.getFloat(offset + (row << 2));
+		}
+
+		public int getInt(int row) {
+			return buffer.getInt(offset + (row << 2));
+		}
+
+		/**
+		 * @return the observation time, in seconds since 1970
+		 */
+		public long getTime(int row) {
+			return buffer.getLong(offset + (row << 3));
+		}
+
+		/**
+		 * @return the code of the text value, or MISSING_CODE
+		 */
+		public int getCode(int row) {
+			return buffer.getInt(offset + (row << 2));
+		}
+
+		/**
+		 * @return the text value, or null when missing
+		 */
+		public String getText(int row) {
+			int code = getCode(row);
+			return (code == MISSING_CODE) ? null : dictionary.get(code);
+		}
+
+		/**
+		 * @return the text values, indexed by code
+		 */
+		public List<String> getDictionary() {
+			return (null == dictionary) ? Collections.<String>emptyList() : Collections.unmodifiableList(dictionary);
+		}
+
+		/**
+		 * Finds the code of a value, so that a scan compares codes rather than text
+		 *
+		 * @param value the text value
+		 * @return the code of the value, or MISSING_CODE when no row holds the value
+		 */
+		public int codeOf(String value) {
+			Integer code = (null == codes) ? null : codes.get(value);
+			return (null == code) ? MISSING_CODE : code.intValue();
+		}
+
+		private int addToDictionary(String value) {
+			if (null == dictionary) {
+				dictionary = new ArrayList<String>();
+				codes = new HashMap<String, Integer>();
+			}
+			codes.put(value, dictionary.size());
+			dictionary.add(value);
+			return dictionary.size() - 1;
+		}
+	}
+}
@@ -0,0 +1,394 @@
+package ca.nexcel.awbc.processor.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.metrics.MetricsRegistry;
+import ca.nexcel.awbc.processor.model.MetarRecord;
+
+/**
+ * A columnar store of the observations parsed, for analytics. The observations
+ * of every day (UTC) are appended to a ColumnSegment, a memory-mapped file named
+ * metars-CCYYMMDD-0.col in the store directory. When a segment is full, the
+ * observations of the day go to metars-CCYYMMDD-1.col, and so on.
+ * <p/>
+ * An observation fetched again by an overlapping run, the same station at the
+ * same observation time, is stored once.
+ * <p/>
+ * The segments of the last days written to are kept open. Segments are read with
+ * openSegments, which opens them read only, so that months of observations can be
+ * scanned column by column without reading them onto the heap.
+ * <p/>
+ * The store is thread safe. The store itself is only locked to find or open the
+ * day of an observation. The observation is then appended under the lock of its
+ * day, so that observations of different days are appended in parallel.
+ *
+ * @author George Franciscus
+ *
+ */
+public class ColumnStore {
+
+	private static final Logger LOGGER = Logger.getLogger(ColumnStore.class.getName());
+	private static final MetricsRegistry METRICS = MetricsRegistry.getDefault();
+
+	/**
+	 * The default number of rows of a segment, about 1.5 times the METARs issued worldwide in a day
+	 */
+	private static final int DEFAULT_SEGMENT_ROWS = 262144;
+
+	/**
+	 * The number of days whose segment is kept open for writing
+	 */
+	private static final int MAX_OPEN_DAYS = 3;
+
+	private static final String SEGMENT_PREFIX = "metars-";
+	private static final String SEGMENT_SUFFIX = ".col";
+
+	private File directory;
+	private int segmentRows = DEFAULT_SEGMENT_ROWS;
+
+	/**
+	 * The days written to, by CCYYMMDD, in least recently used order. Guarded by the store.
+	 */
+	private final LinkedHashMap<String, Day> days = new LinkedHashMap<String, Day>(8, 0.75f, true);
+
+	/**
+	 * @param directoryName the directory the segments are kept in, created when missing
+	 */
+	public void setDirectory(String directoryName) {
+		directory = new File(directoryName.trim());
+	}
+
+	/**
+	 * @param count the number of rows of a new segment
+	 */
+	public void setSegmentRows(String count) {
+		if ((null == count) || count.trim().equals("")) {
+			segmentRows = DEFAULT_SEGMENT_ROWS;
+			return;
+		}
+
+		segmentRows = Math.max(1, Utils.stringToIntegerConverter(count, DEFAULT_SEGMENT_ROWS
+				, "invalid store.segment-rows property defined. Defaulted to " + DEFAULT_SEGMENT_ROWS));
+	}
+
+	/**
+	 * Appends an observation to the segment of its day
+	 *
+	 * @param stream the stream of the observation
+	 * @param record the observation
+	 * @return false when the observation has no station or valid observation time, or is already stored
+	 * @throws IOException when the segment cannot be written
+	 */
+	public boolean append(String stream, MetarRecord record) throws IOException {
+		String stationId = record.getStationId();
+		String observationTime = record.getObservationTime();
+		long observationSeconds = (null == observationTime) ? Long.MIN_VALUE : epochSeconds(observationTime);
+		if ((null == stationId) || (observationSeconds == Long.MIN_VALUE)) {
+			return false;
+		}
+
+		String date = date(observationTime);
+		while (true) {
+			Day day = openDay(date);
+			synchronized (day) {
+				if (day.isClosed) {
+					//the day was closed to open another before its lock was obtained, so it is opened again
+					continue;
+				}
+
+				if (! day.keys.add(key(stationId, observationSeconds))) {
+					METRICS.counter(MetricsRegistry.STORE_DUPLICATES).increment();
+					return false;
+				}
+
+				if (! day.segment.append(stream, record, observationSeconds)) {
+					day.segment.close();
+					day.part++;
+					day.segment = ColumnSegment.create(segmentFile(day.date, day.part), segmentRows);
+					LOGGER.info("column store segment full, continued in " + day.segment.getFile());
+					day.segment.append(stream, record, observationSeconds);
+				}
+			}
+			METRICS.counter(MetricsRegistry.STORE_ROWS).increment();
+			return true;
+		}
+	}
+
+	/**
+	 * Opens the segment of a day for writing, reading the keys of the observations already stored
+	 */
+	private synchronized Day openDay(String date) throws IOException {
+		Day day = days.get(date);
+		if (null != day) {
+			return day;
+		}
+
+		if (! directory.isDirectory() && ! directory.mkdirs()) {
+			throw new IOException("unable to create the column store directory " + directory);
+		}
+
+		day = new Day(date);
+		List<File> files = segmentFiles(date, date);
+		for (File file : files) {
+			ColumnSegment segment = ColumnSegment.open(file, false);
+			ColumnSegment.Column stations = segment.getColumn(MetarRecord.Field.STATION_ID.getName());
+			ColumnSegment.Column times = segment.getColumn(MetarRecord.Field.OBSERVATION_TIME.getName());
+			for (int row = 0; row < segment.getRows(); row++) {
+				String stationId = stations.getText(row);
+				if (null != stationId) {
+					day.keys.add(key(stationId, times.getTime(row)));
+				}
+			}
+		}
+
+		if (files.isEmpty()) {
+			day.segment = ColumnSegment.create(segmentFile(date, 0), segmentRows);
+		} else {
+			File last = files.get(files.size() - 1);
+			day.part = part(last);
+			day.segment = ColumnSegment.open(last, true);
+		}
+
+		days.put(date, day);
+		if (days.size() > MAX_OPEN_DAYS) {
+			Iterator<Day> eldest = days.values().iterator();
+			close(eldest.next());
+			eldest.remove();
+		}
+		return day;
+	}
+
+	/**
+	 * Closes the segment of a day, once the observation being appended to it is written
+	 */
+	private static void close(Day day) {
+		synchronized (day) {
+			day.segment.close();
+			day.isClosed = true;
+		}
+	}
+
+	/**
+	 * Writes the rows appended to the disk
+	 */
+	public synchronized void force() {
+		for (Day day : days.values()) {
+			synchronized (day) {
+				day.segment.force();
+			}
+		}
+	}
+
+	/**
+	 * Writes the rows appended to the disk and closes the segments written to
+	 */
+	public synchronized void close() {
+		for (Day day : days.values()) {
+			close(day);
+		}
+		days.clear();
+	}
+
+	/**
+	 * Opens the segments of a period for reading
+	 *
+	 * @param fromDate the first day, CCYYMMDD
+	 * @param toDate the last day, CCYYMMDD
+	 * @return the segments, in date order
+	 * @throws IOException when a segment cannot be read
+	 */
+	public List<ColumnSegment> openSegments(String fromDate, String toDate) throws IOException {
+		List<ColumnSegment> segments = new ArrayList<ColumnSegment>();
+		for (File file : segmentFiles(fromDate, toDate)) {
+			segments.add(ColumnSegment.open(file, false));
+		}
+		return segments;
+	}
+
+	/**
+	 * @return the segment files of a period, in date and part order
+	 */
+	private List<File> segmentFiles(String fromDate, String toDate) {
+		File[] files = directory.listFiles();
+		if (null == files) {
+			return Collections.emptyList();
+		}
+
+		List<File> segmentFiles = new ArrayList<File>();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX) && (part(file) >= 0)) {
+				String date = name.substring(SEGMENT_PREFIX.length(), SEGMENT_PREFIX.length() + 8);
+				if ((date.compareTo(fromDate) >= 0) && (date.compareTo(toDate) <= 0)) {
+					segmentFiles.add(file);
+				}
+			}
+		}
+		Collections.sort(segmentFiles, new Comparator<File>() {
+			public int compare(File file1, File file2) {
+				int dates = file1.getName().substring(0, SEGMENT_PREFIX.length() + 8)
+						.compareTo(file2.getName().substring(0, SEGMENT_PREFIX.length() + 8));
+				return (dates != 0) ? dates : (part(file1) - part(file2));
+			}
+		});
+		return segmentFiles;
+	}
+
+	private File segmentFile(String date, int part) {
+		return new File(directory, SEGMENT_PREFIX + date + "-" + part + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * @return the part number of a segment file, metars-CCYYMMDD-part.col, or -1 when the name is not of a segment
+	 */
+	private static int part(File file) {
+		String name = file.getName();
+		int start = SEGMENT_PREFIX.length() + 9;
+		int end = name.length() - SEGMENT_SUFFIX.length();
+		if ((end <= start) || (name.charAt(start - 1) != '-')) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(name.substring(start, end));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @param observationTime CCYY-MM-DDTHH:MM:SSZ
+	 * @return the date, CCYYMMDD
+	 */
+	private static String date(String observationTime) {
+		return new StringBuilder(8).append(observationTime, 0, 4).append(observationTime, 5, 7)
+				.append(observationTime, 8, 10).toString();
+	}
+
+	/**
+	 * Converts an observation time to seconds since 1970, without the cost of a date format
+	 *
+	 * @param observationTime CCYY-MM-DDTHH:MM:SSZ
+	 * @return the seconds since 1970, or Long.MIN_VALUE when the time is not valid
+	 */
+	static long epochSeconds(String observationTime) {
+		String time = observationTime.trim();
+		if ((time.length() < 19) || (time.charAt(4) != '-') || (time.charAt(7) != '-') || (time.charAt(10) != 'T')
+				|| (time.charAt(13) != ':') || (time.charAt(16) != ':')) {
+			return Long.MIN_VALUE;
+		}
+		int year = digits(time, 0, 4);
+		int month = digits(time, 5, 7);
+		int day = digits(time, 8, 10);
+		int hour = digits(time, 11, 13);
+		int minute = digits(time, 14, 16);
+		int second = digits(time, 17, 19);
+		if ((year < 0) || (month < 1) || (month > 12) || (day < 1) || (day > 31)
+				|| (hour < 0) || (hour > 23) || (minute < 0) || (minute > 59) || (second < 0) || (second > 60)) {
+			return Long.MIN_VALUE;
+		}
+
+		//days since 1970-01-01 in the proleptic Gregorian calendar, with years starting in March
+		int y = (month <= 2) ? year - 1 : year;
+		int era = y / 400;
+		int yearOfEra = y - (era * 400);
+		int dayOfYear = ((153 * (month + ((month > 2) ? -3 : 9))) + 2) / 5 + day - 1;
+		int dayOfEra = (yearOfEra * 365) + (yearOfEra / 4) - (yearOfEra / 100) + dayOfYear;
+		long days = (era * 146097L) + dayOfEra - 719468;
+		return (days * 86400) + (hour * 3600) + (minute * 60) + second;
+	}
+
+	/**
+	 * @return the number made of the digits from start to end, or -1 when a character is not a digit
+	 */
+	private static int digits(String text, int start, int end) {
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			char ch = text.charAt(i);
+			if ((ch < '0') || (ch > '9')) {
+				return -1;
+			}
+			value = (value * 10) + (ch - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * @return a key identifying an observation within a day, never 0
+	 */
+	private static long key(String stationId, long observationSeconds) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < stationId.length(); i++) {
+			hash ^= stationId.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash = (hash * 31) + observationSeconds;
+		return (hash == 0) ? 1 : hash;
+	}
+
+
+	/**
+	 * A day written to: the segment rows are appended to, and the keys of the observations stored.
+	 * Guarded by the day itself.
+	 */
+	private static class Day {
+		private String date;
+		private int part = 0;
+		private ColumnSegment segment;
+		private LongSet keys = new LongSet();
+
+		/**
+		 * Set once the segment is closed, after which the day is no longer written to
+		 */
+		private boolean isClosed = false;
+
+		private Day(String date) {
+			this.date = date;
+		}
+	}
+
+	/**
+	 * A set of longs other than 0, using open addressing with linear probing,
+	 * so that the keys of a day take 16 bytes or less per observation
+	 */
+	private static class LongSet {
+		private long[] slots = new long[1024];
+		private int size = 0;
+
+		/**
+		 * @return false when the value is already in the set
+		 */
+		boolean add(long value) {
+			if ((size + 1) * 2 > slots.length) {
+				long[] previous = slots;
+				slots = new long[previous.length * 2];
+				size = 0;
+				for (long stored : previous) {
+					if (stored != 0) {
+						add(stored);
+					}
+				}
+			}
+
+			int mask = slots.length - 1;
+			int slot = (int) (value ^ (value >>> 32)) * 0x9E3779B9 & mask;
+			while (slots[slot] != 0) {
+				if (slots[slot] == value) {
+					return false;
+				}
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = value;
+			size++;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package ca.nexcel.awbc.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for the aviationweather.gov ADDS data server, so that
+ * the processor can be measured without fetching from the internet.
+ * <p/>
+ * Answers METAR requests of the form used in metar.url, where the country is
+ * given as stationString=~{country}, with a generated document holding the
+ * configured number of stations. Documents are generated once, when the
+ * stand-in starts, so that generating them is not measured. Countries that
+ * are not served are answered with a document without METARs, as ADDS does.
+ *
+ * @author George Franciscus
+ *
+ */
+public class AddsStandIn {
+
+	private static final String CONTEXT = "/adds/dataserver_current/httpparam";
+
+	/**
+	 * The largest number of stations identified by the country code followed by two letters
+	 */
+	private static final int MAX_STATIONS_WITH_COUNTRY_PREFIX = 26 * 26;
+
+	private HttpServer server;
+
+	/**
+	 * The document served for each country
+	 */
+	private Map<String, byte[]> documents = new HashMap<String, byte[]>();
+
+	private byte[] emptyDocument;
+
+	/**
+	 * The number of METARs served for all countries
+	 */
+	private int recordCount;
+
+	/**
+	 * Generates the documents of the countries
+	 *
+	 * @param countries the countries served
+	 * @param stationsPerCountry the number of stations of every country
+	 * @param observationsPerStation the number of observations of every station
+	 */
+	public AddsStandIn(List<String> countries, int stationsPerCountry, int observationsPerStation) {
+		long seed = 0;
+		for (String country : countries) {
+			String stationPrefix = (stationsPerCountry > MAX_STATIONS_WITH_COUNTRY_PREFIX) ? country.substring(0, 1) : country;
+			documents.put(country, MetarFixtures.generate(stationPrefix, stationsPerCountry, observationsPerStation, false, seed++));
+		}
+		emptyDocument = MetarFixtures.generate("ZZ", 0, 0, false, 0);
+		recordCount = countries.size() * stationsPerCountry * observationsPerStation;
+	}
+
+	/**
+	 * Creates country codes, starting with the countries of the default configuration.
+	 *
+	 * @param count the number of country codes
+	 * @param configuredCountries the countries of the default configuration
+	 * @return the country codes
+	 */
+	public static List<String> countryCodes(int count, List<String> configuredCountries) {
+		List<String> countries = new ArrayList<String>(count);
+		for (int i = 0; (i < configuredCountries.size()) && (countries.size() < count); i++) {
+			countries.add(configuredCountries.get(i).trim());
+		}
+		for (char first = 'A'; (first <= 'Z') && (countries.size() < count); first++) {
+			for (char second = 'A'; (second <= 'Z') && (countries.size() < count); second++) {
+				String country = "" + first + second;
+				if (! countries.contains(country)) {
+					countries.add(country);
+				}
+			}
+		}
+		return countries;
+	}
+
+	/**
+	 * Starts the stand-in on a free port of the loopback interface
+	 *
+	 * @throws IOException when the server cannot be started
+	 */
+	public void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext(CONTEXT, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = documents.get(country(exchange.getRequestURI().getRawQuery()));
+				if (null == body) {
+					body = emptyDocument;
+				}
+				exchange.getResponseHeaders().set("Content-Type", "text/xml");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream output = exchange.getResponseBody();
+				output.write(body);
+				output.close();
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		((ExecutorService) server.getExecutor()).shutdownNow();
+	}
+
+	/**
+	 * @return the URL pattern of the stand-in, as set in metar.url
+	 */
+	public String getUrlPattern() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + CONTEXT
+				+ "?dataSource=metars&requestType=retrieve&format=xml&stationString=~{0}&hoursBeforeNow=1";
+	}
+
+	/**
+	 * @return the number of METARs served for all countries
+	 */
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * @param country a country served
+	 * @return the records of the METARs served for the country, as the processor parses them. None when the country is not served.
+	 */
+	public List<String> getRecords(String country) {
+		byte[] document = documents.get(country);
+		return (null == document) ? new ArrayList<String>() : MetarParsing.captureRecords(document);
+	}
+
+	private static String country(String query) throws IOException {
+		if (null == query) {
+			return null;
+		}
+		for (String parameter : query.split("&")) {
+			String decoded = URLDecoder.decode(parameter, "UTF-8");
+			if (decoded.startsWith("stationString=~")) {
+				return decoded.substring("stationString=~".length());
+			}
+		}
+		return null;
+	}
+}
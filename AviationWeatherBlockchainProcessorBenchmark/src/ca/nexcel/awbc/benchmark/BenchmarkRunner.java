@@ -0,0 +1,57 @@
+package ca.nexcel.awbc.benchmark;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Runs the benchmarks with the GC profiler, so that allocation rates are
+ * reported next to throughput, and writes the results in JSON format to 
+ * the results directory so that runs can be compared.
+ * <p/>
+ * Accepts the standard JMH command line options, such as a regular expression 
+ * selecting benchmarks or -p fixture=US. Options given on the command line 
+ * take precedence.
+ * 
+ * @author George Franciscus
+ *
+ */
+public class BenchmarkRunner {
+	
+	private static final String RESULTS_DIRECTORY = "results";
+	
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+		
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.parent(commandLineOptions)
+				.addProfiler(GCProfiler.class)
+				.shouldFailOnError(true);
+		
+		if (! commandLineOptions.getWarmupIterations().hasValue()) {
+			options.warmupIterations(5).warmupTime(TimeValue.seconds(1));
+		}
+		if (! commandLineOptions.getMeasurementIterations().hasValue()) {
+			options.measurementIterations(5).measurementTime(TimeValue.seconds(1));
+		}
+		if (! commandLineOptions.getForkCount().hasValue()) {
+			options.forks(1);
+		}
+		if (! commandLineOptions.getResult().hasValue()) {
+			new File(RESULTS_DIRECTORY).mkdirs();
+			String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+			options.resultFormat(ResultFormatType.JSON)
+				.result(RESULTS_DIRECTORY + File.separator + "jmh-" + timestamp + ".json");
+		}
+		
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,124 @@
+package ca.nexcel.awbc.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.process.AviationWeatherParserPool;
+import ca.nexcel.awbc.processor.publisher.PublisherColumnStore;
+import ca.nexcel.awbc.processor.store.ColumnSegment;
+import ca.nexcel.awbc.processor.store.ColumnStore;
+
+/**
+ * Measures an analytic query, the mean temperature and the number of IFR observations,
+ * over 12 hours of observations of the 2400 stations of the US fixture. The query is
+ * answered by scanning the columns of a ColumnStore, and by extracting the fields from
+ * the JSON form of every record, the form written to the chain. One operation answers
+ * the query once.
+ *
+ * @author George Franciscus
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ColumnStoreBenchmark {
+
+	private static final int STATIONS = 2400;
+	private static final int OBSERVATIONS_PER_STATION = 12;
+
+	private File directory;
+	private ColumnStore columnStore = new ColumnStore();
+	private List<ColumnSegment> segments;
+	private List<String> records;
+
+	@Setup
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("awbc-store").toFile();
+		columnStore.setDirectory(directory.getPath());
+
+		CountingPublisher countingPublisher = new CountingPublisher(true);
+		PublisherColumnStore publisher = new PublisherColumnStore();
+		publisher.setColumnStore(columnStore);
+		publisher.setPublisher(countingPublisher);
+		publisher.initialize();
+		byte[] xml = MetarFixtures.generate("K", STATIONS, OBSERVATIONS_PER_STATION, false, 1);
+		try {
+			MetarParsing.createEngine(AviationWeatherParserPool.ENGINE_SAX).parse(new ByteArrayInputStream(xml), MetarParsing.createHandler("US", null, publisher));
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		publisher.finalize();
+
+		records = countingPublisher.getRecords();
+		segments = columnStore.openSegments("00000000", "99999999");
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (ColumnSegment segment : segments) {
+			segment.close();
+		}
+		columnStore.close();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Benchmark
+	public double scanColumns() {
+		double sum = 0;
+		int count = 0;
+		int ifr = 0;
+		for (ColumnSegment segment : segments) {
+			ColumnSegment.Column temperatures = segment.getColumn("temp_c");
+			ColumnSegment.Column flightCategories = segment.getColumn("flight_category");
+			int ifrCode = flightCategories.codeOf("IFR");
+			int rows = segment.getRows();
+			for (int row = 0; row < rows; row++) {
+				float temperature = temperatures.getFloat(row);
+				if (! Float.isNaN(temperature)) {
+					sum += temperature;
+					count++;
+				}
+				if ((ifrCode != ColumnSegment.MISSING_CODE) && (flightCategories.getCode(row) == ifrCode)) {
+					ifr++;
+				}
+			}
+		}
+		return (sum / count) + ifr;
+	}
+
+	@Benchmark
+	public double scanJson() {
+		double sum = 0;
+		int count = 0;
+		int ifr = 0;
+		for (int i = 0; i < records.size(); i++) {
+			String record = records.get(i);
+			String temperature = Utils.getValueFromJSON("temp_c", record);
+			if (null != temperature) {
+				sum += Double.parseDouble(temperature);
+				count++;
+			}
+			if ("IFR".equals(Utils.getValueFromJSON("flight_category", record))) {
+				ifr++;
+			}
+		}
+		return (sum / count) + ifr;
+	}
+}
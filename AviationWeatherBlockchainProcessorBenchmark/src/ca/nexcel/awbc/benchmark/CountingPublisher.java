@@ -0,0 +1,87 @@
+package ca.nexcel.awbc.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.nexcel.awbc.processor.model.MetarRecord;
+import ca.nexcel.awbc.processor.model.Metric;
+import ca.nexcel.awbc.processor.publisher.Publisher;
+
+/**
+ * A Publisher that counts the records published, so that only the cost
+ * of capturing records is measured. Optionally keeps the JSON form of every
+ * record, used to build the inputs of other benchmarks.
+ * 
+ * @author George Franciscus
+ *
+ */
+public class CountingPublisher implements Publisher {
+
+	/**
+	 * The number of records published
+	 */
+	private int count = 0;
+	
+	/**
+	 * Depends on the raw text of every record, so that capturing it cannot be optimized away
+	 */
+	private int checksum = 0;
+	
+	/**
+	 * The JSON form of every record published. A null value means records are not kept.
+	 */
+	private List<String> records = null;
+	
+	/**
+	 * @param isKeepingRecords true to keep the JSON form of every record published
+	 */
+	public CountingPublisher(boolean isKeepingRecords) {
+		records = isKeepingRecords ? new ArrayList<String>() : null;
+	}
+	
+	public void initialize() {
+		count = 0;
+		checksum = 0;
+	}
+
+	public boolean publish(String namespace, List<String> keys, String value) {
+		count++;
+		checksum += value.length() + keys.size();
+		if (null != records) {
+			records.add(value);
+		}
+		return true;
+	}
+
+	public boolean publish(String namespace, List<String> keys, MetarRecord record) {
+		count++;
+		checksum += record.getRawText().length() + keys.size();
+		if (null != records) {
+			records.add(record.toJSON());
+		}
+		return true;
+	}
+
+	public void finalize() {
+	}
+
+	public Map<String, Metric> getMetrics() {
+		Map<String, Metric> metrics = new HashMap<String, Metric>();
+		metrics.put("count", new Metric(count, 0, count));
+		return metrics;
+	}
+	
+	public int getCount() {
+		return count;
+	}
+	
+	public int getChecksum() {
+		return checksum;
+	}
+	
+	public List<String> getRecords() {
+		return records;
+	}
+}
@@ -0,0 +1,358 @@
+package ca.nexcel.awbc.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import ca.nexcel.awbc.processor.common.JsonRpcClient;
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.payload.PayloadCodecBinary;
+import ca.nexcel.awbc.processor.process.AviationWeatherProcessor;
+import ca.nexcel.awbc.processor.query.MetarChainReader;
+import ca.nexcel.awbc.processor.query.MetarIndex;
+
+/**
+ * Measures the processor end to end: fetching METARs from an ADDS stand-in,
+ * parsing them and writing them to a MultiChain stand-in, by running
+ * AviationWeatherProcessor.process with a generated configuration.
+ * <p/>
+ * The processor is run several times in the same JVM. The first runs warm
+ * the JVM up and are not reported. For every measured run, the harness reports
+ * the records accepted by the chain per second, the 50th and 99th percentile
+ * latency of createrawsendfrom calls as seen by the stand-in, and the peak heap use.
+ * <p/>
+ * Several MultiChain stand-ins may be started, each a node the processor spreads
+ * its batches across. The first node may be made slower than the others, and nodes
+ * that are not running may be listed, to measure how the load moves away from 
+ * slow and failed nodes. The harness then also reports the records accepted by every node.
+ * <p/>
+ * Once the runs are over, the items the last run wrote are read back from every
+ * node by MetarChainReader, the way the index is rebuilt at startup, and compared
+ * with the METARs served. Every observation read back must be a METAR served, with
+ * its raw text and observation time, and every METAR served must be read back when
+ * no call failed. Otherwise the harness fails, as what is written to the chain stays there.
+ * <p/>
+ * Options are given as name=value arguments. Harness options are listed in
+ * usage(). Any other name containing a period, such as multichain.sender-threads=8,
+ * is set in the processor configuration, overriding the default configuration.
+ *
+ * @author George Franciscus
+ *
+ */
+public class EndToEndBenchmark {
+
+	private static final String DEFAULT_COUNTRIES = "40";
+	private static final String DEFAULT_STATIONS = "60";
+	private static final String DEFAULT_OBSERVATIONS = "1";
+	private static final String DEFAULT_LATENCY_MILLIS = "20";
+	private static final String DEFAULT_ERROR_RATE = "0";
+	private static final String DEFAULT_WARMUP_RUNS = "2";
+	private static final String DEFAULT_RUNS = "3";
+	private static final String DEFAULT_NODES = "1";
+	private static final String DEFAULT_DOWN_NODES = "0";
+
+	public static void main(String[] args) throws Exception {
+		Properties options = new Properties();
+		Properties overrides = new Properties();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals < 0) {
+				usage();
+				return;
+			}
+			String name = arg.substring(0, equals);
+			(name.contains(".") ? overrides : options).setProperty(name, arg.substring(equals + 1));
+		}
+
+		int countryCount = Integer.parseInt(options.getProperty("countries", DEFAULT_COUNTRIES));
+		int stations = Integer.parseInt(options.getProperty("stations", DEFAULT_STATIONS));
+		int observations = Integer.parseInt(options.getProperty("observations", DEFAULT_OBSERVATIONS));
+		int latencyMillis = Integer.parseInt(options.getProperty("latency-ms", DEFAULT_LATENCY_MILLIS));
+		double errorRate = Double.parseDouble(options.getProperty("error-rate", DEFAULT_ERROR_RATE));
+		int warmupRuns = Integer.parseInt(options.getProperty("warmup-runs", DEFAULT_WARMUP_RUNS));
+		int runs = Integer.parseInt(options.getProperty("runs", DEFAULT_RUNS));
+		int nodes = Math.max(1, Integer.parseInt(options.getProperty("nodes", DEFAULT_NODES)));
+		int slowNodeLatencyMillis = Integer.parseInt(options.getProperty("slow-node-latency-ms", "" + latencyMillis));
+		int downNodes = Integer.parseInt(options.getProperty("down-nodes", DEFAULT_DOWN_NODES));
+
+		Properties config = new Properties();
+		config.putAll(MetarParsing.getConfigProperties());
+		config.putAll(overrides);
+
+		List<String> countries = AddsStandIn.countryCodes(countryCount, Utils.buildListFromString(config.getProperty("metar.countries")));
+		AddsStandIn adds = new AddsStandIn(countries, stations, observations);
+		List<MultiChainStandIn> multiChains = new ArrayList<MultiChainStandIn>();
+		StringBuilder urls = new StringBuilder();
+		for (int node = 0; node < nodes; node++) {
+			MultiChainStandIn multiChain = new MultiChainStandIn(countries);
+			multiChain.setLatencyMillis((node == 0) ? slowNodeLatencyMillis : latencyMillis);
+			multiChain.setErrorRate(errorRate);
+			multiChain.setMaxItems(Integer.parseInt(config.getProperty("multichain.max-std-op-returns-count", "10").trim()));
+			multiChain.start();
+			multiChains.add(multiChain);
+			urls.append((node == 0) ? "" : ",").append(multiChain.getUrl());
+		}
+		for (int node = 0; node < downNodes; node++) {
+			urls.append(",http://127.0.0.1:").append(freePort()).append('/');
+		}
+		adds.start();
+
+		File configFile = File.createTempFile("awbc-e2e", ".properties");
+		File loggingFile = File.createTempFile("awbc-e2e-logging", ".properties");
+		configFile.deleteOnExit();
+		loggingFile.deleteOnExit();
+		try {
+			config.setProperty("metar.url", adds.getUrlPattern());
+			config.setProperty("metar.countries", join(countries));
+			config.setProperty("metar.source", "country");
+			config.setProperty("multichain.url", urls.toString());
+			config.setProperty("logging.file", loggingFile.getAbsolutePath());
+			if (! overrides.containsKey("multichain.spool.file")) {
+				config.remove("multichain.spool.file");
+			}
+			if (! overrides.containsKey("multichain.dedup.file")) {
+				config.remove("multichain.dedup.file");
+			}
+			store(config, configFile);
+
+			Properties logging = new Properties();
+			logging.setProperty("handlers", "java.util.logging.ConsoleHandler");
+			logging.setProperty(".level", options.getProperty("log-level", "WARNING"));
+			logging.setProperty("java.util.logging.ConsoleHandler.level", "ALL");
+			store(logging, loggingFile);
+
+			System.out.println(String.format(Locale.ROOT, "countries=%d stations=%d observations=%d records=%d latency-ms=%d error-rate=%.3f"
+					+ " nodes=%d slow-node-latency-ms=%d down-nodes=%d"
+					, countries.size(), stations, observations, adds.getRecordCount(), latencyMillis, errorRate
+					, nodes, slowNodeLatencyMillis, downNodes));
+			System.out.println(String.format(Locale.ROOT, "%-8s %10s %10s %12s %10s %10s %12s %10s"
+					, "run", "seconds", "accepted", "records/s", "p50 ms", "p99 ms", "peak heap MB", "failures"));
+
+			List<Double> recordsPerSecond = new ArrayList<Double>();
+			for (int run = 1; run <= warmupRuns + runs; run++) {
+				boolean isWarmup = run <= warmupRuns;
+				for (MultiChainStandIn multiChain : multiChains) {
+					multiChain.reset();
+				}
+				System.gc();
+				resetPeakHeap();
+
+				long startNanos = System.nanoTime();
+				new AviationWeatherProcessor().process(new String[] {"-config=" + configFile.getAbsolutePath()});
+				double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+				long accepted = 0;
+				long failures = 0;
+				List<Long> nodeAccepted = new ArrayList<Long>();
+				List<Long> allLatencies = new ArrayList<Long>();
+				for (MultiChainStandIn multiChain : multiChains) {
+					accepted += multiChain.getAcceptedItems();
+					failures += multiChain.getFailedCalls() + multiChain.getRejectedItems();
+					nodeAccepted.add(multiChain.getAcceptedItems());
+					for (long latency : multiChain.getSortedLatencies()) {
+						allLatencies.add(latency);
+					}
+				}
+				long[] latencies = new long[allLatencies.size()];
+				for (int i = 0; i < latencies.length; i++) {
+					latencies[i] = allLatencies.get(i);
+				}
+				Arrays.sort(latencies);
+
+				double rate = accepted / seconds;
+				if (! isWarmup) {
+					recordsPerSecond.add(rate);
+				}
+				System.out.println(String.format(Locale.ROOT, "%-8s %10.2f %10d %12.0f %10.1f %10.1f %12.1f %10d"
+						, isWarmup ? "warmup" + run : "run" + (run - warmupRuns), seconds, accepted, rate
+						, percentile(latencies, 50) / 1000.0, percentile(latencies, 99) / 1000.0
+						, peakHeap() / (1024.0 * 1024.0), failures));
+				if (multiChains.size() > 1) {
+					System.out.println("         accepted by node=" + nodeAccepted);
+				}
+			}
+
+			if (! recordsPerSecond.isEmpty()) {
+				double[] rates = new double[recordsPerSecond.size()];
+				for (int i = 0; i < rates.length; i++) {
+					rates[i] = recordsPerSecond.get(i);
+				}
+				Arrays.sort(rates);
+				System.out.println(String.format(Locale.ROOT, "median records/s=%.0f", rates[rates.length / 2]));
+			}
+			if (warmupRuns + runs > 0) {
+				checkRebuild(config, countries, stations * observations, adds, multiChains);
+			}
+		} finally {
+			for (MultiChainStandIn multiChain : multiChains) {
+				multiChain.stop();
+			}
+			adds.stop();
+		}
+	}
+
+	/**
+	 * Reads the items of the last run back from every node and compares them with the METARs served
+	 *
+	 * @param itemsPerStream the number of items read from every stream of a node
+	 * @throws IllegalStateException when an observation read back was not served, or a METAR served is missing
+	 */
+	private static void checkRebuild(Properties config, List<String> countries, int itemsPerStream, AddsStandIn adds
+			, List<MultiChainStandIn> multiChains) {
+		PayloadCodecBinary payloadDecoder = new PayloadCodecBinary();
+		payloadDecoder.setDictionaryFile(config.getProperty("multichain.payload.dictionary-file"));
+
+		MetarIndex index = new MetarIndex();
+		index.setMaxStations("" + (adds.getRecordCount() + 1));
+		index.setMaxObservationsPerStation("" + (itemsPerStream + 1));
+		index.setMaxDates("" + Integer.MAX_VALUE);
+		long failures = 0;
+		for (MultiChainStandIn multiChain : multiChains) {
+			MetarChainReader chainReader = new MetarChainReader();
+			chainReader.setJsonRpcClient(new JsonRpcClient(multiChain.getUrl()
+					, config.getProperty("multichain.username"), config.getProperty("multichain.password")));
+			chainReader.setPayloadDecoder(payloadDecoder);
+			chainReader.setRebuildItems("" + itemsPerStream);
+			chainReader.rebuild(index, countries);
+			failures += multiChain.getFailedCalls() + multiChain.getRejectedItems();
+		}
+
+		int served = 0;
+		int missing = 0;
+		for (String country : countries) {
+			//the METARs served, by station and observation time to the minute, as the time is rebuilt from the time group
+			Map<String, String> rawTexts = new HashMap<String, String>();
+			Set<String> stationIds = new HashSet<String>();
+			for (String record : adds.getRecords(country)) {
+				String stationId = Utils.getValueFromJSON("station_id", record);
+				rawTexts.put(stationId + " " + minute(Utils.getValueFromJSON("observation_time", record))
+						, Utils.getValueFromJSON("raw_text", record));
+				stationIds.add(stationId);
+			}
+
+			Set<String> read = new HashSet<String>();
+			for (String stationId : stationIds) {
+				for (MetarIndex.Observation observation : index.range(stationId, null, null)) {
+					String observed = stationId + " " + minute(observation.getObservationTime());
+					if (! observation.getRawText().equals(rawTexts.get(observed))) {
+						throw new IllegalStateException("observation of " + stationId + " at " + observation.getObservationTime()
+								+ " read back from the chain was not served: " + observation.getRawText());
+					}
+					read.add(observed);
+				}
+			}
+			served += rawTexts.size();
+			missing += rawTexts.size() - read.size();
+		}
+
+		System.out.println("read back from the chain=" + (served - missing) + " of " + served + " served");
+		if ((missing > 0) && (failures == 0)) {
+			throw new IllegalStateException(missing + " METARs served were not read back from the chain");
+		}
+	}
+
+	/**
+	 * @param observationTime an observation time, CCYY-MM-DDTHH:MM:SSZ
+	 * @return the observation time to the minute, CCYY-MM-DDTHH:MM
+	 */
+	private static String minute(String observationTime) {
+		String time = observationTime.trim();
+		return (time.length() < 16) ? time : time.substring(0, 16);
+	}
+
+	private static void usage() {
+		System.out.println("usage: EndToEndBenchmark [name=value ...]");
+		System.out.println("  countries=" + DEFAULT_COUNTRIES + "      number of countries, each a stream");
+		System.out.println("  stations=" + DEFAULT_STATIONS + "       number of stations per country");
+		System.out.println("  observations=" + DEFAULT_OBSERVATIONS + "    number of observations per station");
+		System.out.println("  latency-ms=" + DEFAULT_LATENCY_MILLIS + "     mean latency of createrawsendfrom");
+		System.out.println("  error-rate=" + DEFAULT_ERROR_RATE + "      fraction of createrawsendfrom calls failing with a transient error");
+		System.out.println("  warmup-runs=" + DEFAULT_WARMUP_RUNS + "     runs not reported");
+		System.out.println("  runs=" + DEFAULT_RUNS + "            runs reported");
+		System.out.println("  nodes=" + DEFAULT_NODES + "           number of MultiChain stand-ins, each a node");
+		System.out.println("  slow-node-latency-ms=latency-ms  mean latency of createrawsendfrom on the first node");
+		System.out.println("  down-nodes=" + DEFAULT_DOWN_NODES + "      number of nodes listed that are not running");
+		System.out.println("  log-level=WARNING  level of the processor log");
+		System.out.println("  any processor property, such as multichain.sender-threads=8");
+	}
+
+	/**
+	 * @param sorted sorted values
+	 * @param percent the percentile, from 0 to 100
+	 * @return the value at the percentile, using the nearest rank
+	 */
+	static long percentile(long[] sorted, int percent) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+	}
+
+	private static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * @return the sum of the peak use of every heap memory pool since the last reset
+	 */
+	private static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	/**
+	 * @return a port of the loopback interface nothing listens on
+	 */
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static String join(List<String> values) {
+		StringBuilder joined = new StringBuilder();
+		for (String value : values) {
+			if (joined.length() > 0) {
+				joined.append(',');
+			}
+			joined.append(value);
+		}
+		return joined.toString();
+	}
+
+	private static void store(Properties properties, File file) throws IOException {
+		OutputStream output = new FileOutputStream(file);
+		try {
+			properties.store(output, null);
+		} finally {
+			output.close();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package ca.nexcel.awbc.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.SAXParser;
+
+import org.xml.sax.helpers.DefaultHandler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ca.nexcel.awbc.processor.process.AviationWeatherHandler;
+import ca.nexcel.awbc.processor.publisher.KeyCreatorMetar;
+
+/**
+ * Measures parsing a METAR document with AviationWeatherHandler, including
+ * the creation of keys. Records are handed to a publisher that only counts
+ * them. One operation parses the whole fixture.
+ * <p/>
+ * parseOnly parses the same document with a handler that does nothing, which
+ * is the time taken by the SAX parser itself. The handler cannot make parsing
+ * faster than that, whatever it saves.
+ * 
+ * @author George Franciscus
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HandlerBenchmark {
+	
+	@Param({"SMALL_COUNTRY", "US", "NON_ASCII"})
+	private String fixture;
+	
+	private byte[] xml;
+	private SAXParser parser;
+	private AviationWeatherHandler handler;
+	private DefaultHandler noHandler;
+	private CountingPublisher publisher;
+	
+	@Setup
+	public void setup() {
+		xml = MetarFixtures.Fixture.valueOf(fixture).generate();
+		parser = MetarParsing.createParser();
+		publisher = new CountingPublisher(false);
+		handler = MetarParsing.createHandler("XX", new KeyCreatorMetar(), publisher);
+		noHandler = new DefaultHandler();
+	}
+	
+	@Benchmark
+	public int parse() throws Exception {
+		parser.reset();
+		publisher.initialize();
+		parser.parse(new ByteArrayInputStream(xml), handler);
+		return publisher.getChecksum();
+	}
+	
+	@Benchmark
+	public void parseOnly() throws Exception {
+		parser.reset();
+		parser.parse(new ByteArrayInputStream(xml), noHandler);
+	}
+}
@@ -0,0 +1,307 @@
+package ca.nexcel.awbc.benchmark;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ca.nexcel.awbc.processor.common.JSONUtil;
+import ca.nexcel.awbc.processor.common.JsonWriter;
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.publisher.KeyCreatorMetar;
+
+/**
+ * Measures the JSON helpers used for every record: escaping and unescaping
+ * raw text and extracting a value from the JSON form of a record. Also measures
+ * extracting the stream names from a liststreams response. One operation 
+ * processes every record of the fixture.
+ * <p/>
+ * The createrawsendfrom parameters of every record are written in batches, 
+ * with JsonWriter as the publisher does, and with maps serialized by Jackson
+ * as jsonrpc4j does, for comparison.
+ * <p/>
+ * Before measuring, it checks that JSONUtil escapes and unescapes every character
+ * and random text exactly as the original gist does, and that JsonWriter writes
+ * the same bytes as Jackson for every batch of the fixture.
+ * 
+ * @author George Franciscus
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class JsonBenchmark {
+	
+	/**
+	 * The number of streams in the liststreams response, one per country plus root
+	 */
+	private static final int STREAM_COUNT = 250;
+	
+	/**
+	 * The number of transactions in a createrawsendfrom call, the chain's default max-std-op-returns-count
+	 */
+	private static final int BATCH_SIZE = 10;
+	
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/**
+	 * The number of random texts escaped and unescaped by the check
+	 */
+	private static final int RANDOM_TEXT_COUNT = 20000;
+	
+	/**
+	 * The characters random texts are mostly made of: those escaped, those following
+	 * a backslash in an escape sequence, hex digits, and characters outside of ASCII
+	 */
+	private static final char[] RANDOM_TEXT_CHARS = "\\\"/'\n\r\t\b\f\u0001\u001f\u007f nrtbfu0123456789abcdefABCDEFxyzXYZ-.\u00b0\u00e9\u0660\u0669\u2028\ud83d\ude00\uffff".toCharArray();
+	
+	/**
+	 * The records of a fixture
+	 */
+	@State(Scope.Benchmark)
+	public static class Records {
+		
+		@Param({"SMALL_COUNTRY", "US", "NON_ASCII"})
+		private String fixture;
+		
+		private List<String> records;
+		private List<String> rawTexts;
+		private List<String> escapedRawTexts;
+		private List<List<String>> keys;
+		private JsonWriter writer = new JsonWriter();
+		
+		@Setup
+		public void setup() {
+			records = MetarParsing.captureRecords(MetarFixtures.Fixture.valueOf(fixture).generate());
+			rawTexts = new ArrayList<String>(records.size());
+			escapedRawTexts = new ArrayList<String>(records.size());
+			keys = new ArrayList<List<String>>(records.size());
+			KeyCreatorMetar keyCreator = new KeyCreatorMetar();
+			for (String record : records) {
+				String rawText = Utils.getValueFromJSON("raw_text", record);
+				rawTexts.add(rawText);
+				escapedRawTexts.add(JSONUtil.escape(rawText));
+				keys.add(keyCreator.createKey(record));
+			}
+			
+			checkJSONUtil();
+			checkTransactions(this);
+		}
+	}
+	
+	/**
+	 * A liststreams response, as returned by the JSON RPC client
+	 */
+	@State(Scope.Benchmark)
+	public static class StreamList {
+		
+		private String response;
+		
+		@Setup
+		public void setup() {
+			StringBuilder text = new StringBuilder("[");
+			for (int i = 0; i < STREAM_COUNT; i++) {
+				String name = (i == 0) ? "root" : MetarFixtures.stationId("", i).substring(2);
+				text.append((i == 0) ? "{" : ", {");
+				text.append("name=").append(name);
+				text.append(", createtxid=").append(String.format("%064x", i));
+				text.append(", streamref=").append(i).append("-265-").append(i * 7);
+				text.append(", open=false, details={}, subscribed=true, synchronized=true, items=").append(i * 100);
+				text.append(", confirmed=").append(i * 100).append(", keys=").append(i * 10).append(", publishers=1");
+				text.append("}");
+			}
+			response = text.append("]").toString();
+		}
+	}
+	
+	@Benchmark
+	public void escape(Records records, Blackhole blackhole) {
+		for (String rawText : records.rawTexts) {
+			blackhole.consume(JSONUtil.escape(rawText));
+		}
+	}
+	
+	@Benchmark
+	public void unescape(Records records, Blackhole blackhole) {
+		for (String escapedRawText : records.escapedRawTexts) {
+			blackhole.consume(JSONUtil.unescape(escapedRawText));
+		}
+	}
+	
+	@Benchmark
+	public void writeTransactions(Records records, Blackhole blackhole) {
+		for (int start = 0; start < records.records.size(); start += BATCH_SIZE) {
+			blackhole.consume(writeBatch(records, start).size());
+		}
+	}
+	
+	@Benchmark
+	public void serializeTransactionMaps(Records records, Blackhole blackhole) throws Exception {
+		for (int start = 0; start < records.records.size(); start += BATCH_SIZE) {
+			blackhole.consume(MAPPER.writeValueAsBytes(mapBatch(records, start)));
+		}
+	}
+	
+	@Benchmark
+	public void getValueFromJSON(Records records, Blackhole blackhole) {
+		for (String record : records.records) {
+			blackhole.consume(Utils.getValueFromJSON("raw_text", record));
+		}
+	}
+	
+	@Benchmark
+	public List<String> extractTextFromJSon(StreamList streamList) {
+		return Utils.extractTextFromJSon(streamList.response, "name");
+	}
+	
+	/**
+	 * Writes the createrawsendfrom parameters of a batch with JsonWriter, as the publisher does
+	 * 
+	 * @param records the records of the fixture
+	 * @param start the index of the first record of the batch
+	 * @return the writer holding the parameters
+	 */
+	private static JsonWriter writeBatch(Records records, int start) {
+		JsonWriter writer = records.writer;
+		writer.reset();
+		writer.beginArray().value("1FromAddress").beginObject().endObject().beginArray();
+		for (int i = start; i < Math.min(start + BATCH_SIZE, records.records.size()); i++) {
+			writer.beginObject();
+			writer.name("for").value("XX");
+			writer.name("keys").value(records.keys.get(i));
+			writer.name("data").beginObject().name("text").value(JSONUtil.escape(records.rawTexts.get(i))).endObject();
+			writer.endObject();
+		}
+		writer.endArray().value("send").endArray();
+		return writer;
+	}
+	
+	/**
+	 * Builds the createrawsendfrom parameters of a batch as maps, as they were built for jsonrpc4j
+	 * 
+	 * @param records the records of the fixture
+	 * @param start the index of the first record of the batch
+	 * @return the parameters
+	 */
+	private static Object[] mapBatch(Records records, int start) {
+		List<Object> transactions = new ArrayList<Object>();
+		for (int i = start; i < Math.min(start + BATCH_SIZE, records.records.size()); i++) {
+			Map<String, Object> transaction = new LinkedHashMap<String, Object>();
+			transaction.put("for", "XX");
+			transaction.put("keys", records.keys.get(i));
+			Map<String, Object> data = new HashMap<String, Object>();
+			data.put("text", JSONUtil.escape(records.rawTexts.get(i)));
+			transaction.put("data", data);
+			transactions.add(transaction);
+		}
+		return new Object[] {"1FromAddress", new HashMap<String, Object>(), transactions, "send"};
+	}
+	
+	/**
+	 * Checks that JsonWriter writes the same bytes as Jackson for every batch of a fixture
+	 */
+	private static void checkTransactions(Records records) {
+		for (int start = 0; start < records.records.size(); start += BATCH_SIZE) {
+			byte[] expected;
+			try {
+				expected = MAPPER.writeValueAsBytes(mapBatch(records, start));
+			} catch (Exception e) {
+				throw new IllegalStateException("Jackson does not serialize the batch starting at record " + start, e);
+			}
+			byte[] actual = writeBatch(records, start).toByteArray();
+			if (! Arrays.equals(expected, actual)) {
+				throw new IllegalStateException("JsonWriter does not write the same batch as Jackson, starting at record " + start
+						+ "\n" + new String(expected, UTF8) + "\n" + new String(actual, UTF8));
+			}
+		}
+	}
+	
+	/**
+	 * Checks that JSONUtil escapes and unescapes every character, and random texts,
+	 * as the original gist does, failing the same way on invalid escape sequences
+	 */
+	private static void checkJSONUtil() {
+		for (int ch = 1; ch <= 0xFFFF; ch++) {
+			checkJSONUtil(String.valueOf((char) ch));
+		}
+		
+		Random random = new Random(42);
+		for (int i = 0; i < RANDOM_TEXT_COUNT; i++) {
+			char[] text = new char[random.nextInt(40)];
+			for (int c = 0; c < text.length; c++) {
+				text[c] = random.nextBoolean() ? RANDOM_TEXT_CHARS[random.nextInt(RANDOM_TEXT_CHARS.length)]
+						: (char) (1 + random.nextInt(0xFFFF));
+			}
+			checkJSONUtil(new String(text));
+		}
+	}
+	
+	/**
+	 * Checks that JSONUtil escapes a text as the gist does, unescapes the escaped
+	 * text as the gist does, and unescapes the text itself as the gist does
+	 */
+	private static void checkJSONUtil(String text) {
+		String escaped = GistJSONUtil.escape(text);
+		checkSame("escape", text, escaped, JSONUtil.escape(text));
+		checkSame("unescape", escaped, unescapeWithGist(escaped), unescape(escaped));
+		checkSame("unescape", text, unescapeWithGist(text), unescape(text));
+	}
+	
+	private static void checkSame(String operation, String input, String expected, String actual) {
+		if (! expected.equals(actual)) {
+			throw new IllegalStateException("JSONUtil." + operation + " differs from the gist for " + describe(input)
+					+ ". expected " + describe(expected) + " but was " + describe(actual));
+		}
+	}
+	
+	/**
+	 * @return the unescaped text, or the exception thrown, as the gist unescapes it
+	 */
+	private static String unescapeWithGist(String text) {
+		try {
+			return "=" + GistJSONUtil.unescape(text);
+		} catch (RuntimeException e) {
+			return "!" + e;
+		}
+	}
+	
+	/**
+	 * @return the unescaped text, or the exception thrown, as JSONUtil unescapes it
+	 */
+	private static String unescape(String text) {
+		try {
+			return "=" + JSONUtil.unescape(text);
+		} catch (RuntimeException e) {
+			return "!" + e;
+		}
+	}
+	
+	/**
+	 * @return the characters of a text as unicode escapes, so that the text can be read in a message
+	 */
+	private static String describe(String text) {
+		StringBuilder description = new StringBuilder("\"");
+		for (int i = 0; i < text.length(); i++) {
+			description.append(String.format("\\u%04x", (int) text.charAt(i)));
+		}
+		return description.append('"').toString();
+	}
+}
@@ -0,0 +1,71 @@
+package ca.nexcel.awbc.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.model.MetarRecord;
+import ca.nexcel.awbc.processor.publisher.KeyCreatorMetar;
+
+/**
+ * Measures KeyCreatorMetar creating the keys of every record of a fixture,
+ * from the JSON form of the records and from typed records.
+ * 
+ * @author George Franciscus
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class KeyCreatorBenchmark {
+	
+	@Param({"SMALL_COUNTRY", "US"})
+	private String fixture;
+	
+	private KeyCreatorMetar keyCreator = new KeyCreatorMetar();
+	private List<String> records;
+	private MetarRecord[] metarRecords;
+	
+	@Setup
+	public void setup() {
+		records = MetarParsing.captureRecords(MetarFixtures.Fixture.valueOf(fixture).generate());
+		
+		metarRecords = new MetarRecord[records.size()];
+		for (int i = 0; i < metarRecords.length; i++) {
+			metarRecords[i] = new MetarRecord();
+			capture(metarRecords[i], MetarRecord.Field.STATION_ID, Utils.getValueFromJSON("station_id", records.get(i)));
+			capture(metarRecords[i], MetarRecord.Field.OBSERVATION_TIME, Utils.getValueFromJSON("observation_time", records.get(i)));
+			metarRecords[i].endRecord();
+		}
+	}
+	
+	private static void capture(MetarRecord record, MetarRecord.Field field, String value) {
+		record.beginField(("\"" + field.getName() + "\":\"").toCharArray());
+		record.appendValue(value.toCharArray(), 0, value.length());
+		record.endField(field);
+	}
+	
+	@Benchmark
+	public void createKeyFromJSON(Blackhole blackhole) {
+		for (String record : records) {
+			blackhole.consume(keyCreator.createKey(record));
+		}
+	}
+	
+	@Benchmark
+	public void createKeyFromRecord(Blackhole blackhole) {
+		for (MetarRecord record : metarRecords) {
+			blackhole.consume(keyCreator.createKey(record));
+		}
+	}
+}
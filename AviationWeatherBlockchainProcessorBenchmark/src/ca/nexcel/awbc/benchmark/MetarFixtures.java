@@ -0,0 +1,271 @@
+package ca.nexcel.awbc.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates METAR XML documents in the format returned by the aviationweather.gov
+ * ADDS data server, used as benchmark fixtures.
+ * <p/>
+ * Observations are generated from a seeded random number generator, so the
+ * same arguments always produce the same document. Each observation varies
+ * the optional elements present, such as gusts, weather strings, several
+ * sky conditions and precipitation, the way real observations do.
+ *
+ * @author George Franciscus
+ *
+ */
+public class MetarFixtures {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The time of the most recent observation of every station
+	 */
+	private static final int DAY = 7;
+	private static final int HOUR = 18;
+
+	private static final String[] WEATHER = {"-RA", "RA", "+RA", "BR", "-SN", "SN", "FG", "HZ", "-DZ", "TSRA", "-SHRA", "VCSH"};
+	private static final String[] SKY_COVER = {"FEW", "SCT", "BKN", "OVC"};
+
+	/**
+	 * Remarks written by observers in countries that do not use English, as found in
+	 * the free text portion of some METARs, and station names carried in remarks
+	 */
+	private static final String[] NON_ASCII_REMARKS = {
+		"ÉCLAIRS DISTANTS À L'OUEST", "VISIBILITÉ RÉDUITE PRÈS DU LAC", "BRUME SÈCHE ÉPAISSE",
+		"ÖRESUND DIS", "SCHNEEFÄLLE IN STÄRKE ÄNDERND", "GROSSE HAGELKÖRNER",
+		"ГРОЗА НА СЕВЕРЕ", "ОБЛАЧНОСТЬ РАЗРЫВЫ", "雷雨 北東", "視程 低下",
+		"ΚΑΤΑΙΓΙΔΑ ΒΟΡΕΙΑ", "AÇORES CHUVISCO", "ÍSING Á FJÖLLUM", "ŁÓDŹ MGŁA"
+	};
+
+	/**
+	 * The fixtures used by the benchmarks
+	 */
+	public enum Fixture {
+		/**
+		 * A small country such as Luxembourg: a few stations, a few hours of observations each
+		 */
+		SMALL_COUNTRY("EL", 6, 3, false),
+
+		/**
+		 * The United States: the largest country request, one hour of observations
+		 */
+		US("K", 2400, 1, false),
+
+		/**
+		 * Observations whose remarks contain many characters outside of ASCII
+		 */
+		NON_ASCII("LF", 150, 2, true);
+
+		private String stationPrefix;
+		private int stations;
+		private int observationsPerStation;
+		private boolean isNonAscii;
+
+		private Fixture(String stationPrefix, int stations, int observationsPerStation, boolean isNonAscii) {
+			this.stationPrefix = stationPrefix;
+			this.stations = stations;
+			this.observationsPerStation = observationsPerStation;
+			this.isNonAscii = isNonAscii;
+		}
+
+		/**
+		 * @return the XML document of the fixture, UTF-8 encoded
+		 */
+		public byte[] generate() {
+			return MetarFixtures.generate(stationPrefix, stations, observationsPerStation, isNonAscii, ordinal());
+		}
+	}
+
+	/**
+	 * Generates a METAR XML document in memory.
+	 *
+	 * @param stationPrefix the first letters of the station identifiers, such as K for the United States
+	 * @param stations the number of stations
+	 * @param observationsPerStation the number of observations of each station, one per hour
+	 * @param isNonAscii are remarks written with characters outside of ASCII
+	 * @param seed the seed of the random number generator
+	 * @return the XML document, UTF-8 encoded
+	 */
+	public static byte[] generate(String stationPrefix, int stations, int observationsPerStation, boolean isNonAscii, long seed) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(stations * observationsPerStation * 1024);
+		try {
+			write(bytes, stationPrefix, stations, observationsPerStation, isNonAscii, seed);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Writes a METAR XML document.
+	 *
+	 * @param output receives the XML document, UTF-8 encoded. Not closed.
+	 * @param stationPrefix the first letters of the station identifiers, such as K for the United States
+	 * @param stations the number of stations
+	 * @param observationsPerStation the number of observations of each station, one per hour
+	 * @param isNonAscii are remarks written with characters outside of ASCII
+	 * @param seed the seed of the random number generator
+	 * @throws IOException when the document cannot be written
+	 */
+	public static void write(OutputStream output, String stationPrefix, int stations, int observationsPerStation
+			, boolean isNonAscii, long seed) throws IOException {
+		Random random = new Random(seed);
+		Writer writer = new OutputStreamWriter(output, UTF8);
+
+		writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		writer.write("<response xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" version=\"1.2\" xsi:noNamespaceSchemaLocation=\"http://aviationweather.gov/adds/schema/metar1_2.xsd\">\n");
+		writer.write("  <request_index>" + Math.abs(random.nextInt()) + "</request_index>\n");
+		writer.write("  <data_source name=\"metars\" />\n");
+		writer.write("  <request type=\"retrieve\" />\n");
+		writer.write("  <errors />\n");
+		writer.write("  <warnings />\n");
+		writer.write("  <time_taken_ms>" + (5 + random.nextInt(200)) + "</time_taken_ms>\n");
+		writer.write("  <data num_results=\"" + (stations * observationsPerStation) + "\">\n");
+
+		StringBuilder metar = new StringBuilder(2048);
+		for (int station = 0; station < stations; station++) {
+			String stationId = stationId(stationPrefix, station);
+			double latitude = -60 + (random.nextInt(13000) / 100.0);
+			double longitude = -180 + (random.nextInt(36000) / 100.0);
+			double elevation = random.nextInt(30000) / 10.0;
+
+			for (int observation = 0; observation < observationsPerStation; observation++) {
+				metar.setLength(0);
+				appendMetar(metar, random, stationId, HOUR - observation, latitude, longitude, elevation, isNonAscii);
+				writer.append(metar);
+			}
+		}
+
+		writer.write("  </data>\n");
+		writer.write("</response>\n");
+		writer.flush();
+	}
+
+	/**
+	 * Creates a four letter station identifier
+	 */
+	static String stationId(String stationPrefix, int station) {
+		StringBuilder stationId = new StringBuilder(4);
+		stationId.append(stationPrefix);
+		int remaining = station;
+		for (int i = stationPrefix.length(); i < 4; i++) {
+			stationId.insert(stationPrefix.length(), (char) ('A' + (remaining % 26)));
+			remaining /= 26;
+		}
+		return stationId.toString();
+	}
+
+	private static void appendMetar(StringBuilder metar, Random random, String stationId, int hour
+			, double latitude, double longitude, double elevation, boolean isNonAscii) {
+		int minute = 51 + random.nextInt(5);
+		int windDirection = random.nextInt(36) * 10;
+		int windSpeed = random.nextInt(25);
+		int windGust = (windSpeed > 12 && random.nextInt(3) == 0) ? windSpeed + 5 + random.nextInt(15) : 0;
+		double visibility = random.nextInt(4) == 0 ? (1 + random.nextInt(8)) / 2.0 : 10.0;
+		int temperature = -25 + random.nextInt(60);
+		int dewpoint = temperature - random.nextInt(15);
+		double altimeter = 29.5 + (random.nextInt(1000) / 1000.0);
+		double seaLevelPressure = 1000 + (random.nextInt(400) / 10.0);
+		String weather = random.nextInt(3) == 0 ? WEATHER[random.nextInt(WEATHER.length)] : null;
+		int skyConditions = random.nextInt(4);
+
+		StringBuilder rawText = new StringBuilder(160);
+		rawText.append(stationId).append(' ');
+		rawText.append(String.format(Locale.ROOT, "%02d%02d%02dZ ", DAY, hour, minute));
+		rawText.append(String.format(Locale.ROOT, "%03d%02d", windDirection, windSpeed));
+		if (windGust > 0) {
+			rawText.append('G').append(windGust);
+		}
+		rawText.append("KT ");
+		rawText.append(visibility == Math.floor(visibility) ? "" + (int) visibility : (int) Math.floor(visibility) + " 1/2").append("SM ");
+		if (null != weather) {
+			rawText.append(weather).append(' ');
+		}
+		if (skyConditions == 0) {
+			rawText.append("CLR ");
+		}
+		int[] skyBases = new int[skyConditions];
+		String[] skyCovers = new String[skyConditions];
+		for (int i = 0; i < skyConditions; i++) {
+			skyBases[i] = (i + 1) * (5 + random.nextInt(40));
+			skyCovers[i] = SKY_COVER[Math.min(SKY_COVER.length - 1, i + random.nextInt(2))];
+			rawText.append(skyCovers[i]).append(String.format(Locale.ROOT, "%03d ", skyBases[i]));
+		}
+		rawText.append(temperatureGroup(temperature)).append('/').append(temperatureGroup(dewpoint)).append(' ');
+		rawText.append(String.format(Locale.ROOT, "A%04d", Math.round(altimeter * 100)));
+		rawText.append(" RMK AO2 SLP").append(String.format(Locale.ROOT, "%03d", Math.round(seaLevelPressure * 10) % 1000));
+		rawText.append(String.format(Locale.ROOT, " T%d%03d%d%03d", temperature < 0 ? 1 : 0, Math.abs(temperature * 10)
+				, dewpoint < 0 ? 1 : 0, Math.abs(dewpoint * 10)));
+		if (isNonAscii) {
+			rawText.append(' ').append(NON_ASCII_REMARKS[random.nextInt(NON_ASCII_REMARKS.length)]);
+			rawText.append(' ').append(NON_ASCII_REMARKS[random.nextInt(NON_ASCII_REMARKS.length)]);
+		}
+
+		metar.append("    <METAR>\n");
+		element(metar, "raw_text", rawText.toString());
+		element(metar, "station_id", stationId);
+		element(metar, "observation_time", String.format(Locale.ROOT, "2018-11-%02dT%02d:%02d:00Z", DAY, hour, minute));
+		element(metar, "latitude", String.format(Locale.ROOT, "%.2f", latitude));
+		element(metar, "longitude", String.format(Locale.ROOT, "%.2f", longitude));
+		element(metar, "temp_c", temperature + ".0");
+		element(metar, "dewpoint_c", dewpoint + ".0");
+		element(metar, "wind_dir_degrees", "" + windDirection);
+		element(metar, "wind_speed_kt", "" + windSpeed);
+		if (windGust > 0) {
+			element(metar, "wind_gust_kt", "" + windGust);
+		}
+		element(metar, "visibility_statute_mi", "" + visibility);
+		element(metar, "altim_in_hg", String.format(Locale.ROOT, "%.6f", altimeter));
+		element(metar, "sea_level_pressure_mb", String.format(Locale.ROOT, "%.1f", seaLevelPressure));
+		metar.append("      <quality_control_flags>\n        <auto_station>TRUE</auto_station>\n      </quality_control_flags>\n");
+		if (null != weather) {
+			element(metar, "wx_string", weather);
+		}
+		if (skyConditions == 0) {
+			metar.append("      <sky_condition sky_cover=\"CLR\" />\n");
+		}
+		for (int i = 0; i < skyConditions; i++) {
+			metar.append("      <sky_condition sky_cover=\"").append(skyCovers[i])
+				.append("\" cloud_base_ft_agl=\"").append(skyBases[i] * 100).append("\" />\n");
+		}
+		element(metar, "flight_category", visibility < 3 ? "IFR" : (skyConditions > 1 ? "MVFR" : "VFR"));
+		if (random.nextInt(3) == 0) {
+			element(metar, "three_hr_pressure_tendency_mb", String.format(Locale.ROOT, "%.1f", (random.nextInt(60) - 30) / 10.0));
+		}
+		if (null != weather) {
+			element(metar, "precip_in", String.format(Locale.ROOT, "%.3f", random.nextInt(100) / 1000.0));
+		}
+		element(metar, "metar_type", "METAR");
+		element(metar, "elevation_m", String.format(Locale.ROOT, "%.1f", elevation));
+		metar.append("    </METAR>\n");
+	}
+
+	private static String temperatureGroup(int temperature) {
+		return (temperature < 0 ? "M" : "") + String.format(Locale.ROOT, "%02d", Math.abs(temperature));
+	}
+
+	private static void element(StringBuilder metar, String name, String value) {
+		metar.append("      <").append(name).append('>');
+		for (int i = 0; i < value.length(); i++) {
+			char ch = value.charAt(i);
+			if (ch == '&') {
+				metar.append("&amp;");
+			} else if (ch == '<') {
+				metar.append("&lt;");
+			} else if (ch == '>') {
+				metar.append("&gt;");
+			} else {
+				metar.append(ch);
+			}
+		}
+		metar.append("</").append(name).append(">\n");
+	}
+}
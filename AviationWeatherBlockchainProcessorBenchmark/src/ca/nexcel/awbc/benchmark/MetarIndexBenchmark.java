@@ -0,0 +1,87 @@
+package ca.nexcel.awbc.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.publisher.KeyCreatorMetar;
+import ca.nexcel.awbc.processor.query.MetarIndex;
+
+/**
+ * Measures the queries of MetarIndex on an index holding 12 hours of observations
+ * of the 2400 stations of the US fixture, and adding an observation to it. One 
+ * operation is one query, of the next station in turn, or one observation added, 
+ * so the average time of a query is reported.
+ *
+ * @author George Franciscus
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetarIndexBenchmark {
+
+	private static final int STATIONS = 2400;
+	private static final int OBSERVATIONS_PER_STATION = 12;
+
+	private MetarIndex index = new MetarIndex();
+	private String[] stationIds;
+	private List<List<String>> keys = new ArrayList<List<String>>();
+	private List<String> observationTimes = new ArrayList<String>();
+	private List<String> rawTexts = new ArrayList<String>();
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		List<String> records = MetarParsing.captureRecords(MetarFixtures.generate("K", STATIONS, OBSERVATIONS_PER_STATION, false, 1));
+		KeyCreatorMetar keyCreator = new KeyCreatorMetar();
+		for (String record : records) {
+			keys.add(keyCreator.createKey(record));
+			observationTimes.add(Utils.getValueFromJSON("observation_time", record));
+			rawTexts.add(Utils.getValueFromJSON("raw_text", record));
+			add(keys.size() - 1);
+		}
+
+		stationIds = new String[STATIONS];
+		for (int i = 0; i < STATIONS; i++) {
+			stationIds[i] = MetarFixtures.stationId("K", i);
+		}
+	}
+
+	private void add(int record) {
+		index.add("US", keys.get(record), observationTimes.get(record), rawTexts.get(record));
+	}
+
+	private String nextStation() {
+		next = (next + 1) % STATIONS;
+		return stationIds[next];
+	}
+
+	@Benchmark
+	public MetarIndex.Observation latest() {
+		return index.latest(nextStation());
+	}
+
+	@Benchmark
+	public List<MetarIndex.Observation> range() {
+		return index.range(nextStation(), "2018-11-07T12:00:00Z", "2018-11-07T18:00:00Z");
+	}
+
+	/**
+	 * Adds an observation already held, the cost paid by the publisher for every record written
+	 */
+	@Benchmark
+	public void add() {
+		next = (next + 1) % keys.size();
+		add(next);
+	}
+}
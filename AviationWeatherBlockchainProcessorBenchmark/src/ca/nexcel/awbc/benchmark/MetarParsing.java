@@ -0,0 +1,114 @@
+package ca.nexcel.awbc.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Properties;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.process.AviationWeatherHandler;
+import ca.nexcel.awbc.processor.process.AviationWeatherParserPool;
+import ca.nexcel.awbc.processor.process.ParseEngine;
+import ca.nexcel.awbc.processor.process.ParseEngineSax;
+import ca.nexcel.awbc.processor.process.ParseEngineStax;
+import ca.nexcel.awbc.processor.publisher.KeyCreator;
+import ca.nexcel.awbc.processor.publisher.Publisher;
+
+/**
+ * Creates METAR handlers configured the way the processor configures them,
+ * from the metar properties of the default configuration file.
+ * 
+ * @author George Franciscus
+ *
+ */
+public class MetarParsing {
+	
+	private static final String CONFIG_FILE = "awbcProcessorConfig.properties";
+	
+	private static Properties configProperties = null;
+	
+	/**
+	 * @return the default configuration of the processor
+	 */
+	public static synchronized Properties getConfigProperties() {
+		if (null == configProperties) {
+			configProperties = Utils.loadPropertiesFileFromClasspath(CONFIG_FILE);
+		}
+		return configProperties;
+	}
+	
+	/**
+	 * Creates a handler publishing to a namespace
+	 * 
+	 * @param namespace the namespace records are published to
+	 * @param keyCreator creates the keys of each record
+	 * @param publisher receives the records
+	 * @return the handler
+	 */
+	public static AviationWeatherHandler createHandler(String namespace, KeyCreator keyCreator, Publisher publisher) {
+		Properties properties = getConfigProperties();
+		AviationWeatherHandler handler = new AviationWeatherHandler();
+		handler.setRootElement(properties.getProperty("metar.root"));
+		handler.setAllFields(properties.getProperty("metar.fields"));
+		handler.setKey(properties.getProperty("metar.key", "station_id"));
+		handler.setKeyCreator(keyCreator);
+		handler.setPublisher(publisher);
+		handler.setNamespace(namespace);
+		return handler;
+	}
+	
+	/**
+	 * @return a new SAX parser, as used by the processor
+	 */
+	public static SAXParser createParser() {
+		try {
+			return SAXParserFactory.newInstance().newSAXParser();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * @param engine the name of the engine, as set in metar.parser
+	 * @return a new parse engine, as used by the processor
+	 */
+	public static ParseEngine createEngine(String engine) {
+		try {
+			if (AviationWeatherParserPool.ENGINE_STAX.equals(engine)) {
+				return new ParseEngineStax(ParseEngineStax.createFactory());
+			}
+			return new ParseEngineSax(SAXParserFactory.newInstance());
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Parses a document and obtains the JSON form of every record
+	 * 
+	 * @param xml the METAR XML document
+	 * @return the JSON form of every record, in document order
+	 */
+	public static List<String> captureRecords(byte[] xml) {
+		return captureRecords(xml, AviationWeatherParserPool.ENGINE_SAX);
+	}
+	
+	/**
+	 * Parses a document with an engine and obtains the JSON form of every record
+	 * 
+	 * @param xml the METAR XML document
+	 * @param engine the name of the engine, as set in metar.parser
+	 * @return the JSON form of every record, in document order
+	 */
+	public static List<String> captureRecords(byte[] xml, String engine) {
+		CountingPublisher publisher = new CountingPublisher(true);
+		try {
+			createEngine(engine).parse(new ByteArrayInputStream(xml), createHandler("XX", null, publisher));
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return publisher.getRecords();
+	}
+}
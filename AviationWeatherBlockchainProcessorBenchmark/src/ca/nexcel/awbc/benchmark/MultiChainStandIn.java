@@ -0,0 +1,487 @@
+package ca.nexcel.awbc.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for the MultiChain JSON RPC server, so that the
+ * publisher can be measured without a running multichaind.
+ * <p/>
+ * Implements the methods used by the processor. liststreams returns the
+ * streams, in the format returned by MultiChain. subscribe accepts any stream
+ * that exists. createrawsendfrom creates the streams of a transaction of creates,
+ * or validates every item the way MultiChain does, and answers with a transaction
+ * id once the configured latency has elapsed. A configurable fraction of
+ * createrawsendfrom calls fail with the error MultiChain returns while warming
+ * up, which the publisher treats as transient. Items are JSON text data, or
+ * binary data in hex.
+ * <p/>
+ * The stand-in keeps the keys and data of the items accepted, so that the chain
+ * can be read back. liststreamitems lists the latest items of a stream and
+ * liststreamkeyitems the latest items of a key of a stream, oldest first, as
+ * MultiChain does when called with a negative start.
+ * <p/>
+ * The stand-in counts the items accepted and keeps the latency of every
+ * createrawsendfrom call, measured from the moment the request is received
+ * until the response is sent.
+ *
+ * @author George Franciscus
+ *
+ */
+public class MultiChainStandIn {
+
+	/**
+	 * MultiChain error codes returned by the stand-in
+	 */
+	private static final int RPC_INVALID_PARAMETER = -8;
+	private static final int RPC_VERIFY_REJECTED = -26;
+	private static final int RPC_IN_WARMUP = -28;
+	private static final int RPC_METHOD_NOT_FOUND = -32601;
+	private static final int RPC_DUPLICATE_NAME = -705;
+	private static final int RPC_ENTITY_NOT_FOUND = -708;
+
+	/**
+	 * MultiChain's default max-std-element-size, the largest item
+	 */
+	private static final int DEFAULT_MAX_ITEM_BYTES = 8192;
+
+	/**
+	 * The largest key MultiChain accepts
+	 */
+	private static final int MAX_KEY_BYTES = 256;
+
+	private HttpServer server;
+	private ObjectMapper mapper = new ObjectMapper();
+	private Set<String> streams = Collections.synchronizedSet(new HashSet<String>());
+
+	private int latencyMillis = 0;
+	private double errorRate = 0;
+	private int maxItems = 10;
+	private int maxItemBytes = DEFAULT_MAX_ITEM_BYTES;
+
+	/**
+	 * The keys and data of the items accepted by every stream, in the order accepted
+	 */
+	private Map<String, List<JsonNode>> streamItems = new HashMap<String, List<JsonNode>>();
+
+	private AtomicLong acceptedItems = new AtomicLong();
+	private AtomicLong rejectedItems = new AtomicLong();
+	private AtomicLong failedCalls = new AtomicLong();
+
+	/**
+	 * The latency of every createrawsendfrom call, in microseconds
+	 */
+	private List<Long> latencies = new ArrayList<Long>();
+
+	/**
+	 * @param streams the streams of the chain, excluding root
+	 */
+	public MultiChainStandIn(List<String> streams) {
+		this.streams.addAll(streams);
+	}
+
+	/**
+	 * Sets the time taken by every createrawsendfrom call. Each call takes
+	 * a random time between half and one and a half times this latency.
+	 *
+	 * @param latencyMillis the mean latency in milliseconds
+	 */
+	public void setLatencyMillis(int latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	/**
+	 * @param errorRate the fraction of createrawsendfrom calls that fail with a transient error, from 0 to 1
+	 */
+	public void setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+	}
+
+	/**
+	 * @param maxItems the chain's max-std-op-returns-count
+	 */
+	public void setMaxItems(int maxItems) {
+		this.maxItems = maxItems;
+	}
+
+	/**
+	 * @param maxItemBytes the chain's max-std-element-size
+	 */
+	public void setMaxItemBytes(int maxItemBytes) {
+		this.maxItemBytes = maxItemBytes;
+	}
+
+	/**
+	 * Starts the stand-in on a free port of the loopback interface
+	 *
+	 * @throws IOException when the server cannot be started
+	 */
+	public void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				MultiChainStandIn.this.handle(exchange);
+			}
+		});
+		ExecutorService executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		((ExecutorService) server.getExecutor()).shutdownNow();
+	}
+
+	/**
+	 * @return the URL of the stand-in, as set in multichain.url
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+	}
+
+	/**
+	 * Clears the counts, latencies and items accepted
+	 */
+	public synchronized void reset() {
+		streamItems.clear();
+		acceptedItems.set(0);
+		rejectedItems.set(0);
+		failedCalls.set(0);
+		latencies = new ArrayList<Long>();
+	}
+
+	public long getAcceptedItems() {
+		return acceptedItems.get();
+	}
+
+	public long getRejectedItems() {
+		return rejectedItems.get();
+	}
+
+	public long getFailedCalls() {
+		return failedCalls.get();
+	}
+
+	/**
+	 * @return the latency of every createrawsendfrom call since the last reset, in microseconds, sorted
+	 */
+	public synchronized long[] getSortedLatencies() {
+		long[] sorted = new long[latencies.size()];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = latencies.get(i);
+		}
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		long startNanos = System.nanoTime();
+		boolean isRawSend = false;
+		JsonNode response;
+		try {
+			InputStream input = exchange.getRequestBody();
+			JsonNode request = mapper.readTree(input);
+			input.close();
+
+			if (request.isArray()) {
+				ArrayNode responses = mapper.createArrayNode();
+				for (JsonNode call : request) {
+					isRawSend |= isRawSend(call);
+					responses.add(call(call));
+				}
+				response = responses;
+			} else {
+				isRawSend = isRawSend(request);
+				response = call(request);
+			}
+		} catch (Exception e) {
+			response = error(null, RPC_INVALID_PARAMETER, "Parse error: " + e.getMessage());
+		}
+
+		byte[] body = mapper.writeValueAsBytes(response);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream output = exchange.getResponseBody();
+		output.write(body);
+		output.close();
+
+		if (isRawSend) {
+			synchronized (this) {
+				latencies.add((System.nanoTime() - startNanos) / 1000);
+			}
+		}
+	}
+
+	private static boolean isRawSend(JsonNode call) {
+		return "createrawsendfrom".equals(call.path("method").asText());
+	}
+
+	private ObjectNode call(JsonNode call) throws InterruptedException {
+		JsonNode id = call.get("id");
+		String method = call.path("method").asText();
+
+		if ("liststreams".equals(method)) {
+			ArrayNode result = mapper.createArrayNode();
+			result.add(stream("root"));
+			synchronized (streams) {
+				for (String stream : streams) {
+					result.add(stream(stream));
+				}
+			}
+			return result(id, result);
+		}
+		
+		if ("subscribe".equals(method)) {
+			for (JsonNode stream : call.path("params").path(0)) {
+				if (! streams.contains(stream.asText())) {
+					return error(id, RPC_ENTITY_NOT_FOUND, "Entity with this identifier not found: " + stream.asText());
+				}
+			}
+			return result(id, JsonNodeFactory.instance.nullNode());
+		}
+
+		if ("createrawsendfrom".equals(method)) {
+			return createRawSendFrom(id, call.path("params"));
+		}
+
+		if ("liststreamitems".equals(method)) {
+			JsonNode params = call.path("params");
+			return listItems(id, params.path(0).asText(), null, params.path(2).asInt(10), params.path(3).asInt(-10));
+		}
+
+		if ("liststreamkeyitems".equals(method)) {
+			JsonNode params = call.path("params");
+			return listItems(id, params.path(0).asText(), params.path(1).asText(), params.path(3).asInt(10), params.path(4).asInt(-10));
+		}
+
+		return error(id, RPC_METHOD_NOT_FOUND, "Method not found");
+	}
+
+	private ObjectNode createRawSendFrom(JsonNode id, JsonNode params) throws InterruptedException {
+		Random random = new Random();
+		if (latencyMillis > 0) {
+			Thread.sleep(latencyMillis / 2 + random.nextInt(latencyMillis + 1));
+		}
+
+		if ((errorRate > 0) && (random.nextDouble() < errorRate)) {
+			failedCalls.incrementAndGet();
+			return error(id, RPC_IN_WARMUP, "Loading block index...");
+		}
+
+		JsonNode items = params.path(2);
+		if (! items.isArray() || (items.size() == 0)) {
+			return error(id, RPC_INVALID_PARAMETER, "Invalid parameter, data should be an array");
+		}
+		if (items.size() > maxItems) {
+			rejectedItems.addAndGet(items.size());
+			return error(id, RPC_VERIFY_REJECTED, "Transaction rejected: too many OP_RETURN outputs");
+		}
+		if (items.path(0).has("create")) {
+			return create(id, items);
+		}
+
+		Iterator<JsonNode> itemIterator = items.elements();
+		while (itemIterator.hasNext()) {
+			String problem = validate(itemIterator.next());
+			if (null != problem) {
+				rejectedItems.addAndGet(items.size());
+				return error(id, problem.startsWith("Stream") ? RPC_ENTITY_NOT_FOUND : RPC_INVALID_PARAMETER, problem);
+			}
+		}
+
+		synchronized (this) {
+			for (JsonNode item : items) {
+				List<JsonNode> accepted = streamItems.get(item.path("for").asText());
+				if (null == accepted) {
+					accepted = new ArrayList<JsonNode>();
+					streamItems.put(item.path("for").asText(), accepted);
+				}
+				ObjectNode listed = mapper.createObjectNode();
+				listed.set("keys", item.path("keys"));
+				listed.set("data", item.path("data"));
+				accepted.add(listed);
+			}
+		}
+		acceptedItems.addAndGet(items.size());
+		return result(id, JsonNodeFactory.instance.textNode(String.format("%016x%016x%016x%016x"
+				, random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong())));
+	}
+
+	/**
+	 * Creates the streams of a transaction. The whole transaction is rejected
+	 * when the name of a stream is already taken, as MultiChain does.
+	 */
+	private ObjectNode create(JsonNode id, JsonNode items) {
+		synchronized (streams) {
+			for (JsonNode item : items) {
+				if (! "stream".equals(item.path("create").asText())) {
+					return error(id, RPC_INVALID_PARAMETER, "Invalid parameter, only streams can be created");
+				}
+				if (streams.contains(item.path("name").asText())) {
+					return error(id, RPC_DUPLICATE_NAME, "Stream or asset with this name already exists");
+				}
+			}
+			for (JsonNode item : items) {
+				streams.add(item.path("name").asText());
+			}
+		}
+		return result(id, JsonNodeFactory.instance.textNode(String.format("%064x", items.hashCode() & 0xffffffffL)));
+	}
+
+	/**
+	 * Lists the items of a stream, or of a key of a stream
+	 *
+	 * @param key the key, or null for every item of the stream
+	 * @param count the number of items listed
+	 * @param start the first item listed, counted from the latest item when negative
+	 */
+	private synchronized ObjectNode listItems(JsonNode id, String stream, String key, int count, int start) {
+		if (! streams.contains(stream)) {
+			return error(id, RPC_ENTITY_NOT_FOUND, "Stream with this name not found: " + stream);
+		}
+
+		List<JsonNode> matching = new ArrayList<JsonNode>();
+		List<JsonNode> accepted = streamItems.get(stream);
+		if (null != accepted) {
+			for (JsonNode item : accepted) {
+				if ((null == key) || hasKey(item, key)) {
+					matching.add(item);
+				}
+			}
+		}
+
+		int first = (start < 0) ? Math.max(0, matching.size() + start) : Math.min(matching.size(), start);
+		ArrayNode result = mapper.createArrayNode();
+		for (int i = first; i < Math.min(matching.size(), first + Math.max(0, count)); i++) {
+			result.add(matching.get(i));
+		}
+		return result(id, result);
+	}
+
+	private static boolean hasKey(JsonNode item, String key) {
+		for (JsonNode itemKey : item.path("keys")) {
+			if (key.equals(itemKey.asText())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Validates a stream item the way MultiChain does
+	 *
+	 * @return the problem found, or null when the item is valid
+	 */
+	private String validate(JsonNode item) {
+		String stream = item.path("for").asText();
+		if (! streams.contains(stream)) {
+			return "Stream with this name not found: " + stream;
+		}
+
+		JsonNode keys = item.path("keys");
+		if (! keys.isArray()) {
+			return "Invalid parameter, keys should be an array";
+		}
+		for (JsonNode key : keys) {
+			if (! key.isTextual() || (key.asText().length() == 0) || (utf8Length(key.asText()) > MAX_KEY_BYTES)) {
+				return "Invalid parameter, invalid key";
+			}
+		}
+
+		JsonNode data = item.path("data");
+		if (data.isTextual()) {
+			if (! isHex(data.asText())) {
+				return "Invalid parameter, data should be hexadecimal";
+			}
+			if (data.asText().length() / 2 > maxItemBytes) {
+				return "Invalid parameter, data too large";
+			}
+			return null;
+		}
+		JsonNode text = data.path("text");
+		if (! text.isTextual()) {
+			return "Invalid parameter, data should contain text";
+		}
+		if (utf8Length(text.asText()) > maxItemBytes) {
+			return "Invalid parameter, data too large";
+		}
+		return null;
+	}
+
+	private static boolean isHex(String data) {
+		if (data.length() % 2 != 0) {
+			return false;
+		}
+		for (int i = 0; i < data.length(); i++) {
+			if (Character.digit(data.charAt(i), 16) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private ObjectNode stream(String name) {
+		ObjectNode stream = mapper.createObjectNode();
+		stream.put("name", name);
+		stream.put("createtxid", String.format("%064x", name.hashCode() & 0xffffffffL));
+		stream.put("streamref", "0-0-0");
+		stream.put("open", false);
+		stream.put("subscribed", true);
+		stream.put("items", 0);
+		return stream;
+	}
+
+	private ObjectNode result(JsonNode id, JsonNode result) {
+		ObjectNode response = mapper.createObjectNode();
+		response.set("result", result);
+		response.putNull("error");
+		response.set("id", id);
+		return response;
+	}
+
+	private ObjectNode error(JsonNode id, int code, String message) {
+		ObjectNode error = mapper.createObjectNode();
+		error.put("code", code);
+		error.put("message", message);
+
+		ObjectNode response = mapper.createObjectNode();
+		response.putNull("result");
+		response.set("error", error);
+		response.set("id", id);
+		return response;
+	}
+
+	private static int utf8Length(String text) {
+		int length = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char ch = text.charAt(i);
+			length += (ch < 0x80) ? 1 : (ch < 0x800) ? 2 : Character.isSurrogate(ch) ? 2 : 3;
+		}
+		return length;
+	}
+}
@@ -0,0 +1,66 @@
+package ca.nexcel.awbc.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ca.nexcel.awbc.processor.process.AviationWeatherHandler;
+import ca.nexcel.awbc.processor.process.ParseEngine;
+import ca.nexcel.awbc.processor.publisher.KeyCreatorMetar;
+
+/**
+ * Compares the SAX and StAX parse engines on the largest country
+ * responses, including the creation of keys. Records are handed to a 
+ * publisher that only counts them. One operation parses the whole fixture.
+ * <p/>
+ * Before measuring, the setup checks that the engine captures exactly the 
+ * same records as the SAX engine, so that a faster engine cannot be faster 
+ * by capturing less.
+ * 
+ * @author George Franciscus
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParseEngineBenchmark {
+	
+	@Param({"sax", "stax"})
+	private String engineName;
+	
+	@Param({"US", "NON_ASCII"})
+	private String fixture;
+	
+	private byte[] xml;
+	private ParseEngine engine;
+	private AviationWeatherHandler handler;
+	private CountingPublisher publisher;
+	
+	@Setup
+	public void setup() {
+		xml = MetarFixtures.Fixture.valueOf(fixture).generate();
+		if (! MetarParsing.captureRecords(xml).equals(MetarParsing.captureRecords(xml, engineName))) {
+			throw new IllegalStateException("the " + engineName + " engine does not capture the same records as the sax engine");
+		}
+		
+		engine = MetarParsing.createEngine(engineName);
+		publisher = new CountingPublisher(false);
+		handler = MetarParsing.createHandler("XX", new KeyCreatorMetar(), publisher);
+	}
+	
+	@Benchmark
+	public int parse() throws Exception {
+		engine.reset();
+		publisher.initialize();
+		engine.parse(new ByteArrayInputStream(xml), handler);
+		return publisher.getChecksum();
+	}
+}
@@ -0,0 +1,178 @@
+package ca.nexcel.awbc.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ca.nexcel.awbc.processor.common.JsonWriter;
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.payload.PayloadCodec;
+import ca.nexcel.awbc.processor.payload.PayloadCodecBinary;
+import ca.nexcel.awbc.processor.payload.PayloadCodecJson;
+
+/**
+ * Measures the payload codecs encoding the raw text of every record of a fixture.
+ * The number of bytes the payloads take in the chain, compared to the raw text,
+ * is printed once the payloads are encoded in setup.
+ * <p/>
+ * Payloads are written to the chain for good, so before measuring, setup checks
+ * that every format decodes what it encodes: json, binary with the built-in
+ * dictionary and binary without a dictionary. The data is written as it is sent to
+ * the chain, read back with Jackson as it is listed by liststreamitems, and decoded
+ * by a codec of its own, as MetarChainReader does. The raw texts of the fixture,
+ * of the non ASCII fixture and texts that must be escaped are checked.
+ *
+ * @author George Franciscus
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PayloadCodecBenchmark {
+
+	/**
+	 * Texts checked besides the raw texts of the fixtures: quotes, backslashes, control
+	 * characters, a surrogate pair, an empty text and an escape sequence written out
+	 */
+	static final String[] ESCAPED_TEXTS = {
+		"", "KJFK 071851Z RMK \"QUOTED\" C:\\RWY\\04L", "TAB\tNEWLINE\nRETURN\r\u0001\u001f\u007f",
+		"SNOW \u2744 RAIN \uD83C\uDF27 \u00bd", "RMK \\u0041 NOT AN ESCAPE", "/"
+	};
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	@Param({"SMALL_COUNTRY", "US"})
+	private String fixture;
+
+	/**
+	 * json, binary, or binary-none to compress without a dictionary
+	 */
+	@Param({"json", "binary", "binary-none"})
+	private String format;
+
+	private PayloadCodec codec;
+	private String[] rawTexts;
+
+	@Setup
+	public void setup() {
+		codec = codec(format);
+
+		List<String> records = rawTexts(MetarFixtures.Fixture.valueOf(fixture));
+		rawTexts = records.toArray(new String[records.size()]);
+		long textBytes = 0;
+		long payloadBytes = 0;
+		for (int i = 0; i < rawTexts.length; i++) {
+			textBytes += rawTexts[i].length();
+			payloadBytes += codec.getSize(codec.encode(rawTexts[i]));
+		}
+		System.out.println();
+		System.out.println(format + " payloads of " + fixture + ": " + payloadBytes + " bytes for "
+				+ textBytes + " bytes of raw text, " + ((payloadBytes * 100) / textBytes) + "%");
+
+		List<String> texts = new ArrayList<String>(records);
+		texts.addAll(rawTexts(MetarFixtures.Fixture.NON_ASCII));
+		texts.addAll(Arrays.asList(ESCAPED_TEXTS));
+		checkPayloads(texts);
+	}
+
+	@Benchmark
+	public int encode() {
+		int size = 0;
+		for (String rawText : rawTexts) {
+			size += codec.encode(rawText).length();
+		}
+		return size;
+	}
+
+	/**
+	 * @param format json, binary, or binary-none to compress without a dictionary
+	 * @return a codec of the format
+	 */
+	static PayloadCodec codec(String format) {
+		if (format.equals(PayloadCodecJson.FORMAT)) {
+			return new PayloadCodecJson();
+		}
+		PayloadCodecBinary binary = new PayloadCodecBinary();
+		if (format.endsWith("-" + PayloadCodecBinary.NO_DICTIONARY)) {
+			binary.setDictionaryFile(PayloadCodecBinary.NO_DICTIONARY);
+		}
+		return binary;
+	}
+
+	/**
+	 * @return the raw text of every record of a fixture
+	 */
+	static List<String> rawTexts(MetarFixtures.Fixture fixture) {
+		List<String> rawTexts = new ArrayList<String>();
+		for (String record : MetarParsing.captureRecords(fixture.generate())) {
+			rawTexts.add(Utils.getValueFromJSON("raw_text", record));
+		}
+		return rawTexts;
+	}
+
+	/**
+	 * Checks that every format decodes the texts it encodes
+	 *
+	 * @param texts the texts
+	 * @throws IllegalStateException when a text is not decoded as it was encoded
+	 */
+	static void checkPayloads(List<String> texts) {
+		for (String format : new String[] {"json", "binary", "binary-none"}) {
+			PayloadCodec encoder = codec(format);
+			//payloads are read back by another run, with a codec configured the same way
+			PayloadCodec decoder = codec(format);
+			for (String text : texts) {
+				checkPayload(format, encoder, decoder, text);
+			}
+		}
+	}
+
+	private static void checkPayload(String format, PayloadCodec encoder, PayloadCodec decoder, String text) {
+		JsonWriter writer = new JsonWriter();
+		encoder.writeData(writer, encoder.encode(text));
+		String listed;
+		try {
+			JsonNode data = MAPPER.readTree(writer.toByteArray());
+			listed = data.isTextual() ? data.asText() : data.path("text").asText();
+		} catch (IOException e) {
+			throw new IllegalStateException(format + " data of " + describe(text) + " is not JSON", e);
+		}
+
+		String decoded;
+		try {
+			decoded = decoder.decode(listed);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalStateException(format + " payload of " + describe(text) + " cannot be decoded", e);
+		}
+		if (! text.equals(decoded)) {
+			throw new IllegalStateException(format + " payload of " + describe(text) + " decodes to " + describe(decoded));
+		}
+	}
+
+	private static String describe(String text) {
+		StringBuilder description = new StringBuilder("\"");
+		for (int i = 0; i < text.length(); i++) {
+			char ch = text.charAt(i);
+			if ((ch >= ' ') && (ch < 0x7f) && (ch != '\\')) {
+				description.append(ch);
+			} else {
+				description.append(String.format("\\u%04x", (int) ch));
+			}
+		}
+		return description.append('"').toString();
+	}
+}
@@ -0,0 +1,171 @@
+package ca.nexcel.awbc.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ca.nexcel.awbc.processor.common.Utils;
+import ca.nexcel.awbc.processor.payload.PayloadCodec;
+import ca.nexcel.awbc.processor.payload.PayloadCodecBinary;
+import ca.nexcel.awbc.processor.payload.PayloadCodecJson;
+import ca.nexcel.awbc.processor.payload.PayloadPack;
+
+/**
+ * Measures packing the records of a fixture, a number of observations to an
+ * item in the order they are parsed, as when several stations share a pack, and
+ * encoding the packs. The number of items and the bytes their payloads take in
+ * the chain are printed once the packs are encoded in setup. 1 observation to an
+ * item encodes the raw texts unpacked.
+ * <p/>
+ * Before measuring, setup checks that packs of 2, 6 and 24 observations of the
+ * fixture and of the non ASCII fixture are parsed back to the same observations and
+ * the same text, and that their text goes through every payload format unchanged,
+ * see PayloadCodecBenchmark.
+ *
+ * @author George Franciscus
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PayloadPackBenchmark {
+
+	@Param({"SMALL_COUNTRY", "US"})
+	private String fixture;
+
+	@Param({"json", "binary"})
+	private String format;
+
+	@Param({"1", "6", "24"})
+	private int observationsPerPack;
+
+	private PayloadCodec codec;
+
+	/**
+	 * The station identifier, observation time and raw text of every record
+	 */
+	private String[][] observations;
+
+	@Setup
+	public void setup() {
+		codec = format.equals(PayloadCodecJson.FORMAT) ? new PayloadCodecJson() : new PayloadCodecBinary();
+
+		observations = observations(MetarFixtures.Fixture.valueOf(fixture));
+		long textBytes = 0;
+		for (int i = 0; i < observations.length; i++) {
+			textBytes += observations[i][2].length();
+		}
+
+		int items = 0;
+		long payloadBytes = 0;
+		for (int i = 0; i < observations.length; i += observationsPerPack) {
+			payloadBytes += codec.getSize(codec.encode(text(i)));
+			items++;
+		}
+		System.out.println();
+		System.out.println(format + " payloads of " + fixture + ", " + observationsPerPack + " observations to an item: "
+				+ items + " items, " + payloadBytes + " bytes for " + textBytes + " bytes of raw text, "
+				+ ((payloadBytes * 100) / textBytes) + "%");
+
+		String[][] nonAscii = observations(MetarFixtures.Fixture.NON_ASCII);
+		String[][] escaped = new String[PayloadCodecBenchmark.ESCAPED_TEXTS.length][];
+		for (int i = 0; i < escaped.length; i++) {
+			escaped[i] = new String[] {"ZZZ" + i, "2018-11-05T00:00:00Z", PayloadCodecBenchmark.ESCAPED_TEXTS[i]};
+		}
+		List<String> texts = new ArrayList<String>();
+		for (int size : new int[] {2, 6, 24}) {
+			for (String[][] checked : Arrays.asList(observations, nonAscii, escaped)) {
+				for (int i = 0; i < checked.length; i += size) {
+					texts.add(checkPack(pack(checked, i, size)));
+				}
+			}
+		}
+		PayloadCodecBenchmark.checkPayloads(texts);
+	}
+
+	/**
+	 * @return the station identifier, observation time and raw text of every record of a fixture
+	 */
+	private static String[][] observations(MetarFixtures.Fixture fixture) {
+		List<String> records = MetarParsing.captureRecords(fixture.generate());
+		String[][] observations = new String[records.size()][];
+		for (int i = 0; i < observations.length; i++) {
+			observations[i] = new String[] {Utils.getValueFromJSON("station_id", records.get(i))
+					, Utils.getValueFromJSON("observation_time", records.get(i)), Utils.getValueFromJSON("raw_text", records.get(i))};
+		}
+		return observations;
+	}
+
+	/**
+	 * @return a pack of the observations starting at an observation
+	 */
+	private static PayloadPack pack(String[][] observations, int start, int size) {
+		PayloadPack pack = new PayloadPack();
+		for (int i = start; i < Math.min(observations.length, start + size); i++) {
+			pack.add(observations[i][0], observations[i][1], observations[i][2]);
+		}
+		return pack;
+	}
+
+	/**
+	 * Checks that the text of a pack is parsed back to the same observations and the same text
+	 *
+	 * @return the text of the pack
+	 * @throws IllegalStateException when the pack is not parsed as it was written
+	 */
+	private static String checkPack(PayloadPack pack) {
+		String text = pack.toText();
+		PayloadPack parsed;
+		try {
+			parsed = PayloadPack.parse(text);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalStateException("pack of " + pack.size() + " observations starting at " + pack.getStationId(0)
+					+ " cannot be parsed", e);
+		}
+		if (parsed.size() != pack.size()) {
+			throw new IllegalStateException("pack of " + pack.size() + " observations starting at " + pack.getStationId(0)
+					+ " is parsed to " + parsed.size() + " observations");
+		}
+		for (int i = 0; i < pack.size(); i++) {
+			if (! parsed.getStationId(i).equals(pack.getStationId(i))
+					|| ! parsed.getObservationTime(i).equals(pack.getObservationTime(i))
+					|| ! parsed.getRawText(i).equals(pack.getRawText(i))) {
+				throw new IllegalStateException("observation " + i + " of the pack starting at " + pack.getStationId(0)
+						+ " is parsed as " + parsed.getStationId(i) + " " + parsed.getObservationTime(i));
+			}
+		}
+		if (! parsed.toText().equals(text)) {
+			throw new IllegalStateException("pack starting at " + pack.getStationId(0) + " is not written back the same");
+		}
+		return text;
+	}
+
+	/**
+	 * @return the text of the item starting at an observation
+	 */
+	private String text(int start) {
+		if (observationsPerPack == 1) {
+			return observations[start][2];
+		}
+		return pack(observations, start, observationsPerPack).toText();
+	}
+
+	@Benchmark
+	public int encode() {
+		int size = 0;
+		for (int i = 0; i < observations.length; i += observationsPerPack) {
+			size += codec.encode(text(i)).length();
+		}
+		return size;
+	}
+}